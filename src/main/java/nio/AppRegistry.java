@@ -0,0 +1,57 @@
+package nio;
+
+import nio.api.WebAppFactory;
+import nio.log.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * The apps registered at build time through the WebApp annotation, keyed by app name (the first segment of
+ * their path). The generated factories are discovered once, when this class is first used; after that the
+ * routes are an immutable map. Each server creates its own app instances from the factories.
+ */
+final class AppRegistry
+{
+    private static final Map <String, WebAppFactory> appRoutes = loadRoutes ();
+
+    private AppRegistry ()
+    {
+    }
+
+    static WebAppFactory getFactory (String appName)
+    {
+        return appRoutes.get (appName);
+    }
+
+    static Map <String, WebAppFactory> getRoutes ()
+    {
+        return appRoutes;
+    }
+
+    // The app name a path is routed by, the same way HttpRequest.getAppName () derives it from a location
+    static String getAppName (String appPath)
+    {
+        String appName = appPath;
+        if (appName.startsWith ("/"))
+            appName = appName.substring (1);
+        if (appName.contains ("/"))
+            appName = appName.substring (0, appName.indexOf ("/"));
+        return appName;
+    }
+
+    private static Map <String, WebAppFactory> loadRoutes ()
+    {
+        Map <String, WebAppFactory> appRoutes = new HashMap <> ();
+        for (WebAppFactory appFactory : ServiceLoader.load (WebAppFactory.class, AppRegistry.class.getClassLoader ()))
+        {
+            WebAppFactory previousFactory = appRoutes.put (getAppName (appFactory.getPath ()), appFactory);
+            if (previousFactory != null)
+                Log.warn ("Path " + appFactory.getPath () + " of " + appFactory.getAppClass ().getName ()
+                    + " hides " + previousFactory.getAppClass ().getName ());
+        }
+        return Collections.unmodifiableMap (appRoutes);
+    }
+}
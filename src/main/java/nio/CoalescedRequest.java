@@ -0,0 +1,28 @@
+package nio;
+
+import nio.util.RequestCoalescer;
+import nio.util.TimerQueue;
+
+import java.util.function.Consumer;
+
+/**
+ * A GET that found an identical request already running for another connection, kept on its ConnectionState
+ * while it waits for that request's response. It holds the raw request, so that if the wait times out, or the
+ * response cannot be shared, the request can be put back in front of the connection's parked bytes and run
+ * as usual.
+ */
+class CoalescedRequest extends ParkedRequest
+{
+    final String coalesceKey;
+    final byte[] reqBytes;
+    Consumer <RequestCoalescer.Response> flightWaiter;
+    TimerQueue.Timer timeoutTimer;
+    // Gave up waiting, so the request is run by this connection when it is read again
+    boolean runLocally;
+
+    CoalescedRequest (String coalesceKey, byte[] reqBytes)
+    {
+        this.coalesceKey = coalesceKey;
+        this.reqBytes = reqBytes;
+    }
+}
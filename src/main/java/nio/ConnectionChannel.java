@@ -0,0 +1,96 @@
+package nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * The channel a connection's requests are read from and its responses written to. A write never blocks and
+ * always takes every byte: what the socket will not take yet is copied into the connection's pending output,
+ * later writes queue up behind it, and the server stops reading the connection and watches for OP_WRITE until
+ * it has all gone. Reads go straight through to the transport.
+ *
+ * A channel for writers that never change a buffer once written, such as WebSocket frames, queues what the socket
+ * will not take as it is, so a frame broadcast to many slow clients is held once rather than copied for each.
+ *
+ * It is only used by whichever thread is servicing the connection, the event loop or the worker holding it.
+ */
+final class ConnectionChannel implements ByteChannel, GatheringByteChannel
+{
+    private final ConnectionState transportState;
+    private final ByteChannel transportChannel;
+    private final boolean keepsBuffers;
+
+    ConnectionChannel (ConnectionState transportState, ByteChannel transportChannel, boolean keepsBuffers)
+    {
+        this.transportState = transportState;
+        this.transportChannel = transportChannel;
+        this.keepsBuffers = keepsBuffers;
+    }
+
+    public int read (ByteBuffer dstBuffer) throws IOException
+    {
+        return transportChannel.read (dstBuffer);
+    }
+
+    public int write (ByteBuffer srcBuffer) throws IOException
+    {
+        int byteCount = srcBuffer.remaining ();
+        // Nothing may overtake bytes that are already waiting
+        if (transportState.pendingOutput == null)
+            transportChannel.write (srcBuffer);
+        if (srcBuffer.hasRemaining ())
+            park (srcBuffer);
+        return byteCount;
+    }
+
+    public long write (ByteBuffer[] srcBuffers, int offset, int length) throws IOException
+    {
+        long byteCount = 0;
+        for (int i = offset; i < offset + length; i++)
+            byteCount += srcBuffers[i].remaining ();
+        if (transportState.pendingOutput == null && transportChannel instanceof GatheringByteChannel)
+            ((GatheringByteChannel) transportChannel).write (srcBuffers, offset, length);
+        for (int i = offset; i < offset + length; i++)
+            write (srcBuffers[i]);
+        return byteCount;
+    }
+
+    public long write (ByteBuffer[] srcBuffers) throws IOException
+    {
+        return write (srcBuffers, 0, srcBuffers.length);
+    }
+
+    // Callers may reuse their buffers, so what is parked is a copy, unless they have promised not to
+    private void park (ByteBuffer srcBuffer)
+    {
+        ByteBuffer parkedBuffer;
+        if (keepsBuffers)
+        {
+            parkedBuffer = srcBuffer.slice ();
+            srcBuffer.position (srcBuffer.limit ());
+        }
+        else
+        {
+            parkedBuffer = ByteBuffer.allocate (srcBuffer.remaining ());
+            parkedBuffer.put (srcBuffer);
+            parkedBuffer.flip ();
+        }
+        transportState.pendingOutputBytes += parkedBuffer.remaining ();
+        if (transportState.pendingOutput == null)
+            transportState.pendingOutput = new ArrayDeque <> ();
+        transportState.pendingOutput.add (parkedBuffer);
+    }
+
+    public boolean isOpen ()
+    {
+        return transportChannel.isOpen ();
+    }
+
+    public void close () throws IOException
+    {
+        transportChannel.close ();
+    }
+}
@@ -0,0 +1,124 @@
+package nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Everything the server remembers about a connection between reads, kept as its SelectionKey attachment.
+ * It is deliberately tiny: an idle keep-alive connection holds no buffer, no parser and no response, just this
+ * object. Read buffers are borrowed from the pool only while a read is in progress, and bytes of a request that
+ * has not fully arrived are parked in an array sized for the request until the rest comes in. Response bytes the
+ * socket would not take are parked the same way until it drains (see ConnectionChannel). TLS connections use
+ * TlsConnectionState, which adds the connection's TlsChannel, and connections that have switched to HTTP/2 or
+ * WebSocket use Http2ConnectionState or WebSocketConnectionState.
+ */
+class ConnectionState
+{
+    // Part of a request that is still arriving, null for an idle connection. Once the request's headers are in,
+    // this is an array of its full length, filled up to pendingLength.
+    byte[] pendingBytes;
+    int pendingLength;
+    // A request handed to the reverse proxy, held until its response has been relayed
+    ByteBuffer proxyRequest;
+    // A request whose response is being produced elsewhere, such as a GET waiting for the response to the same
+    // request on another connection
+    ParkedRequest parkedRequest;
+    // Bytes written that the socket would not take yet, in order, null when there are none. Nothing more is read
+    // from the connection until they have gone.
+    ArrayDeque <ByteBuffer> pendingOutput;
+    long pendingOutputBytes;
+    // Close the connection once its pending output has gone
+    boolean closeWhenWritten;
+    // Run once the pending output has gone, or the connection has closed, such as a proxy relay waiting to write
+    // more of a response
+    Runnable onWritten;
+    long lastActiveMillis;
+
+    ConnectionState (long lastActiveMillis)
+    {
+        this.lastActiveMillis = lastActiveMillis;
+    }
+
+    /**
+     * The channel requests are read from and responses written to. Writes to it never block.
+     */
+    final ByteChannel getChannel (SocketChannel socketChannel)
+    {
+        return new ConnectionChannel (getTransportState (), getTransportChannel (socketChannel), false);
+    }
+
+    /**
+     * A channel like getChannel ()'s for writers that never change a buffer once it is written, whose pending
+     * output is queued without copying
+     */
+    final ByteChannel getFrameChannel (SocketChannel socketChannel)
+    {
+        return new ConnectionChannel (getTransportState (), getTransportChannel (socketChannel), true);
+    }
+
+    /**
+     * The channel bytes go through on their way to the socket: the socket itself, or a TlsChannel over it
+     */
+    ByteChannel getTransportChannel (SocketChannel socketChannel)
+    {
+        return socketChannel;
+    }
+
+    /**
+     * The state holding the connection's transport, and with it the pending output: this one, or the one an
+     * upgraded connection wraps
+     */
+    ConnectionState getTransportState ()
+    {
+        return this;
+    }
+
+    /**
+     * True if bytes written to the connection are still waiting for the socket to take them
+     */
+    boolean hasPendingOutput ()
+    {
+        return pendingOutput != null;
+    }
+
+    /**
+     * Write as much pending output as the socket will take. Returns true once all of it has gone.
+     */
+    boolean flushOutput (SocketChannel socketChannel) throws IOException
+    {
+        ByteChannel transportChannel = getTransportChannel (socketChannel);
+        while (pendingOutput != null)
+        {
+            ByteBuffer pendingBuffer = pendingOutput.peek ();
+            pendingOutputBytes -= transportChannel.write (pendingBuffer);
+            if (pendingBuffer.hasRemaining ())
+                return false;
+            pendingOutput.poll ();
+            if (pendingOutput.isEmpty ())
+            {
+                pendingOutput = null;
+                pendingOutputBytes = 0;
+            }
+        }
+        return !hasPendingOutput ();
+    }
+
+    /**
+     * True if input has already been taken off the socket and must be read without waiting for the selector
+     */
+    boolean hasBufferedInput ()
+    {
+        return false;
+    }
+
+    /**
+     * Close the connection, saying goodbye first if the protocol has a way to
+     */
+    void close (SocketChannel socketChannel) throws IOException
+    {
+        socketChannel.close ();
+    }
+}
@@ -0,0 +1,34 @@
+package nio;
+
+import nio.http2.Http2Connection;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connection state for a connection that has switched to HTTP/2, by prior knowledge, ALPN or an h2c upgrade.
+ */
+final class Http2ConnectionState extends UpgradedConnectionState
+{
+    final Http2Connection http2Connection;
+
+    Http2ConnectionState (ConnectionState transportState, Http2Connection http2Connection)
+    {
+        super (transportState);
+        this.http2Connection = http2Connection;
+    }
+
+    // Send GOAWAY if the connection is still in a state to take it, then close the transport
+    void close (SocketChannel socketChannel) throws IOException
+    {
+        try
+        {
+            http2Connection.close ();
+        }
+        catch (IOException ignore)
+        {
+            /* ignore */
+        }
+        super.close (socketChannel);
+    }
+}
@@ -0,0 +1,151 @@
+package nio;
+
+import nio.log.Log;
+import nio.util.Platform;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Socket level settings for a server's listening sockets and the connections accepted on them. A value of 0
+ * (or false) leaves the operating system default alone.
+ *
+ * With reusePort set, every listening socket is bound with SO_REUSEPORT, so several sockets (one per event loop
+ * in NioCoreWebServer, or one per JVM when several server processes are started on the same port) each get
+ * their own accept queue and the Linux kernel load-balances new connections across them. SO_REUSEPORT needs
+ * Java 9 or later.
+ */
+public class ListenerOptions
+{
+    private boolean reusePort;
+    private int backlog;
+    private boolean tcpNoDelay;
+    private int receiveBufferSize;
+    private int sendBufferSize;
+    private int tcpFastOpen;
+
+    public boolean isReusePort ()
+    {
+        return reusePort;
+    }
+
+    public void setReusePort (boolean reusePort)
+    {
+        this.reusePort = reusePort;
+    }
+
+    public int getBacklog ()
+    {
+        return backlog;
+    }
+
+    /**
+     * Length of the accept queue of each listening socket (0 uses the JDK default of 50)
+     */
+    public void setBacklog (int backlog)
+    {
+        this.backlog = backlog;
+    }
+
+    public boolean isTcpNoDelay ()
+    {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Disable Nagle's algorithm on accepted connections
+     */
+    public void setTcpNoDelay (boolean tcpNoDelay)
+    {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public int getReceiveBufferSize ()
+    {
+        return receiveBufferSize;
+    }
+
+    /**
+     * SO_RCVBUF. It is set on the listening socket before binding so that accepted connections inherit it and
+     * the TCP window scale is negotiated accordingly.
+     */
+    public void setReceiveBufferSize (int receiveBufferSize)
+    {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getSendBufferSize ()
+    {
+        return sendBufferSize;
+    }
+
+    /**
+     * SO_SNDBUF on accepted connections
+     */
+    public void setSendBufferSize (int sendBufferSize)
+    {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getTcpFastOpen ()
+    {
+        return tcpFastOpen;
+    }
+
+    /**
+     * Length of the TCP Fast Open queue. The JDK has no standard option for it, so this is only applied when the
+     * runtime exposes an option named TCP_FASTOPEN. Otherwise it is ignored with a warning; on Linux the same
+     * effect can be had for every listener with the net.ipv4.tcp_fastopen sysctl.
+     */
+    public void setTcpFastOpen (int tcpFastOpen)
+    {
+        this.tcpFastOpen = tcpFastOpen;
+    }
+
+    /**
+     * Apply the options that must be in place before a listening socket is bound
+     */
+    void configureListener (ServerSocketChannel serverChannel) throws IOException
+    {
+        if (reusePort)
+        {
+            if (Platform.SO_REUSEPORT == null || !serverChannel.supportedOptions ().contains (Platform.SO_REUSEPORT))
+                throw new IOException ("SO_REUSEPORT is not supported by this JVM or operating system");
+            serverChannel.setOption (Platform.SO_REUSEPORT, true);
+        }
+        if (receiveBufferSize > 0)
+            serverChannel.setOption (StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        if (tcpFastOpen > 0)
+            setTcpFastOpen (serverChannel);
+    }
+
+    /**
+     * Apply the per connection options to a newly accepted socket
+     */
+    void configureAccepted (SocketChannel socketChannel) throws IOException
+    {
+        // Unix domain sockets have no TCP options
+        if (tcpNoDelay && socketChannel.supportedOptions ().contains (StandardSocketOptions.TCP_NODELAY))
+            socketChannel.setOption (StandardSocketOptions.TCP_NODELAY, true);
+        if (sendBufferSize > 0)
+            socketChannel.setOption (StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+    }
+
+    @SuppressWarnings ("unchecked")
+    private void setTcpFastOpen (ServerSocketChannel serverChannel) throws IOException
+    {
+        SocketOption <?> fastOpenOption = Platform.findSupportedOption (serverChannel, "TCP_FASTOPEN");
+        if (fastOpenOption == null)
+        {
+            Log.warn ("TCP_FASTOPEN is not available in this JVM, ignoring it");
+            return;
+        }
+        if (fastOpenOption.type () == Integer.class)
+            serverChannel.setOption ((SocketOption <Integer>) fastOpenOption, tcpFastOpen);
+        else if (fastOpenOption.type () == Boolean.class)
+            serverChannel.setOption ((SocketOption <Boolean>) fastOpenOption, true);
+    }
+}
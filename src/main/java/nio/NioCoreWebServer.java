@@ -0,0 +1,240 @@
+package nio;
+
+import nio.log.Log;
+import nio.util.Metrics;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Shared-nothing adaptation of the NIO Webserver which runs one fully independent event loop per core. Each
+ * loop owns its own selector, accept path, buffer pool, app instances, metrics shard and response cache shard,
+ * and services every request inline on its own thread. Nothing on the request path is shared between loops, so
+ * there are no cross-thread handoffs and no contended maps. Whichever loop accepts a connection owns it for life.
+ *
+ * By default the loops share one listening socket, which every loop registers with its own selector. When the
+ * listener options enable SO_REUSEPORT, each loop binds its own listening socket to the port instead, so each
+ * has its own accept queue and the kernel spreads new connections across the loops. Unix domain listeners (see
+ * addUnixListener) are always shared.
+ *
+ * The loops live and die together: if one fails, the rest are stopped and startServer throws its failure.
+ */
+public class NioCoreWebServer extends NioWebServer
+{
+    private int cpuCount = Runtime.getRuntime ().availableProcessors ();
+    private int busyPollLoops = Integer.MAX_VALUE;
+    private final List <CoreLoop> coreLoops = new CopyOnWriteArrayList <> ();
+    private volatile Exception loopFailure;
+
+    public static void main (String[] args) throws IOException
+    {
+        new NioCoreWebServer ().startServer (listenHost, listenPort, null);
+    }
+
+    /**
+     * Set the number of event loops to run. Defaults to the number of available processors.
+     */
+    public void setCpuCount (int cpuCount)
+    {
+        if (cpuCount < 1)
+            throw new IllegalArgumentException ("cpuCount must be at least 1");
+        this.cpuCount = cpuCount;
+    }
+
+    public int getCpuCount ()
+    {
+        return cpuCount;
+    }
+
+    public int getBusyPollLoops ()
+    {
+        return busyPollLoops;
+    }
+
+    /**
+     * Limit busy polling (see setBusyPollNanos) to the first busyPollLoops loops, so latency critical traffic
+     * can have dedicated spinning cores while the remaining loops block. Defaults to every loop.
+     */
+    public void setBusyPollLoops (int busyPollLoops)
+    {
+        this.busyPollLoops = busyPollLoops;
+    }
+
+    public void startServer (String listenHost, int listenPort, String appPackage) throws IOException
+    {
+        Log.info ("Listening on port " + listenPort + " with " + cpuCount + " core loops");
+        if (appPackage != null)
+            this.appPackage = appPackage;
+        // One socket per loop with SO_REUSEPORT, otherwise one socket shared by every loop
+        ServerSocketChannel sharedChannel = listenerOptions.isReusePort () ? null : openServerChannel (listenHost, listenPort);
+        // Unix domain listeners are always shared
+        List <ServerSocketChannel> unixListeners = openUnixListeners ();
+
+        List <Thread> loopThreads = new ArrayList <> ();
+        for (int i = 0; i < cpuCount; i++)
+        {
+            ServerSocketChannel serverChannel = sharedChannel != null ? sharedChannel : openServerChannel (listenHost, listenPort);
+            CoreLoop coreLoop = new CoreLoop (this, serverChannel, unixListeners);
+            if (i < busyPollLoops)
+                coreLoop.setBusyPollNanos (getBusyPollNanos ());
+            coreLoops.add (coreLoop);
+
+            // Set thread name for debugging
+            loopThreads.add (new Thread (coreLoop, "CoreLoop" + (i + 1)));
+        }
+        for (Thread loopThread : loopThreads)
+            loopThread.start ();
+
+        // Like the single loop server, the calling thread does not return while the server is running
+        try
+        {
+            for (Thread loopThread : loopThreads)
+                loopThread.join ();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread ().interrupt ();
+            return;
+        }
+
+        // The loops only end once one has failed and stopped the others
+        for (CoreLoop coreLoop : coreLoops)
+            coreLoop.closeListeners ();
+        if (loopFailure instanceof IOException)
+            throw (IOException) loopFailure;
+        if (loopFailure != null)
+            throw new IOException ("Core loop failed", loopFailure);
+    }
+
+    // The first loop to fail stops every loop, so the server does not carry on with some cores missing
+    private synchronized void loopFailed (Exception e)
+    {
+        if (loopFailure != null)
+            return;
+        loopFailure = e;
+        for (CoreLoop coreLoop : coreLoops)
+            coreLoop.stopLoop ();
+    }
+
+    /**
+     * True once every loop has started and warmed up its apps and is accepting
+     */
+    public boolean isReady ()
+    {
+        if (coreLoops.size () < cpuCount)
+            return false;
+        for (CoreLoop coreLoop : coreLoops)
+        {
+            if (!coreLoop.isLoopReady ())
+                return false;
+        }
+        return true;
+    }
+
+    public void stopAllApps () throws IOException
+    {
+        for (CoreLoop coreLoop : coreLoops)
+            coreLoop.stopAllApps ();
+    }
+
+    /**
+     * The sum of every loop's metrics shard
+     */
+    public Metrics getMetrics ()
+    {
+        List <Metrics> metricShards = new ArrayList <> ();
+        for (CoreLoop coreLoop : coreLoops)
+            metricShards.add (coreLoop.getMetrics ());
+        return Metrics.aggregate (metricShards);
+    }
+
+    /**
+     * One independent event loop. It is a complete single threaded server in its own right, with its own app
+     * cache, buffer pool, metrics and response cache, driven by an already bound listening socket.
+     */
+    private static class CoreLoop extends NioWebServer implements Runnable
+    {
+        private final NioCoreWebServer coreServer;
+        private final ServerSocketChannel serverChannel;
+        private final List <ServerSocketChannel> unixListeners;
+        private volatile boolean loopReady;
+
+        CoreLoop (NioCoreWebServer coreServer, ServerSocketChannel serverChannel, List <ServerSocketChannel> unixListeners)
+        {
+            this.coreServer = coreServer;
+            this.serverChannel = serverChannel;
+            this.unixListeners = unixListeners;
+            this.appPackage = coreServer.appPackage;
+            this.listenerOptions = coreServer.listenerOptions;
+            setTlsConfig (coreServer.getTlsConfig ());
+            setHttp2 (coreServer.isHttp2 ());
+            setProxyConfig (coreServer.getProxyConfig ());
+            setAccessLog (coreServer.getAccessLog ());
+            setTrafficJournal (coreServer.getTrafficJournal ());
+            setRateLimiter (coreServer.getRateLimiter ());
+            setFixedResponses (coreServer.getFixedResponses ());
+            // One coalescer for every loop, so a request running on one loop is waited for on the others
+            setCoalescer (coreServer.getCoalescer ());
+            setProfiling (coreServer.getProfilePath (), coreServer.getAdminToken ());
+            setEntityTags (coreServer.isEntityTags ());
+            setKeepAlive (coreServer.isKeepAlive ());
+            setIdleTimeoutMillis (coreServer.getIdleTimeoutMillis ());
+            setMaxRequestBytes (coreServer.getMaxRequestBytes ());
+            setReadinessPath (coreServer.getReadinessPath ());
+            setWarmupIterations (coreServer.getWarmupIterations ());
+            for (String rawRequest : coreServer.getWarmupRequests ())
+                addWarmupRequest (rawRequest);
+        }
+
+        public void run ()
+        {
+            try
+            {
+                // Every loop starts and warms its own app instances before it accepts anything
+                startApps ();
+                registerServerChannel (serverChannel);
+                registerListeners (unixListeners);
+                loopReady = true;
+                Log.info (Thread.currentThread ().getName () + " is ready");
+                handleSelector (serverChannel);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                Log.warn (Thread.currentThread ().getName () + " failed: " + e);
+                coreServer.loopFailed (e);
+            }
+            finally
+            {
+                loopReady = false;
+            }
+        }
+
+        void closeListeners ()
+        {
+            try
+            {
+                serverChannel.close ();
+                for (ServerSocketChannel unixListener : unixListeners)
+                    unixListener.close ();
+            }
+            catch (IOException ignore)
+            {
+                /* ignore */
+            }
+        }
+
+        boolean isLoopReady ()
+        {
+            return loopReady;
+        }
+
+        // Readiness probes answer for the whole server, not just this loop
+        public boolean isReady ()
+        {
+            return coreServer.isReady ();
+        }
+    }
+}
@@ -1,193 +1,189 @@
 package nio;
 
+import nio.jfr.ConnectionTrace;
+import nio.log.Log;
+import nio.util.Platform;
+import nio.util.WorkerPool;
+
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
-import java.util.LinkedList;
-import java.util.List;
 
 /**
- * Adaptation of the NIO Webserver which uses a thread pool to service channels.
+ * Adaptation of the NIO Webserver which uses a thread pool to service channels. The pool resizes itself between
+ * a minimum and a maximum from how long channels wait for a worker, or can be a work stealing ForkJoinPool for
+ * CPU bound apps (see WorkerPool).
  */
 public class NioPooledWebServer extends NioWebServer
 {
-    private static final int MAX_THREADS = 5;
-    private final ThreadPool threadPool = new ThreadPool (MAX_THREADS);
+    private static final int CPU_COUNT = Runtime.getRuntime ().availableProcessors ();
+    private int minWorkers = CPU_COUNT;
+    private int maxWorkers = Math.max (16, CPU_COUNT * 8);
+    private int poolBackend = WorkerPool.ADAPTIVE;
+    private long targetWaitMicros = WorkerPool.DEFAULT_TARGET_WAIT_MICROS;
+    private WorkerPool workerPool;
 
     public static void main (String[] argv) throws IOException
     {
         new NioPooledWebServer ().startServer (listenHost, listenPort, null);
     }
 
+    public void startServer (String listenHost, int listenPort, String appPackage) throws IOException
+    {
+        workerPool = new WorkerPool ("Worker", poolBackend, minWorkers, maxWorkers, targetWaitMicros, metrics);
+        schedule (this::adjustWorkers, WorkerPool.CONTROL_INTERVAL_MILLIS);
+        super.startServer (listenHost, listenPort, appPackage);
+    }
+
+    // The loop checks on the pool every interval, so it grows even when every worker is blocked
+    private void adjustWorkers ()
+    {
+        workerPool.adjust ();
+        schedule (this::adjustWorkers, WorkerPool.CONTROL_INTERVAL_MILLIS);
+    }
+
+    public int getMinWorkers ()
+    {
+        return minWorkers;
+    }
+
+    public int getMaxWorkers ()
+    {
+        return maxWorkers;
+    }
+
     /**
-     * The handler method to process a channel with data ready to read. This handler delegates to a worker thread
-     * in a thread pool to service the channel, then returns immediately.
-     *
-     * @param selectionKey A SelectionKey object representing a channel determined by the selector to be ready for
-     *                     reading. If the channel returns an EOF condition, it is closed here, which automatically
-     *                     invalidates the associated key. The selector will then de-register the channel on the next
-     *                     select call.
+     * Let the pool grow and shrink between minWorkers and maxWorkers. Defaults to the number of available
+     * processors and eight times that (sixteen at least). Must be called before startServer().
      */
-    protected void handleRead (SelectionKey selectionKey)
+    public void setWorkers (int minWorkers, int maxWorkers)
     {
-        WorkerThread workerThread = threadPool.getWorker ();
-
-        if (workerThread == null)
-        {
-            // No threads available. Do nothing. The selection loop will keep calling this method until a
-            // thread becomes available. Can we improve this?
-            return;
-        }
+        if (minWorkers < 1 || maxWorkers < minWorkers)
+            throw new IllegalArgumentException ("Need 1 <= minWorkers <= maxWorkers, not " + minWorkers + " and " + maxWorkers);
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+    }
 
-        // Invoking this wakes up the worker thread, then returns
-        workerThread.serviceChannel (selectionKey);
+    public boolean isWorkStealing ()
+    {
+        return poolBackend == WorkerPool.WORK_STEALING;
     }
 
     /**
-     * A very simple thread pool class. The pool size is set at construction time and remains fixed. Threads are
-     * cycled through a FIFO idle queue.
+     * Service channels on a work stealing ForkJoinPool of maxWorkers threads instead of the adaptive pool.
+     * Must be called before startServer().
      */
-    private class ThreadPool
+    public void setWorkStealing (boolean workStealing)
     {
-        final List <Thread> idleThreads = new LinkedList <> ();
+        this.poolBackend = workStealing ? WorkerPool.WORK_STEALING : WorkerPool.ADAPTIVE;
+    }
 
-        ThreadPool (int poolSize)
-        {
-            // Fill up the pool with worker threads
-            for (int i = 0; i < poolSize; i++)
-            {
-                WorkerThread thread = new WorkerThread (this);
+    public long getTargetWaitMicros ()
+    {
+        return targetWaitMicros;
+    }
+
+    /**
+     * The average time a channel may wait for a worker before the pool grows. Defaults to 2ms. Must be called
+     * before startServer().
+     */
+    public void setTargetWaitMicros (long targetWaitMicros)
+    {
+        this.targetWaitMicros = targetWaitMicros;
+    }
 
-                // Set thread name for debugging. Start it.
-                thread.setName ("Worker" + (i + 1));
-                thread.start ();
+    /**
+     * The worker pool, once the server has started
+     */
+    public WorkerPool getWorkerPool ()
+    {
+        return workerPool;
+    }
 
-                idleThreads.add (thread);
-            }
+    /**
+     * The handler method to process a channel with data ready to read. This handler turns off selection interest
+     * in OP_READ, so the selector ignores the channel while it is being serviced, queues the channel for a worker,
+     * then returns immediately.
+     *
+     * @param selectionKey A SelectionKey object representing a channel determined by the selector to be ready for
+     *                     reading. If the channel returns an EOF condition, it is closed by the worker, which
+     *                     automatically invalidates the associated key. The selector will then de-register the
+     *                     channel on the next select call.
+     */
+    protected void handleRead (SelectionKey selectionKey)
+    {
+        // Fixed responses, and a client already over its rate limit, are answered here without taking a worker
+        if (serveFixedResponses (selectionKey) || rejectRateLimited (selectionKey))
+        {
+            awaitWritten (selectionKey);
+            return;
         }
 
-        /**
-         * Find an idle worker thread, if any.  Could return null.
-         */
-        WorkerThread getWorker ()
-        {
-            WorkerThread workerThread = null;
+        selectionKey.interestOps (selectionKey.interestOps () & (~SelectionKey.OP_READ));
+        ConnectionTrace queueTrace = Platform.FLIGHT_RECORDER ? ConnectionTrace.beginQueued () : null;
+        workerPool.execute (() -> serviceChannel (selectionKey, queueTrace));
+    }
 
-            synchronized (idleThreads)
-            {
-                if (idleThreads.size () > 0)
-                {
-                    workerThread = (WorkerThread) idleThreads.remove (0);
-                }
-            }
+    // Runs on a worker. Work it starts on the event loop, such as client requests, goes to the selector thread.
+    private void serviceChannel (SelectionKey selectionKey, ConnectionTrace queueTrace)
+    {
+        if (queueTrace != null)
+            queueTrace.dequeued (selectionKey.channel ());
+        setCurrentEventLoop (this);
+        if (Log.isDebugEnabled ())
+            Log.debug (Thread.currentThread ().getName () + " has been awakened");
 
-            return (workerThread);
+        try
+        {
+            drainChannel (selectionKey);
         }
-
-        /**
-         * Called by the worker thread to return itself to the idle pool.
-         */
-        void returnWorker (WorkerThread workerThread)
+        catch (Exception e)
         {
-            synchronized (idleThreads)
-            {
-                idleThreads.add (workerThread);
-            }
+            if (Log.isDebugEnabled ())
+                Log.debug ("Caught '" + e + "' closing channel");
+
+            // Close channel and nudge selector
+            closeConnection (selectionKey);
+            selectionKey.selector ().wakeup ();
         }
     }
 
     /**
-     * A worker thread class which handles the HTTP protocol. Each instance is constructed with a reference to
-     * the owning thread pool object. When started, the thread loops forever waiting to be awakened to service
-     * the channel associated with a SelectionKey object. The worker is given a task by calling its serviceChannel()
-     * method with a SelectionKey object. The serviceChannel() method stores the key reference in the thread object
-     * then calls notify() to wake it up. Upon completion, the worker thread is returned to its parent thread-pool.
+     * This method drains the channel associated with the given key. This method assumes the key has been
+     * modified prior to invocation to turn off selection interest in OP_READ.  When this method completes it
+     * re-enables OP_READ, or OP_WRITE if the client has yet to take all of a response, and calls wakeup() on the
+     * selector so the selector will resume watching this channel.
      */
-    private class WorkerThread extends Thread
+    private void drainChannel (SelectionKey selectionKey) throws Exception
     {
-        private final ThreadPool pool;
-        private SelectionKey key;
+        readChannelFully (selectionKey);
+        boolean awaitingWrite = awaitWritten (selectionKey);
 
-        WorkerThread (ThreadPool pool)
+        // A proxied request is forwarded by the selector thread, which watches the channel again once the
+        // response has been relayed
+        if (isAwaitingProxy (selectionKey))
         {
-            this.pool = pool;
+            execute (() -> forwardProxied (selectionKey));
+            return;
         }
-
-        // Loop forever waiting for work to do
-        public synchronized void run ()
+        // So is a GET waiting for the response to the same request on another connection
+        if (isAwaitingCoalesced (selectionKey))
         {
-            System.out.println (this.getName () + " is ready");
-
-            while (true)
-            {
-                try
-                {
-                    // Sleep and release object lock
-                    this.wait ();
-                }
-                catch (InterruptedException e)
-                {
-                    e.printStackTrace ();
-                    // Clear interrupt status
-                    WorkerThread.interrupted ();
-                }
-
-                if (key == null)
-                {
-                    continue;    // just in case
-                }
-
-                System.out.println (this.getName () + " has been awakened");
-
-                try
-                {
-                    drainChannel (key);
-                }
-                catch (Exception e)
-                {
-                    System.out.println ("Caught '" + e + "' closing channel");
-
-                    // Close channel and nudge selector
-                    try
-                    {
-                        key.channel ().close ();
-                    }
-                    catch (IOException ex)
-                    {
-                        ex.printStackTrace ();
-                    }
-
-                    key.selector ().wakeup ();
-                }
-
-                key = null;
-
-                // Done. Ready for more. Return to pool
-                this.pool.returnWorker (this);
-            }
+            execute (() -> awaitCoalesced (selectionKey));
+            return;
         }
-
-        /**
-         * Called to initiate a unit of work by this worker thread on the provided SelectionKey object. This method
-         * and the run() method are synchronized, so only one key can be serviced at a given time.
-         * Before waking the worker thread, and before returning to the main selection loop, this key's interest set
-         * is updated to remove OP_READ. This will cause the selector to ignore read-readiness for this channel while
-         * the worker thread is servicing it.
-         */
-        synchronized void serviceChannel (SelectionKey key)
+        // And a call to the profiling endpoint, which records on a thread of its own
+        if (isAwaitingProfile (selectionKey))
         {
-            this.key = key;
-            key.interestOps (key.interestOps () & (~SelectionKey.OP_READ));
-            this.notify ();        // Awaken the thread
+            execute (() -> startProfile (selectionKey));
+            return;
         }
 
-        /**
-         * This method drains the channel associated with the given key. This method assumes the key has been
-         * modified prior to invocation to turn off selection interest in OP_READ.  When this method completes it
-         * re-enables OP_READ and calls wakeup() on the selector so the selector will resume watching this channel.
-         */
-        void drainChannel (SelectionKey selectionKey) throws Exception
+        // Still open means a keep-alive connection or a request that is not complete yet, so watch for more
+        if (selectionKey.isValid ())
         {
-            readChannelFully (selectionKey);
+            if (!awaitingWrite)
+                selectionKey.interestOps (selectionKey.interestOps () | SelectionKey.OP_READ);
+            selectionKey.selector ().wakeup ();
         }
     }
 }
@@ -2,22 +2,68 @@ package nio;
 
 import nio.api.HttpRequest;
 import nio.api.HttpResponse;
-import nio.util.Pair;
+import nio.api.NioWebApp;
+import nio.api.WebAppFactory;
+import nio.api.WebSocketHandler;
+import nio.capture.TrafficJournal;
+import nio.http2.Http2Connection;
+import nio.jfr.ConnectionTrace;
+import nio.jfr.Profiler;
+import nio.jfr.RequestTrace;
+import nio.limit.RateLimiter;
+import nio.log.AccessLog;
+import nio.log.Log;
+import nio.proxy.ProxyConfig;
+import nio.proxy.ReverseProxy;
+import nio.tls.TlsChannel;
+import nio.tls.TlsConfig;
+import nio.util.BufferPool;
+import nio.util.ConnectionIds;
+import nio.util.EventLoop;
+import nio.util.FixedResponses;
+import nio.util.Metrics;
+import nio.util.NullChannel;
+import nio.util.Platform;
+import nio.util.RequestCoalescer;
+import nio.util.ResponseCache;
+import nio.util.SelectedKeySet;
+import nio.util.SelectionHandler;
+import nio.util.TimerQueue;
+import nio.util.UnixDomainSockets;
+import nio.websocket.WebSocketConnection;
 
+import javax.net.ssl.SSLSession;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /*
 curl -i  http://localhost:8080/
@@ -27,14 +73,107 @@ curl -i -d "user=user1&pass=abcd" -X POST http://localhost:8080/
 curl -i -d "user=user1&pass=abcd" -X POST http://localhost:8080/SimpleApp
 curl -i -d "user=user1&pass=abcd" -X POST http://localhost:8080/SimpleApp2
 */
-public class NioWebServer
+public class NioWebServer implements EventLoop
 {
     static String listenHost = "localhost";
     static int listenPort = 8080;
-    static Selector serverSelector;
     static final String SERVER_NAME = "Java NIO Webserver 1.0";
+    private static final int READ_BUFFER = 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final int MAX_CACHED_RESPONSES = 256;
+    private static final int MAX_MISSING_APPS = 1024;
+    private static final int MAX_ACCEPTS_PER_READY = 64;
+    private static final int SELECTOR_REBUILD_THRESHOLD = 512;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    private static final String WARMUP_HOST = "localhost";
+    private static final String CONTENT_LENGTH = "content-length";
+    private static final String TRANSFER_ENCODING = "transfer-encoding";
+    public static final int DEFAULT_MAX_REQUEST_BYTES = 1 << 20;
+    public static final long DEFAULT_MAX_WEBSOCKET_PENDING_BYTES = 16 << 20;
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    // getRequestLength () for a request whose request line, headers or Content-Length cannot be read
+    static final int MALFORMED_REQUEST = -1;
+    private static final int OTHER_HEADER = -2;
+    // getRequestLength () for a request with a body framed by Transfer-Encoding, which is not supported
+    static final int ENCODED_REQUEST = -3;
+    // readAppended () for a request whose known length has not all arrived
+    private static final byte[] STILL_ARRIVING = new byte[0];
+    private static final long DEFAULT_PROFILE_SECONDS = 10;
+    private static final long MAX_PROFILE_SECONDS = 300;
+    private static final String NOT_FOUND_PREFIX = "<html><head><title>" + SERVER_NAME + "</title></head><body>" + SERVER_NAME + " got ";
+    private static final ThreadLocal <EventLoop> currentEventLoop = new ThreadLocal <> ();
+    volatile Selector serverSelector;
+    private SelectedKeySet selectedKeySet;
+    private int emptySelects;
+    private long busyPollNanos;
+    private boolean keepAlive;
+    private long idleTimeoutMillis;
+    private long lastSweepMillis;
+    private volatile boolean ready;
+    private String readinessPath = "/ready";
+    private int warmupIterations;
+    private final List <String> warmupRequests = new ArrayList <> ();
+    private TlsConfig tlsConfig;
+    private boolean http2;
+    private ProxyConfig proxyConfig;
+    private ReverseProxy reverseProxy;
+    private AccessLog accessLog;
+    private TrafficJournal trafficJournal;
+    private RateLimiter rateLimiter;
+    private RequestCoalescer coalescer;
+    private String profilePath;
+    private String adminToken;
+    private Profiler profiler;
+    private boolean entityTags = true;
+    private int maxRequestBytes = DEFAULT_MAX_REQUEST_BYTES;
+    private long maxWebSocketPendingBytes = DEFAULT_MAX_WEBSOCKET_PENDING_BYTES;
+    private FixedResponses fixedResponses = new FixedResponses ();
+    private FixedResponses.Entry readyResponse;
+    private FixedResponses.Entry notReadyResponse;
+    BufferPool tlsPacketPool;
+    BufferPool tlsAppPool;
+    private volatile Thread loopThread;
+    private boolean loopStopped;
+    private final Queue <Runnable> loopTasks = new ConcurrentLinkedQueue <> ();
+    private final TimerQueue timerQueue = new TimerQueue ();
     String appPackage = "nio";
-    final ConcurrentHashMap <String, Pair <Object, Method>> appCache = new ConcurrentHashMap <> ();
+    ListenerOptions listenerOptions = new ListenerOptions ();
+    private final List <Path> unixSocketPaths = new ArrayList <> ();
+    final ConcurrentHashMap <String, NioWebApp> appCache = new ConcurrentHashMap <> ();
+    // Names that are known not to be apps, so a request for one does not try to load a class every time
+    private final Set <String> missingApps = ConcurrentHashMap.newKeySet ();
+    final BufferPool bufferPool = new BufferPool (READ_BUFFER, MAX_POOLED_BUFFERS);
+    final ResponseCache responseCache = new ResponseCache (MAX_CACHED_RESPONSES);
+    final Metrics metrics = new Metrics ();
+    private final Metrics.Counter acceptCount = metrics.counter ("connections.accepted");
+    private final Metrics.Counter openCount = metrics.counter ("connections.open");
+    private final Metrics.Counter idleCloseCount = metrics.counter ("connections.idleClosed");
+    private final Metrics.Counter writeWaitCount = metrics.counter ("connections.writeWaits");
+    private final Metrics.Counter requestCount = metrics.counter ("requests");
+    private final Metrics.Counter notFoundCount = metrics.counter ("requests.notFound");
+    private final Metrics.Counter rateLimitedCount = metrics.counter ("requests.rateLimited");
+    private final Metrics.Counter rejectedCount = metrics.counter ("requests.rejected");
+    private final Metrics.Counter cacheHitCount = metrics.counter ("responseCache.hits");
+    private final Metrics.Counter coalescedCount = metrics.counter ("requests.coalesced");
+    private final Metrics.Counter coalesceTimeoutCount = metrics.counter ("coalesce.timeouts");
+    private final Metrics.Counter profileCount = metrics.counter ("profiles");
+    private final Metrics.Counter fixedCount = metrics.counter ("responses.fixed");
+    private final Metrics.Counter notModifiedCount = metrics.counter ("responses.notModified");
+    private final Metrics.Counter bytesReadCount = metrics.counter ("bytes.read");
+    private final Metrics.Counter reflectiveLoadCount = metrics.counter ("apps.reflectiveLoads");
+    private final Metrics.Counter warmupRequestCount = metrics.counter ("warmup.requests");
+    private final Metrics.Counter warmupNanosCount = metrics.counter ("warmup.nanos");
+    private final Metrics.Counter rebuildCount = metrics.counter ("selector.rebuilds");
+    private final Metrics.Counter busyPollNanosCount = metrics.counter ("busyPoll.nanos");
+    private final Metrics.Counter busyPollSpinCount = metrics.counter ("busyPoll.spins");
+    private final Metrics.Counter busyPollHitCount = metrics.counter ("busyPoll.hits");
+    private final Metrics.Counter busyPollParkCount = metrics.counter ("busyPoll.parks");
+    private final Metrics.Counter tlsHandshakeCount = metrics.counter ("tls.handshakes");
+    private final Metrics.Counter tlsResumedCount = metrics.counter ("tls.sessionsResumed");
+    private final Metrics.Counter http2ConnectionCount = metrics.counter ("http2.connections");
+    private final Metrics.Counter http2StreamCount = metrics.counter ("http2.streams");
+    private final Metrics.Counter webSocketUpgradeCount = metrics.counter ("websocket.upgrades");
+    private final Metrics.Counter webSocketPingCount = metrics.counter ("websocket.keepAlivePings");
 
     public static void main (String[] args) throws IOException
     {
@@ -43,138 +182,593 @@ public class NioWebServer
 
     public void startServer (String listenHost, int listenPort, String appPackage) throws IOException
     {
-        System.out.println ("Listening on port " + listenPort);
+        Log.info ("Listening on port " + listenPort);
         if (appPackage != null)
             this.appPackage = appPackage;
+        startApps ();
         ServerSocketChannel serverChannel = getServerChannel (listenHost, listenPort);
+        registerListeners (openUnixListeners ());
+        ready = true;
         handleSelector (serverChannel);
     }
 
-    private void handleSelector (ServerSocketChannel serverChannel) throws IOException
+    /**
+     * Run an event loop on the calling thread without listening on any port, for clients and timers only. Like
+     * startServer () it does not return.
+     */
+    public void runEventLoop () throws IOException
     {
-        while (true)
+        serverSelector = openSelector ();
+        handleSelector (null);
+    }
+
+    /**
+     * The event loop the calling thread belongs to: the loop itself, or for NioPooledWebServer the loop a worker
+     * serves. Null on any other thread.
+     */
+    public static EventLoop currentEventLoop ()
+    {
+        return currentEventLoop.get ();
+    }
+
+    static void setCurrentEventLoop (EventLoop eventLoop)
+    {
+        currentEventLoop.set (eventLoop);
+    }
+
+    /**
+     * Create and start every app in the build time registry, then run the warm-up requests through them. Called
+     * before the server starts accepting, so no user request ever pays for class loading, start () or cold code.
+     */
+    void startApps () throws IOException
+    {
+        try
+        {
+            for (String appName : AppRegistry.getRoutes ().keySet ())
+                appCache.computeIfAbsent (appName, this::createApp);
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause ();
+        }
+        if (proxyConfig != null && reverseProxy == null)
+        {
+            reverseProxy = new ReverseProxy (proxyConfig, this, bufferPool, metrics);
+            reverseProxy.setAccessLog (accessLog);
+            reverseProxy.start ();
+        }
+        encodeReadiness ();
+        warmUpApps ();
+    }
+
+    // Both answers to a readiness probe are encoded once, and the current one is written as it is
+    private void encodeReadiness () throws IOException
+    {
+        readyResponse = fixedResponses.encode ("GET", readinessPath, newReadinessResponse (true));
+        notReadyResponse = fixedResponses.encode ("GET", readinessPath, newReadinessResponse (false));
+    }
+
+    // Replay the synthetic warm-up requests so the JIT compiles the request path before real traffic arrives
+    private void warmUpApps ()
+    {
+        if (warmupIterations <= 0)
+            return;
+        List <String> warmupSet = new ArrayList <> (warmupRequests);
+        for (WebAppFactory appFactory : AppRegistry.getRoutes ().values ())
+            warmupSet.add ("GET " + appFactory.getPath () + " HTTP/1.1\r\nHost: " + WARMUP_HOST + "\r\n\r\n");
+
+        long warmupStart = System.nanoTime ();
+        NullChannel nullChannel = new NullChannel ();
+        for (int i = 0; i < warmupIterations; i++)
+        {
+            for (String rawRequest : warmupSet)
+            {
+                HttpRequest httpRequest = new HttpRequest (rawRequest);
+                HttpResponse httpResponse = new HttpResponse (nullChannel);
+                processApp (httpRequest.getAppName (), httpRequest, httpResponse);
+                warmupRequestCount.increment ();
+            }
+        }
+        warmupNanosCount.add (System.nanoTime () - warmupStart);
+    }
+
+    void handleSelector (ServerSocketChannel serverChannel) throws IOException
+    {
+        loopThread = Thread.currentThread ();
+        setCurrentEventLoop (this);
+        // Tasks handed over before there was a selector to wake
+        runLoopTasks ();
+        while (!loopStopped)
         {
             // This may block for a long time. Upon returning, the
             // selected set contains keys of the ready channels.
-            int numKeys = serverSelector.select ();
+            long selectStart = System.nanoTime ();
+            long selectTimeout = getSelectTimeout ();
+            int numKeys = busyPollNanos > 0 ? busyPollSelect (selectTimeout) : serverSelector.select (selectTimeout);
             if (numKeys == 0)
-                continue;    // nothing to do
+            {
+                // Nothing to do. A selector that keeps returning early with nothing ready has hit the epoll
+                // spurious wakeup bug and will spin forever, so replace it. Being woken for a task is not early.
+                boolean workDone = runLoopTasks () | runTimers ();
+                if (workDone || selectTimeout > 0 && System.nanoTime () - selectStart >= selectTimeout * 1000000L)
+                    emptySelects = 0;
+                else if (++emptySelects >= SELECTOR_REBUILD_THRESHOLD)
+                    rebuildSelector ();
+                closeIdleConnections ();
+                continue;
+            }
+            emptySelects = 0;
 
-            // Get an iterator over the set of selected keys
-            Set <SelectionKey> selectionKeys = serverSelector.selectedKeys ();
-            Iterator <SelectionKey> keyIterator = selectionKeys.iterator ();
+            if (selectedKeySet != null)
+                processSelectedKeysOptimized ();
+            else
+                processSelectedKeysPlain ();
+            runLoopTasks ();
+            runTimers ();
+            closeIdleConnections ();
+        }
+
+        // Stopped, so hang up on every client still connected
+        for (SelectionKey selectionKey : serverSelector.keys ())
+        {
+            if (!(selectionKey.channel () instanceof ServerSocketChannel))
+                closeConnection (selectionKey);
+        }
+        serverSelector.close ();
+    }
+
+    /**
+     * Stop this server's event loop once it has finished what it is doing, closing its connections.
+     * handleSelector () then returns.
+     */
+    void stopLoop ()
+    {
+        execute (() -> loopStopped = true);
+    }
+
+    private boolean runTimers ()
+    {
+        return timerQueue.runExpired (System.currentTimeMillis ());
+    }
+
+    public TimerQueue.Timer schedule (Runnable loopTask, long delayMillis)
+    {
+        return timerQueue.add (loopTask, delayMillis);
+    }
+
+    public SelectionKey register (SelectableChannel selectableChannel, int interestOps, SelectionHandler selectionHandler) throws ClosedChannelException
+    {
+        return selectableChannel.register (serverSelector, interestOps, selectionHandler);
+    }
+
+    /**
+     * Run a task on this server's event loop, after the I/O it is busy with. The selector is woken if the task
+     * comes from another thread.
+     */
+    public void execute (Runnable loopTask)
+    {
+        loopTasks.add (loopTask);
+        Selector loopSelector = serverSelector;
+        if (loopSelector != null && !inEventLoop ())
+            loopSelector.wakeup ();
+    }
+
+    public boolean inEventLoop ()
+    {
+        return Thread.currentThread () == loopThread;
+    }
 
-            // Look at each key in the selected set
-            while (keyIterator.hasNext ())
+    // Run the tasks other threads have handed to this loop. Returns true if there were any.
+    private boolean runLoopTasks ()
+    {
+        boolean tasksRun = false;
+        Runnable loopTask;
+        while ((loopTask = loopTasks.poll ()) != null)
+        {
+            tasksRun = true;
+            try
+            {
+                loopTask.run ();
+            }
+            catch (RuntimeException e)
             {
-                SelectionKey selectionKey = keyIterator.next ();
+                Log.warn (e.toString ());
+            }
+        }
+        return tasksRun;
+    }
 
-                // Is a new connection coming in?
-                if (selectionKey.isAcceptable ())
-                {
-                    // New client has been accepted
-                    handleAccept (serverChannel, serverSelector);
-                }
-                // Is there data to read on this channel?
-                else if (selectionKey.isReadable ())
-                {
-                    // We can run non-blocking operation READ on our client
-                    handleRead (selectionKey);
-                }
+    // Spin on selectNow () for up to busyPollNanos before parking in a blocking select (). Each selectNow () clears
+    // any wakeup () from execute (), so the spin also ends for a queued task or a due timer, and both are checked
+    // once more after the last selectNow (), before parking.
+    private int busyPollSelect (long selectTimeout) throws IOException
+    {
+        long spinStart = System.nanoTime ();
+        long spinDeadline = spinStart + busyPollNanos;
+        long spinCount = 0;
+        int numKeys;
+        do
+        {
+            numKeys = serverSelector.selectNow ();
+            if (numKeys > 0 || hasLoopWork ())
+                break;
+            spinCount++;
+            Platform.onSpinWait ();
+        }
+        while (System.nanoTime () - spinDeadline < 0);
+
+        // Time spent spinning is CPU burnt in exchange for latency, so account for all of it
+        busyPollNanosCount.add (System.nanoTime () - spinStart);
+        busyPollSpinCount.add (spinCount);
+        if (numKeys > 0)
+        {
+            busyPollHitCount.increment ();
+            return numKeys;
+        }
+        if (hasLoopWork ())
+            return 0;
+        busyPollParkCount.increment ();
+        return serverSelector.select (selectTimeout);
+    }
+
+    private boolean hasLoopWork ()
+    {
+        return !loopTasks.isEmpty () || timerQueue.isDue (System.currentTimeMillis ());
+    }
+
+    // Walk the array backed key set by index, no iterator and no per key removal
+    private void processSelectedKeysOptimized ()
+    {
+        for (int i = 0; i < selectedKeySet.size (); i++)
+            handleKey (selectedKeySet.get (i));
+        selectedKeySet.reset ();
+    }
+
+    // Fallback for when the JDK would not let us replace its selected key set
+    private void processSelectedKeysPlain ()
+    {
+        // Get an iterator over the set of selected keys
+        Set <SelectionKey> selectionKeys = serverSelector.selectedKeys ();
+        Iterator <SelectionKey> keyIterator = selectionKeys.iterator ();
+
+        // Look at each key in the selected set
+        while (keyIterator.hasNext ())
+        {
+            SelectionKey selectionKey = keyIterator.next ();
+
+            // Remove key from selected set; it's being handled
+            keyIterator.remove ();
+            handleKey (selectionKey);
+        }
+    }
+
+    private void handleKey (SelectionKey selectionKey)
+    {
+        try
+        {
+            // A key cancelled earlier in this batch is still in an array backed set
+            if (!selectionKey.isValid ())
+                return;
+
+            // Client connections and the like look after themselves
+            Object attachment = selectionKey.attachment ();
+            if (attachment instanceof SelectionHandler)
+            {
+                ((SelectionHandler) attachment).onSelected (selectionKey);
+                return;
+            }
+
+            // Is a new connection coming in?
+            if (selectionKey.isAcceptable ())
+            {
+                // New clients have been accepted
+                handleAccept ((ServerSocketChannel) selectionKey.channel (), serverSelector);
+            }
+            // Has the socket room for more of a response it would not take earlier?
+            else if (selectionKey.isWritable ())
+            {
+                handleWrite (selectionKey);
+            }
+            // Is there data to read on this channel?
+            else if (selectionKey.isReadable ())
+            {
+                // We can run non-blocking operation READ on our client
+                handleRead (selectionKey);
+            }
+        }
+        catch (IOException | CancelledKeyException e)
+        {
+            // One broken connection must not take the whole loop down
+            closeConnection (selectionKey);
+        }
+        catch (RuntimeException e)
+        {
+            // Nor may a bug one of them runs into. A listening socket is left open.
+            Log.warn ("Closing connection after " + e);
+            if (!(selectionKey.channel () instanceof ServerSocketChannel))
+                closeConnection (selectionKey);
+        }
+    }
+
+    // Open a Selector and swap in the array backed key set if the JDK allows it
+    Selector openSelector () throws IOException
+    {
+        Selector newSelector = Selector.open ();
+        selectedKeySet = SelectedKeySet.install (newSelector);
+        return newSelector;
+    }
 
-                // Remove key from selected set; it's been handled
-                keyIterator.remove ();
+    // Move every registration to a fresh selector and close the broken one
+    void rebuildSelector () throws IOException
+    {
+        Selector oldSelector = serverSelector;
+        Selector newSelector = openSelector ();
+        for (SelectionKey oldKey : oldSelector.keys ())
+        {
+            try
+            {
+                if (!oldKey.isValid ())
+                    continue;
+                int interestOps = oldKey.interestOps ();
+                Object attachment = oldKey.attachment ();
+                oldKey.cancel ();
+                oldKey.channel ().register (newSelector, interestOps, attachment);
+            }
+            catch (CancelledKeyException | ClosedChannelException e)
+            {
+                // Closed while we were moving it, nothing to carry over
             }
         }
+        serverSelector = newSelector;
+        oldSelector.close ();
+        emptySelects = 0;
+        rebuildCount.increment ();
+        Log.warn ("Rebuilt selector after " + SELECTOR_REBUILD_THRESHOLD + " empty selects");
     }
 
     // Set connection host, port and non-blocking mode
-    private ServerSocketChannel getServerChannel (String listenHost, int listenPort) throws IOException
+    ServerSocketChannel getServerChannel (String listenHost, int listenPort) throws IOException
+    {
+        ServerSocketChannel serverChannel = openServerChannel (listenHost, listenPort);
+        registerServerChannel (serverChannel);
+        return serverChannel;
+    }
+
+    // Bind a non-blocking listening socket
+    ServerSocketChannel openServerChannel (String listenHost, int listenPort) throws IOException
     {
         // Allocate an unbound server socket channel
         ServerSocketChannel serverChannel = ServerSocketChannel.open ();
         // Get the associated ServerSocket to bind it with
         ServerSocket serverSocket = serverChannel.socket ();
-        // Create a new Selector for use below
-        serverSelector = Selector.open ();
+
+        // SO_REUSEPORT, buffer sizes etc. must be set before binding
+        listenerOptions.configureListener (serverChannel);
 
         // Set the port the server channel will listen to
-        serverSocket.bind (new InetSocketAddress (listenHost, listenPort));
+        serverSocket.bind (new InetSocketAddress (listenHost, listenPort), listenerOptions.getBacklog ());
 
         // Set nonblocking mode for the listening socket
         serverChannel.configureBlocking (false);
+        return serverChannel;
+    }
+
+    // Create this server's Selector and register the listening socket with it
+    void registerServerChannel (ServerSocketChannel serverChannel) throws IOException
+    {
+        // Create a new Selector for use below
+        serverSelector = openSelector ();
 
         // Register the ServerSocketChannel with the Selector
         serverChannel.register (serverSelector, SelectionKey.OP_ACCEPT);
         //serverChannel.register (serverSelector, serverChannel.validOps (), null);
-        return serverChannel;
     }
 
-    // Accept the connection and set non-blocking mode
+    // Bind a listener on every Unix domain socket path added
+    List <ServerSocketChannel> openUnixListeners () throws IOException
+    {
+        List <ServerSocketChannel> unixListeners = new ArrayList <> ();
+        if (unixSocketPaths.isEmpty ())
+            return unixListeners;
+        UnixDomainSockets unixDomainSockets = UnixDomainSockets.newUnixDomainSockets ();
+        if (unixDomainSockets == null)
+            throw new IOException ("Unix domain sockets are not supported by this JVM");
+        for (Path socketPath : unixSocketPaths)
+        {
+            Log.info ("Listening on " + socketPath);
+            unixListeners.add (unixDomainSockets.openListener (socketPath, listenerOptions.getBacklog ()));
+        }
+        return unixListeners;
+    }
+
+    // Register more listening sockets with this server's Selector, which accepts from them all alike
+    void registerListeners (List <ServerSocketChannel> serverChannels) throws IOException
+    {
+        for (ServerSocketChannel serverChannel : serverChannels)
+            serverChannel.register (serverSelector, SelectionKey.OP_ACCEPT);
+    }
+
+    // Accept a bounded batch of waiting connections and set non-blocking mode
     private void handleAccept (ServerSocketChannel serverChannel, Selector socketSelector) throws IOException
     {
-        SocketChannel socketChannel = serverChannel.accept ();
-        if (socketChannel != null)
+        for (int i = 0; i < MAX_ACCEPTS_PER_READY; i++)
         {
+            ConnectionTrace acceptTrace = Platform.FLIGHT_RECORDER ? ConnectionTrace.beginAccept () : null;
+            SocketChannel socketChannel = serverChannel.accept ();
+            if (socketChannel == null)
+                break;    // queue drained, or another loop got there first
+            acceptCount.increment ();
+            openCount.increment ();
+            listenerOptions.configureAccepted (socketChannel);
+
             // Set the new channel nonblocking
             socketChannel.configureBlocking (false);
 
-            // Register the channel with the selector
-            socketChannel.register (socketSelector, SelectionKey.OP_READ);
+            // Register the channel with the selector, along with its (small) state
+            ConnectionState connectionState = newConnectionState (socketChannel);
+            socketChannel.register (socketSelector, SelectionKey.OP_READ, connectionState);
+            if (acceptTrace != null)
+                acceptTrace.accepted (socketChannel);
         }
     }
 
-    boolean processApp (String appName, HttpRequest httpRequest, HttpResponse httpResponse)
+    // Plain connections need nothing but the small state, TLS ones get an SSLEngine of their own
+    private ConnectionState newConnectionState (SocketChannel socketChannel) throws IOException
+    {
+        long nowMillis = System.currentTimeMillis ();
+        // Unix domain connections come from this host, and are served in the clear
+        SocketAddress remoteAddress = socketChannel.getRemoteAddress ();
+        if (tlsConfig == null || !(remoteAddress instanceof InetSocketAddress))
+            return new ConnectionState (nowMillis);
+        InetSocketAddress peerAddress = (InetSocketAddress) remoteAddress;
+        TlsChannel tlsChannel = new TlsChannel (socketChannel, tlsConfig.createEngine (peerAddress.getHostString (), peerAddress.getPort ()), tlsPacketPool, tlsAppPool);
+        return new TlsConnectionState (nowMillis, tlsChannel);
+    }
+
+    // The client's address, the loopback address for a Unix domain connection, or null once it has closed
+    static InetAddress getClientAddress (SocketChannel clientChannel)
     {
-        String fullAppName = appPackage + "." + appName;  // TODO: For now one package ONLY
         try
         {
-            Object appInstance;
-            Method serviceMethod;
-            if (appCache.get (fullAppName) == null)
-            {
-                Class <?> appClass = Class.forName (fullAppName);
-                appInstance = appClass.getDeclaredConstructor ().newInstance ();
+            SocketAddress remoteAddress = clientChannel.getRemoteAddress ();
+            if (remoteAddress instanceof InetSocketAddress)
+                return ((InetSocketAddress) remoteAddress).getAddress ();
+            return remoteAddress != null ? InetAddress.getLoopbackAddress () : null;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
 
-                Method startMethod = appClass.getMethod ("start");
-                startMethod.invoke (appInstance);
+    boolean processApp (String appName, HttpRequest httpRequest, HttpResponse httpResponse)
+    {
+        return processApp (appName, httpRequest, httpResponse, null);
+    }
 
-                serviceMethod = appClass.getMethod ("service", HttpRequest.class, HttpResponse.class);
-                appCache.put (fullAppName, Pair.of (appInstance, serviceMethod));
-            }
-            else
-            {
-                Pair<Object, Method> cachedApp = appCache.get (fullAppName);
-                appInstance = cachedApp.getFirstItem ();
-                serviceMethod = cachedApp.getSecondItem ();
-            }
-            serviceMethod.invoke(appInstance, httpRequest, httpResponse);
+    // As above, marking the trace's dispatch and app phases if there is one
+    private boolean processApp (String appName, HttpRequest httpRequest, HttpResponse httpResponse, RequestTrace requestTrace)
+    {
+        try
+        {
+            NioWebApp appInstance = getApp (appName);
+            if (appInstance == null)
+                return false;
+            if (requestTrace != null)
+                requestTrace.dispatched ();
+            appInstance.service (httpRequest, httpResponse);
+            if (requestTrace != null)
+                requestTrace.serviced ();
             return true;
         }
-        catch (ClassNotFoundException | InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e)
+        catch (IOException | RuntimeException e)
         {
             //e.printStackTrace ();
-            System.out.println (e.toString ());
+            Log.warn (e.toString ());
             return false;
         }
     }
 
-    public void stopAllApps () throws InvocationTargetException, IllegalAccessException, ClassNotFoundException, NoSuchMethodException
+    // Lock free once the app is loaded. Loading and starting is atomic, so concurrent first requests never create
+    // or start an app twice.
+    NioWebApp getApp (String appName)
+    {
+        NioWebApp appInstance = appCache.get (appName);
+        if (appInstance == null && !missingApps.contains (appName))
+        {
+            appInstance = appCache.computeIfAbsent (appName, this::createApp);
+            if (appInstance == null)
+            {
+                // Anyone can make up names, so the set is bounded
+                if (missingApps.size () >= MAX_MISSING_APPS)
+                    missingApps.clear ();
+                missingApps.add (appName);
+            }
+        }
+        return appInstance;
+    }
+
+    // Load and start an app, or return null if there is no such app
+    private NioWebApp createApp (String appName)
+    {
+        NioWebApp appInstance = loadApp (appName);
+        if (appInstance == null)
+            return null;
+        try
+        {
+            appInstance.start ();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException (e);
+        }
+        return appInstance;
+    }
+
+    // Create an app from the build time registry, falling back to finding it by name in the app package
+    NioWebApp loadApp (String appName)
     {
-        for (Map.Entry<String, Pair <Object, Method>> entry : appCache.entrySet())
+        WebAppFactory appFactory = AppRegistry.getFactory (appName);
+        if (appFactory != null)
+            return appFactory.newInstance ();
+
+        String fullAppName = appPackage + "." + appName;  // TODO: For now one package ONLY
+        try
         {
-            String fullAppName = entry.getKey();
-            Pair<Object, Method> cachedApp = entry.getValue();
-            Object appInstance = cachedApp.getFirstItem ();
             Class <?> appClass = Class.forName (fullAppName);
-            Method stopMethod = appClass.getMethod ("stop");
-            stopMethod.invoke (appInstance);
+            Object appInstance = appClass.getDeclaredConstructor ().newInstance ();
+            reflectiveLoadCount.increment ();
+            if (appInstance instanceof NioWebApp)
+                return (NioWebApp) appInstance;
+            return new ReflectiveWebApp (appInstance);
+        }
+        catch (ClassNotFoundException | InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e)
+        {
+            //e.printStackTrace ();
+            if (Log.isDebugEnabled ())
+                Log.debug (e.toString ());
+            return null;
+        }
+    }
+
+    public void stopAllApps () throws IOException
+    {
+        for (NioWebApp appInstance : appCache.values ())
+            appInstance.stop ();
+        if (reverseProxy != null)
+            reverseProxy.stop ();
+    }
+
+    // Answer a load balancer's readiness probe
+    void processReadiness (HttpResponse httpResponse) throws IOException
+    {
+        fillReadinessResponse (httpResponse, isReady ());
+        httpResponse.commitWriter (true);
+    }
+
+    private static HttpResponse newReadinessResponse (boolean serverReady)
+    {
+        HttpResponse httpResponse = new HttpResponse (null);
+        fillReadinessResponse (httpResponse, serverReady);
+        return httpResponse;
+    }
+
+    private static void fillReadinessResponse (HttpResponse httpResponse, boolean serverReady)
+    {
+        if (!serverReady)
+        {
+            httpResponse.setResponseCode (503);
+            httpResponse.setResponseReason ("Service Unavailable");
         }
+        httpResponse.addHeader ("Content-Type", "text/plain");
+        httpResponse.addHeader ("Cache-Control", "no-store");
+        httpResponse.append (serverReady ? "READY" : "NOT READY");
     }
 
     void processNotFound (HttpRequest httpRequest, HttpResponse httpResponse) throws IOException
     {
-        httpResponse.append ("<html><head><title>").append (SERVER_NAME).append ("</title></head><body>").append (SERVER_NAME).append (" got ").append (httpRequest.getHttpMethod ()).append (" request for location ").append (httpRequest.getReqLocation ()).append ("</body></html>");
+        notFoundCount.increment ();
+        httpResponse.append (NOT_FOUND_PREFIX).append (httpRequest.getHttpMethod ()).append (" request for location ").append (httpRequest.getReqLocation ()).append ("</body></html>");
         httpResponse.commitWriter (true);
     }
 
@@ -182,25 +776,1722 @@ public class NioWebServer
     {
         // create a ServerSocketChannel to read the request
         SocketChannel clientChannel = (SocketChannel) selectionKey.channel ();
+        ConnectionState connectionState = (ConnectionState) selectionKey.attachment ();
+        connectionState.lastActiveMillis = System.currentTimeMillis ();
 
-        // Create buffer to read data
-        ByteBuffer reqBuffer = ByteBuffer.allocate (1024);
-        clientChannel.read (reqBuffer);
-        // Parse data from buffer to String
-        String reqData = new String (reqBuffer.array ()).trim ();
-        if (reqData.length () > 0)
+        // Decrypted input the selector cannot know about is read straight away, unless the client has yet to take
+        // what was written. The state is fetched again each time, as the connection may have switched to HTTP/2.
+        do
         {
-            HttpRequest httpRequest = new HttpRequest (reqData);
-            HttpResponse httpResponse = new HttpResponse (clientChannel);
-            boolean appFound = processApp (httpRequest.getAppName (), httpRequest, httpResponse);
-            if (!appFound)
-                processNotFound (httpRequest, httpResponse);
-            clientChannel.close ();
+            if (!readRequests (selectionKey, clientChannel))
+                return;
+            connectionState = (ConnectionState) selectionKey.attachment ();
         }
+        while (connectionState.hasBufferedInput () && !connectionState.hasPendingOutput ());
     }
 
-    void handleRead (SelectionKey selectionKey) throws IOException
+    // Read once and service every complete request. Returns false if the connection has been closed, or is waiting
+    // for the response to a proxied request.
+    private boolean readRequests (SelectionKey selectionKey, SocketChannel clientChannel) throws IOException
     {
-        readChannelFully (selectionKey);
+        // Plain connections read the socket itself, TLS connections their TlsChannel
+        ConnectionState connectionState = (ConnectionState) selectionKey.attachment ();
+        ByteChannel connectionChannel = connectionState.getChannel (clientChannel);
+        if (connectionState instanceof WebSocketConnectionState)
+            return readWebSocket (selectionKey, (WebSocketConnectionState) connectionState, connectionChannel);
+
+        byte[] reqBytes = readAppended (connectionState, connectionChannel);
+        if (connectionState instanceof TlsConnectionState)
+            countHandshake (((TlsConnectionState) connectionState).tlsChannel);
+        if (reqBytes == null)
+        {
+            // Client closed the connection
+            closeConnection (selectionKey);
+            return false;
+        }
+        if (reqBytes == STILL_ARRIVING)
+            return true;
+
+        // HTTP/2 is framed differently, from the client preface onwards
+        if (connectionState instanceof Http2ConnectionState)
+            return processHttp2 (selectionKey, (Http2ConnectionState) connectionState, reqBytes, 0);
+        if (http2 && Http2Connection.isPreface (reqBytes, 0, reqBytes.length))
+        {
+            Http2ConnectionState http2State = switchToHttp2 (selectionKey, connectionState, connectionChannel);
+            http2State.http2Connection.start ();
+            return processHttp2 (selectionKey, http2State, reqBytes, 0);
+        }
+
+        // A keep-alive client may pipeline several requests into one read
+        int reqStart = 0;
+        int reqLength;
+        while ((reqLength = getRequestLength (reqBytes, reqStart)) > 0)
+        {
+            // Every request is journalled as it was read, except a coalesced GET coming round again after its wait
+            if (trafficJournal != null && !(reqStart == 0 && connectionState.parkedRequest instanceof CoalescedRequest))
+                trafficJournal.capture (ConnectionIds.getConnectionId (clientChannel), reqBytes, reqStart, reqLength);
+            // Fixed responses are written as they are, ahead of rate limits, so a health check is never turned away
+            FixedResponses.Entry fixedEntry = matchFixed (reqBytes, reqStart, reqLength);
+            if (fixedEntry != null)
+            {
+                boolean keepOpen = processFixed (fixedEntry, reqBytes, reqStart, reqLength, connectionChannel,
+                                                 accessLog != null ? getClientAddress (clientChannel) : null);
+                reqStart += reqLength;
+                if (!keepOpen)
+                {
+                    closeWhenWritten (selectionKey);
+                    return false;
+                }
+                continue;
+            }
+            // Requests over a rate limit are answered here, before anything else is done with them
+            long retryNanos = rateLimiter != null ? rateLimiter.acquire (reqBytes, reqStart, reqLength, getClientAddress (clientChannel)) : 0;
+            if (retryNanos > 0)
+            {
+                String reqData = new String (reqBytes, reqStart, reqLength).trim ();
+                reqStart += reqLength;
+                if (!processRateLimited (reqData, connectionChannel, getClientAddress (clientChannel), retryNanos))
+                {
+                    closeWhenWritten (selectionKey);
+                    return false;
+                }
+                continue;
+            }
+            // Proxied requests are handed over as they were read, and nothing more is read until the response
+            // has been relayed. Any requests pipelined behind it stay parked.
+            if (reverseProxy != null && reverseProxy.isProxied (reqBytes, reqStart, reqLength))
+            {
+                connectionState.proxyRequest = ByteBuffer.wrap (reqBytes, reqStart, reqLength);
+                parkUnread (connectionState, reqBytes, reqStart + reqLength);
+                return false;
+            }
+            String reqData = new String (reqBytes, reqStart, reqLength).trim ();
+            reqStart += reqLength;
+            // Cleartext HTTP/2 may also start as an HTTP/1.1 request asking to upgrade
+            String http2Settings = http2 && !(connectionState instanceof TlsConnectionState) ? Http2Connection.getUpgradeSettings (reqData) : null;
+            if (http2Settings != null)
+            {
+                Http2ConnectionState http2State = switchToHttp2 (selectionKey, connectionState, connectionChannel);
+                http2State.http2Connection.upgrade (reqData, http2Settings);
+                return processHttp2 (selectionKey, http2State, reqBytes, reqStart);
+            }
+            // So may WebSocket, if the app it is for handles them
+            WebSocketHandler webSocketHandler = WebSocketConnection.isUpgradeRequest (reqData) ? getWebSocketHandler (reqData) : null;
+            if (webSocketHandler != null)
+                return switchToWebSocket (selectionKey, connectionState, connectionChannel, new HttpRequest (reqData), webSocketHandler, reqBytes, reqStart);
+            // An administrator's call to the profiling endpoint is parked while the profile is recorded
+            if (profiler != null && isProfileRequest (reqData))
+            {
+                connectionState.parkedRequest = newProfileRequest (reqData);
+                parkUnread (connectionState, reqBytes, reqStart);
+                return false;
+            }
+            // A GET already running for another connection is waited for, and nothing more is read until its
+            // response has been written. Any requests pipelined behind it stay parked.
+            String coalesceKey = coalescer != null ? coalescer.getKey (reqData) : null;
+            if (coalesceKey != null && !coalescer.lead (coalesceKey))
+            {
+                if (!(connectionState.parkedRequest instanceof CoalescedRequest))
+                {
+                    connectionState.parkedRequest = new CoalescedRequest (coalesceKey, Arrays.copyOfRange (reqBytes, reqStart - reqLength, reqStart));
+                    parkUnread (connectionState, reqBytes, reqStart);
+                    return false;
+                }
+                // This one has waited already, so it runs now
+                coalesceKey = null;
+            }
+            connectionState.parkedRequest = null;
+            int connectionId = Platform.FLIGHT_RECORDER ? ConnectionIds.getConnectionId (clientChannel) : 0;
+            if (!processRequest (reqData, connectionChannel, accessLog != null ? getClientAddress (clientChannel) : null, coalesceKey, connectionId))
+            {
+                closeWhenWritten (selectionKey);
+                return false;
+            }
+        }
+
+        // Headers and body may arrive in separate packets. Park what we have until the rest comes in, unless it
+        // cannot be framed or would not fit.
+        int refusedStatus = reqLength < 0 ? getRefusedStatus (reqLength) : parkPartial (connectionState, reqBytes, reqStart);
+        if (refusedStatus != 0)
+        {
+            processRefused (connectionChannel, refusedStatus);
+            closeWhenWritten (selectionKey);
+            return false;
+        }
+        return true;
+    }
+
+    // Read once, appending to whatever part of the request arrived earlier. Returns null at the end of the stream,
+    // and STILL_ARRIVING if a request of known length is not complete yet.
+    private byte[] readAppended (ConnectionState connectionState, ByteChannel connectionChannel) throws IOException
+    {
+        // The rest of a request whose length is known is read straight into the array parked for it, so a large
+        // body is copied once rather than once per read
+        byte[] pendingBytes = connectionState.pendingBytes;
+        if (pendingBytes != null && connectionState.pendingLength < pendingBytes.length)
+        {
+            int bytesRead = connectionChannel.read (ByteBuffer.wrap (pendingBytes, connectionState.pendingLength, pendingBytes.length - connectionState.pendingLength));
+            if (bytesRead < 0)
+                return null;
+            bytesReadCount.add (bytesRead);
+            connectionState.pendingLength += bytesRead;
+            return connectionState.pendingLength < pendingBytes.length ? STILL_ARRIVING : pendingBytes;
+        }
+
+        // Borrow a buffer to read data, only for as long as the read takes
+        ByteBuffer reqBuffer = bufferPool.acquire ();
+        try
+        {
+            int bytesRead = connectionChannel.read (reqBuffer);
+            if (bytesRead < 0)
+                return null;
+            bytesReadCount.add (bytesRead);
+
+            int pendingLength = pendingBytes == null ? 0 : pendingBytes.length;
+            byte[] reqBytes = new byte[pendingLength + bytesRead];
+            if (pendingBytes != null)
+                System.arraycopy (pendingBytes, 0, reqBytes, 0, pendingLength);
+            System.arraycopy (reqBuffer.array (), 0, reqBytes, pendingLength, bytesRead);
+            return reqBytes;
+        }
+        finally
+        {
+            bufferPool.release (reqBuffer);
+        }
+    }
+
+    private void parkUnread (ConnectionState connectionState, byte[] reqBytes, int reqStart)
+    {
+        byte[] pendingBytes = null;
+        if (reqStart < reqBytes.length)
+            pendingBytes = reqStart == 0 ? reqBytes : Arrays.copyOfRange (reqBytes, reqStart, reqBytes.length);
+        setPendingBytes (connectionState, pendingBytes);
+    }
+
+    // Park the start of a request that has not fully arrived. Once its headers are in, it goes in an array of its
+    // full length for the rest to be read into. Returns the status to refuse it with if it is too large, or 0.
+    private int parkPartial (ConnectionState connectionState, byte[] reqBytes, int reqStart)
+    {
+        int partLength = reqBytes.length - reqStart;
+        int declaredLength = getDeclaredLength (reqBytes, reqStart);
+        if (declaredLength == 0)
+        {
+            if (partLength > MAX_HEADER_BYTES)
+                return 431;
+            parkUnread (connectionState, reqBytes, reqStart);
+            return 0;
+        }
+        if (declaredLength > maxRequestBytes)
+            return 413;
+        byte[] requestBytes = new byte[declaredLength];
+        System.arraycopy (reqBytes, reqStart, requestBytes, 0, partLength);
+        setPendingBytes (connectionState, requestBytes);
+        connectionState.pendingLength = partLength;
+        return 0;
+    }
+
+    // Answer a request that cannot be served as it was sent. The connection is closed afterwards, as there is no
+    // telling where the next request would start.
+    private void processRefused (WritableByteChannel clientChannel, int statusCode) throws IOException
+    {
+        requestCount.increment ();
+        rejectedCount.increment ();
+        String responseReason = statusCode == 413 ? "Payload Too Large" : statusCode == 431 ? "Request Header Fields Too Large"
+                              : statusCode == 501 ? "Not Implemented" : "Bad Request";
+        HttpResponse httpResponse = new HttpResponse (clientChannel);
+        httpResponse.setResponseCode (statusCode);
+        httpResponse.setResponseReason (responseReason);
+        httpResponse.addHeader ("Content-Type", "text/plain");
+        httpResponse.append (responseReason);
+        httpResponse.commitWriter (true);
+    }
+
+    // True if the connection has handed a request to the proxy and is waiting for it to be forwarded
+    static boolean isAwaitingProxy (SelectionKey selectionKey)
+    {
+        Object attachment = selectionKey.attachment ();
+        return attachment instanceof ConnectionState && ((ConnectionState) attachment).proxyRequest != null;
+    }
+
+    // Forward a request handed to the proxy. Runs on the loop, which owns the upstream connections, with OP_READ
+    // off until the response has been relayed.
+    void forwardProxied (SelectionKey selectionKey)
+    {
+        ConnectionState connectionState = (ConnectionState) selectionKey.attachment ();
+        if (connectionState == null || connectionState.proxyRequest == null)
+            return;
+        requestCount.increment ();
+        SocketChannel clientChannel = (SocketChannel) selectionKey.channel ();
+        InetAddress clientAddress = getClientAddress (clientChannel);
+        try
+        {
+            selectionKey.interestOps (selectionKey.interestOps () & ~SelectionKey.OP_READ);
+        }
+        catch (CancelledKeyException e)
+        {
+            closeConnection (selectionKey);
+            return;
+        }
+        reverseProxy.forward (connectionState.proxyRequest, connectionState.getChannel (clientChannel), onWritten -> awaitRelayed (selectionKey, onWritten),
+                              clientAddress, keepOpen -> resumeAfterProxy (selectionKey, keepOpen));
+    }
+
+    // The proxy has relayed part of a response. If the client has yet to take it, watch for the socket to drain
+    // and have the relay carry on then. Returns true if it has to wait.
+    private boolean awaitRelayed (SelectionKey selectionKey, Runnable onWritten)
+    {
+        Object attachment = selectionKey.attachment ();
+        if (!(attachment instanceof ConnectionState) || !awaitWritten (selectionKey, (ConnectionState) attachment))
+            return false;
+        ((ConnectionState) attachment).onWritten = onWritten;
+        return true;
+    }
+
+    // The proxied response has been relayed. Read the next request, starting with any that were parked behind it.
+    private void resumeAfterProxy (SelectionKey selectionKey, boolean keepOpen)
+    {
+        ConnectionState connectionState = (ConnectionState) selectionKey.attachment ();
+        if (connectionState == null)
+            return;
+        connectionState.proxyRequest = null;
+        if (!keepOpen || !keepAlive)
+        {
+            closeWhenWritten (selectionKey);
+            return;
+        }
+        resumeReading (selectionKey, connectionState);
+    }
+
+    // Watch the connection again after a response written on the loop, and service any requests parked meanwhile.
+    // If the client has yet to take all of the response, that waits until it has.
+    private void resumeReading (SelectionKey selectionKey, ConnectionState connectionState)
+    {
+        connectionState.lastActiveMillis = System.currentTimeMillis ();
+        try
+        {
+            if (awaitWritten (selectionKey, connectionState))
+                return;
+            selectionKey.interestOps (selectionKey.interestOps () | SelectionKey.OP_READ);
+            // Parked requests will not make the socket readable again
+            byte[] pendingBytes = connectionState.pendingBytes;
+            if (pendingBytes != null && connectionState.pendingLength == pendingBytes.length && getRequestLength (pendingBytes, 0) != 0
+                || connectionState.hasBufferedInput ())
+                handleRead (selectionKey);
+        }
+        catch (IOException | CancelledKeyException e)
+        {
+            closeConnection (selectionKey);
+        }
+    }
+
+    // Replace the connection's state with an HTTP/2 one wrapping it. Any parked bytes are in reqBytes already.
+    private Http2ConnectionState switchToHttp2 (SelectionKey selectionKey, ConnectionState connectionState, ByteChannel connectionChannel)
+    {
+        setPendingBytes (connectionState, null);
+        InetAddress remoteAddress = accessLog != null || rateLimiter != null ? getClientAddress ((SocketChannel) selectionKey.channel ()) : null;
+        int connectionId = Platform.FLIGHT_RECORDER ? ConnectionIds.getConnectionId (selectionKey.channel ()) : 0;
+        Http2Connection http2Connection = new Http2Connection (connectionChannel,
+            (rawRequest, responseChannel) -> processHttp2Request (rawRequest, responseChannel, remoteAddress, connectionId));
+        http2Connection.setMaxRequestBytes (maxRequestBytes);
+        Http2ConnectionState http2State = new Http2ConnectionState (connectionState, http2Connection);
+        selectionKey.attach (http2State);
+        http2ConnectionCount.increment ();
+        return http2State;
+    }
+
+    // Feed the bytes to the HTTP/2 connection and park any incomplete frame. Returns false if it has closed.
+    private boolean processHttp2 (SelectionKey selectionKey, Http2ConnectionState http2State, byte[] reqBytes, int reqStart) throws IOException
+    {
+        int bytesConsumed = http2State.http2Connection.onBytes (reqBytes, reqStart, reqBytes.length - reqStart);
+        if (bytesConsumed < 0)
+        {
+            closeWhenWritten (selectionKey);
+            return false;
+        }
+        int parkedStart = reqStart + bytesConsumed;
+        setPendingBytes (http2State, parkedStart < reqBytes.length ? Arrays.copyOfRange (reqBytes, parkedStart, reqBytes.length) : null);
+        return true;
+    }
+
+    // Each HTTP/2 stream is serviced like an HTTP/1.1 request. The connection stays open whatever the response says.
+    private void processHttp2Request (String rawRequest, WritableByteChannel responseChannel, InetAddress remoteAddress, int connectionId) throws IOException
+    {
+        http2StreamCount.increment ();
+        if (rateLimiter != null)
+        {
+            byte[] reqBytes = rawRequest.getBytes (StandardCharsets.ISO_8859_1);
+            long retryNanos = rateLimiter.acquire (reqBytes, 0, reqBytes.length, remoteAddress);
+            if (retryNanos > 0)
+            {
+                processRateLimited (rawRequest, responseChannel, remoteAddress, retryNanos);
+                return;
+            }
+        }
+        processRequest (rawRequest, responseChannel, remoteAddress, null, connectionId);
+    }
+
+    // The app an upgrade request is for, if it accepts WebSocket connections
+    private WebSocketHandler getWebSocketHandler (String reqData)
+    {
+        try
+        {
+            NioWebApp appInstance = getApp (new HttpRequest (reqData).getAppName ());
+            return appInstance instanceof WebSocketHandler ? (WebSocketHandler) appInstance : null;
+        }
+        catch (RuntimeException e)
+        {
+            Log.warn (e.toString ());
+            return null;
+        }
+    }
+
+    // Answer the handshake and replace the connection's state with a WebSocket one wrapping it. Frames sent
+    // straight after the upgrade request are handled at once.
+    private boolean switchToWebSocket (SelectionKey selectionKey, ConnectionState connectionState, ByteChannel connectionChannel, HttpRequest httpRequest,
+                                      WebSocketHandler webSocketHandler, byte[] reqBytes, int reqStart) throws IOException
+    {
+        requestCount.increment ();
+        if (!WebSocketConnection.writeHandshake (httpRequest, connectionChannel))
+        {
+            closeWhenWritten (selectionKey);
+            return false;
+        }
+        setPendingBytes (connectionState, null);
+        // Frames go out through a channel that queues them uncopied, as a broadcast shares one buffer among them all
+        ConnectionState transportState = connectionState.getTransportState ();
+        WebSocketConnection webSocket = new WebSocketConnection (connectionState.getFrameChannel ((SocketChannel) selectionKey.channel ()), webSocketHandler,
+            this, () -> closeConnection (selectionKey), () -> awaitFramesWritten (selectionKey, transportState));
+        WebSocketConnectionState webSocketState = new WebSocketConnectionState (connectionState, webSocket);
+        selectionKey.attach (webSocketState);
+        webSocketUpgradeCount.increment ();
+        if (!webSocket.open (httpRequest))
+        {
+            closeWhenWritten (selectionKey);
+            return false;
+        }
+        return processWebSocket (selectionKey, webSocketState, ByteBuffer.wrap (reqBytes, reqStart, reqBytes.length - reqStart));
+    }
+
+    // Frames are parsed and unmasked where they were read, in the pooled buffer. Only a frame too big for it gets
+    // a buffer of its own, sized from its header.
+    private boolean readWebSocket (SelectionKey selectionKey, WebSocketConnectionState webSocketState, ByteChannel connectionChannel) throws IOException
+    {
+        byte[] pendingBytes = webSocketState.pendingBytes;
+        ByteBuffer readBuffer = bufferPool.acquire ();
+        try
+        {
+            ByteBuffer frameBuffer = readBuffer;
+            if (pendingBytes != null)
+            {
+                long frameLength = WebSocketConnection.getFrameLength (pendingBytes);
+                if (frameLength > readBuffer.capacity ())
+                    frameBuffer = ByteBuffer.allocate ((int) frameLength);
+                frameBuffer.put (pendingBytes);
+            }
+            int bytesRead = connectionChannel.read (frameBuffer);
+            if (bytesRead < 0)
+            {
+                closeConnection (selectionKey);
+                return false;
+            }
+            bytesReadCount.add (bytesRead);
+            frameBuffer.flip ();
+            return processWebSocket (selectionKey, webSocketState, frameBuffer);
+        }
+        finally
+        {
+            bufferPool.release (readBuffer);
+        }
+    }
+
+    // Hand the frames to the WebSocket connection and park any incomplete one. Returns false if it has closed.
+    private boolean processWebSocket (SelectionKey selectionKey, WebSocketConnectionState webSocketState, ByteBuffer frameBuffer)
+    {
+        if (!webSocketState.webSocket.onBytes (frameBuffer))
+        {
+            closeWhenWritten (selectionKey);
+            return false;
+        }
+        byte[] pendingBytes = null;
+        if (frameBuffer.hasRemaining ())
+        {
+            pendingBytes = new byte[frameBuffer.remaining ()];
+            frameBuffer.get (pendingBytes);
+        }
+        setPendingBytes (webSocketState, pendingBytes);
+        return true;
+    }
+
+    // Count each completed handshake once, and whether it resumed an earlier session
+    private void countHandshake (TlsChannel tlsChannel)
+    {
+        if (!tlsChannel.takeHandshakeFinished ())
+            return;
+        tlsHandshakeCount.increment ();
+        if (tlsChannel.isSessionResumed ())
+            tlsResumedCount.increment ();
+    }
+
+    // Service one complete request. Returns true if the connection should be kept open for another one. Leads the
+    // coalescing flight for the given key, if there is one, so its waiters get the response. The connection ID is
+    // what a Flight Recorder trace of the request is recorded with.
+    private boolean processRequest (String reqData, WritableByteChannel clientChannel, InetAddress remoteAddress, String coalesceKey, int connectionId) throws IOException
+    {
+        if (reqData.length () == 0)
+            return keepAlive;
+
+        HttpResponse httpResponse = null;
+        try
+        {
+            requestCount.increment ();
+            RequestTrace requestTrace = Platform.FLIGHT_RECORDER ? RequestTrace.begin (connectionId) : null;
+            long startNanos = accessLog != null ? System.nanoTime () : 0;
+            HttpRequest httpRequest = new HttpRequest (reqData);
+            if (requestTrace != null)
+                requestTrace.parsed ();
+            boolean keepAlive = this.keepAlive && isKeepAliveRequested (httpRequest);
+            // Waiters on a cached response go on to find it in the cache themselves
+            if (processCached (httpRequest, clientChannel, remoteAddress, startNanos))
+            {
+                if (requestTrace != null)
+                    requestTrace.end (httpRequest, null);
+                return keepAlive;
+            }
+
+            httpResponse = new HttpResponse (clientChannel);
+            httpResponse.setKeepAlive (keepAlive);
+            httpResponse.setChunkedAllowed (!"HTTP/1.0".equals (httpRequest.getHttpVersion ()));
+            String httpMethod = httpRequest.getHttpMethod ();
+            if (httpMethod.equals ("GET") || httpMethod.equals ("HEAD"))
+                httpResponse.setValidation (entityTags, httpRequest.getHeader ("If-None-Match"), httpRequest.getHeader ("If-Modified-Since"));
+            serviceRequest (httpRequest, httpResponse, requestTrace);
+            if (httpResponse.getResponseCode () == 304)
+                notModifiedCount.increment ();
+            logAccess (remoteAddress, httpRequest, httpResponse.getResponseCode (), httpResponse.getCommittedLength (), startNanos);
+            if (requestTrace != null)
+                requestTrace.end (httpRequest, httpResponse);
+            return httpResponse.isKeepAlive ();
+        }
+        finally
+        {
+            if (coalesceKey != null)
+                coalescer.complete (coalesceKey, httpResponse);
+        }
+    }
+
+    // True if the connection has parked a GET to wait for the same request on another connection
+    static boolean isAwaitingCoalesced (SelectionKey selectionKey)
+    {
+        Object attachment = selectionKey.attachment ();
+        if (!(attachment instanceof ConnectionState))
+            return false;
+        ParkedRequest parkedRequest = ((ConnectionState) attachment).parkedRequest;
+        return parkedRequest instanceof CoalescedRequest && !((CoalescedRequest) parkedRequest).runLocally;
+    }
+
+    // Wait for the response to a parked GET. Runs on the loop, with OP_READ off until the response has been written.
+    void awaitCoalesced (SelectionKey selectionKey)
+    {
+        ConnectionState connectionState = (ConnectionState) selectionKey.attachment ();
+        if (connectionState == null || !(connectionState.parkedRequest instanceof CoalescedRequest))
+            return;
+        CoalescedRequest coalescedRequest = (CoalescedRequest) connectionState.parkedRequest;
+        try
+        {
+            selectionKey.interestOps (selectionKey.interestOps () & ~SelectionKey.OP_READ);
+        }
+        catch (CancelledKeyException e)
+        {
+            closeConnection (selectionKey);
+            return;
+        }
+        coalescedRequest.flightWaiter = sharedResponse -> execute (() -> finishCoalesced (selectionKey, coalescedRequest, sharedResponse));
+        if (!coalescer.join (coalescedRequest.coalesceKey, coalescedRequest.flightWaiter))
+        {
+            // The leader finished in the meantime
+            runCoalesced (selectionKey, connectionState);
+            return;
+        }
+        coalescedRequest.timeoutTimer = schedule (() -> timeoutCoalesced (selectionKey, coalescedRequest), coalescer.getTimeoutMillis ());
+    }
+
+    private void timeoutCoalesced (SelectionKey selectionKey, CoalescedRequest coalescedRequest)
+    {
+        ConnectionState connectionState = (ConnectionState) selectionKey.attachment ();
+        if (connectionState == null || connectionState.parkedRequest != coalescedRequest)
+            return;
+        // If the waiter could not leave, the response is on its way
+        if (coalescer.leave (coalescedRequest.coalesceKey, coalescedRequest.flightWaiter))
+        {
+            coalesceTimeoutCount.increment ();
+            runCoalesced (selectionKey, connectionState);
+        }
+    }
+
+    // Write the leader's response for a parked GET, or run the GET here if it cannot be shared
+    private void finishCoalesced (SelectionKey selectionKey, CoalescedRequest coalescedRequest, RequestCoalescer.Response sharedResponse)
+    {
+        ConnectionState connectionState = (ConnectionState) selectionKey.attachment ();
+        if (connectionState == null || connectionState.parkedRequest != coalescedRequest)
+            return;
+        coalescedRequest.timeoutTimer.cancel ();
+        if (sharedResponse == null)
+        {
+            runCoalesced (selectionKey, connectionState);
+            return;
+        }
+        connectionState.parkedRequest = null;
+        requestCount.increment ();
+        coalescedCount.increment ();
+        long startNanos = accessLog != null ? System.nanoTime () : 0;
+        HttpRequest httpRequest = new HttpRequest (new String (coalescedRequest.reqBytes).trim ());
+        boolean notModified = HttpResponse.isNotModified (sharedResponse.getEntityTag (), sharedResponse.getLastModified (),
+                                                          httpRequest.getHeader ("If-None-Match"), httpRequest.getHeader ("If-Modified-Since"));
+        ByteBuffer encodedResponse = notModified ? sharedResponse.getNotModifiedResponse () : sharedResponse.getResponse ();
+        if (notModified)
+            notModifiedCount.increment ();
+        int responseLength = encodedResponse.remaining ();
+        SocketChannel clientChannel = (SocketChannel) selectionKey.channel ();
+        try
+        {
+            HttpResponse.writeFully (connectionState.getChannel (clientChannel), encodedResponse);
+        }
+        catch (IOException e)
+        {
+            closeConnection (selectionKey);
+            return;
+        }
+        logAccess (accessLog != null ? getClientAddress (clientChannel) : null, httpRequest, notModified ? 304 : sharedResponse.getResponseCode (),
+                   responseLength, startNanos);
+        if (!keepAlive || !sharedResponse.isKeepAlive () || !isKeepAliveRequested (httpRequest))
+        {
+            closeWhenWritten (selectionKey);
+            return;
+        }
+        resumeReading (selectionKey, connectionState);
+    }
+
+    // Put a parked GET back in front of the connection's parked bytes and service it as usual
+    private void runCoalesced (SelectionKey selectionKey, ConnectionState connectionState)
+    {
+        CoalescedRequest coalescedRequest = (CoalescedRequest) connectionState.parkedRequest;
+        coalescedRequest.runLocally = true;
+        byte[] pendingBytes = connectionState.pendingBytes;
+        byte[] reqBytes = coalescedRequest.reqBytes;
+        if (pendingBytes != null)
+        {
+            // Only what has arrived of the next request, which is framed again when it is read
+            reqBytes = Arrays.copyOf (reqBytes, reqBytes.length + connectionState.pendingLength);
+            System.arraycopy (pendingBytes, 0, reqBytes, coalescedRequest.reqBytes.length, connectionState.pendingLength);
+        }
+        setPendingBytes (connectionState, reqBytes);
+        resumeReading (selectionKey, connectionState);
+    }
+
+    // True for a GET of the profiling endpoint from an administrator. Any other request for it is refused when
+    // it is serviced.
+    private boolean isProfileRequest (String reqData)
+    {
+        if (!reqData.startsWith ("GET ") || !isProfileLocation (reqData.substring (4, Math.max (4, reqData.indexOf (' ', 4)))))
+            return false;
+        return isAdmin (new HttpRequest (reqData));
+    }
+
+    private boolean isProfileLocation (String reqLocation)
+    {
+        return reqLocation.startsWith (profilePath) && (reqLocation.length () == profilePath.length () || reqLocation.charAt (profilePath.length ()) == '?');
+    }
+
+    // Compared in constant time, so the token cannot be guessed a byte at a time
+    private boolean isAdmin (HttpRequest httpRequest)
+    {
+        String authorization = httpRequest.getHeader ("Authorization");
+        return authorization != null && MessageDigest.isEqual (authorization.trim ().getBytes (StandardCharsets.ISO_8859_1),
+                                                               ("Bearer " + adminToken).getBytes (StandardCharsets.ISO_8859_1));
+    }
+
+    // The length and report asked for by ?seconds=N and ?format=collapsed
+    private static ProfileRequest newProfileRequest (String reqData)
+    {
+        String reqLocation = new HttpRequest (reqData).getReqLocation ();
+        long profileSeconds = DEFAULT_PROFILE_SECONDS;
+        String secondsValue = getQueryValue (reqLocation, "seconds");
+        if (secondsValue != null)
+        {
+            try
+            {
+                profileSeconds = Math.max (1, Math.min (MAX_PROFILE_SECONDS, Long.parseLong (secondsValue)));
+            }
+            catch (NumberFormatException e)
+            {
+                // Keep the default
+            }
+        }
+        int reportType = "collapsed".equals (getQueryValue (reqLocation, "format")) ? Profiler.COLLAPSED_STACKS : Profiler.FULL_REPORT;
+        return new ProfileRequest (reqData, TimeUnit.SECONDS.toMillis (profileSeconds), reportType);
+    }
+
+    private static String getQueryValue (String reqLocation, String paramName)
+    {
+        int queryPos = reqLocation.indexOf ('?');
+        if (queryPos < 0)
+            return null;
+        for (String queryParam : reqLocation.substring (queryPos + 1).split ("&"))
+        {
+            if (queryParam.startsWith (paramName + "="))
+                return queryParam.substring (paramName.length () + 1);
+        }
+        return null;
+    }
+
+    // True if the connection has parked a call to the profiling endpoint that has not started recording yet
+    static boolean isAwaitingProfile (SelectionKey selectionKey)
+    {
+        Object attachment = selectionKey.attachment ();
+        return attachment instanceof ConnectionState && ((ConnectionState) attachment).parkedRequest instanceof ProfileRequest;
+    }
+
+    // Record a profile on a thread of its own, so the loop goes on serving the traffic being profiled. Runs on the
+    // loop, with OP_READ off until the report has been written.
+    void startProfile (SelectionKey selectionKey)
+    {
+        ConnectionState connectionState = (ConnectionState) selectionKey.attachment ();
+        if (connectionState == null || !(connectionState.parkedRequest instanceof ProfileRequest))
+            return;
+        ProfileRequest profileRequest = (ProfileRequest) connectionState.parkedRequest;
+        try
+        {
+            selectionKey.interestOps (selectionKey.interestOps () & ~SelectionKey.OP_READ);
+        }
+        catch (CancelledKeyException e)
+        {
+            closeConnection (selectionKey);
+            return;
+        }
+        Thread profileThread = new Thread (() -> {
+            int responseCode = 200;
+            String profileReport;
+            try
+            {
+                profileReport = profiler.profile (profileRequest.durationMillis, profileRequest.reportType);
+            }
+            catch (IllegalStateException e)
+            {
+                responseCode = 409;
+                profileReport = e.getMessage ();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                Log.warn ("Profile failed: " + e);
+                responseCode = 500;
+                profileReport = e.toString ();
+            }
+            int reportCode = responseCode;
+            String reportBody = profileReport;
+            execute (() -> finishProfile (selectionKey, profileRequest, reportCode, reportBody));
+        }, "Profiler");
+        profileThread.setDaemon (true);
+        profileThread.start ();
+    }
+
+    // Write the report of a finished profile and read the connection's next request
+    private void finishProfile (SelectionKey selectionKey, ProfileRequest profileRequest, int responseCode, String profileReport)
+    {
+        ConnectionState connectionState = (ConnectionState) selectionKey.attachment ();
+        if (connectionState == null || connectionState.parkedRequest != profileRequest)
+            return;
+        connectionState.parkedRequest = null;
+        requestCount.increment ();
+        profileCount.increment ();
+        long startNanos = accessLog != null ? System.nanoTime () : 0;
+        HttpRequest httpRequest = new HttpRequest (profileRequest.reqData);
+        SocketChannel clientChannel = (SocketChannel) selectionKey.channel ();
+        HttpResponse httpResponse = new HttpResponse (connectionState.getChannel (clientChannel));
+        httpResponse.setKeepAlive (keepAlive && isKeepAliveRequested (httpRequest));
+        httpResponse.setResponseCode (responseCode);
+        httpResponse.setResponseReason (responseCode == 200 ? "OK" : responseCode == 409 ? "Conflict" : "Internal Server Error");
+        httpResponse.addHeader ("Content-Type", "text/plain; charset=utf-8");
+        httpResponse.addHeader ("Cache-Control", "no-store");
+        try
+        {
+            httpResponse.append (profileReport);
+            httpResponse.commitWriter (true);
+        }
+        catch (IOException e)
+        {
+            closeConnection (selectionKey);
+            return;
+        }
+        logAccess (accessLog != null ? getClientAddress (clientChannel) : null, httpRequest, responseCode, httpResponse.getCommittedLength (), startNanos);
+        if (!httpResponse.isKeepAlive ())
+        {
+            closeWhenWritten (selectionKey);
+            return;
+        }
+        resumeReading (selectionKey, connectionState);
+    }
+
+    // A call to the profiling endpoint that is not recorded: from someone who is not an administrator, to a JVM
+    // that cannot profile itself, or over HTTP/2, whose streams cannot be parked
+    private void processProfileRefused (HttpRequest httpRequest, HttpResponse httpResponse) throws IOException
+    {
+        httpResponse.addHeader ("Content-Type", "text/plain");
+        if (!isAdmin (httpRequest))
+        {
+            httpResponse.setResponseCode (403);
+            httpResponse.setResponseReason ("Forbidden");
+            httpResponse.append ("Profiling needs the admin token");
+        }
+        else
+        {
+            httpResponse.setResponseCode (501);
+            httpResponse.setResponseReason ("Not Implemented");
+            httpResponse.append (profiler == null ? "Profiling needs Java 16 or later" : "Profiles are only served over HTTP/1.1 GET");
+        }
+        httpResponse.commitWriter (true);
+    }
+
+    private void serviceRequest (HttpRequest httpRequest, HttpResponse httpResponse, RequestTrace requestTrace) throws IOException
+    {
+        if (httpRequest.getReqLocation ().equals (readinessPath))
+        {
+            processReadiness (httpResponse);
+            return;
+        }
+        if (reverseProxy != null && reverseProxy.isProxied (httpRequest.getReqLocation ()))
+        {
+            reverseProxy.service (httpRequest, httpResponse);
+            return;
+        }
+        if (profilePath != null && isProfileLocation (httpRequest.getReqLocation ()))
+        {
+            processProfileRefused (httpRequest, httpResponse);
+            return;
+        }
+        boolean appFound = processApp (httpRequest.getAppName (), httpRequest, httpResponse, requestTrace);
+        if (!appFound)
+            processNotFound (httpRequest, httpResponse);
+        cacheResponse (httpRequest, httpResponse);
+    }
+
+    // Answer a request over its rate limit without servicing it. Returns true if the connection should be kept open.
+    private boolean processRateLimited (String reqData, WritableByteChannel clientChannel, InetAddress remoteAddress, long retryNanos) throws IOException
+    {
+        requestCount.increment ();
+        rateLimitedCount.increment ();
+        long startNanos = accessLog != null ? System.nanoTime () : 0;
+        HttpRequest httpRequest = new HttpRequest (reqData);
+        HttpResponse httpResponse = new HttpResponse (clientChannel);
+        httpResponse.setKeepAlive (keepAlive && isKeepAliveRequested (httpRequest));
+        writeTooManyRequests (httpResponse, retryNanos);
+        logAccess (remoteAddress, httpRequest, 429, httpResponse.getCommittedLength (), startNanos);
+        return httpResponse.isKeepAlive ();
+    }
+
+    // The fixed response for a complete request, if it is registered or is a readiness probe
+    private FixedResponses.Entry matchFixed (byte[] reqBytes, int reqStart, int reqLength)
+    {
+        FixedResponses.Entry fixedEntry = fixedResponses.match (reqBytes, reqStart, reqLength);
+        if (fixedEntry == null && readyResponse != null && FixedResponses.isRequestFor (reqBytes, reqStart, reqLength, readinessPath))
+            fixedEntry = isReady () ? readyResponse : notReadyResponse;
+        return fixedEntry;
+    }
+
+    // Write a fixed response. Returns true if the connection should be kept open for another request.
+    private boolean processFixed (FixedResponses.Entry fixedEntry, byte[] reqBytes, int reqStart, int reqLength, WritableByteChannel clientChannel,
+                                  InetAddress remoteAddress) throws IOException
+    {
+        requestCount.increment ();
+        fixedCount.increment ();
+        long startNanos = accessLog != null ? System.nanoTime () : 0;
+        boolean keepAlive = this.keepAlive && FixedResponses.isKeepAliveRequested (reqBytes, reqStart, reqLength);
+        int bytesSent = fixedResponses.write (fixedEntry, clientChannel, keepAlive);
+        if (accessLog != null)
+            accessLog.log (remoteAddress, fixedEntry.getHttpMethod (), fixedEntry.getReqLocation (), FixedResponses.getHttpVersion (reqBytes, reqStart, reqLength),
+                           fixedEntry.getStatusCode (), bytesSent, System.nanoTime () - startNanos);
+        return keepAlive;
+    }
+
+    /**
+     * Read a plain HTTP/1.1 connection here on the selector thread and write the fixed responses for the requests at
+     * the front of what arrived, so a pooled server only hands a worker requests that need one. Anything else read
+     * is parked for the worker. Returns true if there is nothing for a worker to do.
+     */
+    boolean serveFixedResponses (SelectionKey selectionKey)
+    {
+        Object attachment = selectionKey.attachment ();
+        if (fixedResponses.size () == 0 || attachment == null || attachment.getClass () != ConnectionState.class || ((ConnectionState) attachment).proxyRequest != null)
+            return false;
+        ConnectionState connectionState = (ConnectionState) attachment;
+        SocketChannel clientChannel = (SocketChannel) selectionKey.channel ();
+        ByteChannel connectionChannel = connectionState.getChannel (clientChannel);
+        connectionState.lastActiveMillis = System.currentTimeMillis ();
+        try
+        {
+            byte[] reqBytes = readAppended (connectionState, connectionChannel);
+            if (reqBytes == null)
+            {
+                closeConnection (selectionKey);
+                return true;
+            }
+            if (reqBytes == STILL_ARRIVING)
+                return true;
+            int reqStart = 0;
+            int reqLength;
+            FixedResponses.Entry fixedEntry;
+            while ((reqLength = getRequestLength (reqBytes, reqStart)) > 0 && (fixedEntry = matchFixed (reqBytes, reqStart, reqLength)) != null)
+            {
+                boolean keepOpen = processFixed (fixedEntry, reqBytes, reqStart, reqLength, connectionChannel,
+                                                 accessLog != null ? getClientAddress (clientChannel) : null);
+                reqStart += reqLength;
+                if (!keepOpen)
+                {
+                    closeWhenWritten (selectionKey);
+                    return true;
+                }
+            }
+            if (reqLength > 0)
+            {
+                parkUnread (connectionState, reqBytes, reqStart);
+                return false;
+            }
+            // A request that is still arriving waits here for the rest, and one that cannot be served is refused
+            int refusedStatus = reqLength < 0 ? getRefusedStatus (reqLength) : parkPartial (connectionState, reqBytes, reqStart);
+            if (refusedStatus != 0)
+            {
+                processRefused (connectionChannel, refusedStatus);
+                closeWhenWritten (selectionKey);
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            closeConnection (selectionKey);
+            return true;
+        }
+    }
+
+    /**
+     * If this plain HTTP/1.1 connection's client is already over its rate limit, answer 429 and close it here on the
+     * selector thread, so a pooled server never hands it to a worker. Returns true if it was closed.
+     */
+    boolean rejectRateLimited (SelectionKey selectionKey)
+    {
+        Object attachment = selectionKey.attachment ();
+        if (rateLimiter == null || attachment == null || attachment.getClass () != ConnectionState.class || ((ConnectionState) attachment).proxyRequest != null)
+            return false;
+        SocketChannel clientChannel = (SocketChannel) selectionKey.channel ();
+        long retryNanos = rateLimiter.getClientDelayNanos (getClientAddress (clientChannel));
+        if (retryNanos <= 0)
+            return false;
+        ByteBuffer discardBuffer = bufferPool.acquire ();
+        try
+        {
+            // Read what was sent, so closing does not reset the connection before the client reads the answer
+            int bytesRead = clientChannel.read (discardBuffer);
+            if (bytesRead == 0)
+                return false;
+            if (bytesRead > 0)
+            {
+                rateLimitedCount.increment ();
+                HttpResponse httpResponse = new HttpResponse (((ConnectionState) attachment).getChannel (clientChannel));
+                httpResponse.setKeepAlive (false);
+                writeTooManyRequests (httpResponse, retryNanos);
+            }
+        }
+        catch (IOException e)
+        {
+            // Closed below either way
+        }
+        finally
+        {
+            bufferPool.release (discardBuffer);
+        }
+        closeWhenWritten (selectionKey);
+        return true;
+    }
+
+    private static void writeTooManyRequests (HttpResponse httpResponse, long retryNanos) throws IOException
+    {
+        httpResponse.setResponseCode (429);
+        httpResponse.setResponseReason ("Too Many Requests");
+        httpResponse.addHeader ("Retry-After", String.valueOf ((retryNanos + 999999999L) / 1000000000L));
+        httpResponse.addHeader ("Content-Type", "text/plain");
+        httpResponse.append ("Too Many Requests");
+        httpResponse.commitWriter (true);
+    }
+
+    private void logAccess (InetAddress remoteAddress, HttpRequest httpRequest, int statusCode, long bytesSent, long startNanos)
+    {
+        if (accessLog != null)
+            accessLog.log (remoteAddress, httpRequest.getHttpMethod (), httpRequest.getReqLocation (), httpRequest.getHttpVersion (), statusCode,
+                bytesSent, System.nanoTime () - startNanos);
+    }
+
+    // HTTP/1.1 connections persist unless the client says otherwise, HTTP/1.0 ones only if it asks
+    static boolean isKeepAliveRequested (HttpRequest httpRequest)
+    {
+        String connectionHeader = httpRequest.getHeader ("Connection");
+        if (connectionHeader != null)
+            return !connectionHeader.trim ().equalsIgnoreCase ("close");
+        return "HTTP/1.1".equals (httpRequest.getHttpVersion ());
+    }
+
+    // Length of the first complete request starting at reqStart, 0 if it has not fully arrived, MALFORMED_REQUEST
+    // if it cannot be parsed, or ENCODED_REQUEST if it has a Transfer-Encoding. A request is complete once the blank line after the
+    // headers and Content-Length bytes of body have been read.
+    static int getRequestLength (byte[] reqBytes, int reqStart)
+    {
+        int declaredLength = getDeclaredLength (reqBytes, reqStart);
+        return declaredLength > reqBytes.length - reqStart ? 0 : declaredLength;
+    }
+
+    // Length the first request starting at reqStart will have, its headers and Content-Length bytes of body, once
+    // its headers have arrived. 0 until then, and MALFORMED_REQUEST if the request line is not "method target
+    // version", a header has no name and colon, or the Content-Length is not a single number that fits in an int.
+    // ENCODED_REQUEST if it has a Transfer-Encoding, as a chunked body would be mistaken for the next request.
+    private static int getDeclaredLength (byte[] reqBytes, int reqStart)
+    {
+        int headerEnd = -1;
+        for (int i = reqStart; i + 3 < reqBytes.length; i++)
+        {
+            if (reqBytes[i] == '\r' && reqBytes[i + 1] == '\n' && reqBytes[i + 2] == '\r' && reqBytes[i + 3] == '\n')
+            {
+                headerEnd = i + 4;
+                break;
+            }
+        }
+        if (headerEnd < 0)
+            return 0;
+
+        // The headers are scanned where they lie, as this runs for every request. Every Content-Length must
+        // agree, or a proxy in front of us may have framed the request differently.
+        int bodyLength = 0;
+        boolean lengthFound = false;
+        boolean encodingFound = false;
+        int lineStart = reqStart;
+        // Blank lines ahead of the request line are ignored, as clients may send one after a request body
+        while (lineStart < headerEnd - 2 && reqBytes[lineStart] == '\r' && reqBytes[lineStart + 1] == '\n')
+            lineStart += 2;
+        int requestLineEnd = lineStart;
+        while (reqBytes[requestLineEnd] != '\r')
+            requestLineEnd++;
+        if (!isRequestLine (reqBytes, lineStart, requestLineEnd))
+            return MALFORMED_REQUEST;
+        lineStart = requestLineEnd + 2;
+        while (lineStart < headerEnd - 2)
+        {
+            int lineEnd = lineStart;
+            while (reqBytes[lineEnd] != '\r')
+                lineEnd++;
+            if (!isHeaderLine (reqBytes, lineStart, lineEnd))
+                return MALFORMED_REQUEST;
+            int contentLength = getContentLength (reqBytes, lineStart, lineEnd);
+            if (contentLength == MALFORMED_REQUEST || contentLength >= 0 && lengthFound && contentLength != bodyLength)
+                return MALFORMED_REQUEST;
+            if (contentLength >= 0)
+            {
+                bodyLength = contentLength;
+                lengthFound = true;
+            }
+            else if (getValueStart (reqBytes, lineStart, lineEnd, TRANSFER_ENCODING) >= 0)
+                encodingFound = true;
+            lineStart = lineEnd + 2;
+        }
+        // Both at once is how requests are smuggled past a proxy, so that is malformed rather than unsupported
+        if (encodingFound)
+            return lengthFound ? MALFORMED_REQUEST : ENCODED_REQUEST;
+        if (bodyLength > Integer.MAX_VALUE - (headerEnd - reqStart))
+            return MALFORMED_REQUEST;
+        return headerEnd - reqStart + bodyLength;
+    }
+
+    // Three words separated by single spaces, the last starting HTTP/
+    private static boolean isRequestLine (byte[] reqBytes, int lineStart, int lineEnd)
+    {
+        int spaceCount = 0;
+        int wordStart = lineStart;
+        for (int i = lineStart; i < lineEnd; i++)
+        {
+            if (reqBytes[i] == ' ')
+            {
+                if (i == wordStart || ++spaceCount > 2)
+                    return false;
+                wordStart = i + 1;
+            }
+            else if (reqBytes[i] >= 0 && reqBytes[i] < ' ' || reqBytes[i] == 0x7F)
+                return false;
+        }
+        if (spaceCount != 2 || lineEnd - wordStart < 5)
+            return false;
+        for (int i = 0; i < 5; i++)
+        {
+            if (reqBytes[wordStart + i] != "HTTP/".charAt (i))
+                return false;
+        }
+        return true;
+    }
+
+    // A name, with no white space before it, then a colon
+    private static boolean isHeaderLine (byte[] reqBytes, int lineStart, int lineEnd)
+    {
+        if (lineStart == lineEnd || reqBytes[lineStart] == ' ' || reqBytes[lineStart] == '\t' || reqBytes[lineStart] == ':')
+            return false;
+        for (int i = lineStart + 1; i < lineEnd; i++)
+        {
+            if (reqBytes[i] == ':')
+                return true;
+        }
+        return false;
+    }
+
+    // The value of a Content-Length header line, OTHER_HEADER if it is some other line, or MALFORMED_REQUEST if
+    // the value is not a number that fits in an int
+    private static int getContentLength (byte[] reqBytes, int lineStart, int lineEnd)
+    {
+        int valueStart = getValueStart (reqBytes, lineStart, lineEnd, CONTENT_LENGTH);
+        if (valueStart < 0)
+            return OTHER_HEADER;
+        int valueEnd = lineEnd;
+        while (valueStart < valueEnd && (reqBytes[valueStart] == ' ' || reqBytes[valueStart] == '\t'))
+            valueStart++;
+        while (valueEnd > valueStart && (reqBytes[valueEnd - 1] == ' ' || reqBytes[valueEnd - 1] == '\t'))
+            valueEnd--;
+        if (valueStart == valueEnd)
+            return MALFORMED_REQUEST;
+        long contentLength = 0;
+        for (int i = valueStart; i < valueEnd; i++)
+        {
+            if (reqBytes[i] < '0' || reqBytes[i] > '9')
+                return MALFORMED_REQUEST;
+            contentLength = contentLength * 10 + (reqBytes[i] - '0');
+            if (contentLength > Integer.MAX_VALUE)
+                return MALFORMED_REQUEST;
+        }
+        return (int) contentLength;
+    }
+
+    // Where the value starts if the header line is for the named header, given in lower case, or -1
+    private static int getValueStart (byte[] reqBytes, int lineStart, int lineEnd, String headerName)
+    {
+        if (lineEnd - lineStart < headerName.length ())
+            return -1;
+        for (int i = 0; i < headerName.length (); i++)
+        {
+            if (Character.toLowerCase ((char) reqBytes[lineStart + i]) != headerName.charAt (i))
+                return -1;
+        }
+        int valueStart = lineStart + headerName.length ();
+        while (valueStart < lineEnd && reqBytes[valueStart] == ' ')
+            valueStart++;
+        if (valueStart == lineEnd || reqBytes[valueStart] != ':')
+            return -1;
+        return valueStart + 1;
+    }
+
+    // The status a request getRequestLength () could not frame is refused with
+    static int getRefusedStatus (int reqLength)
+    {
+        return reqLength == ENCODED_REQUEST ? 501 : 400;
+    }
+
+    private void setPendingBytes (ConnectionState connectionState, byte[] pendingBytes)
+    {
+        connectionState.pendingBytes = pendingBytes;
+        connectionState.pendingLength = pendingBytes == null ? 0 : pendingBytes.length;
+    }
+
+    // The socket has room again: write what is pending, then carry on where the connection left off once it has
+    // all gone. A connection waiting for a parked request carries on when that is answered, and one waiting for a
+    // proxied response when the relay has finished.
+    void handleWrite (SelectionKey selectionKey) throws IOException
+    {
+        ConnectionState connectionState = (ConnectionState) selectionKey.attachment ();
+        connectionState.lastActiveMillis = System.currentTimeMillis ();
+        if (!connectionState.flushOutput ((SocketChannel) selectionKey.channel ()))
+            return;
+        if (connectionState.closeWhenWritten)
+        {
+            closeConnection (selectionKey);
+            return;
+        }
+        selectionKey.interestOps (selectionKey.interestOps () & ~SelectionKey.OP_WRITE);
+        Runnable onWritten = connectionState.onWritten;
+        connectionState.onWritten = null;
+        if (onWritten != null)
+            onWritten.run ();
+        else if (connectionState.proxyRequest == null && connectionState.parkedRequest == null)
+            resumeReading (selectionKey, connectionState);
+    }
+
+    // If the client has yet to take all that was written, stop reading the connection and watch for the socket to
+    // drain instead. Returns true if it has.
+    boolean awaitWritten (SelectionKey selectionKey)
+    {
+        Object attachment = selectionKey.attachment ();
+        return attachment instanceof ConnectionState && awaitWritten (selectionKey, (ConnectionState) attachment);
+    }
+
+    private boolean awaitWritten (SelectionKey selectionKey, ConnectionState connectionState)
+    {
+        if (!connectionState.hasPendingOutput () || !selectionKey.isValid ())
+            return false;
+        int interestOps = selectionKey.interestOps ();
+        if ((interestOps & SelectionKey.OP_WRITE) == 0)
+            writeWaitCount.increment ();
+        selectionKey.interestOps ((interestOps & ~SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+        return true;
+    }
+
+    // Watch for a WebSocket's socket to drain. Returns false if its client has left more unread than it may.
+    private boolean awaitFramesWritten (SelectionKey selectionKey, ConnectionState transportState)
+    {
+        awaitWritten (selectionKey);
+        return transportState.pendingOutputBytes <= maxWebSocketPendingBytes;
+    }
+
+    // Close a connection once the client has taken everything written to it, such as a response saying it will
+    // be closed
+    void closeWhenWritten (SelectionKey selectionKey)
+    {
+        Object attachment = selectionKey.attachment ();
+        if (attachment instanceof ConnectionState && awaitWritten (selectionKey, (ConnectionState) attachment))
+            ((ConnectionState) attachment).closeWhenWritten = true;
+        else
+            closeConnection (selectionKey);
+    }
+
+    // Close a client connection and forget its state
+    void closeConnection (SelectionKey selectionKey)
+    {
+        Object attachment = selectionKey.attach (null);
+        try
+        {
+            // TLS and HTTP/2 connections say goodbye first
+            if (attachment instanceof ConnectionState)
+                ((ConnectionState) attachment).close ((SocketChannel) selectionKey.channel ());
+            else
+                selectionKey.channel ().close ();
+        }
+        catch (IOException ignore)
+        {
+            /* ignore */
+        }
+        if (attachment instanceof ConnectionState)
+        {
+            openCount.add (-1);
+            // A relay waiting for the client carries on, and finds it gone
+            Runnable onWritten = ((ConnectionState) attachment).onWritten;
+            if (onWritten != null)
+                execute (onWritten);
+        }
+    }
+
+    // Close keep-alive connections that have been idle for too long, and clients that have taken none of a
+    // response for as long. Runs on the selector thread at most once per sweep interval. Connections a worker is
+    // servicing have OP_READ switched off and are left alone.
+    private void closeIdleConnections ()
+    {
+        if (idleTimeoutMillis <= 0)
+            return;
+        long nowMillis = System.currentTimeMillis ();
+        if (nowMillis - lastSweepMillis < getSweepInterval ())
+            return;
+        lastSweepMillis = nowMillis;
+
+        for (SelectionKey selectionKey : serverSelector.keys ())
+        {
+            try
+            {
+                Object attachment = selectionKey.attachment ();
+                int interestOps = selectionKey.interestOps ();
+                if (attachment instanceof ConnectionState && (interestOps & (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) != 0
+                    && nowMillis - ((ConnectionState) attachment).lastActiveMillis > idleTimeoutMillis)
+                {
+                    // WebSocket connections are pinged first, and only closed if that goes unanswered
+                    if (attachment instanceof WebSocketConnectionState && (interestOps & SelectionKey.OP_WRITE) == 0)
+                    {
+                        WebSocketConnectionState webSocketState = (WebSocketConnectionState) attachment;
+                        if (webSocketState.keepAlive (nowMillis, idleTimeoutMillis))
+                        {
+                            if (webSocketState.pingSentMillis == nowMillis)
+                                webSocketPingCount.increment ();
+                            continue;
+                        }
+                    }
+                    idleCloseCount.increment ();
+                    closeConnection (selectionKey);
+                }
+            }
+            catch (CancelledKeyException e)
+            {
+                // Already closed
+            }
+        }
+    }
+
+    // How long a select may block: forever, unless idle connections need sweeping or a timer is due
+    private long getSelectTimeout ()
+    {
+        long sweepInterval = getSweepInterval ();
+        long timerDelay = timerQueue.getNextDelayMillis (System.currentTimeMillis ());
+        if (timerDelay > 0 && (sweepInterval == 0 || timerDelay < sweepInterval))
+            return timerDelay;
+        return sweepInterval;
+    }
+
+    private long getSweepInterval ()
+    {
+        return idleTimeoutMillis > 0 ? Math.min (SWEEP_INTERVAL_MILLIS, idleTimeoutMillis) : 0;
+    }
+
+    // Write a previously encoded response for this GET, or its 304 if the client has it already, if one is still
+    // fresh. Returns true if it did.
+    boolean processCached (HttpRequest httpRequest, WritableByteChannel clientChannel, InetAddress remoteAddress, long startNanos) throws IOException
+    {
+        if (!httpRequest.getHttpMethod ().equals ("GET") || hasCredentials (httpRequest))
+            return false;
+        ResponseCache.Entry cacheEntry = responseCache.get (getCacheKey (httpRequest));
+        if (cacheEntry == null)
+            return false;
+        cacheHitCount.increment ();
+        boolean notModified = HttpResponse.isNotModified (cacheEntry.getEntityTag (), cacheEntry.getLastModified (), httpRequest.getHeader ("If-None-Match"),
+                                                          httpRequest.getHeader ("If-Modified-Since"));
+        ByteBuffer cachedResponse = notModified ? cacheEntry.getNotModifiedResponse () : cacheEntry.getResponse ();
+        if (notModified)
+            notModifiedCount.increment ();
+        int responseLength = cachedResponse.remaining ();
+        HttpResponse.writeFully (clientChannel, cachedResponse);
+        logAccess (remoteAddress, httpRequest, notModified ? 304 : 200, responseLength, startNanos);
+        return true;
+    }
+
+    // Keep the encoded response of a successful GET when the app said it may be shared. The cache is keyed on the
+    // location alone, so nothing is kept that was meant for one client or that varies by request header.
+    void cacheResponse (HttpRequest httpRequest, HttpResponse httpResponse)
+    {
+        if (!httpRequest.getHttpMethod ().equals ("GET") || httpResponse.getResponseCode () != 200 || hasCredentials (httpRequest))
+            return;
+        if (httpResponse.getHeader ("Set-Cookie") != null || httpResponse.getHeader ("Vary") != null)
+            return;
+        long maxAgeMillis = ResponseCache.getMaxAgeMillis (httpResponse.getHeader ("Cache-Control"));
+        if (maxAgeMillis <= 0)
+            return;
+        ByteBuffer committedResponse = httpResponse.getCommittedResponse ();
+        if (committedResponse != null)
+            responseCache.put (getCacheKey (httpRequest), committedResponse, httpResponse.getNotModifiedResponse (), httpResponse.getHeader ("ETag"),
+                               httpResponse.getHeader ("Last-Modified"), maxAgeMillis);
+    }
+
+    static String getCacheKey (HttpRequest httpRequest)
+    {
+        return httpRequest.getHttpMethod () + " " + httpRequest.getReqLocation ();
+    }
+
+    // True for a request that identifies its client, whose response is neither served from nor kept in the cache
+    private static boolean hasCredentials (HttpRequest httpRequest)
+    {
+        return httpRequest.getHeader ("Authorization") != null || httpRequest.getHeader ("Cookie") != null;
+    }
+
+    public List <Path> getUnixListeners ()
+    {
+        return unixSocketPaths;
+    }
+
+    /**
+     * Listen on a Unix domain socket at socketPath as well as on the TCP port, for a sidecar or proxy on the same
+     * host. Its connections are read by the same loop, parser and apps, skip the TCP stack, and are never TLS. The
+     * access log and rate limiter see them as coming from the loopback address. Needs Java 16 or later, without
+     * which startServer () fails. Must be called before startServer().
+     */
+    public void addUnixListener (Path socketPath)
+    {
+        unixSocketPaths.add (socketPath);
+    }
+
+    public ListenerOptions getListenerOptions ()
+    {
+        return listenerOptions;
+    }
+
+    /**
+     * Set the socket options used for listening sockets and accepted connections. Must be called before
+     * startServer().
+     */
+    public void setListenerOptions (ListenerOptions listenerOptions)
+    {
+        this.listenerOptions = listenerOptions;
+    }
+
+    public TlsConfig getTlsConfig ()
+    {
+        return tlsConfig;
+    }
+
+    /**
+     * Serve HTTPS instead of plain HTTP. Each accepted connection gets its own SSLEngine, and the handshake and
+     * all encryption run on the thread that reads the connection. The network and application buffers the
+     * engines need are pooled per server (per loop for NioCoreWebServer). Must be called before startServer().
+     */
+    public void setTlsConfig (TlsConfig tlsConfig)
+    {
+        this.tlsConfig = tlsConfig;
+        if (tlsConfig == null)
+            return;
+        SSLSession sizingSession = tlsConfig.createEngine (null, -1).getSession ();
+        tlsPacketPool = new BufferPool (sizingSession.getPacketBufferSize (), MAX_POOLED_BUFFERS);
+        tlsAppPool = new BufferPool (sizingSession.getApplicationBufferSize (), MAX_POOLED_BUFFERS);
+    }
+
+    public ProxyConfig getProxyConfig ()
+    {
+        return proxyConfig;
+    }
+
+    /**
+     * Act as a reverse proxy for the paths the config routes, in front of the apps. Each event loop forwards
+     * the requests it reads over its own pooled upstream connections. Must be called before startServer().
+     */
+    public void setProxyConfig (ProxyConfig proxyConfig)
+    {
+        this.proxyConfig = proxyConfig;
+    }
+
+    public boolean isEntityTags ()
+    {
+        return entityTags;
+    }
+
+    /**
+     * Give every successful GET response a strong ETag, a fast hash of its body, unless the app set its own.
+     * Conditional requests whose If-None-Match (or, failing that, If-Modified-Since against the app's
+     * Last-Modified) shows the client has the current version are answered with a header-only 304, straight from
+     * the response cache when it holds the resource. On by default.
+     */
+    public void setEntityTags (boolean entityTags)
+    {
+        this.entityTags = entityTags;
+    }
+
+    /**
+     * The fixed responses this server answers with straight from the bytes it reads. Register them before the
+     * server starts. A pooled server reads connections on its selector thread once any are registered, so they
+     * are answered without a worker.
+     */
+    public FixedResponses getFixedResponses ()
+    {
+        return fixedResponses;
+    }
+
+    public void setFixedResponses (FixedResponses fixedResponses)
+    {
+        this.fixedResponses = fixedResponses;
+    }
+
+    public RateLimiter getRateLimiter ()
+    {
+        return rateLimiter;
+    }
+
+    /**
+     * Check every request against these rate limits before it is serviced or proxied, on the thread that reads
+     * it. Requests over a limit are answered 429 with a Retry-After header. A pooled server also turns away
+     * connections from clients already over their limit on the selector thread. Must be called before
+     * startServer().
+     */
+    public void setRateLimiter (RateLimiter rateLimiter)
+    {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public RequestCoalescer getCoalescer ()
+    {
+        return coalescer;
+    }
+
+    /**
+     * Collapse identical GETs that arrive while the first is still running, so the app runs once and every one
+     * of them gets its response. Off by default, as it is only right for apps whose GETs do not depend on who is
+     * asking beyond the headers the coalescer varies on. Must be called before startServer().
+     */
+    public void setCoalescer (RequestCoalescer coalescer)
+    {
+        this.coalescer = coalescer;
+    }
+
+    public String getProfilePath ()
+    {
+        return profilePath;
+    }
+
+    String getAdminToken ()
+    {
+        return adminToken;
+    }
+
+    /**
+     * Serve an on-demand profile of the server at profilePath to callers who send "Authorization: Bearer
+     * adminToken". A GET records for ?seconds=N (10 by default, at most 300) while the server goes on serving,
+     * then answers with collapsed CPU stacks, the top allocation sites and the most contended locks, or with
+     * ?format=collapsed only the stacks, ready for flamegraph.pl. Recording needs Flight Recorder streaming,
+     * which means running on Java 16 or later and a build on JDK 16 or later. Off by default; a null path turns
+     * it off again.
+     */
+    public void setProfiling (String profilePath, String adminToken)
+    {
+        if (profilePath != null && (adminToken == null || adminToken.isEmpty ()))
+            throw new IllegalArgumentException ("Profiling needs an admin token");
+        this.profilePath = profilePath;
+        this.adminToken = adminToken;
+        this.profiler = profilePath != null ? Profiler.newProfiler () : null;
+    }
+
+    public AccessLog getAccessLog ()
+    {
+        return accessLog;
+    }
+
+    /**
+     * Record every request served, proxied ones included, in this log. The request path only copies a few fields
+     * into the log's ring; formatting and file writes happen on its own thread. Must be called before startServer().
+     */
+    public void setAccessLog (AccessLog accessLog)
+    {
+        this.accessLog = accessLog;
+    }
+
+    public TrafficJournal getTrafficJournal ()
+    {
+        return trafficJournal;
+    }
+
+    /**
+     * Capture every HTTP/1.x request read, as raw bytes with the time and connection it arrived on, to this
+     * journal, for TrafficReplay to send again later. The request path only copies the bytes into the journal's
+     * ring; the file is written on its own thread. Must be called before startServer().
+     */
+    public void setTrafficJournal (TrafficJournal trafficJournal)
+    {
+        this.trafficJournal = trafficJournal;
+    }
+
+    /**
+     * This loop's reverse proxy, or null if there is no ProxyConfig or the server has not started
+     */
+    public ReverseProxy getReverseProxy ()
+    {
+        return reverseProxy;
+    }
+
+    public boolean isHttp2 ()
+    {
+        return http2;
+    }
+
+    /**
+     * Accept HTTP/2 as well as HTTP/1.1: with prior knowledge, through an h2c upgrade request, or over TLS when
+     * the TlsConfig offers "h2" through ALPN. Streams are multiplexed over one connection and each is serviced
+     * by the apps exactly like an HTTP/1.1 request. Off by default.
+     */
+    public void setHttp2 (boolean http2)
+    {
+        this.http2 = http2;
+    }
+
+    public long getBusyPollNanos ()
+    {
+        return busyPollNanos;
+    }
+
+    /**
+     * Opt in to busy polling. After each batch of work the event loop spins on selectNow () for up to this many
+     * nanoseconds before it parks in a blocking select (), so a request arriving within the window is picked up
+     * without a wakeup. This trades a mostly busy core for lower latency; the time spent spinning is reported
+     * in the busyPoll.nanos metric. 0, the default, always blocks.
+     */
+    public void setBusyPollNanos (long busyPollNanos)
+    {
+        this.busyPollNanos = busyPollNanos;
+    }
+
+    public boolean isKeepAlive ()
+    {
+        return keepAlive;
+    }
+
+    /**
+     * Keep connections open between requests when the client allows it. Off by default, so every response is
+     * sent with Connection: close.
+     */
+    public void setKeepAlive (boolean keepAlive)
+    {
+        this.keepAlive = keepAlive;
+    }
+
+    public long getIdleTimeoutMillis ()
+    {
+        return idleTimeoutMillis;
+    }
+
+    public int getMaxRequestBytes ()
+    {
+        return maxRequestBytes;
+    }
+
+    /**
+     * The largest request accepted, headers and body together. A request declaring a longer Content-Length is
+     * answered 413 and its connection closed, before its body is read. Headers alone are limited to 64KB. An HTTP/2
+     * request whose body grows past this is answered 413 and its stream reset. Defaults to 1MB. Must be called
+     * before startServer().
+     */
+    public void setMaxRequestBytes (int maxRequestBytes)
+    {
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    public long getMaxWebSocketPendingBytes ()
+    {
+        return maxWebSocketPendingBytes;
+    }
+
+    /**
+     * How many bytes of frames a WebSocket client may leave unread before it is dropped, so one that stops
+     * reading cannot grow the heap without limit. Defaults to 16MB.
+     */
+    public void setMaxWebSocketPendingBytes (long maxWebSocketPendingBytes)
+    {
+        this.maxWebSocketPendingBytes = maxWebSocketPendingBytes;
+    }
+
+    /**
+     * Close keep-alive connections that have seen no traffic for this long. 0, the default, never closes them.
+     */
+    public void setIdleTimeoutMillis (long idleTimeoutMillis)
+    {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * True once every registered app has been started and warmed up and the server is accepting requests
+     */
+    public boolean isReady ()
+    {
+        return ready;
+    }
+
+    public String getReadinessPath ()
+    {
+        return readinessPath;
+    }
+
+    /**
+     * The location answered with 200 once the server is ready and 503 before that. Defaults to /ready; null
+     * turns the endpoint off.
+     */
+    public void setReadinessPath (String readinessPath)
+    {
+        this.readinessPath = readinessPath;
+    }
+
+    public int getWarmupIterations ()
+    {
+        return warmupIterations;
+    }
+
+    /**
+     * Before accepting, replay the warm-up request set this many times through the apps so the JIT has compiled
+     * the request path. The set holds a GET for each registered app plus any added with addWarmupRequest ().
+     * Defaults to 0, no warm-up.
+     */
+    public void setWarmupIterations (int warmupIterations)
+    {
+        this.warmupIterations = warmupIterations;
+    }
+
+    /**
+     * Add a raw HTTP request (request line, headers and optional body) to the warm-up set. Responses are
+     * discarded, so the request should not have side effects the app cannot tolerate.
+     */
+    public void addWarmupRequest (String rawRequest)
+    {
+        warmupRequests.add (rawRequest);
+    }
+
+    List <String> getWarmupRequests ()
+    {
+        return warmupRequests;
+    }
+
+    public Metrics getMetrics ()
+    {
+        return metrics;
+    }
+
+    void handleRead (SelectionKey selectionKey) throws IOException
+    {
+        readChannelFully (selectionKey);
+        awaitWritten (selectionKey);
+        if (isAwaitingProxy (selectionKey))
+            forwardProxied (selectionKey);
+        else if (isAwaitingCoalesced (selectionKey))
+            awaitCoalesced (selectionKey);
+        else if (isAwaitingProfile (selectionKey))
+            startProfile (selectionKey);
+    }
+
+    /**
+     * Adapts a class that has service, start and stop methods but does not implement NioWebApp. Every call
+     * goes through reflection, so this is only the fallback for apps that predate the interface.
+     */
+    private static class ReflectiveWebApp implements NioWebApp
+    {
+        private final Object appInstance;
+        private final Method serviceMethod;
+
+        ReflectiveWebApp (Object appInstance) throws NoSuchMethodException
+        {
+            this.appInstance = appInstance;
+            this.serviceMethod = appInstance.getClass ().getMethod ("service", HttpRequest.class, HttpResponse.class);
+        }
+
+        public void service (HttpRequest httpRequest, HttpResponse httpResponse) throws IOException
+        {
+            invoke (serviceMethod, httpRequest, httpResponse);
+        }
+
+        public void start () throws IOException
+        {
+            invoke (getMethod ("start"));
+        }
+
+        public void stop () throws IOException
+        {
+            invoke (getMethod ("stop"));
+        }
+
+        private Method getMethod (String methodName) throws IOException
+        {
+            try
+            {
+                return appInstance.getClass ().getMethod (methodName);
+            }
+            catch (NoSuchMethodException e)
+            {
+                throw new IOException (e);
+            }
+        }
+
+        private void invoke (Method appMethod, Object... methodArgs) throws IOException
+        {
+            try
+            {
+                appMethod.invoke (appInstance, methodArgs);
+            }
+            catch (IllegalAccessException | InvocationTargetException e)
+            {
+                throw new IOException (e);
+            }
+        }
     }
 }
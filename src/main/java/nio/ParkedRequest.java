@@ -0,0 +1,11 @@
+package nio;
+
+/**
+ * A request a connection has set aside while its response is produced off the connection's thread, kept on its
+ * ConnectionState. While one is parked the connection has OP_READ off, so nothing more is read, and the idle
+ * sweep leaves it alone. A GET waiting on an identical one is a CoalescedRequest, and a call to the profiling
+ * endpoint is a ProfileRequest.
+ */
+abstract class ParkedRequest
+{
+}
@@ -0,0 +1,18 @@
+package nio;
+
+/**
+ * A call to the profiling endpoint, parked while the profile is recorded on a thread of its own
+ */
+class ProfileRequest extends ParkedRequest
+{
+    final String reqData;
+    final long durationMillis;
+    final int reportType;
+
+    ProfileRequest (String reqData, long durationMillis, int reportType)
+    {
+        this.reqData = reqData;
+        this.durationMillis = durationMillis;
+        this.reportType = reportType;
+    }
+}
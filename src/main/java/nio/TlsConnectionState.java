@@ -0,0 +1,49 @@
+package nio;
+
+import nio.tls.TlsChannel;
+
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connection state for a TLS connection. Requests are read and responses written through the TlsChannel, which
+ * holds the connection's SSLEngine.
+ */
+final class TlsConnectionState extends ConnectionState
+{
+    final TlsChannel tlsChannel;
+
+    TlsConnectionState (long lastActiveMillis, TlsChannel tlsChannel)
+    {
+        super (lastActiveMillis);
+        this.tlsChannel = tlsChannel;
+    }
+
+    ByteChannel getTransportChannel (SocketChannel socketChannel)
+    {
+        return tlsChannel;
+    }
+
+    boolean hasPendingOutput ()
+    {
+        return super.hasPendingOutput () || tlsChannel.hasPendingOutput ();
+    }
+
+    // Records encrypted already go before any plaintext still parked
+    boolean flushOutput (SocketChannel socketChannel) throws IOException
+    {
+        return tlsChannel.flush () && super.flushOutput (socketChannel);
+    }
+
+    boolean hasBufferedInput ()
+    {
+        return tlsChannel.hasBufferedInput ();
+    }
+
+    // Send close_notify before closing the socket
+    void close (SocketChannel socketChannel) throws IOException
+    {
+        tlsChannel.close ();
+    }
+}
@@ -0,0 +1,50 @@
+package nio;
+
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connection state for a connection that has switched from HTTP/1.1 to another protocol. It wraps the state the
+ * connection had before, plain or TLS, which still does the reading and writing.
+ */
+abstract class UpgradedConnectionState extends ConnectionState
+{
+    final ConnectionState transportState;
+
+    UpgradedConnectionState (ConnectionState transportState)
+    {
+        super (transportState.lastActiveMillis);
+        this.transportState = transportState;
+    }
+
+    ByteChannel getTransportChannel (SocketChannel socketChannel)
+    {
+        return transportState.getTransportChannel (socketChannel);
+    }
+
+    ConnectionState getTransportState ()
+    {
+        return transportState;
+    }
+
+    boolean hasPendingOutput ()
+    {
+        return transportState.hasPendingOutput ();
+    }
+
+    boolean flushOutput (SocketChannel socketChannel) throws IOException
+    {
+        return transportState.flushOutput (socketChannel);
+    }
+
+    boolean hasBufferedInput ()
+    {
+        return transportState.hasBufferedInput ();
+    }
+
+    void close (SocketChannel socketChannel) throws IOException
+    {
+        transportState.close (socketChannel);
+    }
+}
@@ -0,0 +1,47 @@
+package nio;
+
+import nio.websocket.WebSocketConnection;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connection state for a connection that has been upgraded to WebSocket. Instead of being closed when idle, it
+ * is sent a ping, and only closed if the ping goes unanswered for another idle timeout.
+ */
+final class WebSocketConnectionState extends UpgradedConnectionState
+{
+    final WebSocketConnection webSocket;
+    long pingSentMillis;
+
+    WebSocketConnectionState (ConnectionState transportState, WebSocketConnection webSocket)
+    {
+        super (transportState);
+        this.webSocket = webSocket;
+    }
+
+    /**
+     * Called by the idle sweep once the connection has been idle for idleTimeoutMillis. Returns true if it should
+     * stay open, having been pinged now or too recently to give up on.
+     */
+    boolean keepAlive (long nowMillis, long idleTimeoutMillis)
+    {
+        if (!webSocket.isOpen ())
+            return false;
+        // Pings are only sent to idle connections, so any activity since, even in the same millisecond, is newer
+        if (lastActiveMillis >= pingSentMillis)
+        {
+            pingSentMillis = nowMillis;
+            webSocket.sendPing ();
+            return true;
+        }
+        return nowMillis - pingSentMillis <= idleTimeoutMillis;
+    }
+
+    // Let the handler know, whoever closed it
+    void close (SocketChannel socketChannel) throws IOException
+    {
+        webSocket.onTransportClosed ();
+        super.close (socketChannel);
+    }
+}
@@ -2,13 +2,15 @@ package nio.api;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class HttpRequest
 {
     private String httpMethod;
     private String reqLocation;
     private String httpVersion;
-    private final Map <String, String> reqHeaders = new HashMap <> ();
+    // Header names are case insensitive, and HTTP/2 sends them all in lower case
+    private final Map <String, String> reqHeaders = new TreeMap <> (String.CASE_INSENSITIVE_ORDER);
     private final Map <String, String> postParams = new HashMap <> ();
 
     public HttpRequest (String rawRequest)
@@ -44,8 +46,8 @@ public class HttpRequest
         String[] postParams = postParamLine.split ("&");
         for (String currParam : postParams)
         {
-            String[] keyValue = currParam.split ("=");
-            this.postParams.put (keyValue[0], keyValue[1]);
+            String[] keyValue = currParam.split ("=", 2);
+            this.postParams.put (keyValue[0], keyValue.length > 1 ? keyValue[1] : "");
         }
     }
 
@@ -69,6 +71,23 @@ public class HttpRequest
         return reqHeaders.get (key);
     }
 
+    /**
+     * The value of the named cookie, or null if the request did not send it
+     */
+    public String getCookie (String cookieName)
+    {
+        String cookieHeader = reqHeaders.get ("Cookie");
+        if (cookieHeader == null)
+            return null;
+        for (String cookiePair : cookieHeader.split (";"))
+        {
+            int equalsPos = cookiePair.indexOf ('=');
+            if (equalsPos > 0 && cookiePair.substring (0, equalsPos).trim ().equals (cookieName))
+                return cookiePair.substring (equalsPos + 1).trim ();
+        }
+        return null;
+    }
+
     public Map <String, String> getPostParams ()
     {
         return postParams;
@@ -4,28 +4,46 @@ import nio.NioWebServer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.CharBuffer;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class HttpResponse
 {
-    private static final CharsetEncoder charsetEncoder = StandardCharsets.ISO_8859_1.newEncoder ();
-    private static final int RESPONSE_BUFFER = 16 * 1024;
+    // The only headers a 304 repeats from the response it stands for, besides the connection's own
+    private static final String[] NOT_MODIFIED_HEADERS = { "Date", "ETag", "Last-Modified", "Cache-Control", "Expires", "Vary", "Content-Location",
+                                                           "Connection", "Server" };
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes (StandardCharsets.ISO_8859_1);
     private final String httpVersion = "HTTP/1.1";
     private int responseCode = 200;
     private String responseReason = "OK";
     private final Map <String, String> respHeaders = new LinkedHashMap <> ();
     private final StringBuffer respBody = new StringBuffer ();
     private byte[] respBytes;
-    private final SocketChannel clientChannel;
+    private ByteBuffer committedResponse;
+    private ByteBuffer[] committedParts;
+    private int streamedLength;
+    private long writeNanos;
+    private boolean streaming;
+    private boolean keepAlive;
+    private boolean chunkedAllowed = true;
+    private boolean generateEntityTag;
+    private String ifNoneMatch;
+    private String ifModifiedSince;
+    private final WritableByteChannel clientChannel;
 
-    public HttpResponse (SocketChannel clientChannel)
+    public HttpResponse (WritableByteChannel clientChannel)
     {
         this.clientChannel = clientChannel;
     }
@@ -33,12 +51,13 @@ public class HttpResponse
     private void addDefaultHeaders (String contentType, String serverName)
     {
         respHeaders.putIfAbsent ("Date", new Date ().toString ());
-        respHeaders.putIfAbsent ("Connection", "close");
+        respHeaders.putIfAbsent ("Connection", keepAlive ? "keep-alive" : "close");
 
         if (contentType != null)
             respHeaders.putIfAbsent ("Content-Type", contentType);
-        if (respBody.length () > 0)
-            respHeaders.putIfAbsent ("Content-Length", Integer.toString (respBody.length ()));
+        // Always framed, so a keep-alive client knows where this response ends
+        if (!streaming)
+            respHeaders.putIfAbsent ("Content-Length", Integer.toString (respBytes != null ? respBytes.length : respBody.length ()));
         if (serverName != null)
             respHeaders.putIfAbsent ("Server", serverName);
     }
@@ -78,6 +97,46 @@ public class HttpResponse
         this.responseReason = responseReason;
     }
 
+    /**
+     * Called by the server to say whether the connection may stay open after this response
+     */
+    public void setKeepAlive (boolean keepAlive)
+    {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Called by the server to say whether the client understands a chunked body. An HTTP/1.0 client does not, so a
+     * streamed response to one is sent as it is and ended by closing the connection.
+     */
+    public void setChunkedAllowed (boolean chunkedAllowed)
+    {
+        this.chunkedAllowed = chunkedAllowed;
+    }
+
+    /**
+     * Called by the server for a GET or HEAD, to say whether to give a successful response a strong ETag computed
+     * from its body (unless the app set one) and what the request's validators were. If they show the client has
+     * the current version, committing the response writes a header-only 304 instead.
+     */
+    public void setValidation (boolean generateEntityTag, String ifNoneMatch, String ifModifiedSince)
+    {
+        this.generateEntityTag = generateEntityTag;
+        this.ifNoneMatch = ifNoneMatch == null ? null : ifNoneMatch.trim ();
+        this.ifModifiedSince = ifModifiedSince == null ? null : ifModifiedSince.trim ();
+    }
+
+    /**
+     * True if the server may keep the connection open after this response: keep-alive was allowed, the response
+     * is framed by a Content-Length or chunks (a 304 never has a body) and the app did not ask for the connection to be closed.
+     */
+    public boolean isKeepAlive ()
+    {
+        String connectionHeader = respHeaders.get ("Connection");
+        return keepAlive && (respHeaders.containsKey ("Content-Length") || streaming || responseCode == 304)
+            && (connectionHeader == null || !connectionHeader.equalsIgnoreCase ("close"));
+    }
+
     public void addHeader (String key, String value)
     {
         respHeaders.put (key, value);
@@ -96,9 +155,9 @@ public class HttpResponse
         if (respBody.length () > 0)
             fullResponse.append (respBody);
 
-        ByteBuffer responseBuffer = ByteBuffer.allocateDirect (RESPONSE_BUFFER);
-        charsetEncoder.reset ();
-        responseBuffer = charsetEncoder.encode (CharBuffer.wrap (fullResponse));
+        // An encoder keeps state between calls, so each response has its own rather than sharing one across loops
+        CharsetEncoder charsetEncoder = StandardCharsets.ISO_8859_1.newEncoder ();
+        ByteBuffer responseBuffer = charsetEncoder.encode (CharBuffer.wrap (fullResponse));
         charsetEncoder.flush (responseBuffer);
         responseBuffer.flip ();
         responseBuffer.clear ();
@@ -121,6 +180,19 @@ public class HttpResponse
         return responseBuffer;
     }
 
+    /**
+     * Encode the response, without committing it, for the server to replay as it is to every request for a fixed
+     * path. It gets the given Date, which the server rewrites in place, a Content-Length and a Connection header
+     * matching setKeepAlive().
+     */
+    public ByteBuffer getFixedResponse (String dateText) throws CharacterCodingException
+    {
+        respHeaders.put ("Date", dateText);
+        respHeaders.put ("Connection", keepAlive ? "keep-alive" : "close");
+        respHeaders.put ("Content-Length", Integer.toString (respBytes != null ? respBytes.length : respBody.length ()));
+        return respBytes != null ? getResponseStream (false) : getResponseWriter (false);
+    }
+
     public StringBuilder getResponseHeaders (boolean addDefaultHeaders)
     {
         if (addDefaultHeaders)
@@ -143,11 +215,312 @@ public class HttpResponse
 
     public void commitWriter (boolean addDefaultHeaders) throws IOException
     {
-        clientChannel.write (getResponseWriter (addDefaultHeaders));
+        if (generateEntityTag && responseCode == 200 && !respHeaders.containsKey ("ETag"))
+            respHeaders.put ("ETag", toEntityTag (hashChars (respBody.toString ())));
+        if (commitNotModified (addDefaultHeaders))
+            return;
+        writeResponse (getResponseWriter (addDefaultHeaders));
     }
 
     public void commitStream (boolean addDefaultHeaders) throws IOException
     {
-        clientChannel.write (getResponseStream (addDefaultHeaders));
+        if (generateEntityTag && responseCode == 200 && !respHeaders.containsKey ("ETag") && respBytes != null)
+            respHeaders.put ("ETag", toEntityTag (hashBytes (respBytes)));
+        if (commitNotModified (addDefaultHeaders))
+            return;
+        writeResponse (getResponseStream (addDefaultHeaders));
+    }
+
+    // Answer 304 in place of a successful response the client already has. Returns true if it did.
+    private boolean commitNotModified (boolean addDefaultHeaders) throws IOException
+    {
+        if (responseCode != 200 || (ifNoneMatch == null && ifModifiedSince == null)
+            || !isNotModified (respHeaders.get ("ETag"), respHeaders.get ("Last-Modified"), ifNoneMatch, ifModifiedSince))
+            return false;
+        if (addDefaultHeaders)
+            addDefaultHeaders (null, null);
+        writeResponse (getNotModifiedResponse ());
+        responseCode = 304;
+        responseReason = "Not Modified";
+        return true;
+    }
+
+    /**
+     * The header-only 304 standing for this response, with the validators and caching headers it carries
+     */
+    public ByteBuffer getNotModifiedResponse ()
+    {
+        StringBuilder notModified = new StringBuilder (httpVersion).append (" 304 Not Modified\r\n");
+        for (String headerName : NOT_MODIFIED_HEADERS)
+        {
+            String headerValue = respHeaders.get (headerName);
+            if (headerValue != null)
+                notModified.append (headerName).append (": ").append (headerValue).append ("\r\n");
+        }
+        notModified.append ("\r\n");
+        return ByteBuffer.wrap (notModified.toString ().getBytes (StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * True if a response with this ETag and Last-Modified need not be sent to a client that sent these request
+     * headers. If-None-Match decides when present, using the weak comparison; otherwise If-Modified-Since does.
+     */
+    public static boolean isNotModified (String entityTag, String lastModified, String ifNoneMatch, String ifModifiedSince)
+    {
+        if (ifNoneMatch != null && !ifNoneMatch.trim ().isEmpty ())
+        {
+            if (entityTag == null)
+                return false;
+            String opaqueTag = entityTag.startsWith ("W/") ? entityTag.substring (2) : entityTag;
+            for (String matchTag : ifNoneMatch.split (","))
+            {
+                matchTag = matchTag.trim ();
+                if (matchTag.equals ("*") || (matchTag.startsWith ("W/") ? matchTag.substring (2) : matchTag).equals (opaqueTag))
+                    return true;
+            }
+            return false;
+        }
+        if (ifModifiedSince == null || lastModified == null)
+            return false;
+        try
+        {
+            return !ZonedDateTime.parse (lastModified, DateTimeFormatter.RFC_1123_DATE_TIME)
+                .isAfter (ZonedDateTime.parse (ifModifiedSince.trim (), DateTimeFormatter.RFC_1123_DATE_TIME));
+        }
+        catch (DateTimeParseException e)
+        {
+            return false;
+        }
+    }
+
+    private static String toEntityTag (long bodyHash)
+    {
+        String hexHash = Long.toHexString (bodyHash);
+        return "\"0000000000000000".substring (0, 17 - hexHash.length ()) + hexHash + "\"";
+    }
+
+    // A fast 64-bit hash of the body, eight bytes at a time. Not cryptographic, but any change to a body changes
+    // its ETag for all practical purposes.
+    static long hashBytes (byte[] bodyBytes)
+    {
+        ByteBuffer bodyWords = ByteBuffer.wrap (bodyBytes).order (ByteOrder.LITTLE_ENDIAN);
+        long bodyHash = bodyBytes.length;
+        int i = 0;
+        for (; i + 8 <= bodyBytes.length; i += 8)
+            bodyHash = mixWord (bodyHash, bodyWords.getLong (i));
+        long lastWord = 0;
+        for (int shift = 0; i < bodyBytes.length; i++, shift += 8)
+            lastWord |= (bodyBytes[i] & 0xFFL) << shift;
+        return finishHash (mixWord (bodyHash, lastWord));
+    }
+
+    // The same over a body in several buffers, as if they were one array
+    static long hashBuffers (ByteBuffer[] bodyBuffers, int bodyLength)
+    {
+        long bodyHash = bodyLength;
+        long bodyWord = 0;
+        int shift = 0;
+        for (ByteBuffer bodyBuffer : bodyBuffers)
+        {
+            for (int i = bodyBuffer.position (); i < bodyBuffer.limit (); i++)
+            {
+                bodyWord |= (bodyBuffer.get (i) & 0xFFL) << shift;
+                shift += 8;
+                if (shift == 64)
+                {
+                    bodyHash = mixWord (bodyHash, bodyWord);
+                    bodyWord = 0;
+                    shift = 0;
+                }
+            }
+        }
+        return finishHash (mixWord (bodyHash, bodyWord));
+    }
+
+    // The same over a text body, four chars at a time
+    static long hashChars (String bodyText)
+    {
+        long bodyHash = bodyText.length ();
+        int i = 0;
+        for (; i + 4 <= bodyText.length (); i += 4)
+            bodyHash = mixWord (bodyHash, bodyText.charAt (i) | (long) bodyText.charAt (i + 1) << 16 | (long) bodyText.charAt (i + 2) << 32
+                                          | (long) bodyText.charAt (i + 3) << 48);
+        long lastWord = 0;
+        for (int shift = 0; i < bodyText.length (); i++, shift += 16)
+            lastWord |= (long) bodyText.charAt (i) << shift;
+        return finishHash (mixWord (bodyHash, lastWord));
+    }
+
+    // The MurmurHash3 block mix and finalizer
+    private static long mixWord (long bodyHash, long bodyWord)
+    {
+        bodyWord *= 0x87C37B91114253D5L;
+        bodyWord = Long.rotateLeft (bodyWord, 31);
+        bodyWord *= 0x4CF5AD432745937FL;
+        bodyHash ^= bodyWord;
+        return Long.rotateLeft (bodyHash, 27) * 5 + 0x52DCE729;
+    }
+
+    private static long finishHash (long bodyHash)
+    {
+        bodyHash ^= bodyHash >>> 33;
+        bodyHash *= 0xFF51AFD7ED558CCDL;
+        bodyHash ^= bodyHash >>> 33;
+        bodyHash *= 0xC4CEB9FE1A85EC53L;
+        return bodyHash ^ bodyHash >>> 33;
+    }
+
+    /**
+     * The complete encoded response (status line, headers and body) as it was written, or null if nothing has
+     * been committed yet. The server uses it to cache and replay responses without calling the app again.
+     */
+    public ByteBuffer getCommittedResponse ()
+    {
+        // A response written in parts is only joined up if someone asks for it
+        if (committedResponse == null && committedParts != null)
+        {
+            ByteBuffer joinedResponse = ByteBuffer.allocate (streamedLength);
+            for (ByteBuffer committedPart : committedParts)
+                joinedResponse.put (committedPart.duplicate ());
+            joinedResponse.flip ();
+            committedResponse = joinedResponse.asReadOnlyBuffer ();
+        }
+        return committedResponse == null ? null : committedResponse.duplicate ();
+    }
+
+    /**
+     * Bytes written by the commit, headers included, or 0 if nothing has been committed yet
+     */
+    public int getCommittedLength ()
+    {
+        return committedResponse == null ? streamedLength : committedResponse.limit ();
+    }
+
+    /**
+     * Time spent so far writing this response to its channel. A server connection's channel parks what the
+     * socket will not take rather than waiting for it to drain, so this does not include that wait.
+     */
+    public long getWriteNanos ()
+    {
+        return writeNanos;
+    }
+
+    /**
+     * Commit a body made of several buffers, such as the shared, pre-encoded parts of a template and the values
+     * filled in between them, written after the headers in one gathering write where the channel allows. The
+     * buffers are only read, from their positions to their limits.
+     */
+    public void commitBuffers (ByteBuffer[] bodyBuffers, boolean addDefaultHeaders) throws IOException
+    {
+        int bodyLength = 0;
+        for (ByteBuffer bodyBuffer : bodyBuffers)
+            bodyLength += bodyBuffer.remaining ();
+        if (generateEntityTag && responseCode == 200 && !respHeaders.containsKey ("ETag"))
+            respHeaders.put ("ETag", toEntityTag (hashBuffers (bodyBuffers, bodyLength)));
+        respHeaders.putIfAbsent ("Content-Length", Integer.toString (bodyLength));
+        if (commitNotModified (addDefaultHeaders))
+            return;
+
+        ByteBuffer[] writeBuffers = new ByteBuffer[bodyBuffers.length + 1];
+        writeBuffers[0] = ByteBuffer.wrap (getResponseHeaders (addDefaultHeaders).toString ().getBytes (StandardCharsets.ISO_8859_1));
+        for (int i = 0; i < bodyBuffers.length; i++)
+            writeBuffers[i + 1] = bodyBuffers[i].duplicate ();
+        streamedLength = writeBuffers[0].remaining () + bodyLength;
+        committedParts = new ByteBuffer[writeBuffers.length];
+        for (int i = 0; i < writeBuffers.length; i++)
+            committedParts[i] = writeBuffers[i].asReadOnlyBuffer ();
+        writeGathered (writeBuffers);
+    }
+
+    /**
+     * Start a response whose length is not known yet: write the headers now, saying the body follows in chunks,
+     * then send it with writeChunk () and end it with finishChunks (). A streamed response is never cached and
+     * gets no generated ETag. A client that cannot take chunks gets the body unframed, ending with the connection.
+     */
+    public void commitChunkedHeaders (boolean addDefaultHeaders) throws IOException
+    {
+        streaming = true;
+        respHeaders.remove ("Content-Length");
+        if (chunkedAllowed)
+            respHeaders.put ("Transfer-Encoding", "chunked");
+        else
+            respHeaders.put ("Connection", "close");
+        ByteBuffer headerBuffer = ByteBuffer.wrap (getResponseHeaders (addDefaultHeaders).toString ().getBytes (StandardCharsets.ISO_8859_1));
+        streamedLength = headerBuffer.remaining ();
+        writeTimed (headerBuffer);
+    }
+
+    /**
+     * Write one chunk of a streamed response. An empty buffer writes nothing, as it would end the body.
+     */
+    public void writeChunk (ByteBuffer chunkBuffer) throws IOException
+    {
+        int chunkLength = chunkBuffer.remaining ();
+        if (chunkLength == 0)
+            return;
+        if (!chunkedAllowed)
+        {
+            streamedLength += chunkLength;
+            writeTimed (chunkBuffer);
+            return;
+        }
+        ByteBuffer sizeLine = ByteBuffer.wrap ((Integer.toHexString (chunkLength) + "\r\n").getBytes (StandardCharsets.ISO_8859_1));
+        streamedLength += sizeLine.remaining () + chunkLength + 2;
+        writeGathered (new ByteBuffer[] { sizeLine, chunkBuffer, ByteBuffer.wrap (CRLF) });
+    }
+
+    // One gathering write where the channel takes one, finishing whatever it did not take a buffer at a time
+    private void writeGathered (ByteBuffer[] writeBuffers) throws IOException
+    {
+        long startNanos = System.nanoTime ();
+        if (clientChannel instanceof GatheringByteChannel)
+            ((GatheringByteChannel) clientChannel).write (writeBuffers);
+        for (ByteBuffer writeBuffer : writeBuffers)
+            writeFully (clientChannel, writeBuffer);
+        writeNanos += System.nanoTime () - startNanos;
+    }
+
+    /**
+     * End a streamed response with the last, empty, chunk
+     */
+    public void finishChunks () throws IOException
+    {
+        // Without chunks, closing the connection ends the body
+        if (!chunkedAllowed)
+            return;
+        streamedLength += LAST_CHUNK.length;
+        writeTimed (ByteBuffer.wrap (LAST_CHUNK));
+    }
+
+    public boolean isStreaming ()
+    {
+        return streaming;
+    }
+
+    private void writeResponse (ByteBuffer responseBuffer) throws IOException
+    {
+        committedResponse = responseBuffer.asReadOnlyBuffer ();
+        writeTimed (responseBuffer);
+    }
+
+    private void writeTimed (ByteBuffer responseBuffer) throws IOException
+    {
+        long startNanos = System.nanoTime ();
+        writeFully (clientChannel, responseBuffer);
+        writeNanos += System.nanoTime () - startNanos;
+    }
+
+    /**
+     * Write the whole buffer. The channels the server hands out take every byte, parking what the socket will not
+     * take yet until it drains, so this never waits. A channel that takes nothing is an error, not something to
+     * wait on or spin over.
+     */
+    public static void writeFully (WritableByteChannel clientChannel, ByteBuffer responseBuffer) throws IOException
+    {
+        while (responseBuffer.hasRemaining ())
+        {
+            if (clientChannel.write (responseBuffer) == 0)
+                throw new IOException ("Channel took none of the response");
+        }
     }
 }
@@ -0,0 +1,430 @@
+package nio.api;
+
+import nio.util.BufferPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a JSON document as the body of a response, encoding tokens, strings and numbers straight to UTF-8 in
+ * pooled buffers, with no String or StringBuffer in between. Field names used again and again can be encoded
+ * once with encodeName ().
+ *
+ * A small document is sent with a Content-Length when the writer is closed, and gets an ETag like any other
+ * body. Once a document outgrows the stream threshold the headers are written and the body follows in chunks,
+ * one buffer at a time, so the writer itself never holds more than the threshold. That bounds the writer, not the
+ * connection: whatever a slow client has not taken yet waits in the connection's pending output, so a document
+ * written faster than it is read can still end up there in full. An HTTP/1.0 client, which cannot take chunks,
+ * gets the body unframed and the connection is closed after it.
+ *
+ * Not thread safe. Commas and colons are put in for you, but nesting is not checked.
+ */
+public class JsonWriter implements Closeable
+{
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 8;
+    private static final int DEFAULT_STREAM_THRESHOLD = 64 * 1024;
+    // Each thread serving requests has its own pool, so buffers are borrowed without contention
+    private static final ThreadLocal <BufferPool> chunkPools = ThreadLocal.withInitial (() -> new BufferPool (CHUNK_SIZE, MAX_POOLED_CHUNKS));
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes (StandardCharsets.ISO_8859_1);
+    private static final byte[] TRUE = "true".getBytes (StandardCharsets.ISO_8859_1);
+    private static final byte[] FALSE = "false".getBytes (StandardCharsets.ISO_8859_1);
+    private static final byte[] NULL = "null".getBytes (StandardCharsets.ISO_8859_1);
+    private static final byte[] MIN_LONG = Long.toString (Long.MIN_VALUE).getBytes (StandardCharsets.ISO_8859_1);
+
+    private final HttpResponse httpResponse;
+    private final BufferPool chunkPool = chunkPools.get ();
+    private final List <ByteBuffer> heldChunks = new ArrayList <> ();
+    private int streamThreshold = DEFAULT_STREAM_THRESHOLD;
+    private ByteBuffer chunkBuffer;
+    private byte[] chunkBytes;
+    private int chunkPos;
+    // One flag per open object or array, saying whether it has a member yet
+    private boolean[] hasMember = new boolean[16];
+    private int depth;
+    private boolean afterName;
+    private boolean closed;
+
+    /**
+     * A field name encoded once, quoted and escaped and followed by its colon, ready to be copied into any document
+     */
+    public static final class Name
+    {
+        private final byte[] nameBytes;
+
+        private Name (byte[] nameBytes)
+        {
+            this.nameBytes = nameBytes;
+        }
+    }
+
+    public JsonWriter (HttpResponse httpResponse)
+    {
+        this.httpResponse = httpResponse;
+        if (httpResponse.getHeader ("Content-Type") == null)
+            httpResponse.addHeader ("Content-Type", "application/json");
+        nextChunk ();
+    }
+
+    public static Name encodeName (String fieldName)
+    {
+        ByteBuffer nameBuffer = ByteBuffer.allocate (fieldName.length () * 6 + 3);
+        nameBuffer.put ((byte) '"');
+        for (int i = 0; i < fieldName.length (); i++)
+        {
+            char nameChar = fieldName.charAt (i);
+            if (nameChar < 0x80)
+            {
+                if (nameChar == '"' || nameChar == '\\' || nameChar < 0x20)
+                    nameBuffer.put (("\\u00" + (char) HEX_DIGITS[nameChar >> 4] + (char) HEX_DIGITS[nameChar & 0xF]).getBytes (StandardCharsets.ISO_8859_1));
+                else
+                    nameBuffer.put ((byte) nameChar);
+            }
+            else
+            {
+                int codePoint = fieldName.codePointAt (i);
+                nameBuffer.put (new String (Character.toChars (codePoint)).getBytes (StandardCharsets.UTF_8));
+                i += Character.charCount (codePoint) - 1;
+            }
+        }
+        nameBuffer.put ((byte) '"').put ((byte) ':');
+        return new Name (Arrays.copyOf (nameBuffer.array (), nameBuffer.position ()));
+    }
+
+    public int getStreamThreshold ()
+    {
+        return streamThreshold;
+    }
+
+    /**
+     * Set how large a document may grow before it is streamed in chunks rather than sent with a Content-Length
+     */
+    public void setStreamThreshold (int streamThreshold)
+    {
+        this.streamThreshold = streamThreshold;
+    }
+
+    public JsonWriter beginObject () throws IOException
+    {
+        return openScope ('{');
+    }
+
+    public JsonWriter endObject () throws IOException
+    {
+        return closeScope ('}');
+    }
+
+    public JsonWriter beginArray () throws IOException
+    {
+        return openScope ('[');
+    }
+
+    public JsonWriter endArray () throws IOException
+    {
+        return closeScope (']');
+    }
+
+    public JsonWriter name (Name fieldName) throws IOException
+    {
+        beforeValue ();
+        writeBytes (fieldName.nameBytes);
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter name (String fieldName) throws IOException
+    {
+        beforeValue ();
+        writeString (fieldName);
+        ensure (1);
+        chunkBytes[chunkPos++] = ':';
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value (String stringValue) throws IOException
+    {
+        if (stringValue == null)
+            return nullValue ();
+        beforeValue ();
+        writeString (stringValue);
+        return this;
+    }
+
+    public JsonWriter value (long longValue) throws IOException
+    {
+        beforeValue ();
+        if (longValue == Long.MIN_VALUE)
+        {
+            writeBytes (MIN_LONG);
+            return this;
+        }
+        ensure (20);
+        if (longValue < 0)
+        {
+            chunkBytes[chunkPos++] = '-';
+            longValue = -longValue;
+        }
+        // Digits are written from the right, into the space they will take
+        int digitCount = 1;
+        for (long remaining = longValue / 10; remaining > 0; remaining /= 10)
+            digitCount++;
+        int digitPos = chunkPos + digitCount;
+        chunkPos = digitPos;
+        do
+        {
+            chunkBytes[--digitPos] = (byte) ('0' + longValue % 10);
+            longValue /= 10;
+        }
+        while (longValue > 0);
+        return this;
+    }
+
+    /**
+     * Write a number. JSON has no NaN or infinity, so they are rejected.
+     */
+    public JsonWriter value (double doubleValue) throws IOException
+    {
+        if (Double.isNaN (doubleValue) || Double.isInfinite (doubleValue))
+            throw new IllegalArgumentException ("JSON numbers must be finite, not " + doubleValue);
+        if (doubleValue == (long) doubleValue && Math.abs (doubleValue) < 1e15)
+            return value ((long) doubleValue);
+        beforeValue ();
+        writeBytes (Double.toString (doubleValue).getBytes (StandardCharsets.ISO_8859_1));
+        return this;
+    }
+
+    public JsonWriter value (boolean booleanValue) throws IOException
+    {
+        beforeValue ();
+        writeBytes (booleanValue ? TRUE : FALSE);
+        return this;
+    }
+
+    public JsonWriter nullValue () throws IOException
+    {
+        beforeValue ();
+        writeBytes (NULL);
+        return this;
+    }
+
+    /**
+     * Send whatever is left and give the buffers back. A document that never reached the stream threshold is
+     * committed now, in one piece.
+     */
+    public void close () throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        try
+        {
+            if (httpResponse.isStreaming ())
+            {
+                writeChunk (chunkBuffer);
+                httpResponse.finishChunks ();
+                return;
+            }
+            int bodyLength = chunkPos;
+            for (ByteBuffer heldChunk : heldChunks)
+                bodyLength += heldChunk.position ();
+            byte[] bodyBytes = new byte[bodyLength];
+            int bodyPos = 0;
+            for (ByteBuffer heldChunk : heldChunks)
+            {
+                System.arraycopy (heldChunk.array (), 0, bodyBytes, bodyPos, heldChunk.position ());
+                bodyPos += heldChunk.position ();
+            }
+            System.arraycopy (chunkBytes, 0, bodyBytes, bodyPos, chunkPos);
+            httpResponse.setBody (bodyBytes);
+            httpResponse.commitStream (true);
+        }
+        finally
+        {
+            for (ByteBuffer heldChunk : heldChunks)
+                chunkPool.release (heldChunk);
+            heldChunks.clear ();
+            chunkPool.release (chunkBuffer);
+            chunkBuffer = null;
+        }
+    }
+
+    private JsonWriter openScope (char openChar) throws IOException
+    {
+        beforeValue ();
+        ensure (1);
+        chunkBytes[chunkPos++] = (byte) openChar;
+        if (depth == hasMember.length)
+            hasMember = Arrays.copyOf (hasMember, depth * 2);
+        hasMember[depth++] = false;
+        return this;
+    }
+
+    private JsonWriter closeScope (char closeChar) throws IOException
+    {
+        if (depth == 0)
+            throw new IllegalStateException ("Nothing open to close with " + closeChar);
+        depth--;
+        ensure (1);
+        chunkBytes[chunkPos++] = (byte) closeChar;
+        return this;
+    }
+
+    // The comma between members, unless this value follows its name
+    private void beforeValue () throws IOException
+    {
+        if (closed)
+            throw new IllegalStateException ("JsonWriter is closed");
+        if (afterName)
+        {
+            afterName = false;
+            return;
+        }
+        if (depth == 0)
+            return;
+        if (hasMember[depth - 1])
+        {
+            ensure (1);
+            chunkBytes[chunkPos++] = ',';
+        }
+        hasMember[depth - 1] = true;
+    }
+
+    // A quoted string, escaped as JSON requires and encoded as UTF-8 as it goes
+    private void writeString (String stringValue) throws IOException
+    {
+        ensure (1);
+        chunkBytes[chunkPos++] = '"';
+        int stringLength = stringValue.length ();
+        for (int i = 0; i < stringLength; i++)
+        {
+            char stringChar = stringValue.charAt (i);
+            ensure (6);
+            if (stringChar < 0x80)
+            {
+                if (stringChar >= 0x20 && stringChar != '"' && stringChar != '\\')
+                    chunkBytes[chunkPos++] = (byte) stringChar;
+                else
+                    writeEscape (stringChar);
+            }
+            else if (stringChar < 0x800)
+            {
+                chunkBytes[chunkPos++] = (byte) (0xC0 | stringChar >> 6);
+                chunkBytes[chunkPos++] = (byte) (0x80 | stringChar & 0x3F);
+            }
+            else if (Character.isHighSurrogate (stringChar) && i + 1 < stringLength && Character.isLowSurrogate (stringValue.charAt (i + 1)))
+            {
+                int codePoint = Character.toCodePoint (stringChar, stringValue.charAt (++i));
+                chunkBytes[chunkPos++] = (byte) (0xF0 | codePoint >> 18);
+                chunkBytes[chunkPos++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                chunkBytes[chunkPos++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                chunkBytes[chunkPos++] = (byte) (0x80 | codePoint & 0x3F);
+            }
+            else if (Character.isSurrogate (stringChar))
+            {
+                // A lone surrogate has no UTF-8 encoding
+                chunkBytes[chunkPos++] = '?';
+            }
+            else
+            {
+                chunkBytes[chunkPos++] = (byte) (0xE0 | stringChar >> 12);
+                chunkBytes[chunkPos++] = (byte) (0x80 | stringChar >> 6 & 0x3F);
+                chunkBytes[chunkPos++] = (byte) (0x80 | stringChar & 0x3F);
+            }
+        }
+        ensure (1);
+        chunkBytes[chunkPos++] = '"';
+    }
+
+    private void writeEscape (char escapeChar)
+    {
+        chunkBytes[chunkPos++] = '\\';
+        switch (escapeChar)
+        {
+            case '"':
+            case '\\':
+                chunkBytes[chunkPos++] = (byte) escapeChar;
+                break;
+            case '\n':
+                chunkBytes[chunkPos++] = 'n';
+                break;
+            case '\r':
+                chunkBytes[chunkPos++] = 'r';
+                break;
+            case '\t':
+                chunkBytes[chunkPos++] = 't';
+                break;
+            default:
+                chunkBytes[chunkPos++] = 'u';
+                chunkBytes[chunkPos++] = '0';
+                chunkBytes[chunkPos++] = '0';
+                chunkBytes[chunkPos++] = HEX_DIGITS[escapeChar >> 4];
+                chunkBytes[chunkPos++] = HEX_DIGITS[escapeChar & 0xF];
+        }
+    }
+
+    private void writeBytes (byte[] srcBytes) throws IOException
+    {
+        int srcPos = 0;
+        while (srcPos < srcBytes.length)
+        {
+            ensure (1);
+            int copyLength = Math.min (srcBytes.length - srcPos, chunkBytes.length - chunkPos);
+            System.arraycopy (srcBytes, srcPos, chunkBytes, chunkPos, copyLength);
+            chunkPos += copyLength;
+            srcPos += copyLength;
+        }
+    }
+
+    // Make room for a token of up to byteCount bytes, moving on to a new buffer if this one is too full
+    private void ensure (int byteCount) throws IOException
+    {
+        if (chunkPos + byteCount <= chunkBytes.length)
+            return;
+        chunkBuffer.position (chunkPos);
+        if (httpResponse.isStreaming ())
+        {
+            writeChunk (chunkBuffer);
+            chunkPool.release (chunkBuffer);
+        }
+        else
+        {
+            heldChunks.add (chunkBuffer);
+            if ((heldChunks.size () + 1) * CHUNK_SIZE > streamThreshold)
+                startStreaming ();
+        }
+        nextChunk ();
+    }
+
+    // The document has outgrown the threshold: send the headers and everything held so far
+    private void startStreaming () throws IOException
+    {
+        httpResponse.commitChunkedHeaders (true);
+        for (ByteBuffer heldChunk : heldChunks)
+        {
+            writeChunk (heldChunk);
+            chunkPool.release (heldChunk);
+        }
+        heldChunks.clear ();
+    }
+
+    private void writeChunk (ByteBuffer filledChunk) throws IOException
+    {
+        if (filledChunk == chunkBuffer)
+            filledChunk.position (chunkPos);
+        filledChunk.flip ();
+        httpResponse.writeChunk (filledChunk);
+    }
+
+    private void nextChunk ()
+    {
+        chunkBuffer = chunkPool.acquire ();
+        chunkBytes = chunkBuffer.array ();
+        chunkPos = 0;
+    }
+}
@@ -0,0 +1,21 @@
+package nio.api;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Registers a NioWebApp at build time. The annotation processor generates a WebAppFactory for every annotated
+ * class, so the server can create and call the app directly instead of finding it by reflection. The value is
+ * the path the app is served under, e.g. {@code @WebApp ("/SimpleApp1")}. Only the first path segment is used
+ * for routing.
+ */
+@Documented
+@Retention (RetentionPolicy.CLASS)
+@Target (ElementType.TYPE)
+public @interface WebApp
+{
+    String value ();
+}
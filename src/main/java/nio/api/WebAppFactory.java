@@ -0,0 +1,20 @@
+package nio.api;
+
+/**
+ * Creates one registered NioWebApp. Implementations are generated at build time for every class annotated
+ * with WebApp and listed in META-INF/services/nio.api.WebAppFactory.
+ */
+public interface WebAppFactory
+{
+    /**
+     * The path from the WebApp annotation
+     */
+    String getPath ();
+
+    Class <? extends NioWebApp> getAppClass ();
+
+    /**
+     * A new, not yet started, instance of the app
+     */
+    NioWebApp newInstance ();
+}
@@ -0,0 +1,48 @@
+package nio.api;
+
+import nio.websocket.WebSocketConnection;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * One side of an open WebSocket connection, as seen by a WebSocketHandler. Messages may be sent from any thread.
+ * From the connection's own event loop they are written right away; from anywhere else they are queued to that
+ * loop, so frames are never interleaved. Sending never blocks: whatever a slow client has yet to take waits in the
+ * connection's queue, up to the server's limit, past which the client is dropped. A failed write closes the
+ * connection.
+ */
+public interface WebSocket
+{
+    void sendText (String textMessage);
+
+    void sendBinary (ByteBuffer binaryMessage);
+
+    /**
+     * Start the closing handshake. Nothing more can be sent, and the connection closes once the peer answers.
+     */
+    void close (int statusCode, String closeReason);
+
+    boolean isOpen ();
+
+    /**
+     * Application state for this connection
+     */
+    Object getAttachment ();
+
+    void setAttachment (Object attachment);
+
+    /**
+     * Send one text message to many connections. The frame is encoded once and every connection writes the same
+     * bytes. Returns the number of connections it was sent to.
+     */
+    static int broadcast (Collection <? extends WebSocket> webSockets, String textMessage)
+    {
+        return WebSocketConnection.broadcast (webSockets, WebSocketConnection.encodeText (textMessage));
+    }
+
+    static int broadcast (Collection <? extends WebSocket> webSockets, ByteBuffer binaryMessage)
+    {
+        return WebSocketConnection.broadcast (webSockets, WebSocketConnection.encodeFrame (WebSocketConnection.OPCODE_BINARY, binaryMessage));
+    }
+}
@@ -0,0 +1,37 @@
+package nio.api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented, alongside NioWebApp, by apps that accept WebSocket connections. A GET to the app that asks to
+ * upgrade to WebSocket is answered by the server and never reaches service (); every other request still does.
+ *
+ * Callbacks for a connection are made one at a time, on the thread that reads it: its event loop for NioWebServer
+ * and NioCoreWebServer, or a worker for NioPooledWebServer. They should not block. Fragmented messages are
+ * delivered once, whole, and control frames (ping, pong and close) are answered by the server.
+ */
+public interface WebSocketHandler
+{
+    /**
+     * A connection has completed its handshake. httpRequest is the upgrade request.
+     */
+    void onOpen (WebSocket webSocket, HttpRequest httpRequest) throws IOException;
+
+    void onText (WebSocket webSocket, String textMessage) throws IOException;
+
+    /**
+     * A binary message. The buffer may be a view of a pooled read buffer, so it is only valid until this returns.
+     */
+    default void onBinary (WebSocket webSocket, ByteBuffer binaryMessage) throws IOException
+    {
+    }
+
+    /**
+     * Called once when the connection closes, with the code from the close frame, 1005 if it had none, or 1006
+     * if the connection dropped without one
+     */
+    default void onClose (WebSocket webSocket, int statusCode, String closeReason)
+    {
+    }
+}
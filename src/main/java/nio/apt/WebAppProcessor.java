@@ -0,0 +1,188 @@
+package nio.apt;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Annotation processor for nio.api.WebApp. For every annotated class it generates a WebAppFactory that creates
+ * the app with a plain constructor call, and once all rounds are done it writes:
+ *
+ * - META-INF/services/nio.api.WebAppFactory, the registry the server loads its routes from
+ * - META-INF/native-image/nio/webapps/reflect-config.json, so a GraalVM native image keeps the app classes
+ *   available to the reflective fallback
+ * - META-INF/nio/webapps.classlist, the app and factory classes in class list format, to add to an AppCDS
+ *   archive (-XX:SharedClassListFile) so they are loaded from the archive at startup
+ *
+ * The processor is registered through META-INF/services/javax.annotation.processing.Processor, so any
+ * compilation with this project on its classpath picks it up.
+ */
+@SupportedAnnotationTypes ("nio.api.WebApp")
+public class WebAppProcessor extends AbstractProcessor
+{
+    private static final String WEB_APP = "nio.api.WebApp";
+    private static final String NIO_WEB_APP = "nio.api.NioWebApp";
+    private static final String FACTORY_SUFFIX = "_WebAppFactory";
+
+    // App binary name to factory binary name, sorted so the generated files are reproducible
+    private final TreeMap <String, String> appFactories = new TreeMap <> ();
+
+    public SourceVersion getSupportedSourceVersion ()
+    {
+        return SourceVersion.latestSupported ();
+    }
+
+    public boolean process (Set <? extends TypeElement> annotations, RoundEnvironment roundEnv)
+    {
+        if (roundEnv.processingOver ())
+        {
+            if (!appFactories.isEmpty ())
+                writeRegistry ();
+            return false;
+        }
+
+        TypeElement webAppAnnotation = processingEnv.getElementUtils ().getTypeElement (WEB_APP);
+        if (webAppAnnotation == null)
+            return false;
+        for (Element annotatedElement : roundEnv.getElementsAnnotatedWith (webAppAnnotation))
+        {
+            if (isValidApp (annotatedElement))
+                writeFactory ((TypeElement) annotatedElement);
+        }
+        return true;
+    }
+
+    private boolean isValidApp (Element annotatedElement)
+    {
+        Messager messager = processingEnv.getMessager ();
+        if (annotatedElement.getKind () != ElementKind.CLASS)
+        {
+            messager.printMessage (Diagnostic.Kind.ERROR, "@WebApp only applies to classes", annotatedElement);
+            return false;
+        }
+        Set <Modifier> modifiers = annotatedElement.getModifiers ();
+        if (!modifiers.contains (Modifier.PUBLIC) || modifiers.contains (Modifier.ABSTRACT)
+            || (annotatedElement.getEnclosingElement ().getKind () != ElementKind.PACKAGE && !modifiers.contains (Modifier.STATIC)))
+        {
+            messager.printMessage (Diagnostic.Kind.ERROR, "@WebApp classes must be public, concrete and top level or static", annotatedElement);
+            return false;
+        }
+        TypeMirror nioWebApp = processingEnv.getElementUtils ().getTypeElement (NIO_WEB_APP).asType ();
+        if (!processingEnv.getTypeUtils ().isAssignable (annotatedElement.asType (), nioWebApp))
+        {
+            messager.printMessage (Diagnostic.Kind.ERROR, "@WebApp classes must implement " + NIO_WEB_APP, annotatedElement);
+            return false;
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn (annotatedElement.getEnclosedElements ()))
+        {
+            if (constructor.getParameters ().isEmpty () && constructor.getModifiers ().contains (Modifier.PUBLIC))
+                return true;
+        }
+        messager.printMessage (Diagnostic.Kind.ERROR, "@WebApp classes need a public no-argument constructor", annotatedElement);
+        return false;
+    }
+
+    private void writeFactory (TypeElement appElement)
+    {
+        PackageElement packageElement = processingEnv.getElementUtils ().getPackageOf (appElement);
+        String packageName = packageElement.isUnnamed () ? "" : packageElement.getQualifiedName ().toString ();
+        String appBinaryName = processingEnv.getElementUtils ().getBinaryName (appElement).toString ();
+        String appCanonicalName = appElement.getQualifiedName ().toString ();
+        String factorySimpleName = appBinaryName.substring (packageName.isEmpty () ? 0 : packageName.length () + 1).replace ('$', '_') + FACTORY_SUFFIX;
+        String factoryName = packageName.isEmpty () ? factorySimpleName : packageName + "." + factorySimpleName;
+        String appPath = getAppPath (appElement);
+
+        StringBuilder factorySource = new StringBuilder ();
+        if (!packageName.isEmpty ())
+            factorySource.append ("package ").append (packageName).append (";\n\n");
+        factorySource.append ("/**\n * Generated by ").append (WebAppProcessor.class.getName ()).append (" for ").append (appCanonicalName).append ("\n */\n")
+            .append ("public final class ").append (factorySimpleName).append (" implements nio.api.WebAppFactory\n{\n")
+            .append ("    public String getPath ()\n    {\n        return \"").append (escapeJava (appPath)).append ("\";\n    }\n\n")
+            .append ("    public Class <? extends nio.api.NioWebApp> getAppClass ()\n    {\n        return ").append (appCanonicalName).append (".class;\n    }\n\n")
+            .append ("    public nio.api.NioWebApp newInstance ()\n    {\n        return new ").append (appCanonicalName).append (" ();\n    }\n}\n");
+
+        try (Writer sourceWriter = processingEnv.getFiler ().createSourceFile (factoryName, appElement).openWriter ())
+        {
+            sourceWriter.write (factorySource.toString ());
+            appFactories.put (appBinaryName, factoryName);
+        }
+        catch (IOException e)
+        {
+            processingEnv.getMessager ().printMessage (Diagnostic.Kind.ERROR, "Cannot write " + factoryName + ": " + e, appElement);
+        }
+    }
+
+    private String getAppPath (TypeElement appElement)
+    {
+        // Read the value without loading the annotation class into the compiler's class loader
+        return appElement.getAnnotationMirrors ().stream ()
+            .filter (annotationMirror -> annotationMirror.getAnnotationType ().toString ().equals (WEB_APP))
+            .flatMap (annotationMirror -> annotationMirror.getElementValues ().values ().stream ())
+            .map (annotationValue -> annotationValue.getValue ().toString ())
+            .findFirst ()
+            .orElse ("/" + appElement.getSimpleName ());
+    }
+
+    private void writeRegistry ()
+    {
+        StringBuilder servicesFile = new StringBuilder ();
+        StringBuilder reflectConfig = new StringBuilder ("[\n");
+        StringBuilder classList = new StringBuilder ();
+        for (String appName : appFactories.keySet ())
+        {
+            String factoryName = appFactories.get (appName);
+            servicesFile.append (factoryName).append ('\n');
+            if (reflectConfig.length () > 2)
+                reflectConfig.append (",\n");
+            reflectConfig.append ("  { \"name\": \"").append (appName).append ("\", \"methods\": [ { \"name\": \"<init>\", \"parameterTypes\": [] } ] },\n")
+                .append ("  { \"name\": \"").append (factoryName).append ("\", \"methods\": [ { \"name\": \"<init>\", \"parameterTypes\": [] } ] }");
+            classList.append (appName.replace ('.', '/')).append ('\n')
+                .append (factoryName.replace ('.', '/')).append ('\n');
+        }
+        reflectConfig.append ("\n]\n");
+
+        writeResource ("META-INF/services/nio.api.WebAppFactory", servicesFile.toString ());
+        writeResource ("META-INF/native-image/nio/webapps/reflect-config.json", reflectConfig.toString ());
+        writeResource ("META-INF/nio/webapps.classlist", classList.toString ());
+    }
+
+    private void writeResource (String resourceName, String resourceContent)
+    {
+        Filer filer = processingEnv.getFiler ();
+        try
+        {
+            FileObject resourceFile = filer.createResource (StandardLocation.CLASS_OUTPUT, "", resourceName);
+            try (Writer resourceWriter = resourceFile.openWriter ())
+            {
+                resourceWriter.write (resourceContent);
+            }
+        }
+        catch (IOException e)
+        {
+            processingEnv.getMessager ().printMessage (Diagnostic.Kind.ERROR, "Cannot write " + resourceName + ": " + e);
+        }
+    }
+
+    private static String escapeJava (String inString)
+    {
+        return inString.replace ("\\", "\\\\").replace ("\"", "\\\"");
+    }
+}
@@ -0,0 +1,137 @@
+package nio.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the requests of a TrafficJournal back in the order they were captured, one segment at a time, each mapped
+ * into memory as it is reached. Call next () to move to each request in turn.
+ */
+public class JournalReader implements Closeable
+{
+    private final List <Path> segmentPaths;
+    private int segmentIndex;
+    private MappedByteBuffer segmentBuffer;
+    private long startMillis;
+    private long captureNanos;
+    private int connectionId;
+    private byte[] requestBytes;
+
+    public JournalReader (Path journalPath) throws IOException
+    {
+        segmentPaths = listSegments (journalPath);
+    }
+
+    /**
+     * The segments of the journal at journalPath that exist, oldest first
+     */
+    public static List <Path> listSegments (Path journalPath) throws IOException
+    {
+        Path journalDir = journalPath.toAbsolutePath ().getParent ();
+        List <Path> segmentPaths = new ArrayList <> ();
+        if (!Files.isDirectory (journalDir))
+            return segmentPaths;
+        Pattern segmentName = Pattern.compile (Pattern.quote (journalPath.getFileName ().toString ()) + "\\.\\d{6,}");
+        try (DirectoryStream <Path> dirStream = Files.newDirectoryStream (journalDir))
+        {
+            for (Path dirEntry : dirStream)
+            {
+                if (segmentName.matcher (dirEntry.getFileName ().toString ()).matches ())
+                    segmentPaths.add (dirEntry);
+            }
+        }
+        // Numbers are padded, but may outgrow the padding
+        segmentPaths.sort ((firstPath, secondPath) -> {
+            String firstName = firstPath.getFileName ().toString ();
+            String secondName = secondPath.getFileName ().toString ();
+            return firstName.length () != secondName.length () ? firstName.length () - secondName.length () : firstName.compareTo (secondName);
+        });
+        return segmentPaths;
+    }
+
+    /**
+     * Move to the next request. Returns false once there are no more.
+     */
+    public boolean next () throws IOException
+    {
+        while (true)
+        {
+            if (segmentBuffer != null && segmentBuffer.remaining () >= TrafficJournal.RECORD_HEADER)
+            {
+                int recordLength = segmentBuffer.getInt ();
+                if (recordLength > 0 && recordLength <= segmentBuffer.remaining () - (TrafficJournal.RECORD_HEADER - 4))
+                {
+                    captureNanos = segmentBuffer.getLong ();
+                    connectionId = segmentBuffer.getInt ();
+                    requestBytes = new byte[recordLength];
+                    segmentBuffer.get (requestBytes);
+                    return true;
+                }
+            }
+            if (segmentIndex == segmentPaths.size ())
+            {
+                segmentBuffer = null;
+                return false;
+            }
+            openSegment (segmentPaths.get (segmentIndex++));
+        }
+    }
+
+    private void openSegment (Path segmentPath) throws IOException
+    {
+        try (FileChannel segmentChannel = FileChannel.open (segmentPath, StandardOpenOption.READ))
+        {
+            segmentBuffer = segmentChannel.map (FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size ());
+        }
+        if (segmentBuffer.remaining () < TrafficJournal.SEGMENT_HEADER || segmentBuffer.getInt () != TrafficJournal.MAGIC)
+            throw new IOException (segmentPath + " is not a journal segment");
+        int segmentVersion = segmentBuffer.getInt ();
+        if (segmentVersion != TrafficJournal.VERSION)
+            throw new IOException (segmentPath + " is journal version " + segmentVersion + ", not " + TrafficJournal.VERSION);
+        startMillis = segmentBuffer.getLong ();
+    }
+
+    /**
+     * The wall clock time the capture started, in epoch milliseconds
+     */
+    public long getStartMillis ()
+    {
+        return startMillis;
+    }
+
+    /**
+     * When the current request was captured, in nanoseconds since the capture started
+     */
+    public long getCaptureNanos ()
+    {
+        return captureNanos;
+    }
+
+    public int getConnectionId ()
+    {
+        return connectionId;
+    }
+
+    /**
+     * The current request, exactly as it was read
+     */
+    public byte[] getRequestBytes ()
+    {
+        return requestBytes;
+    }
+
+    public void close ()
+    {
+        segmentBuffer = null;
+        segmentIndex = segmentPaths.size ();
+    }
+}
@@ -0,0 +1,115 @@
+package nio.capture;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a replay measured: how many requests were sent and answered, by status, and the distribution of their
+ * latencies. A request's latency runs from the time it was due to be sent, not the time it was, so a replay
+ * that falls behind its schedule shows up as latency instead of hiding it.
+ */
+public class ReplayReport
+{
+    private final double replaySpeed;
+    private long[] latencyNanos = new long[1024];
+    private int latencyCount;
+    private final Map <Integer, Long> statusCounts = new TreeMap <> ();
+    private long errorCount;
+    private long skippedCount;
+    private long elapsedNanos;
+
+    ReplayReport (double replaySpeed)
+    {
+        this.replaySpeed = replaySpeed;
+    }
+
+    // Called as responses arrive, from the client's loop or the replaying thread
+    synchronized void addResponse (int statusCode, long requestNanos)
+    {
+        if (latencyCount == latencyNanos.length)
+            latencyNanos = Arrays.copyOf (latencyNanos, latencyCount * 2);
+        latencyNanos[latencyCount++] = requestNanos;
+        statusCounts.merge (statusCode, 1L, Long::sum);
+    }
+
+    synchronized void addError ()
+    {
+        errorCount++;
+    }
+
+    synchronized void addSkipped ()
+    {
+        skippedCount++;
+    }
+
+    synchronized void finish (long elapsedNanos)
+    {
+        this.elapsedNanos = elapsedNanos;
+        Arrays.sort (latencyNanos, 0, latencyCount);
+    }
+
+    /**
+     * Requests answered with a response
+     */
+    public synchronized int getResponses ()
+    {
+        return latencyCount;
+    }
+
+    /**
+     * Requests that failed, timed out or lost their connection
+     */
+    public synchronized long getErrors ()
+    {
+        return errorCount;
+    }
+
+    /**
+     * Captured requests that could not be replayed, as they were not HTTP/1.1 requests a client can send
+     */
+    public synchronized long getSkipped ()
+    {
+        return skippedCount;
+    }
+
+    /**
+     * Responses with the given status
+     */
+    public synchronized long getStatusCount (int statusCode)
+    {
+        Long statusCount = statusCounts.get (statusCode);
+        return statusCount == null ? 0 : statusCount;
+    }
+
+    /**
+     * The latency under which the given percentage of responses arrived, in microseconds, or 0 if there were none
+     */
+    public synchronized long getLatencyMicros (double percentile)
+    {
+        if (latencyCount == 0)
+            return 0;
+        int latencyIndex = (int) Math.ceil (percentile / 100 * latencyCount) - 1;
+        return TimeUnit.NANOSECONDS.toMicros (latencyNanos[Math.max (0, Math.min (latencyCount - 1, latencyIndex))]);
+    }
+
+    public synchronized long getElapsedMillis ()
+    {
+        return TimeUnit.NANOSECONDS.toMillis (elapsedNanos);
+    }
+
+    public synchronized String toString ()
+    {
+        StringBuilder reportText = new StringBuilder ();
+        reportText.append ("Replayed ").append (latencyCount + errorCount).append (" requests in ").append (getElapsedMillis ()).append (" ms at ")
+                  .append (replaySpeed > 0 ? replaySpeed + "x speed" : "full speed").append (", ").append (errorCount).append (" errors, ")
+                  .append (skippedCount).append (" skipped\n");
+        reportText.append ("Latency (us): p50 ").append (getLatencyMicros (50)).append (", p90 ").append (getLatencyMicros (90)).append (", p99 ")
+                  .append (getLatencyMicros (99)).append (", p99.9 ").append (getLatencyMicros (99.9)).append (", max ").append (getLatencyMicros (100)).append ('\n');
+        reportText.append ("Status:");
+        for (Map.Entry <Integer, Long> statusCount : statusCounts.entrySet ())
+            reportText.append (' ').append (statusCount.getKey ()).append ('=').append (statusCount.getValue ());
+        return reportText.append ('\n').toString ();
+    }
+}
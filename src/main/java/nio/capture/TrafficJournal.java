@@ -0,0 +1,247 @@
+package nio.capture;
+
+import nio.log.Log;
+import nio.util.RecordRing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A capture of the raw requests a server receives, for replaying later with TrafficReplay. Like AccessLog it costs
+ * the request path little: request threads claim a slot of a bounded ring with one compare-and-set and copy the
+ * request's bytes into it, and never block or touch the file. A single background thread appends the records to
+ * the current segment, a file of segmentBytes mapped into memory, and moves on to a new segment when it is full.
+ * Only the newest maxSegments segments are kept.
+ *
+ * A journal at traffic.journal is the segments traffic.journal.000001, traffic.journal.000002 and so on, in order.
+ * Each starts with a header (the MAGIC number, the VERSION and the wall clock time the capture started) and is
+ * followed by records: the request's length, the nanoseconds since the capture started, the connection ID (from
+ * ConnectionIds, as in the server's Flight Recorder events) and the request's bytes. A length of 0, or the end of the
+ * segment, ends it. The length is written last, so a record is never read half written.
+ *
+ * When the ring is full the request is dropped and counted rather than making it wait (see getDropped), as are
+ * requests too big for a segment.
+ */
+public class TrafficJournal implements Closeable
+{
+    public static final int MAGIC = 0x4E494F4A;    // NIOJ
+    public static final int VERSION = 1;
+    static final int SEGMENT_HEADER = 16;
+    static final int RECORD_HEADER = 16;
+    static final String SEGMENT_FORMAT = "%s.%06d";
+    private static final int MIN_SEGMENT_BYTES = 4096;
+    private static final long IDLE_PARK_NANOS = 1000000;
+
+    // The ring, and each slot's record
+    private final RecordRing recordRing;
+    private final long[] captureNanos;
+    private final int[] connectionIds;
+    private final byte[][] requestBytes;
+
+    private final AtomicLong droppedCount = new AtomicLong ();
+    private final AtomicLong capturedCount = new AtomicLong ();
+    private final Path journalPath;
+    private final int segmentBytes;
+    private final long startMillis = System.currentTimeMillis ();
+    private final long startNanos = System.nanoTime ();
+    private volatile int maxSegments = 8;
+    private volatile boolean closed;
+
+    // Writer thread only
+    private final Thread writerThread;
+    private MappedByteBuffer segmentBuffer;
+    private int segmentNumber;
+
+    /**
+     * Start a new journal at journalPath, deleting the segments of any earlier one there, with segments of
+     * segmentBytes and a ring holding capacity requests, rounded up to a power of two
+     */
+    public TrafficJournal (Path journalPath, int segmentBytes, int capacity) throws IOException
+    {
+        if (segmentBytes < MIN_SEGMENT_BYTES)
+            throw new IllegalArgumentException ("A segment must have at least " + MIN_SEGMENT_BYTES + " bytes");
+        this.journalPath = journalPath;
+        this.segmentBytes = segmentBytes;
+        recordRing = new RecordRing (capacity);
+        int ringSize = recordRing.getSize ();
+        captureNanos = new long[ringSize];
+        connectionIds = new int[ringSize];
+        requestBytes = new byte[ringSize][];
+
+        for (Path segmentPath : JournalReader.listSegments (journalPath))
+            Files.delete (segmentPath);
+        nextSegment ();
+        writerThread = new Thread (this::writeRecords, "TrafficJournalWriter");
+        writerThread.setDaemon (true);
+        writerThread.start ();
+    }
+
+    /**
+     * Capture one complete request as it was read from the connection. Never blocks: returns false, and counts
+     * the request as dropped, if the ring is full.
+     */
+    public boolean capture (int connectionId, byte[] reqBytes, int reqStart, int reqLength)
+    {
+        if (closed)
+            return false;
+        long claimedSequence = recordRing.claim ();
+        if (claimedSequence < 0)
+        {
+            droppedCount.incrementAndGet ();
+            return false;
+        }
+
+        int slot = recordRing.getSlot (claimedSequence);
+        captureNanos[slot] = System.nanoTime () - startNanos;
+        connectionIds[slot] = connectionId;
+        requestBytes[slot] = Arrays.copyOfRange (reqBytes, reqStart, reqStart + reqLength);
+        recordRing.publish (claimedSequence);
+        return true;
+    }
+
+    /**
+     * Requests dropped because the ring was full, they did not fit in a segment or a segment could not be written
+     */
+    public long getDropped ()
+    {
+        return droppedCount.get ();
+    }
+
+    /**
+     * Requests written to the journal so far
+     */
+    public long getCaptured ()
+    {
+        return capturedCount.get ();
+    }
+
+    public Path getJournalPath ()
+    {
+        return journalPath;
+    }
+
+    public int getMaxSegments ()
+    {
+        return maxSegments;
+    }
+
+    /**
+     * How many segments to keep, the oldest being deleted as a new one is started. Defaults to 8; 0 keeps them all.
+     */
+    public void setMaxSegments (int maxSegments)
+    {
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Write every request captured so far, then stop. Requests captured afterwards are ignored.
+     */
+    public void close () throws IOException
+    {
+        closed = true;
+        LockSupport.unpark (writerThread);
+        try
+        {
+            writerThread.join ();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread ().interrupt ();
+        }
+    }
+
+    // The writer thread: drain the ring into the mapped segment, flushing it to the file whenever the ring runs dry
+    private void writeRecords ()
+    {
+        boolean unflushed = false;
+        while (true)
+        {
+            // Read before draining, so everything captured before close () is written
+            boolean wasClosed = closed;
+            if (drainRing () > 0)
+            {
+                unflushed = true;
+                continue;
+            }
+            if (unflushed && segmentBuffer != null)
+                segmentBuffer.force ();
+            unflushed = false;
+            if (wasClosed)
+                break;
+            LockSupport.parkNanos (IDLE_PARK_NANOS);
+        }
+    }
+
+    private int drainRing ()
+    {
+        int recordsDrained = 0;
+        int slot;
+        while ((slot = recordRing.peek ()) >= 0)
+        {
+            writeRecord (captureNanos[slot], connectionIds[slot], requestBytes[slot]);
+            requestBytes[slot] = null;
+            recordRing.release ();
+            recordsDrained++;
+        }
+        return recordsDrained;
+    }
+
+    private void writeRecord (long recordNanos, int connectionId, byte[] recordBytes)
+    {
+        int recordLength = RECORD_HEADER + recordBytes.length;
+        if (recordLength > segmentBytes - SEGMENT_HEADER)
+        {
+            droppedCount.incrementAndGet ();
+            return;
+        }
+        try
+        {
+            if (segmentBuffer == null || segmentBuffer.remaining () < recordLength)
+                nextSegment ();
+        }
+        catch (IOException e)
+        {
+            segmentBuffer = null;
+            droppedCount.incrementAndGet ();
+            Log.warn ("Cannot start journal segment " + segmentNumber + " of " + journalPath + ": " + e);
+            return;
+        }
+        int recordStart = segmentBuffer.position ();
+        segmentBuffer.position (recordStart + 4);
+        segmentBuffer.putLong (recordNanos).putInt (connectionId).put (recordBytes);
+        segmentBuffer.putInt (recordStart, recordBytes.length);
+        capturedCount.incrementAndGet ();
+    }
+
+    // Map the next segment, write its header and delete the oldest segment if there are too many
+    private void nextSegment () throws IOException
+    {
+        if (segmentBuffer != null)
+            segmentBuffer.force ();
+        segmentNumber++;
+        Path segmentPath = getSegmentPath (segmentNumber);
+        try (FileChannel segmentChannel = FileChannel.open (segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                                            StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            // The mapping stays valid once the channel is closed
+            segmentBuffer = segmentChannel.map (FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        segmentBuffer.putInt (MAGIC).putInt (VERSION).putLong (startMillis);
+        int keepSegments = maxSegments;
+        if (keepSegments > 0 && segmentNumber > keepSegments)
+            Files.deleteIfExists (getSegmentPath (segmentNumber - keepSegments));
+    }
+
+    private Path getSegmentPath (int segmentNumber)
+    {
+        return journalPath.resolveSibling (String.format (SEGMENT_FORMAT, journalPath.getFileName (), segmentNumber));
+    }
+}
@@ -0,0 +1,202 @@
+package nio.capture;
+
+import nio.NioWebServer;
+import nio.client.ClientRequest;
+import nio.client.NioHttpClient;
+import nio.log.Log;
+import nio.util.EventLoop;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a TrafficJournal against a server, keeping the captured timing between requests, or scaling it, and
+ * reports the latencies seen (see ReplayReport). Requests are sent by a NioHttpClient on a loop of the replay's
+ * own, so one thread keeps to the schedule however slowly the server answers. The captured request line, headers
+ * and body are sent as they were, but over the client's pooled connections rather than the captured ones, with
+ * Host and the connection headers set by the client.
+ *
+ * From the command line: java nio.capture.TrafficReplay journalPath host port [speed]
+ */
+public class TrafficReplay
+{
+    private final Path journalPath;
+    private double replaySpeed = 1;
+    private int maxConnections = 64;
+    private long requestTimeoutMillis = 30000;
+    private EventLoop clientLoop;
+
+    public TrafficReplay (Path journalPath)
+    {
+        this.journalPath = journalPath;
+    }
+
+    public static void main (String[] args) throws IOException, InterruptedException
+    {
+        if (args.length < 3)
+        {
+            System.err.println ("Usage: java nio.capture.TrafficReplay journalPath host port [speed]");
+            System.exit (1);
+        }
+        TrafficReplay trafficReplay = new TrafficReplay (Paths.get (args[0]));
+        if (args.length > 3)
+            trafficReplay.setSpeed (Double.parseDouble (args[3]));
+        System.out.print (trafficReplay.replay (args[1], Integer.parseInt (args[2])));
+    }
+
+    public double getSpeed ()
+    {
+        return replaySpeed;
+    }
+
+    /**
+     * How fast to replay: 1, the default, keeps the captured timing, 2 sends requests twice as fast, and 0 sends
+     * them all as fast as the client can
+     */
+    public void setSpeed (double replaySpeed)
+    {
+        if (replaySpeed < 0)
+            throw new IllegalArgumentException ("The speed cannot be negative");
+        this.replaySpeed = replaySpeed;
+    }
+
+    public int getMaxConnections ()
+    {
+        return maxConnections;
+    }
+
+    /**
+     * The most connections opened to the server at once. Defaults to 64.
+     */
+    public void setMaxConnections (int maxConnections)
+    {
+        this.maxConnections = maxConnections;
+    }
+
+    public long getRequestTimeoutMillis ()
+    {
+        return requestTimeoutMillis;
+    }
+
+    public void setRequestTimeoutMillis (long requestTimeoutMillis)
+    {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    /**
+     * Replay the whole journal against the server at host and port, and wait for every response
+     */
+    public ReplayReport replay (String targetHost, int targetPort) throws IOException, InterruptedException
+    {
+        NioHttpClient httpClient = new NioHttpClient (getClientLoop ());
+        httpClient.setMaxConnectionsPerHost (maxConnections);
+        httpClient.setRequestTimeoutMillis (requestTimeoutMillis);
+        String targetUrl = "http://" + targetHost + ":" + targetPort;
+        ReplayReport replayReport = new ReplayReport (replaySpeed);
+        Semaphore completedRequests = new Semaphore (0);
+        int sentCount = 0;
+        long replayStart = System.nanoTime ();
+        long firstCaptureNanos = -1;
+        try (JournalReader journalReader = new JournalReader (journalPath))
+        {
+            while (journalReader.next ())
+            {
+                ClientRequest clientRequest = toClientRequest (targetUrl, journalReader.getRequestBytes ());
+                if (clientRequest == null)
+                {
+                    replayReport.addSkipped ();
+                    continue;
+                }
+                if (firstCaptureNanos < 0)
+                    firstCaptureNanos = journalReader.getCaptureNanos ();
+                long dueNanos = System.nanoTime ();
+                if (replaySpeed > 0)
+                {
+                    dueNanos = replayStart + (long) ((journalReader.getCaptureNanos () - firstCaptureNanos) / replaySpeed);
+                    long waitNanos;
+                    while ((waitNanos = dueNanos - System.nanoTime ()) > 0)
+                        LockSupport.parkNanos (waitNanos);
+                }
+                long sendNanos = dueNanos;
+                httpClient.send (clientRequest).whenComplete ((clientResponse, failure) -> {
+                    if (failure == null)
+                        replayReport.addResponse (clientResponse.getStatusCode (), System.nanoTime () - sendNanos);
+                    else
+                        replayReport.addError ();
+                    completedRequests.release ();
+                });
+                sentCount++;
+            }
+        }
+        completedRequests.acquire (sentCount);
+        replayReport.finish (System.nanoTime () - replayStart);
+        httpClient.close ();
+        return replayReport;
+    }
+
+    // Started on first use and kept for later replays. Its thread is a daemon, so it never keeps the JVM alive.
+    private synchronized EventLoop getClientLoop ()
+    {
+        if (clientLoop == null)
+        {
+            NioWebServer loopServer = new NioWebServer ();
+            Thread loopThread = new Thread (() -> {
+                try
+                {
+                    loopServer.runEventLoop ();
+                }
+                catch (IOException e)
+                {
+                    Log.warn ("Replay loop failed: " + e);
+                }
+            }, "ReplayLoop");
+            loopThread.setDaemon (true);
+            loopThread.start ();
+            clientLoop = loopServer;
+        }
+        return clientLoop;
+    }
+
+    // The captured request as one for the client to send, or null if it is not an HTTP/1.x request
+    static ClientRequest toClientRequest (String targetUrl, byte[] requestBytes)
+    {
+        String reqText = new String (requestBytes, StandardCharsets.ISO_8859_1);
+        int headerEnd = reqText.indexOf ("\r\n\r\n");
+        if (headerEnd < 0)
+            headerEnd = reqText.length ();
+        String[] headerLines = reqText.substring (0, headerEnd).split ("\r\n");
+        String[] requestLine = headerLines[0].split (" ");
+        if (requestLine.length != 3 || !requestLine[1].startsWith ("/") || !requestLine[2].startsWith ("HTTP/1."))
+            return null;
+        ClientRequest clientRequest;
+        try
+        {
+            clientRequest = new ClientRequest (requestLine[0], targetUrl + requestLine[1]);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+        for (int i = 1; i < headerLines.length; i++)
+        {
+            int colonPos = headerLines[i].indexOf (':');
+            if (colonPos <= 0)
+                continue;
+            String headerName = headerLines[i].substring (0, colonPos).trim ();
+            // The client frames the request and manages the connection itself
+            if (headerName.equalsIgnoreCase ("Host") || headerName.equalsIgnoreCase ("Content-Length") || headerName.equalsIgnoreCase ("Connection")
+                || headerName.equalsIgnoreCase ("Keep-Alive") || headerName.equalsIgnoreCase ("Transfer-Encoding"))
+                continue;
+            clientRequest.addHeader (headerName, headerLines[i].substring (colonPos + 1).trim ());
+        }
+        int bodyStart = Math.min (requestBytes.length, headerEnd + 4);
+        if (bodyStart < requestBytes.length)
+            clientRequest.setBody (Arrays.copyOfRange (requestBytes, bodyStart, requestBytes.length));
+        return clientRequest;
+    }
+}
@@ -0,0 +1,438 @@
+package nio.client;
+
+import nio.util.SelectionHandler;
+import nio.util.TimerQueue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * One keep-alive connection to an upstream host, driven entirely by its event loop. Requests are written in
+ * order without waiting for earlier responses (pipelining), and responses are matched to them in the same
+ * order. Bytes of a response that has not fully arrived are kept in one array, which is dropped once the
+ * connection is idle again.
+ */
+final class ClientConnection implements SelectionHandler
+{
+    private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+    private static final byte[] LINE_END = { '\r', '\n' };
+
+    private final NioHttpClient httpClient;
+    final NioHttpClient.HostPool hostPool;
+    final ArrayDeque <NioHttpClient.PendingRequest> inFlight = new ArrayDeque <> ();
+    private final ArrayDeque <ByteBuffer> writeQueue = new ArrayDeque <> ();
+    private SocketChannel socketChannel;
+    private SelectionKey selectionKey;
+    private boolean connected;
+    private boolean closing;
+    private boolean closed;
+    private int responsesRead;
+    private byte[] readBytes;
+    private int readLength;
+    private ClientResponse parsedResponse;
+    private TimerQueue.Timer connectTimer;
+    private TimerQueue.Timer idleTimer;
+
+    ClientConnection (NioHttpClient httpClient, NioHttpClient.HostPool hostPool)
+    {
+        this.httpClient = httpClient;
+        this.hostPool = hostPool;
+    }
+
+    void connect () throws IOException
+    {
+        // The pool only opens connections once its host has been looked up
+        InetSocketAddress hostAddress = hostPool.hostAddress;
+        socketChannel = SocketChannel.open ();
+        boolean connectDone;
+        try
+        {
+            socketChannel.configureBlocking (false);
+            socketChannel.socket ().setTcpNoDelay (true);
+            connectDone = socketChannel.connect (hostAddress);
+        }
+        catch (IOException e)
+        {
+            socketChannel.close ();
+            throw e;
+        }
+        selectionKey = httpClient.getEventLoop ().register (socketChannel, connectDone ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        if (connectDone)
+            onConnected ();
+        else if (httpClient.getConnectTimeoutMillis () > 0)
+            connectTimer = httpClient.getEventLoop ().schedule (this::onConnectTimeout, httpClient.getConnectTimeoutMillis ());
+    }
+
+    private void onConnectTimeout ()
+    {
+        if (!connected)
+            fail (new ConnectException ("Timed out connecting to " + hostPool.hostKey));
+    }
+
+    /**
+     * True if another request may be sent now: idle, or pipelining safe requests behind a connection that has
+     * shown it keeps alive
+     */
+    boolean canSend (boolean pipelinable, int maxPipelineDepth)
+    {
+        if (closing || closed)
+            return false;
+        if (inFlight.isEmpty ())
+            return true;
+        if (!pipelinable || responsesRead == 0 || inFlight.size () >= maxPipelineDepth)
+            return false;
+        for (NioHttpClient.PendingRequest pendingRequest : inFlight)
+        {
+            if (!pendingRequest.clientRequest.isPipelinable ())
+                return false;
+        }
+        return true;
+    }
+
+    void send (NioHttpClient.PendingRequest pendingRequest)
+    {
+        if (idleTimer != null)
+        {
+            idleTimer.cancel ();
+            idleTimer = null;
+        }
+        pendingRequest.clientConnection = this;
+        inFlight.add (pendingRequest);
+        writeQueue.add (pendingRequest.clientRequest.encode ());
+        if (connected)
+        {
+            try
+            {
+                flushWrites ();
+            }
+            catch (IOException e)
+            {
+                fail (e);
+            }
+        }
+    }
+
+    public void onSelected (SelectionKey selectionKey)
+    {
+        try
+        {
+            if (selectionKey.isConnectable ())
+            {
+                socketChannel.finishConnect ();
+                onConnected ();
+            }
+            if (selectionKey.isValid () && selectionKey.isWritable ())
+                flushWrites ();
+            if (selectionKey.isValid () && selectionKey.isReadable ())
+                readResponses ();
+        }
+        catch (IOException | IllegalStateException e)    // a cancelled key is an IllegalStateException
+        {
+            fail (e instanceof IOException ? (IOException) e : new IOException (e));
+        }
+    }
+
+    private void onConnected () throws IOException
+    {
+        connected = true;
+        if (connectTimer != null)
+            connectTimer.cancel ();
+        selectionKey.interestOps (SelectionKey.OP_READ);
+        flushWrites ();
+    }
+
+    // Write as much as the socket takes, and ask to hear when it will take the rest
+    private void flushWrites () throws IOException
+    {
+        ByteBuffer writeBuffer;
+        while ((writeBuffer = writeQueue.peek ()) != null)
+        {
+            socketChannel.write (writeBuffer);
+            if (writeBuffer.hasRemaining ())
+                break;
+            writeQueue.poll ();
+        }
+        selectionKey.interestOps (writeQueue.isEmpty () ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void readResponses () throws IOException
+    {
+        ByteBuffer readBuffer = httpClient.getBufferPool ().acquire ();
+        boolean endOfStream = false;
+        try
+        {
+            while (true)
+            {
+                int bytesRead = socketChannel.read (readBuffer);
+                if (bytesRead < 0)
+                    endOfStream = true;
+                if (bytesRead <= 0)
+                    break;
+                readBuffer.flip ();
+                appendReadBytes (readBuffer);
+                readBuffer.clear ();
+            }
+        }
+        finally
+        {
+            httpClient.getBufferPool ().release (readBuffer);
+        }
+        parseResponses (endOfStream);
+        if (endOfStream && !closed)
+            fail (new IOException ("Connection closed by " + hostPool.hostKey));
+    }
+
+    private void appendReadBytes (ByteBuffer readBuffer)
+    {
+        int bytesRead = readBuffer.remaining ();
+        if (readBytes == null)
+            readBytes = new byte[Math.max (bytesRead, readBuffer.capacity ())];
+        else if (readLength + bytesRead > readBytes.length)
+            readBytes = Arrays.copyOf (readBytes, Math.max (readLength + bytesRead, 2 * readBytes.length));
+        readBuffer.get (readBytes, readLength, bytesRead);
+        readLength += bytesRead;
+    }
+
+    // Complete every request whose response has fully arrived, in order
+    private void parseResponses (boolean endOfStream) throws IOException
+    {
+        int parseStart = 0;
+        while (!inFlight.isEmpty () && parseStart < readLength)
+        {
+            NioHttpClient.PendingRequest pendingRequest = inFlight.peek ();
+            int responseLength = parseResponse (parseStart, pendingRequest, endOfStream);
+            if (responseLength == 0)
+                break;
+            parseStart += responseLength;
+            if (parsedResponse == null)
+                continue;    // an interim 1xx response
+            inFlight.poll ();
+            responsesRead++;
+            ClientResponse clientResponse = parsedResponse;
+            parsedResponse = null;
+            String connectionHeader = clientResponse.getHeader ("Connection");
+            if (connectionHeader != null ? connectionHeader.equalsIgnoreCase ("close") : !"HTTP/1.1".equals (clientResponse.getHttpVersion ()))
+                closing = true;
+            httpClient.complete (pendingRequest, clientResponse);
+        }
+
+        // Keep only what belongs to the next response
+        if (parseStart >= readLength)
+        {
+            readBytes = null;
+            readLength = 0;
+        }
+        else if (parseStart > 0)
+        {
+            readBytes = Arrays.copyOfRange (readBytes, parseStart, readLength);
+            readLength = readBytes.length;
+        }
+
+        if (closing && !closed)
+        {
+            // The server will take no more requests on this connection. Those pipelined behind are sent again.
+            close ();
+            httpClient.requeue (this, false, null);
+        }
+        else if (!closed)
+        {
+            if (inFlight.isEmpty () && idleTimer == null)
+                idleTimer = httpClient.getEventLoop ().schedule (this::closeIfIdle, httpClient.getKeepAliveMillis ());
+            // Room for queued requests, now that some have been answered
+            httpClient.sendWaiting (hostPool);
+        }
+    }
+
+    // Length of the complete response at parseStart, or 0 if it has not all arrived. Sets parsedResponse.
+    private int parseResponse (int parseStart, NioHttpClient.PendingRequest pendingRequest, boolean endOfStream) throws IOException
+    {
+        int headerEnd = indexOf (HEADER_END, parseStart);
+        if (headerEnd < 0)
+            return 0;
+        String[] headerLines = new String (readBytes, parseStart, headerEnd - parseStart, StandardCharsets.ISO_8859_1).split ("\r\n");
+        String[] statusParts = headerLines[0].split (" ", 3);
+        if (statusParts.length < 2 || !statusParts[0].startsWith ("HTTP/"))
+            throw new IOException ("Malformed status line: " + headerLines[0]);
+        int statusCode;
+        try
+        {
+            statusCode = Integer.parseInt (statusParts[1]);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException ("Malformed status line: " + headerLines[0]);
+        }
+        Map <String, String> respHeaders = ClientResponse.newHeaderMap ();
+        for (int i = 1; i < headerLines.length; i++)
+        {
+            int colonPos = headerLines[i].indexOf (':');
+            if (colonPos > 0)
+                respHeaders.put (headerLines[i].substring (0, colonPos).trim (), headerLines[i].substring (colonPos + 1).trim ());
+        }
+
+        int bodyStart = headerEnd + HEADER_END.length;
+        if (statusCode / 100 == 1)
+            return bodyStart - parseStart;
+
+        byte[] respBody;
+        int responseEnd;
+        String transferEncoding = respHeaders.get ("Transfer-Encoding");
+        String contentLength = respHeaders.get ("Content-Length");
+        if (pendingRequest.clientRequest.getHttpMethod ().equals ("HEAD") || statusCode == 204 || statusCode == 304)
+        {
+            respBody = new byte[0];
+            responseEnd = bodyStart;
+        }
+        else if (transferEncoding != null && transferEncoding.toLowerCase ().contains ("chunked"))
+        {
+            ByteArrayOutputStream chunkedBody = new ByteArrayOutputStream ();
+            responseEnd = parseChunked (bodyStart, chunkedBody);
+            if (responseEnd < 0)
+                return 0;
+            respBody = chunkedBody.toByteArray ();
+        }
+        else if (contentLength != null)
+        {
+            long bodyLength;
+            try
+            {
+                bodyLength = Long.parseLong (contentLength);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException ("Bad Content-Length: " + contentLength);
+            }
+            // A body too big for the array could never arrive in full
+            if (bodyLength < 0 || bodyLength > Integer.MAX_VALUE - bodyStart)
+                throw new IOException ("Bad Content-Length: " + contentLength);
+            responseEnd = bodyStart + (int) bodyLength;
+            if (responseEnd > readLength)
+                return 0;
+            respBody = Arrays.copyOfRange (readBytes, bodyStart, responseEnd);
+        }
+        else
+        {
+            // No framing, so the body runs to the end of the connection
+            if (!endOfStream)
+                return 0;
+            responseEnd = readLength;
+            respBody = Arrays.copyOfRange (readBytes, bodyStart, responseEnd);
+            closing = true;
+        }
+        parsedResponse = new ClientResponse (statusParts[0], statusCode, statusParts.length > 2 ? statusParts[2] : "", respHeaders, respBody);
+        return responseEnd - parseStart;
+    }
+
+    // End of a chunked body starting at chunkStart, or -1 if it has not all arrived
+    private int parseChunked (int chunkStart, ByteArrayOutputStream chunkedBody) throws IOException
+    {
+        while (true)
+        {
+            int lineEnd = indexOf (LINE_END, chunkStart);
+            if (lineEnd < 0)
+                return -1;
+            String sizeLine = new String (readBytes, chunkStart, lineEnd - chunkStart, StandardCharsets.ISO_8859_1);
+            int extensionPos = sizeLine.indexOf (';');
+            long chunkSize;
+            try
+            {
+                chunkSize = Long.parseLong ((extensionPos < 0 ? sizeLine : sizeLine.substring (0, extensionPos)).trim (), 16);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException ("Malformed chunk size: " + sizeLine);
+            }
+            if (chunkSize < 0)
+                throw new IOException ("Malformed chunk size: " + sizeLine);
+            chunkStart = lineEnd + LINE_END.length;
+            if (chunkSize == 0)
+            {
+                // Skip any trailers, up to the empty line
+                while (true)
+                {
+                    int trailerEnd = indexOf (LINE_END, chunkStart);
+                    if (trailerEnd < 0)
+                        return -1;
+                    if (trailerEnd == chunkStart)
+                        return trailerEnd + LINE_END.length;
+                    chunkStart = trailerEnd + LINE_END.length;
+                }
+            }
+            if (chunkStart + chunkSize + LINE_END.length > readLength)
+                return -1;
+            chunkedBody.write (readBytes, chunkStart, (int) chunkSize);
+            chunkStart += (int) chunkSize + LINE_END.length;
+        }
+    }
+
+    private int indexOf (byte[] wantedBytes, int searchStart)
+    {
+        for (int i = searchStart; i + wantedBytes.length <= readLength; i++)
+        {
+            int j = 0;
+            while (j < wantedBytes.length && readBytes[i + j] == wantedBytes[j])
+                j++;
+            if (j == wantedBytes.length)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * True if some of the response to the first request in flight has arrived, so it must not be sent again
+     */
+    boolean hasPartialResponse ()
+    {
+        return readLength > 0;
+    }
+
+    private void closeIfIdle ()
+    {
+        if (inFlight.isEmpty () && !closed)
+            close ();
+    }
+
+    // Close after an error. Requests that may safely be sent again are, once; the rest fail.
+    void fail (IOException e)
+    {
+        if (closed)
+            return;
+        close ();
+        httpClient.requeue (this, true, e);
+    }
+
+    void close ()
+    {
+        if (closed)
+            return;
+        closed = true;
+        if (connectTimer != null)
+            connectTimer.cancel ();
+        if (idleTimer != null)
+            idleTimer.cancel ();
+        try
+        {
+            if (socketChannel != null)
+                socketChannel.close ();
+        }
+        catch (IOException ignore)
+        {
+            /* ignore */
+        }
+        httpClient.onClosed (this);
+    }
+
+    boolean isClosed ()
+    {
+        return closed;
+    }
+}
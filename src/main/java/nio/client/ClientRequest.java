@@ -0,0 +1,135 @@
+package nio.client;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A request for NioHttpClient: method, http URL, headers and an optional body. Host and Content-Length are
+ * added when the request is encoded.
+ */
+public class ClientRequest
+{
+    private final String httpMethod;
+    private final URI requestUri;
+    private final Map <String, String> reqHeaders = new LinkedHashMap <> ();
+    private byte[] reqBody;
+
+    public ClientRequest (String httpMethod, String requestUrl)
+    {
+        this.httpMethod = httpMethod.toUpperCase ();
+        try
+        {
+            this.requestUri = new URI (requestUrl);
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IllegalArgumentException ("Invalid URL " + requestUrl, e);
+        }
+        if (!"http".equalsIgnoreCase (requestUri.getScheme ()) || requestUri.getHost () == null)
+            throw new IllegalArgumentException ("Only http URLs with a host are supported: " + requestUrl);
+    }
+
+    public String getHttpMethod ()
+    {
+        return httpMethod;
+    }
+
+    public String getHost ()
+    {
+        return requestUri.getHost ();
+    }
+
+    public int getPort ()
+    {
+        return requestUri.getPort () < 0 ? 80 : requestUri.getPort ();
+    }
+
+    /**
+     * The path and query, as sent in the request line
+     */
+    public String getReqLocation ()
+    {
+        String rawPath = requestUri.getRawPath ();
+        String reqLocation = rawPath == null || rawPath.isEmpty () ? "/" : rawPath;
+        return requestUri.getRawQuery () == null ? reqLocation : reqLocation + "?" + requestUri.getRawQuery ();
+    }
+
+    public ClientRequest addHeader (String key, String value)
+    {
+        reqHeaders.put (key, value);
+        return this;
+    }
+
+    public String getHeader (String key)
+    {
+        return reqHeaders.get (key);
+    }
+
+    public ClientRequest setBody (byte[] reqBody)
+    {
+        this.reqBody = reqBody;
+        return this;
+    }
+
+    public byte[] getBody ()
+    {
+        return reqBody;
+    }
+
+    /**
+     * Idempotent requests may be sent again if the connection fails before any of the response arrives
+     */
+    public boolean isIdempotent ()
+    {
+        switch (httpMethod)
+        {
+            case "GET":
+            case "HEAD":
+            case "PUT":
+            case "DELETE":
+            case "OPTIONS":
+            case "TRACE":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Only safe requests are pipelined, so nothing with side effects waits behind another response
+     */
+    boolean isPipelinable ()
+    {
+        return httpMethod.equals ("GET") || httpMethod.equals ("HEAD");
+    }
+
+    String getHostKey ()
+    {
+        return getHost () + ":" + getPort ();
+    }
+
+    ByteBuffer encode ()
+    {
+        StringBuilder reqText = new StringBuilder ();
+        reqText.append (httpMethod).append (' ').append (getReqLocation ()).append (" HTTP/1.1\r\n");
+        if (!reqHeaders.containsKey ("Host"))
+            reqText.append ("Host: ").append (getPort () == 80 ? getHost () : getHostKey ()).append ("\r\n");
+        for (Map.Entry <String, String> reqHeader : reqHeaders.entrySet ())
+            reqText.append (reqHeader.getKey ()).append (": ").append (reqHeader.getValue ()).append ("\r\n");
+        if (reqBody != null && !reqHeaders.containsKey ("Content-Length"))
+            reqText.append ("Content-Length: ").append (reqBody.length).append ("\r\n");
+        reqText.append ("\r\n");
+
+        byte[] headerBytes = reqText.toString ().getBytes (StandardCharsets.ISO_8859_1);
+        ByteBuffer reqBuffer = ByteBuffer.allocate (headerBytes.length + (reqBody == null ? 0 : reqBody.length));
+        reqBuffer.put (headerBytes);
+        if (reqBody != null)
+            reqBuffer.put (reqBody);
+        reqBuffer.flip ();
+        return reqBuffer;
+    }
+}
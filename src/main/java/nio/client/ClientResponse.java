@@ -0,0 +1,66 @@
+package nio.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A complete response received by NioHttpClient. Header names are case insensitive and values are trimmed.
+ */
+public class ClientResponse
+{
+    private final String httpVersion;
+    private final int statusCode;
+    private final String reasonPhrase;
+    private final Map <String, String> respHeaders;
+    private final byte[] respBody;
+
+    ClientResponse (String httpVersion, int statusCode, String reasonPhrase, Map <String, String> respHeaders, byte[] respBody)
+    {
+        this.httpVersion = httpVersion;
+        this.statusCode = statusCode;
+        this.reasonPhrase = reasonPhrase;
+        this.respHeaders = respHeaders;
+        this.respBody = respBody;
+    }
+
+    public String getHttpVersion ()
+    {
+        return httpVersion;
+    }
+
+    public int getStatusCode ()
+    {
+        return statusCode;
+    }
+
+    public String getReasonPhrase ()
+    {
+        return reasonPhrase;
+    }
+
+    public String getHeader (String key)
+    {
+        return respHeaders.get (key);
+    }
+
+    public Map <String, String> getHeaders ()
+    {
+        return respHeaders;
+    }
+
+    public byte[] getBody ()
+    {
+        return respBody;
+    }
+
+    public String getBodyAsString ()
+    {
+        return new String (respBody, StandardCharsets.UTF_8);
+    }
+
+    static Map <String, String> newHeaderMap ()
+    {
+        return new TreeMap <> (String.CASE_INSENSITIVE_ORDER);
+    }
+}
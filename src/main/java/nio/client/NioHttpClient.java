@@ -0,0 +1,428 @@
+package nio.client;
+
+import nio.util.BufferPool;
+import nio.util.EventLoop;
+import nio.util.Metrics;
+import nio.util.TimerQueue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An asynchronous HTTP/1.1 client that runs on an event loop: one of the server's own (see
+ * NioWebServer.currentEventLoop ()) or a dedicated one started with NioWebServer.runEventLoop (). Connections,
+ * timers and parsing all live on that loop, so the client needs no locks, and requests may be sent from any
+ * thread. Each response arrives as a CompletableFuture, completed on the loop.
+ *
+ * Connections are kept alive in a pool per host and port. Each host is looked up once, on a thread of its own,
+ * so a slow DNS server never holds up the loop. A request goes to an idle connection, or a new one
+ * while the host has fewer than maxConnectionsPerHost, or else is pipelined behind up to maxPipelineDepth
+ * requests already sent on a connection (GET and HEAD only). Anything else waits in the host's queue.
+ *
+ * Never wait for a response on the loop thread itself, as the loop is what completes it. A worker thread of
+ * NioPooledWebServer may wait, since the loop it hands work to is a different thread.
+ */
+public class NioHttpClient
+{
+    private static final int READ_BUFFER = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private final EventLoop eventLoop;
+    private final Map <String, HostPool> hostPools = new HashMap <> ();
+    private final BufferPool bufferPool = new BufferPool (READ_BUFFER, MAX_POOLED_BUFFERS);
+    private int maxConnectionsPerHost = 4;
+    private int maxPipelineDepth = 4;
+    private long connectTimeoutMillis = 10000;
+    private long requestTimeoutMillis = 30000;
+    private long keepAliveMillis = 30000;
+    private boolean closed;
+    private final Metrics metrics = new Metrics ();
+    private final Metrics.Counter requestCount = metrics.counter ("client.requests");
+    private final Metrics.Counter connectionCount = metrics.counter ("client.connections");
+    private final Metrics.Counter pipelinedCount = metrics.counter ("client.pipelined");
+    private final Metrics.Counter retryCount = metrics.counter ("client.retries");
+    private final Metrics.Counter timeoutCount = metrics.counter ("client.timeouts");
+    private final Metrics.Counter failureCount = metrics.counter ("client.failures");
+
+    public NioHttpClient (EventLoop eventLoop)
+    {
+        this.eventLoop = eventLoop;
+    }
+
+    public CompletableFuture <ClientResponse> get (String requestUrl)
+    {
+        return send (new ClientRequest ("GET", requestUrl));
+    }
+
+    /**
+     * Send a request. The future completes on the event loop with the response, or exceptionally with a
+     * TimeoutException or the IOException that ended its connection.
+     */
+    public CompletableFuture <ClientResponse> send (ClientRequest clientRequest)
+    {
+        PendingRequest pendingRequest = new PendingRequest (clientRequest);
+        if (eventLoop.inEventLoop ())
+            dispatch (pendingRequest);
+        else
+            eventLoop.execute (() -> dispatch (pendingRequest));
+        return pendingRequest.responseFuture;
+    }
+
+    /**
+     * Close every connection and fail every request not yet answered
+     */
+    public void close ()
+    {
+        if (eventLoop.inEventLoop ())
+            closeAll ();
+        else
+            eventLoop.execute (this::closeAll);
+    }
+
+    private void dispatch (PendingRequest pendingRequest)
+    {
+        if (closed)
+        {
+            pendingRequest.responseFuture.completeExceptionally (new IOException ("Client is closed"));
+            return;
+        }
+        requestCount.increment ();
+        if (requestTimeoutMillis > 0)
+            pendingRequest.timeoutTimer = eventLoop.schedule (() -> onTimeout (pendingRequest), requestTimeoutMillis);
+        HostPool hostPool = hostPools.computeIfAbsent (pendingRequest.clientRequest.getHostKey (), HostPool::new);
+        hostPool.waitingRequests.add (pendingRequest);
+        sendWaiting (hostPool);
+    }
+
+    // Send queued requests for as long as a connection can take them
+    void sendWaiting (HostPool hostPool)
+    {
+        if (hostPool.hostAddress == null)
+        {
+            resolve (hostPool);
+            return;
+        }
+        PendingRequest pendingRequest;
+        while ((pendingRequest = hostPool.waitingRequests.peek ()) != null)
+        {
+            if (pendingRequest.responseFuture.isDone ())
+            {
+                hostPool.waitingRequests.poll ();
+                continue;
+            }
+            ClientConnection clientConnection = chooseConnection (hostPool, pendingRequest.clientRequest.isPipelinable ());
+            if (clientConnection == null)
+            {
+                // Either every connection is busy, or this request failed to connect and the next may go
+                if (hostPool.waitingRequests.peek () != pendingRequest)
+                    continue;
+                return;
+            }
+            hostPool.waitingRequests.poll ();
+            if (!clientConnection.inFlight.isEmpty ())
+                pipelinedCount.increment ();
+            clientConnection.send (pendingRequest);
+        }
+    }
+
+    // Look the host up off the loop, as a lookup can block for seconds, and send its requests once it is known
+    private void resolve (HostPool hostPool)
+    {
+        if (hostPool.resolving)
+            return;
+        hostPool.resolving = true;
+        Thread resolverThread = new Thread (() -> {
+            InetSocketAddress hostAddress = hostPool.lookUp ();
+            eventLoop.execute (() -> onResolved (hostPool, hostAddress));
+        }, "HostResolver");
+        resolverThread.setDaemon (true);
+        resolverThread.start ();
+    }
+
+    private void onResolved (HostPool hostPool, InetSocketAddress hostAddress)
+    {
+        hostPool.resolving = false;
+        // Closing failed everything that was waiting
+        if (closed)
+            return;
+        if (hostAddress.isUnresolved ())
+        {
+            // Fail what is waiting now; the next request looks the host up again
+            UnknownHostException unknownHost = new UnknownHostException (hostPool.hostKey);
+            PendingRequest pendingRequest;
+            while ((pendingRequest = hostPool.waitingRequests.poll ()) != null)
+            {
+                if (pendingRequest.responseFuture.isDone ())
+                    continue;
+                failureCount.increment ();
+                pendingRequest.fail (unknownHost);
+            }
+            return;
+        }
+        hostPool.hostAddress = hostAddress;
+        sendWaiting (hostPool);
+    }
+
+    // An idle connection, else a new one, else the least busy connection that may pipeline this request
+    private ClientConnection chooseConnection (HostPool hostPool, boolean pipelinable)
+    {
+        ClientConnection pipelineConnection = null;
+        for (ClientConnection clientConnection : hostPool.connections)
+        {
+            if (!clientConnection.canSend (pipelinable, maxPipelineDepth))
+                continue;
+            if (clientConnection.inFlight.isEmpty ())
+                return clientConnection;
+            if (pipelineConnection == null || clientConnection.inFlight.size () < pipelineConnection.inFlight.size ())
+                pipelineConnection = clientConnection;
+        }
+        if (hostPool.connections.size () < maxConnectionsPerHost)
+        {
+            ClientConnection clientConnection = new ClientConnection (this, hostPool);
+            hostPool.connections.add (clientConnection);
+            connectionCount.increment ();
+            try
+            {
+                clientConnection.connect ();
+            }
+            catch (IOException e)
+            {
+                // Fail just the request that asked for it, so a host that cannot be reached does not loop
+                hostPool.connections.remove (clientConnection);
+                failureCount.increment ();
+                hostPool.waitingRequests.poll ().fail (e);
+                return null;
+            }
+            return clientConnection;
+        }
+        return pipelineConnection;
+    }
+
+    void complete (PendingRequest pendingRequest, ClientResponse clientResponse)
+    {
+        pendingRequest.cancelTimer ();
+        pendingRequest.responseFuture.complete (clientResponse);
+    }
+
+    /**
+     * Take back the requests still in flight on a closed connection. After an error each may be sent once more,
+     * if it is idempotent and none of its response has arrived; otherwise it fails. Requests pipelined behind a
+     * response that closed the connection were never answered and are simply sent again.
+     */
+    void requeue (ClientConnection clientConnection, boolean afterError, IOException failure)
+    {
+        List <PendingRequest> resendRequests = new ArrayList <> ();
+        boolean firstRequest = true;
+        for (PendingRequest pendingRequest : clientConnection.inFlight)
+        {
+            boolean partlyAnswered = firstRequest && clientConnection.hasPartialResponse ();
+            firstRequest = false;
+            if (pendingRequest.responseFuture.isDone ())
+                continue;
+            pendingRequest.clientConnection = null;
+            if (!afterError)
+                resendRequests.add (pendingRequest);
+            else if (!closed && !partlyAnswered && !pendingRequest.retried && pendingRequest.clientRequest.isIdempotent ())
+            {
+                pendingRequest.retried = true;
+                retryCount.increment ();
+                resendRequests.add (pendingRequest);
+            }
+            else
+            {
+                failureCount.increment ();
+                pendingRequest.fail (failure);
+            }
+        }
+        clientConnection.inFlight.clear ();
+
+        // Back to the front of the queue, in their original order
+        HostPool hostPool = clientConnection.hostPool;
+        for (int i = resendRequests.size () - 1; i >= 0; i--)
+            hostPool.waitingRequests.addFirst (resendRequests.get (i));
+        if (!closed)
+            sendWaiting (hostPool);
+    }
+
+    void onClosed (ClientConnection clientConnection)
+    {
+        clientConnection.hostPool.connections.remove (clientConnection);
+    }
+
+    // A request that times out in flight takes its connection with it, as its response would still arrive there
+    private void onTimeout (PendingRequest pendingRequest)
+    {
+        if (pendingRequest.responseFuture.isDone ())
+            return;
+        timeoutCount.increment ();
+        pendingRequest.responseFuture.completeExceptionally (new TimeoutException ("No response within " + requestTimeoutMillis + " ms for "
+            + pendingRequest.clientRequest.getHttpMethod () + " " + pendingRequest.clientRequest.getReqLocation ()));
+        ClientConnection clientConnection = pendingRequest.clientConnection;
+        if (clientConnection != null && !clientConnection.isClosed ())
+        {
+            clientConnection.close ();
+            requeue (clientConnection, true, new IOException ("Connection closed after a request timed out"));
+        }
+    }
+
+    private void closeAll ()
+    {
+        closed = true;
+        IOException closedException = new IOException ("Client is closed");
+        for (HostPool hostPool : hostPools.values ())
+        {
+            for (ClientConnection clientConnection : new ArrayList <> (hostPool.connections))
+            {
+                clientConnection.close ();
+                requeue (clientConnection, true, closedException);
+            }
+            for (Iterator <PendingRequest> requestIterator = hostPool.waitingRequests.iterator (); requestIterator.hasNext (); )
+            {
+                requestIterator.next ().fail (closedException);
+                requestIterator.remove ();
+            }
+        }
+        hostPools.clear ();
+    }
+
+    EventLoop getEventLoop ()
+    {
+        return eventLoop;
+    }
+
+    BufferPool getBufferPool ()
+    {
+        return bufferPool;
+    }
+
+    public int getMaxConnectionsPerHost ()
+    {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * The most connections kept open to one host and port. Defaults to 4.
+     */
+    public void setMaxConnectionsPerHost (int maxConnectionsPerHost)
+    {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public int getMaxPipelineDepth ()
+    {
+        return maxPipelineDepth;
+    }
+
+    /**
+     * The most requests outstanding on one connection once every connection to the host is busy. 1 turns
+     * pipelining off. Defaults to 4.
+     */
+    public void setMaxPipelineDepth (int maxPipelineDepth)
+    {
+        this.maxPipelineDepth = maxPipelineDepth;
+    }
+
+    public long getConnectTimeoutMillis ()
+    {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis (long connectTimeoutMillis)
+    {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public long getRequestTimeoutMillis ()
+    {
+        return requestTimeoutMillis;
+    }
+
+    /**
+     * How long a request may take, from send () to the end of its response, queueing included. 0 waits forever.
+     */
+    public void setRequestTimeoutMillis (long requestTimeoutMillis)
+    {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    public long getKeepAliveMillis ()
+    {
+        return keepAliveMillis;
+    }
+
+    /**
+     * How long an idle connection is kept in the pool before it is closed
+     */
+    public void setKeepAliveMillis (long keepAliveMillis)
+    {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public Metrics getMetrics ()
+    {
+        return metrics;
+    }
+
+    /**
+     * The connections and queued requests for one host and port
+     */
+    static final class HostPool
+    {
+        final String hostKey;
+        final List <ClientConnection> connections = new ArrayList <> ();
+        final ArrayDeque <PendingRequest> waitingRequests = new ArrayDeque <> ();
+        // Null until the host has been looked up, then kept for the life of the pool
+        InetSocketAddress hostAddress;
+        boolean resolving;
+
+        HostPool (String hostKey)
+        {
+            this.hostKey = hostKey;
+        }
+
+        // Blocks on DNS, so never called on the loop
+        InetSocketAddress lookUp ()
+        {
+            int colonPos = hostKey.lastIndexOf (':');
+            return new InetSocketAddress (hostKey.substring (0, colonPos), Integer.parseInt (hostKey.substring (colonPos + 1)));
+        }
+    }
+
+    /**
+     * A request and the future for its response, from send () until it is answered or given up on
+     */
+    static final class PendingRequest
+    {
+        final ClientRequest clientRequest;
+        final CompletableFuture <ClientResponse> responseFuture = new CompletableFuture <> ();
+        ClientConnection clientConnection;
+        TimerQueue.Timer timeoutTimer;
+        boolean retried;
+
+        PendingRequest (ClientRequest clientRequest)
+        {
+            this.clientRequest = clientRequest;
+        }
+
+        void fail (IOException failure)
+        {
+            cancelTimer ();
+            responseFuture.completeExceptionally (failure);
+        }
+
+        void cancelTimer ()
+        {
+            if (timeoutTimer != null)
+                timeoutTimer.cancel ();
+        }
+    }
+}
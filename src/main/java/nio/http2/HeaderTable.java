@@ -0,0 +1,191 @@
+package nio.http2;
+
+import nio.util.Pair;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The HPACK index space (RFC 7541 section 2.3): the 61 entry static table followed by a dynamic table of recently
+ * seen fields, newest first. The dynamic table is a ring buffer and evicts its oldest entries whenever its size,
+ * counted as the RFC does (32 bytes per entry plus the name and value lengths), would exceed the maximum.
+ */
+final class HeaderTable
+{
+    static final int STATIC_LENGTH = 61;
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final HeaderField[] STATIC_TABLE = new HeaderField[]
+    {
+        null,
+        field (":authority", ""), field (":method", "GET"), field (":method", "POST"), field (":path", "/"),
+        field (":path", "/index.html"), field (":scheme", "http"), field (":scheme", "https"), field (":status", "200"),
+        field (":status", "204"), field (":status", "206"), field (":status", "304"), field (":status", "400"),
+        field (":status", "404"), field (":status", "500"), field ("accept-charset", ""), field ("accept-encoding", "gzip, deflate"),
+        field ("accept-language", ""), field ("accept-ranges", ""), field ("accept", ""), field ("access-control-allow-origin", ""),
+        field ("age", ""), field ("allow", ""), field ("authorization", ""), field ("cache-control", ""),
+        field ("content-disposition", ""), field ("content-encoding", ""), field ("content-language", ""), field ("content-length", ""),
+        field ("content-location", ""), field ("content-range", ""), field ("content-type", ""), field ("cookie", ""),
+        field ("date", ""), field ("etag", ""), field ("expect", ""), field ("expires", ""),
+        field ("from", ""), field ("host", ""), field ("if-match", ""), field ("if-modified-since", ""),
+        field ("if-none-match", ""), field ("if-range", ""), field ("if-unmodified-since", ""), field ("last-modified", ""),
+        field ("link", ""), field ("location", ""), field ("max-forwards", ""), field ("proxy-authenticate", ""),
+        field ("proxy-authorization", ""), field ("range", ""), field ("referer", ""), field ("refresh", ""),
+        field ("retry-after", ""), field ("server", ""), field ("set-cookie", ""), field ("strict-transport-security", ""),
+        field ("transfer-encoding", ""), field ("user-agent", ""), field ("vary", ""), field ("via", ""),
+        field ("www-authenticate", "")
+    };
+
+    // Lowest static index for each name, and for each name and value pair
+    private static final Map <String, Integer> STATIC_NAMES = new HashMap <> ();
+    private static final Map <String, Integer> STATIC_FIELDS = new HashMap <> ();
+
+    static
+    {
+        for (int i = STATIC_LENGTH; i > 0; i--)
+        {
+            STATIC_NAMES.put (STATIC_TABLE[i].getFirstItem (), i);
+            STATIC_FIELDS.put (fieldKey (STATIC_TABLE[i].getFirstItem (), STATIC_TABLE[i].getSecondItem ()), i);
+        }
+    }
+
+    private HeaderField[] dynamicEntries = new HeaderField[8];
+    private int newestEntry;
+    private int entryCount;
+    private int tableSize;
+    private int maxTableSize;
+
+    HeaderTable (int maxTableSize)
+    {
+        this.maxTableSize = maxTableSize;
+    }
+
+    // A table entry. Its own class, rather than Pair <String, String>, so the tables can be plain arrays of it.
+    private static final class HeaderField extends Pair <String, String>
+    {
+        HeaderField (String fieldName, String fieldValue)
+        {
+            super (fieldName, fieldValue);
+        }
+    }
+
+    private static HeaderField field (String fieldName, String fieldValue)
+    {
+        return new HeaderField (fieldName, fieldValue);
+    }
+
+    private static String fieldKey (String fieldName, String fieldValue)
+    {
+        return fieldName + '\n' + fieldValue;
+    }
+
+    static int entrySize (String fieldName, String fieldValue)
+    {
+        return ENTRY_OVERHEAD + fieldName.length () + fieldValue.length ();
+    }
+
+    /**
+     * The field at a 1 based HPACK index
+     */
+    Pair <String, String> get (int fieldIndex) throws Http2Exception
+    {
+        if (fieldIndex > 0 && fieldIndex <= STATIC_LENGTH)
+            return STATIC_TABLE[fieldIndex];
+        int dynamicIndex = fieldIndex - STATIC_LENGTH - 1;
+        if (dynamicIndex < 0 || dynamicIndex >= entryCount)
+            throw Http2Exception.connectionError (Http2Exception.COMPRESSION_ERROR, "Invalid header index " + fieldIndex);
+        return dynamicEntries[(newestEntry + dynamicIndex) % dynamicEntries.length];
+    }
+
+    /**
+     * Index of an entry with this name and value, or 0
+     */
+    int findField (String fieldName, String fieldValue)
+    {
+        Integer staticIndex = STATIC_FIELDS.get (fieldKey (fieldName, fieldValue));
+        if (staticIndex != null)
+            return staticIndex;
+        for (int i = 0; i < entryCount; i++)
+        {
+            HeaderField dynamicEntry = dynamicEntries[(newestEntry + i) % dynamicEntries.length];
+            if (dynamicEntry.getFirstItem ().equals (fieldName) && dynamicEntry.getSecondItem ().equals (fieldValue))
+                return STATIC_LENGTH + 1 + i;
+        }
+        return 0;
+    }
+
+    /**
+     * Index of an entry with this name, or 0
+     */
+    int findName (String fieldName)
+    {
+        Integer staticIndex = STATIC_NAMES.get (fieldName);
+        if (staticIndex != null)
+            return staticIndex;
+        for (int i = 0; i < entryCount; i++)
+        {
+            if (dynamicEntries[(newestEntry + i) % dynamicEntries.length].getFirstItem ().equals (fieldName))
+                return STATIC_LENGTH + 1 + i;
+        }
+        return 0;
+    }
+
+    /**
+     * Insert a field as the newest entry, evicting as needed. A field larger than the whole table empties it.
+     */
+    void add (String fieldName, String fieldValue)
+    {
+        int fieldSize = entrySize (fieldName, fieldValue);
+        evictTo (maxTableSize - fieldSize);
+        if (fieldSize > maxTableSize)
+            return;
+        if (entryCount == dynamicEntries.length)
+            growEntries ();
+        newestEntry = (newestEntry - 1 + dynamicEntries.length) % dynamicEntries.length;
+        dynamicEntries[newestEntry] = field (fieldName, fieldValue);
+        entryCount++;
+        tableSize += fieldSize;
+    }
+
+    void setMaxTableSize (int maxTableSize)
+    {
+        this.maxTableSize = maxTableSize;
+        evictTo (maxTableSize);
+    }
+
+    int getMaxTableSize ()
+    {
+        return maxTableSize;
+    }
+
+    int getTableSize ()
+    {
+        return tableSize;
+    }
+
+    int getEntryCount ()
+    {
+        return entryCount;
+    }
+
+    private void evictTo (int targetSize)
+    {
+        while (entryCount > 0 && tableSize > Math.max (targetSize, 0))
+        {
+            int oldestEntry = (newestEntry + entryCount - 1) % dynamicEntries.length;
+            HeaderField evictedEntry = dynamicEntries[oldestEntry];
+            dynamicEntries[oldestEntry] = null;
+            tableSize -= entrySize (evictedEntry.getFirstItem (), evictedEntry.getSecondItem ());
+            entryCount--;
+        }
+    }
+
+    private void growEntries ()
+    {
+        HeaderField[] grownEntries = new HeaderField[dynamicEntries.length << 1];
+        for (int i = 0; i < entryCount; i++)
+            grownEntries[i] = dynamicEntries[(newestEntry + i) % dynamicEntries.length];
+        dynamicEntries = grownEntries;
+        newestEntry = 0;
+    }
+}
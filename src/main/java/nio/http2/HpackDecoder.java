@@ -0,0 +1,133 @@
+package nio.http2;
+
+import nio.util.Pair;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541). One decoder belongs to one connection and must see every header block
+ * on it in order, since each block may add to the dynamic table the next one refers to. Any malformed block is
+ * a COMPRESSION_ERROR, which ends the connection.
+ */
+public class HpackDecoder
+{
+    private final HeaderTable headerTable;
+    private final int maxTableSize;
+    private final int maxHeaderListSize;
+
+    /**
+     * @param maxTableSize      the SETTINGS_HEADER_TABLE_SIZE advertised to the peer
+     * @param maxHeaderListSize the largest header list accepted, counted as for SETTINGS_MAX_HEADER_LIST_SIZE
+     */
+    public HpackDecoder (int maxTableSize, int maxHeaderListSize)
+    {
+        this.headerTable = new HeaderTable (maxTableSize);
+        this.maxTableSize = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+
+    public List <Pair <String, String>> decode (byte[] blockBytes, int offset, int length) throws Http2Exception
+    {
+        List <Pair <String, String>> headerList = new ArrayList <> ();
+        int[] position = {offset};
+        int blockEnd = offset + length;
+        int headerListSize = 0;
+        while (position[0] < blockEnd)
+        {
+            int firstByte = blockBytes[position[0]] & 0xff;
+            Pair <String, String> headerField;
+            if ((firstByte & 0x80) != 0)
+            {
+                // Indexed header field
+                int fieldIndex = decodeInt (blockBytes, position, blockEnd, 7);
+                if (fieldIndex == 0)
+                    throw Http2Exception.connectionError (Http2Exception.COMPRESSION_ERROR, "Header index 0");
+                headerField = headerTable.get (fieldIndex);
+            }
+            else if ((firstByte & 0x40) != 0)
+            {
+                // Literal with incremental indexing
+                headerField = decodeLiteral (blockBytes, position, blockEnd, 6);
+                headerTable.add (headerField.getFirstItem (), headerField.getSecondItem ());
+            }
+            else if ((firstByte & 0x20) != 0)
+            {
+                // Dynamic table size update, only allowed before the first field of a block
+                int newTableSize = decodeInt (blockBytes, position, blockEnd, 5);
+                if (!headerList.isEmpty () || newTableSize > maxTableSize)
+                    throw Http2Exception.connectionError (Http2Exception.COMPRESSION_ERROR, "Invalid table size update " + newTableSize);
+                headerTable.setMaxTableSize (newTableSize);
+                continue;
+            }
+            else
+            {
+                // Literal without indexing (0000) or never indexed (0001)
+                headerField = decodeLiteral (blockBytes, position, blockEnd, 4);
+            }
+
+            headerListSize += HeaderTable.entrySize (headerField.getFirstItem (), headerField.getSecondItem ());
+            if (headerListSize > maxHeaderListSize)
+                throw Http2Exception.connectionError (Http2Exception.ENHANCE_YOUR_CALM, "Header list larger than " + maxHeaderListSize);
+            headerList.add (headerField);
+        }
+        return headerList;
+    }
+
+    private Pair <String, String> decodeLiteral (byte[] blockBytes, int[] position, int blockEnd, int prefixBits) throws Http2Exception
+    {
+        int nameIndex = decodeInt (blockBytes, position, blockEnd, prefixBits);
+        String fieldName = nameIndex == 0 ? decodeString (blockBytes, position, blockEnd) : headerTable.get (nameIndex).getFirstItem ();
+        return Pair.of (fieldName, decodeString (blockBytes, position, blockEnd));
+    }
+
+    // Octets are kept as ISO-8859-1 characters, so any byte value survives the trip through a String
+    private static String decodeString (byte[] blockBytes, int[] position, int blockEnd) throws Http2Exception
+    {
+        if (position[0] >= blockEnd)
+            throw Http2Exception.connectionError (Http2Exception.COMPRESSION_ERROR, "Truncated header block");
+        boolean huffmanCoded = (blockBytes[position[0]] & 0x80) != 0;
+        int stringLength = decodeInt (blockBytes, position, blockEnd, 7);
+        if (stringLength > blockEnd - position[0])
+            throw Http2Exception.connectionError (Http2Exception.COMPRESSION_ERROR, "Truncated header block");
+        int stringStart = position[0];
+        position[0] += stringLength;
+        if (!huffmanCoded)
+            return new String (blockBytes, stringStart, stringLength, StandardCharsets.ISO_8859_1);
+        return new String (Huffman.decode (blockBytes, stringStart, stringLength), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decode an HPACK integer with the given prefix size, starting at position[0] and advancing it
+     */
+    static int decodeInt (byte[] blockBytes, int[] position, int blockEnd, int prefixBits) throws Http2Exception
+    {
+        if (position[0] >= blockEnd)
+            throw Http2Exception.connectionError (Http2Exception.COMPRESSION_ERROR, "Truncated header block");
+        int prefixMask = (1 << prefixBits) - 1;
+        int intValue = blockBytes[position[0]++] & prefixMask;
+        if (intValue < prefixMask)
+            return intValue;
+        int shift = 0;
+        int nextByte;
+        do
+        {
+            if (position[0] >= blockEnd || shift > 21)
+                throw Http2Exception.connectionError (Http2Exception.COMPRESSION_ERROR, "Invalid integer in header block");
+            nextByte = blockBytes[position[0]++] & 0xff;
+            intValue += (nextByte & 0x7f) << shift;
+            shift += 7;
+        }
+        while ((nextByte & 0x80) != 0);
+        return intValue;
+    }
+
+    /**
+     * Current size of the dynamic table, as the RFC counts it
+     */
+    public int getTableSize ()
+    {
+        return headerTable.getTableSize ();
+    }
+}
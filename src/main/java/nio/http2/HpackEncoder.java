@@ -0,0 +1,130 @@
+package nio.http2;
+
+import nio.util.Pair;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Encodes header lists as HPACK header blocks (RFC 7541). Fields already in the static or dynamic table are sent
+ * as a single index, others as literals that are added to the dynamic table, so repeated response headers shrink
+ * to a byte or two. Fields that change with every response are not indexed, so they do not push the useful
+ * entries out of the table, and credentials are marked never indexed. Strings are Huffman coded when that is
+ * shorter.
+ */
+public class HpackEncoder
+{
+    private static final Set <String> UNINDEXED_NAMES = new HashSet <> (Arrays.asList ("content-length", "date", "etag", "last-modified", "age"));
+    private static final Set <String> SENSITIVE_NAMES = new HashSet <> (Arrays.asList ("authorization", "proxy-authorization", "set-cookie", "cookie"));
+
+    private final HeaderTable headerTable;
+    private final int tableSizeLimit;
+    private int pendingTableSize = -1;
+
+    /**
+     * @param tableSizeLimit the most dynamic table memory to use, whatever the peer allows
+     */
+    public HpackEncoder (int tableSizeLimit)
+    {
+        this.headerTable = new HeaderTable (tableSizeLimit);
+        this.tableSizeLimit = tableSizeLimit;
+    }
+
+    /**
+     * Apply the peer's SETTINGS_HEADER_TABLE_SIZE. The change is announced at the start of the next block.
+     */
+    public void setMaxTableSize (int maxTableSize)
+    {
+        int newTableSize = Math.min (maxTableSize, tableSizeLimit);
+        if (newTableSize == headerTable.getMaxTableSize ())
+            return;
+        headerTable.setMaxTableSize (newTableSize);
+        pendingTableSize = newTableSize;
+    }
+
+    /**
+     * Append the header block for these fields. Names must already be lower case.
+     */
+    public void encode (List <Pair <String, String>> headerList, ByteArrayOutputStream outputStream)
+    {
+        if (pendingTableSize >= 0)
+        {
+            encodeInt (outputStream, 0x20, 5, pendingTableSize);
+            pendingTableSize = -1;
+        }
+        for (Pair <String, String> headerField : headerList)
+        {
+            String fieldName = headerField.getFirstItem ();
+            String fieldValue = headerField.getSecondItem ();
+            int fieldIndex = headerTable.findField (fieldName, fieldValue);
+            if (fieldIndex > 0)
+            {
+                encodeInt (outputStream, 0x80, 7, fieldIndex);
+                continue;
+            }
+
+            int nameIndex = headerTable.findName (fieldName);
+            if (SENSITIVE_NAMES.contains (fieldName))
+                encodeInt (outputStream, 0x10, 4, nameIndex);
+            else if (UNINDEXED_NAMES.contains (fieldName))
+                encodeInt (outputStream, 0x00, 4, nameIndex);
+            else
+            {
+                encodeInt (outputStream, 0x40, 6, nameIndex);
+                headerTable.add (fieldName, fieldValue);
+            }
+            if (nameIndex == 0)
+                encodeString (outputStream, fieldName);
+            encodeString (outputStream, fieldValue);
+        }
+    }
+
+    private static void encodeString (ByteArrayOutputStream outputStream, String fieldString)
+    {
+        byte[] stringBytes = fieldString.getBytes (StandardCharsets.ISO_8859_1);
+        int huffmanLength = Huffman.encodedLength (stringBytes);
+        if (huffmanLength < stringBytes.length)
+        {
+            encodeInt (outputStream, 0x80, 7, huffmanLength);
+            Huffman.encode (stringBytes, outputStream);
+        }
+        else
+        {
+            encodeInt (outputStream, 0x00, 7, stringBytes.length);
+            outputStream.write (stringBytes, 0, stringBytes.length);
+        }
+    }
+
+    /**
+     * Append an HPACK integer: the flag bits in the first byte, then the value with the given prefix size
+     */
+    static void encodeInt (ByteArrayOutputStream outputStream, int flagBits, int prefixBits, int intValue)
+    {
+        int prefixMask = (1 << prefixBits) - 1;
+        if (intValue < prefixMask)
+        {
+            outputStream.write (flagBits | intValue);
+            return;
+        }
+        outputStream.write (flagBits | prefixMask);
+        intValue -= prefixMask;
+        while (intValue >= 0x80)
+        {
+            outputStream.write ((intValue & 0x7f) | 0x80);
+            intValue >>>= 7;
+        }
+        outputStream.write (intValue);
+    }
+
+    /**
+     * Current size of the dynamic table, as the RFC counts it
+     */
+    public int getTableSize ()
+    {
+        return headerTable.getTableSize ();
+    }
+}
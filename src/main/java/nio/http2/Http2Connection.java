@@ -0,0 +1,726 @@
+package nio.http2;
+
+import nio.api.HttpResponse;
+import nio.util.Pair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The server side of one HTTP/2 connection (RFC 7540). The owner feeds it whatever bytes arrive with onBytes ()
+ * and it decodes frames, keeps the HPACK state, enforces flow control in both directions and multiplexes any
+ * number of streams over the one connection. Each request is handed to the RequestHandler in HTTP/1.1 form as
+ * soon as its last frame arrives, and the HTTP/1.1 response written back is sent as HEADERS and DATA frames.
+ * DATA waits whenever the peer's stream or connection window is used up, and continues when WINDOW_UPDATE
+ * arrives, so one slow stream never holds up the others' requests.
+ *
+ * Frames written while handling a batch of input are gathered in one buffer and written together. The class
+ * is not thread safe: all calls for a connection must come from the thread that currently owns it.
+ */
+public class Http2Connection
+{
+    /**
+     * Services one request. The request is given in HTTP/1.1 form and the response must be written to
+     * responseChannel in HTTP/1.1 form, exactly as for an HTTP/1.1 connection.
+     */
+    public interface RequestHandler
+    {
+        void handleRequest (String rawRequest, WritableByteChannel responseChannel) throws IOException;
+    }
+
+    private static final byte[] CLIENT_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes (StandardCharsets.ISO_8859_1);
+    private static final byte[] SWITCHING_PROTOCOLS = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes (StandardCharsets.ISO_8859_1);
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+    private static final int FRAME_HEADER_LENGTH = 9;
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_PRIORITY = 0x2;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE_LIMIT = 16777215;
+    private static final int HEADER_TABLE_SIZE = 4096;
+    private static final int MAX_HEADER_LIST_SIZE = 65536;
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    private static final int OUTPUT_FLUSH_THRESHOLD = 64 * 1024;
+    private static final int DEFAULT_MAX_REQUEST_BYTES = 1 << 20;
+
+    private final WritableByteChannel connectionChannel;
+    private final RequestHandler requestHandler;
+    private final HpackDecoder hpackDecoder = new HpackDecoder (HEADER_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+    private final HpackEncoder hpackEncoder = new HpackEncoder (HEADER_TABLE_SIZE);
+    private final Map <Integer, Http2Stream> openStreams = new LinkedHashMap <> ();
+    private boolean prefaceReceived;
+    private boolean closed;
+    private int lastStreamId;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private long receiveWindow = DEFAULT_WINDOW_SIZE;
+    private int maxRequestBytes = DEFAULT_MAX_REQUEST_BYTES;
+    // A header block split over HEADERS and CONTINUATION frames, while it is incomplete
+    private int headerBlockStreamId;
+    private boolean headerBlockEndStream;
+    private ByteArrayOutputStream headerBlock;
+    // Frames waiting to be written, null when there are none
+    private ByteBuffer outputBuffer;
+
+    public Http2Connection (WritableByteChannel connectionChannel, RequestHandler requestHandler)
+    {
+        this.connectionChannel = connectionChannel;
+        this.requestHandler = requestHandler;
+    }
+
+    /**
+     * Refuse a request whose body grows past this many bytes with 413, so the windows the connection hands back
+     * as bodies arrive cannot make it buffer without limit. Defaults to 1MB.
+     */
+    public void setMaxRequestBytes (int maxRequestBytes)
+    {
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    /**
+     * True if the bytes could be the start of the client connection preface, i.e. prior knowledge HTTP/2 (or
+     * HTTP/2 negotiated through ALPN). Needs at least 3 bytes to tell it apart from POST, PUT and PATCH.
+     */
+    public static boolean isPreface (byte[] dataBytes, int offset, int length)
+    {
+        if (length < 3)
+            return false;
+        for (int i = 0; i < Math.min (length, CLIENT_PREFACE.length); i++)
+        {
+            if (dataBytes[offset + i] != CLIENT_PREFACE[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The HTTP2-Settings value of an HTTP/1.1 request asking to upgrade to h2c, or null if it does not ask
+     */
+    public static String getUpgradeSettings (String rawRequest)
+    {
+        boolean upgradeH2c = false;
+        String http2Settings = null;
+        for (String headerLine : rawRequest.split ("\r\n"))
+        {
+            if (headerLine.isEmpty ())
+                break;
+            int colonPos = headerLine.indexOf (':');
+            if (colonPos <= 0)
+                continue;
+            String fieldName = headerLine.substring (0, colonPos).trim ();
+            if (fieldName.equalsIgnoreCase ("Upgrade"))
+            {
+                for (String upgradeToken : headerLine.substring (colonPos + 1).split (","))
+                    upgradeH2c |= upgradeToken.trim ().equalsIgnoreCase ("h2c");
+            }
+            else if (fieldName.equalsIgnoreCase ("HTTP2-Settings"))
+                http2Settings = headerLine.substring (colonPos + 1).trim ();
+        }
+        return upgradeH2c ? http2Settings : null;
+    }
+
+    /**
+     * Send the server connection preface, our SETTINGS frame
+     */
+    public void start () throws IOException
+    {
+        byte[] settingsPayload = new byte[12];
+        putSetting (settingsPayload, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        putSetting (settingsPayload, 6, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        writeFrame (TYPE_SETTINGS, 0, 0, settingsPayload, 0, settingsPayload.length);
+        flushOutput ();
+    }
+
+    /**
+     * Take over an HTTP/1.1 connection that asked to upgrade to h2c: answer 101, send our preface and then
+     * respond to the upgrade request as stream 1 (RFC 7540 section 3.2). The client's preface follows.
+     */
+    public void upgrade (String rawRequest, String http2Settings) throws IOException
+    {
+        byte[] settingsPayload;
+        try
+        {
+            settingsPayload = Base64.getUrlDecoder ().decode (http2Settings);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "Invalid HTTP2-Settings");
+        }
+        if (settingsPayload.length % 6 != 0)
+            throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "Invalid HTTP2-Settings");
+        applySettings (settingsPayload, 0, settingsPayload.length);
+
+        HttpResponse.writeFully (connectionChannel, ByteBuffer.wrap (SWITCHING_PROTOCOLS));
+        start ();
+        lastStreamId = 1;
+        Http2Stream upgradeStream = new Http2Stream (1, peerInitialWindowSize, DEFAULT_WINDOW_SIZE);
+        upgradeStream.remoteClosed = true;
+        openStreams.put (1, upgradeStream);
+        try
+        {
+            respond (upgradeStream, rawRequest, rawRequest.startsWith ("HEAD "));
+        }
+        catch (Http2Exception e)
+        {
+            resetStream (1, e.getErrorCode ());
+        }
+        flushOutput ();
+    }
+
+    /**
+     * Handle as many complete frames as the bytes hold. Returns the number of bytes consumed, the rest being an
+     * incomplete frame to pass in again with more data, or -1 once the connection is finished and should be
+     * closed.
+     */
+    public int onBytes (byte[] dataBytes, int offset, int length) throws IOException
+    {
+        int position = offset;
+        int dataEnd = offset + length;
+        try
+        {
+            if (!prefaceReceived)
+            {
+                if (!isPreface (dataBytes, offset, length) && length >= 3)
+                    throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+                if (length < CLIENT_PREFACE.length)
+                    return 0;
+                position += CLIENT_PREFACE.length;
+                prefaceReceived = true;
+            }
+
+            while (!closed && dataEnd - position >= FRAME_HEADER_LENGTH)
+            {
+                int frameLength = ((dataBytes[position] & 0xff) << 16) | ((dataBytes[position + 1] & 0xff) << 8) | (dataBytes[position + 2] & 0xff);
+                if (frameLength > DEFAULT_MAX_FRAME_SIZE)
+                    throw Http2Exception.connectionError (Http2Exception.FRAME_SIZE_ERROR, "Frame of " + frameLength + " bytes");
+                if (dataEnd - position - FRAME_HEADER_LENGTH < frameLength)
+                    break;
+                int frameType = dataBytes[position + 3] & 0xff;
+                int frameFlags = dataBytes[position + 4] & 0xff;
+                int streamId = getInt (dataBytes, position + 5) & 0x7fffffff;
+                try
+                {
+                    handleFrame (frameType, frameFlags, streamId, dataBytes, position + FRAME_HEADER_LENGTH, frameLength);
+                }
+                catch (Http2Exception e)
+                {
+                    if (e.getStreamId () == 0)
+                        throw e;
+                    resetStream (e.getStreamId (), e.getErrorCode ());
+                }
+                position += FRAME_HEADER_LENGTH + frameLength;
+            }
+            flushOutput ();
+            return closed ? -1 : position - offset;
+        }
+        catch (Http2Exception e)
+        {
+            goAway (e.getErrorCode ());
+            return -1;
+        }
+    }
+
+    /**
+     * Say goodbye with GOAWAY, unless either side already has
+     */
+    public void close () throws IOException
+    {
+        if (!closed)
+            goAway (Http2Exception.NO_ERROR);
+    }
+
+    /**
+     * The number of streams currently open
+     */
+    public int getOpenStreams ()
+    {
+        return openStreams.size ();
+    }
+
+    private void handleFrame (int frameType, int frameFlags, int streamId, byte[] dataBytes, int offset, int length) throws IOException
+    {
+        if (headerBlockStreamId != 0 && (frameType != TYPE_CONTINUATION || streamId != headerBlockStreamId))
+            throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "Expected CONTINUATION for stream " + headerBlockStreamId);
+        switch (frameType)
+        {
+            case TYPE_DATA:
+                handleData (frameFlags, streamId, dataBytes, offset, length);
+                break;
+            case TYPE_HEADERS:
+                handleHeaders (frameFlags, streamId, dataBytes, offset, length);
+                break;
+            case TYPE_PRIORITY:
+                if (streamId == 0)
+                    throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+                if (length != 5)
+                    throw Http2Exception.streamError (streamId, Http2Exception.FRAME_SIZE_ERROR, "PRIORITY of " + length + " bytes");
+                break;    // advisory only, streams are served in the order they complete
+            case TYPE_RST_STREAM:
+                if (length != 4)
+                    throw Http2Exception.connectionError (Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+                checkStreamNotIdle (streamId);
+                openStreams.remove (streamId);
+                break;
+            case TYPE_SETTINGS:
+                handleSettings (frameFlags, streamId, dataBytes, offset, length);
+                break;
+            case TYPE_PUSH_PROMISE:
+                throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case TYPE_PING:
+                if (length != 8)
+                    throw Http2Exception.connectionError (Http2Exception.FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+                if (streamId != 0)
+                    throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "PING on stream " + streamId);
+                if ((frameFlags & FLAG_ACK) == 0)
+                    writeFrame (TYPE_PING, FLAG_ACK, 0, dataBytes, offset, length);
+                break;
+            case TYPE_GOAWAY:
+                if (streamId != 0)
+                    throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+                closed = true;
+                break;
+            case TYPE_WINDOW_UPDATE:
+                handleWindowUpdate (streamId, dataBytes, offset, length);
+                break;
+            case TYPE_CONTINUATION:
+                handleContinuation (frameFlags, streamId, dataBytes, offset, length);
+                break;
+            default:
+                break;    // unknown frame types must be ignored
+        }
+    }
+
+    private void handleData (int frameFlags, int streamId, byte[] dataBytes, int offset, int length) throws IOException
+    {
+        if (streamId == 0)
+            throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        receiveWindow -= length;
+        if (receiveWindow < 0)
+            throw Http2Exception.connectionError (Http2Exception.FLOW_CONTROL_ERROR, "Connection window exceeded");
+        // Request bodies are taken in as they arrive, so the connection window is handed straight back
+        if (length > 0)
+        {
+            writeWindowUpdate (0, length);
+            receiveWindow += length;
+        }
+
+        Http2Stream http2Stream = openStreams.get (streamId);
+        if (http2Stream == null || http2Stream.remoteClosed)
+        {
+            checkStreamNotIdle (streamId);
+            throw Http2Exception.streamError (streamId, Http2Exception.STREAM_CLOSED, "DATA on closed stream");
+        }
+        http2Stream.receiveWindow -= length;
+        if (http2Stream.receiveWindow < 0)
+            throw Http2Exception.streamError (streamId, Http2Exception.FLOW_CONTROL_ERROR, "Stream window exceeded");
+
+        int dataOffset = offset;
+        int dataLength = length;
+        if ((frameFlags & FLAG_PADDED) != 0)
+        {
+            int padLength = length > 0 ? dataBytes[offset] & 0xff : length;
+            if (padLength >= length)
+                throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "Padding exceeds frame");
+            dataOffset++;
+            dataLength -= 1 + padLength;
+        }
+        if (http2Stream.getBodyLength () + dataLength > maxRequestBytes)
+        {
+            refuseTooLarge (streamId);
+            return;
+        }
+        http2Stream.appendBody (dataBytes, dataOffset, dataLength);
+
+        if ((frameFlags & FLAG_END_STREAM) != 0)
+        {
+            http2Stream.remoteClosed = true;
+            respond (http2Stream, http2Stream.toRawRequest (), http2Stream.isHeadRequest ());
+        }
+        else if (length > 0)
+        {
+            writeWindowUpdate (streamId, length);
+            http2Stream.receiveWindow += length;
+        }
+    }
+
+    private void handleHeaders (int frameFlags, int streamId, byte[] dataBytes, int offset, int length) throws IOException
+    {
+        if (streamId == 0)
+            throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "HEADERS on stream 0");
+        int blockOffset = offset;
+        int blockLength = length;
+        if ((frameFlags & FLAG_PADDED) != 0)
+        {
+            if (length < 1)
+                throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "Padding exceeds frame");
+            blockOffset++;
+            blockLength -= 1 + (dataBytes[offset] & 0xff);
+        }
+        if ((frameFlags & FLAG_PRIORITY) != 0)
+        {
+            blockOffset += 5;
+            blockLength -= 5;
+        }
+        if (blockLength < 0)
+            throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "Padding exceeds frame");
+
+        boolean endStream = (frameFlags & FLAG_END_STREAM) != 0;
+        if ((frameFlags & FLAG_END_HEADERS) != 0)
+        {
+            handleHeaderBlock (streamId, endStream, dataBytes, blockOffset, blockLength);
+            return;
+        }
+        headerBlockStreamId = streamId;
+        headerBlockEndStream = endStream;
+        headerBlock = new ByteArrayOutputStream (blockLength * 2);
+        headerBlock.write (dataBytes, blockOffset, blockLength);
+    }
+
+    private void handleContinuation (int frameFlags, int streamId, byte[] dataBytes, int offset, int length) throws IOException
+    {
+        if (headerBlockStreamId == 0)
+            throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        headerBlock.write (dataBytes, offset, length);
+        if (headerBlock.size () > MAX_HEADER_LIST_SIZE)
+            throw Http2Exception.connectionError (Http2Exception.ENHANCE_YOUR_CALM, "Header block larger than " + MAX_HEADER_LIST_SIZE);
+        if ((frameFlags & FLAG_END_HEADERS) == 0)
+            return;
+        byte[] blockBytes = headerBlock.toByteArray ();
+        headerBlockStreamId = 0;
+        headerBlock = null;
+        handleHeaderBlock (streamId, headerBlockEndStream, blockBytes, 0, blockBytes.length);
+    }
+
+    private void handleHeaderBlock (int streamId, boolean endStream, byte[] blockBytes, int offset, int length) throws IOException
+    {
+        // Always decode, even for a stream that will be refused, or the HPACK tables fall out of step
+        List <Pair <String, String>> headerList = hpackDecoder.decode (blockBytes, offset, length);
+
+        Http2Stream http2Stream = openStreams.get (streamId);
+        if (http2Stream != null)
+        {
+            // Trailers end the request, their fields are not passed on
+            if (http2Stream.remoteClosed)
+                throw Http2Exception.streamError (streamId, Http2Exception.STREAM_CLOSED, "HEADERS on closed stream");
+            if (!endStream)
+                throw Http2Exception.streamError (streamId, Http2Exception.PROTOCOL_ERROR, "Trailers without END_STREAM");
+            http2Stream.remoteClosed = true;
+            respond (http2Stream, http2Stream.toRawRequest (), http2Stream.isHeadRequest ());
+            return;
+        }
+
+        if ((streamId & 1) == 0)
+            throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "Client stream " + streamId + " is even");
+        if (streamId <= lastStreamId)
+            throw Http2Exception.connectionError (Http2Exception.STREAM_CLOSED, "Stream " + streamId + " is closed");
+        lastStreamId = streamId;
+        if (openStreams.size () >= MAX_CONCURRENT_STREAMS)
+            throw Http2Exception.streamError (streamId, Http2Exception.REFUSED_STREAM, "Too many concurrent streams");
+
+        http2Stream = new Http2Stream (streamId, peerInitialWindowSize, DEFAULT_WINDOW_SIZE);
+        http2Stream.setRequestHeaders (headerList);
+        openStreams.put (streamId, http2Stream);
+        if (endStream)
+        {
+            http2Stream.remoteClosed = true;
+            respond (http2Stream, http2Stream.toRawRequest (), http2Stream.isHeadRequest ());
+        }
+    }
+
+    private void handleSettings (int frameFlags, int streamId, byte[] dataBytes, int offset, int length) throws IOException
+    {
+        if (streamId != 0)
+            throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        if ((frameFlags & FLAG_ACK) != 0)
+        {
+            if (length != 0)
+                throw Http2Exception.connectionError (Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+            return;
+        }
+        if (length % 6 != 0)
+            throw Http2Exception.connectionError (Http2Exception.FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        applySettings (dataBytes, offset, length);
+        writeFrame (TYPE_SETTINGS, FLAG_ACK, 0, EMPTY_PAYLOAD, 0, 0);
+        // A larger initial window may let blocked streams continue
+        flushStreams ();
+    }
+
+    private void applySettings (byte[] dataBytes, int offset, int length) throws Http2Exception
+    {
+        for (int i = offset; i + 6 <= offset + length; i += 6)
+        {
+            int settingId = ((dataBytes[i] & 0xff) << 8) | (dataBytes[i + 1] & 0xff);
+            long settingValue = getInt (dataBytes, i + 2) & 0xffffffffL;
+            switch (settingId)
+            {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    hpackEncoder.setMaxTableSize ((int) Math.min (settingValue, Integer.MAX_VALUE));
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (settingValue > 1)
+                        throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    break;    // the server never pushes
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (settingValue > MAX_WINDOW_SIZE)
+                        throw Http2Exception.connectionError (Http2Exception.FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    // The change applies to every open stream's window, which may go negative
+                    int windowDelta = (int) settingValue - peerInitialWindowSize;
+                    for (Http2Stream http2Stream : openStreams.values ())
+                    {
+                        http2Stream.sendWindow += windowDelta;
+                        if (http2Stream.sendWindow > MAX_WINDOW_SIZE)
+                            throw Http2Exception.connectionError (Http2Exception.FLOW_CONTROL_ERROR, "Stream window overflow");
+                    }
+                    peerInitialWindowSize = (int) settingValue;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (settingValue < DEFAULT_MAX_FRAME_SIZE || settingValue > MAX_FRAME_SIZE_LIMIT)
+                        throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    peerMaxFrameSize = (int) settingValue;
+                    break;
+                default:
+                    break;    // the rest only limit what we send, and we stay within the defaults
+            }
+        }
+    }
+
+    private void handleWindowUpdate (int streamId, byte[] dataBytes, int offset, int length) throws IOException
+    {
+        if (length != 4)
+            throw Http2Exception.connectionError (Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+        int windowIncrement = getInt (dataBytes, offset) & 0x7fffffff;
+        if (streamId == 0)
+        {
+            if (windowIncrement == 0)
+                throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            sendWindow += windowIncrement;
+            if (sendWindow > MAX_WINDOW_SIZE)
+                throw Http2Exception.connectionError (Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow");
+        }
+        else
+        {
+            checkStreamNotIdle (streamId);
+            if (windowIncrement == 0)
+                throw Http2Exception.streamError (streamId, Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            Http2Stream http2Stream = openStreams.get (streamId);
+            if (http2Stream == null)
+                return;    // already finished, the update arrived late
+            http2Stream.sendWindow += windowIncrement;
+            if (http2Stream.sendWindow > MAX_WINDOW_SIZE)
+                throw Http2Exception.streamError (streamId, Http2Exception.FLOW_CONTROL_ERROR, "Stream window overflow");
+        }
+        flushStreams ();
+    }
+
+    // Frames other than HEADERS and PRIORITY must not refer to a stream the client has not opened yet
+    private void checkStreamNotIdle (int streamId) throws Http2Exception
+    {
+        if (streamId == 0 || streamId > lastStreamId)
+            throw Http2Exception.connectionError (Http2Exception.PROTOCOL_ERROR, "Frame for idle stream " + streamId);
+    }
+
+    // Run the request through the handler and start sending its response
+    private void respond (Http2Stream http2Stream, String rawRequest, boolean headRequest) throws IOException
+    {
+        ResponseCapture responseCapture = new ResponseCapture ();
+        try
+        {
+            requestHandler.handleRequest (rawRequest, responseCapture);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            throw Http2Exception.streamError (http2Stream.streamId, Http2Exception.INTERNAL_ERROR, e.toString ());
+        }
+        List <Pair <String, String>> responseHeaders = new ArrayList <> ();
+        ByteBuffer responseBody = responseCapture.toHttp2 (http2Stream.streamId, responseHeaders);
+        boolean endStream = headRequest || !responseBody.hasRemaining ();
+        writeHeaders (http2Stream.streamId, responseHeaders, endStream);
+        if (endStream)
+        {
+            openStreams.remove (http2Stream.streamId);
+            return;
+        }
+        http2Stream.pendingData = responseBody;
+        flushStreams ();
+    }
+
+    // Send as much pending response data as the windows allow, finishing streams as their data runs out
+    private void flushStreams () throws IOException
+    {
+        Iterator <Http2Stream> streamIterator = openStreams.values ().iterator ();
+        while (streamIterator.hasNext () && sendWindow > 0)
+        {
+            Http2Stream http2Stream = streamIterator.next ();
+            ByteBuffer pendingData = http2Stream.pendingData;
+            if (pendingData == null)
+                continue;
+            while (pendingData.hasRemaining () && http2Stream.sendWindow > 0 && sendWindow > 0)
+            {
+                int chunkLength = (int) Math.min (Math.min (pendingData.remaining (), peerMaxFrameSize), Math.min (http2Stream.sendWindow, sendWindow));
+                boolean lastChunk = chunkLength == pendingData.remaining ();
+                ByteBuffer chunkBuffer = pendingData.duplicate ();
+                chunkBuffer.limit (chunkBuffer.position () + chunkLength);
+                writeFrame (TYPE_DATA, lastChunk ? FLAG_END_STREAM : 0, http2Stream.streamId, chunkBuffer);
+                pendingData.position (pendingData.position () + chunkLength);
+                http2Stream.sendWindow -= chunkLength;
+                sendWindow -= chunkLength;
+                if (outputBuffer.position () >= OUTPUT_FLUSH_THRESHOLD)
+                    flushOutput ();
+            }
+            if (!pendingData.hasRemaining ())
+                streamIterator.remove ();
+        }
+    }
+
+    private void writeHeaders (int streamId, List <Pair <String, String>> headerList, boolean endStream)
+    {
+        ByteArrayOutputStream blockStream = new ByteArrayOutputStream ();
+        hpackEncoder.encode (headerList, blockStream);
+        byte[] blockBytes = blockStream.toByteArray ();
+
+        // A block too large for one frame continues in CONTINUATION frames
+        int fragmentLength = Math.min (blockBytes.length, peerMaxFrameSize);
+        int frameFlags = (endStream ? FLAG_END_STREAM : 0) | (fragmentLength == blockBytes.length ? FLAG_END_HEADERS : 0);
+        writeFrame (TYPE_HEADERS, frameFlags, streamId, blockBytes, 0, fragmentLength);
+        for (int blockOffset = fragmentLength; blockOffset < blockBytes.length; blockOffset += fragmentLength)
+        {
+            fragmentLength = Math.min (blockBytes.length - blockOffset, peerMaxFrameSize);
+            frameFlags = blockOffset + fragmentLength == blockBytes.length ? FLAG_END_HEADERS : 0;
+            writeFrame (TYPE_CONTINUATION, frameFlags, streamId, blockBytes, blockOffset, fragmentLength);
+        }
+    }
+
+    // Answer 413 straight away, then reset the stream so the client stops sending the rest (RFC 7540 section 8.1)
+    private void refuseTooLarge (int streamId) throws IOException
+    {
+        List <Pair <String, String>> responseHeaders = new ArrayList <> ();
+        responseHeaders.add (Pair.of (":status", "413"));
+        responseHeaders.add (Pair.of ("content-length", "0"));
+        writeHeaders (streamId, responseHeaders, true);
+        resetStream (streamId, Http2Exception.NO_ERROR);
+    }
+
+    private void writeWindowUpdate (int streamId, int windowIncrement)
+    {
+        byte[] updatePayload = new byte[4];
+        putInt (updatePayload, 0, windowIncrement);
+        writeFrame (TYPE_WINDOW_UPDATE, 0, streamId, updatePayload, 0, 4);
+    }
+
+    private void resetStream (int streamId, int errorCode) throws IOException
+    {
+        openStreams.remove (streamId);
+        byte[] resetPayload = new byte[4];
+        putInt (resetPayload, 0, errorCode);
+        writeFrame (TYPE_RST_STREAM, 0, streamId, resetPayload, 0, 4);
+    }
+
+    private void goAway (int errorCode) throws IOException
+    {
+        closed = true;
+        byte[] goAwayPayload = new byte[8];
+        putInt (goAwayPayload, 0, lastStreamId);
+        putInt (goAwayPayload, 4, errorCode);
+        writeFrame (TYPE_GOAWAY, 0, 0, goAwayPayload, 0, goAwayPayload.length);
+        flushOutput ();
+    }
+
+    private void writeFrame (int frameType, int frameFlags, int streamId, byte[] payloadBytes, int offset, int length)
+    {
+        reserveOutput (FRAME_HEADER_LENGTH + length);
+        putFrameHeader (frameType, frameFlags, streamId, length);
+        outputBuffer.put (payloadBytes, offset, length);
+    }
+
+    private void writeFrame (int frameType, int frameFlags, int streamId, ByteBuffer payloadBuffer)
+    {
+        reserveOutput (FRAME_HEADER_LENGTH + payloadBuffer.remaining ());
+        putFrameHeader (frameType, frameFlags, streamId, payloadBuffer.remaining ());
+        outputBuffer.put (payloadBuffer);
+    }
+
+    private void putFrameHeader (int frameType, int frameFlags, int streamId, int length)
+    {
+        outputBuffer.put ((byte) (length >>> 16)).put ((byte) (length >>> 8)).put ((byte) length);
+        outputBuffer.put ((byte) frameType).put ((byte) frameFlags).putInt (streamId);
+    }
+
+    private void reserveOutput (int byteCount)
+    {
+        if (outputBuffer == null)
+            outputBuffer = ByteBuffer.allocate (Math.max (OUTPUT_BUFFER_SIZE, byteCount));
+        else if (outputBuffer.remaining () < byteCount)
+        {
+            ByteBuffer grownBuffer = ByteBuffer.allocate (Math.max (outputBuffer.capacity () << 1, outputBuffer.position () + byteCount));
+            outputBuffer.flip ();
+            grownBuffer.put (outputBuffer);
+            outputBuffer = grownBuffer;
+        }
+    }
+
+    // Write every frame gathered so far in one go, then let the buffer go so an idle connection holds none
+    private void flushOutput () throws IOException
+    {
+        if (outputBuffer == null)
+            return;
+        outputBuffer.flip ();
+        ByteBuffer pendingOutput = outputBuffer;
+        outputBuffer = null;
+        HttpResponse.writeFully (connectionChannel, pendingOutput);
+    }
+
+    private static void putSetting (byte[] payloadBytes, int offset, int settingId, int settingValue)
+    {
+        payloadBytes[offset] = (byte) (settingId >>> 8);
+        payloadBytes[offset + 1] = (byte) settingId;
+        putInt (payloadBytes, offset + 2, settingValue);
+    }
+
+    private static void putInt (byte[] dataBytes, int offset, int intValue)
+    {
+        dataBytes[offset] = (byte) (intValue >>> 24);
+        dataBytes[offset + 1] = (byte) (intValue >>> 16);
+        dataBytes[offset + 2] = (byte) (intValue >>> 8);
+        dataBytes[offset + 3] = (byte) intValue;
+    }
+
+    private static int getInt (byte[] dataBytes, int offset)
+    {
+        return ((dataBytes[offset] & 0xff) << 24) | ((dataBytes[offset + 1] & 0xff) << 16) | ((dataBytes[offset + 2] & 0xff) << 8) | (dataBytes[offset + 3] & 0xff);
+    }
+}
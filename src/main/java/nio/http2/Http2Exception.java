@@ -0,0 +1,56 @@
+package nio.http2;
+
+import java.io.IOException;
+
+/**
+ * An HTTP/2 protocol error, with its RFC 7540 error code. A connection error (stream 0) ends the connection with
+ * GOAWAY, a stream error only resets the one stream with RST_STREAM.
+ */
+public class Http2Exception extends IOException
+{
+    public static final int NO_ERROR = 0x0;
+    public static final int PROTOCOL_ERROR = 0x1;
+    public static final int INTERNAL_ERROR = 0x2;
+    public static final int FLOW_CONTROL_ERROR = 0x3;
+    public static final int STREAM_CLOSED = 0x5;
+    public static final int FRAME_SIZE_ERROR = 0x6;
+    public static final int REFUSED_STREAM = 0x7;
+    public static final int CANCEL = 0x8;
+    public static final int COMPRESSION_ERROR = 0x9;
+    public static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final long serialVersionUID = 1L;
+
+    private final int errorCode;
+    private final int streamId;
+
+    private Http2Exception (int errorCode, int streamId, String errorMessage)
+    {
+        super (errorMessage);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    public static Http2Exception connectionError (int errorCode, String errorMessage)
+    {
+        return new Http2Exception (errorCode, 0, errorMessage);
+    }
+
+    public static Http2Exception streamError (int streamId, int errorCode, String errorMessage)
+    {
+        return new Http2Exception (errorCode, streamId, errorMessage);
+    }
+
+    public int getErrorCode ()
+    {
+        return errorCode;
+    }
+
+    /**
+     * The stream to reset, or 0 if the whole connection has failed
+     */
+    public int getStreamId ()
+    {
+        return streamId;
+    }
+}
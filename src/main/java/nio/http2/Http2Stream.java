@@ -0,0 +1,172 @@
+package nio.http2;
+
+import nio.util.Pair;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One client initiated stream: the request as it arrives, its flow control windows and, once the app has
+ * answered, the part of the response body still waiting for window.
+ */
+final class Http2Stream
+{
+    // Hop by hop headers have no place in HTTP/2 (RFC 7540 section 8.1.2.2)
+    static final Set <String> CONNECTION_HEADERS = new HashSet <> (Arrays.asList ("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+    final int streamId;
+    long sendWindow;
+    int receiveWindow;
+    boolean remoteClosed;
+    ByteBuffer pendingData;
+    private String httpMethod;
+    private String reqPath;
+    private String reqAuthority;
+    private final List <Pair <String, String>> reqHeaders = new ArrayList <> ();
+    private String reqCookies;
+    private ByteArrayOutputStream reqBody;
+
+    Http2Stream (int streamId, int sendWindow, int receiveWindow)
+    {
+        this.streamId = streamId;
+        this.sendWindow = sendWindow;
+        this.receiveWindow = receiveWindow;
+    }
+
+    /**
+     * Take the request's header list, rejecting anything malformed (RFC 7540 section 8.1.2) with a stream error
+     */
+    void setRequestHeaders (List <Pair <String, String>> headerList) throws Http2Exception
+    {
+        boolean regularSeen = false;
+        for (Pair <String, String> headerField : headerList)
+        {
+            String fieldName = headerField.getFirstItem ();
+            String fieldValue = headerField.getSecondItem ();
+            if (!isValidField (fieldName, fieldValue))
+                throw malformed ("Invalid header field " + fieldName);
+            if (fieldName.startsWith (":"))
+            {
+                if (regularSeen)
+                    throw malformed ("Pseudo header after regular header");
+                setPseudoHeader (fieldName, fieldValue);
+            }
+            else
+            {
+                regularSeen = true;
+                if (CONNECTION_HEADERS.contains (fieldName) || (fieldName.equals ("te") && !fieldValue.equals ("trailers")))
+                    throw malformed ("Connection specific header " + fieldName);
+                // Cookies may be split into several fields, they are joined again for HTTP/1.1 (section 8.1.2.5)
+                if (fieldName.equals ("cookie"))
+                    reqCookies = reqCookies == null ? fieldValue : reqCookies + "; " + fieldValue;
+                else
+                    reqHeaders.add (headerField);
+            }
+        }
+        if (httpMethod == null || reqPath == null || reqPath.isEmpty ())
+            throw malformed ("Missing :method or :path");
+    }
+
+    private void setPseudoHeader (String fieldName, String fieldValue) throws Http2Exception
+    {
+        switch (fieldName)
+        {
+            case ":method":
+                if (httpMethod != null)
+                    throw malformed ("Duplicate :method");
+                httpMethod = fieldValue;
+                break;
+            case ":path":
+                if (reqPath != null || fieldValue.indexOf (' ') >= 0)
+                    throw malformed ("Duplicate or invalid :path");
+                reqPath = fieldValue;
+                break;
+            case ":authority":
+                reqAuthority = fieldValue;
+                break;
+            case ":scheme":
+                break;
+            default:
+                throw malformed ("Unknown pseudo header " + fieldName);
+        }
+    }
+
+    // Names must be lower case, and nothing may break the HTTP/1.1 form the request is passed on in
+    private static boolean isValidField (String fieldName, String fieldValue)
+    {
+        if (fieldName.isEmpty ())
+            return false;
+        for (int i = 0; i < fieldName.length (); i++)
+        {
+            char nameChar = fieldName.charAt (i);
+            if ((nameChar >= 'A' && nameChar <= 'Z') || nameChar <= ' ' || (nameChar == ':' && i > 0))
+                return false;
+        }
+        for (int i = 0; i < fieldValue.length (); i++)
+        {
+            char valueChar = fieldValue.charAt (i);
+            if (valueChar == '\r' || valueChar == '\n' || valueChar == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private Http2Exception malformed (String errorMessage)
+    {
+        return Http2Exception.streamError (streamId, Http2Exception.PROTOCOL_ERROR, errorMessage);
+    }
+
+    void appendBody (byte[] dataBytes, int offset, int length)
+    {
+        if (length == 0)
+            return;
+        if (reqBody == null)
+            reqBody = new ByteArrayOutputStream (length);
+        reqBody.write (dataBytes, offset, length);
+    }
+
+    int getBodyLength ()
+    {
+        return reqBody == null ? 0 : reqBody.size ();
+    }
+
+    boolean isHeadRequest ()
+    {
+        return "HEAD".equals (httpMethod);
+    }
+
+    /**
+     * The request in the HTTP/1.1 form HttpRequest parses. Only POST bodies are passed on, as HttpRequest only
+     * reads form parameters.
+     */
+    String toRawRequest ()
+    {
+        StringBuilder rawRequest = new StringBuilder ();
+        rawRequest.append (httpMethod).append (' ').append (reqPath).append (" HTTP/2.0\r\n");
+        boolean hostSeen = false;
+        boolean lengthSeen = false;
+        for (Pair <String, String> headerField : reqHeaders)
+        {
+            hostSeen |= headerField.getFirstItem ().equals ("host");
+            lengthSeen |= headerField.getFirstItem ().equals ("content-length");
+            rawRequest.append (headerField.getFirstItem ()).append (": ").append (headerField.getSecondItem ()).append ("\r\n");
+        }
+        if (!hostSeen && reqAuthority != null)
+            rawRequest.append ("host: ").append (reqAuthority).append ("\r\n");
+        if (reqCookies != null)
+            rawRequest.append ("cookie: ").append (reqCookies).append ("\r\n");
+        if (reqBody != null && httpMethod.equals ("POST"))
+        {
+            if (!lengthSeen)
+                rawRequest.append ("content-length: ").append (reqBody.size ()).append ("\r\n");
+            rawRequest.append ("\r\n").append (new String (reqBody.toByteArray (), StandardCharsets.UTF_8));
+        }
+        return rawRequest.toString ();
+    }
+}
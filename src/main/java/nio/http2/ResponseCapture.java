@@ -0,0 +1,108 @@
+package nio.http2;
+
+import nio.util.Pair;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the HTTP/1.1 response an app (or the response cache) writes for a stream, and splits it into the
+ * header list and body HTTP/2 sends. This keeps HttpResponse, and every cached response, unaware of the
+ * protocol the client speaks.
+ */
+final class ResponseCapture implements WritableByteChannel
+{
+    private byte[] responseBytes = new byte[1024];
+    private int byteCount;
+
+    public int write (ByteBuffer srcBuffer)
+    {
+        int writeCount = srcBuffer.remaining ();
+        if (byteCount + writeCount > responseBytes.length)
+            responseBytes = Arrays.copyOf (responseBytes, Math.max (responseBytes.length << 1, byteCount + writeCount));
+        srcBuffer.get (responseBytes, byteCount, writeCount);
+        byteCount += writeCount;
+        return writeCount;
+    }
+
+    public boolean isOpen ()
+    {
+        return true;
+    }
+
+    public void close ()
+    {
+    }
+
+    /**
+     * Fill headerList with :status and the end to end headers, lower cased, and return the body
+     */
+    ByteBuffer toHttp2 (int streamId, List <Pair <String, String>> headerList) throws Http2Exception
+    {
+        int headerEnd = -1;
+        for (int i = 0; i + 3 < byteCount; i++)
+        {
+            if (responseBytes[i] == '\r' && responseBytes[i + 1] == '\n' && responseBytes[i + 2] == '\r' && responseBytes[i + 3] == '\n')
+            {
+                headerEnd = i;
+                break;
+            }
+        }
+        if (headerEnd < 0)
+            throw Http2Exception.streamError (streamId, Http2Exception.INTERNAL_ERROR, "Incomplete response");
+
+        String[] headerLines = new String (responseBytes, 0, headerEnd, StandardCharsets.ISO_8859_1).split ("\r\n");
+        String[] statusLine = headerLines[0].split (" ", 3);
+        if (statusLine.length < 2 || statusLine[1].length () != 3)
+            throw Http2Exception.streamError (streamId, Http2Exception.INTERNAL_ERROR, "Invalid status line " + headerLines[0]);
+        headerList.add (Pair.of (":status", statusLine[1]));
+        boolean chunked = false;
+        for (int i = 1; i < headerLines.length; i++)
+        {
+            int colonPos = headerLines[i].indexOf (':');
+            if (colonPos <= 0)
+                continue;
+            String fieldName = headerLines[i].substring (0, colonPos).trim ().toLowerCase ();
+            String fieldValue = headerLines[i].substring (colonPos + 1).trim ();
+            if (!Http2Stream.CONNECTION_HEADERS.contains (fieldName))
+                headerList.add (Pair.of (fieldName, fieldValue));
+            else if (fieldName.equals ("transfer-encoding") && fieldValue.equalsIgnoreCase ("chunked"))
+                chunked = true;
+        }
+        if (chunked)
+            return joinChunks (streamId, headerEnd + 4);
+        return ByteBuffer.wrap (responseBytes, headerEnd + 4, byteCount - headerEnd - 4);
+    }
+
+    // A streamed response's body with its chunk framing taken out, as HTTP/2 frames it itself
+    private ByteBuffer joinChunks (int streamId, int chunkStart) throws Http2Exception
+    {
+        byte[] bodyBytes = new byte[byteCount - chunkStart];
+        int bodyLength = 0;
+        while (true)
+        {
+            int lineEnd = chunkStart;
+            while (lineEnd + 1 < byteCount && !(responseBytes[lineEnd] == '\r' && responseBytes[lineEnd + 1] == '\n'))
+                lineEnd++;
+            int chunkLength;
+            try
+            {
+                chunkLength = Integer.parseInt (new String (responseBytes, chunkStart, lineEnd - chunkStart, StandardCharsets.ISO_8859_1).trim (), 16);
+            }
+            catch (NumberFormatException e)
+            {
+                throw Http2Exception.streamError (streamId, Http2Exception.INTERNAL_ERROR, "Invalid chunk size");
+            }
+            if (chunkLength == 0)
+                return ByteBuffer.wrap (bodyBytes, 0, bodyLength);
+            if (lineEnd + 2 + chunkLength > byteCount)
+                throw Http2Exception.streamError (streamId, Http2Exception.INTERNAL_ERROR, "Incomplete response");
+            System.arraycopy (responseBytes, lineEnd + 2, bodyBytes, bodyLength, chunkLength);
+            bodyLength += chunkLength;
+            chunkStart = lineEnd + 2 + chunkLength + 2;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package nio.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Accepting one connection: the accept call, configuring the socket, creating its state (an SSLEngine for TLS)
+ * and registering it with the selector
+ */
+@Name ("nio.Accept")
+@Label ("Connection Accept")
+@Category ("NIO Webserver")
+@Description ("A connection accepted and registered with the selector")
+@StackTrace (false)
+@Threshold ("1 ms")
+public class AcceptEvent extends Event
+{
+    @Label ("Connection ID")
+    int connectionId;
+
+    @Label ("Remote Address")
+    String remoteAddress;
+}
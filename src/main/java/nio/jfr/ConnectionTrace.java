@@ -0,0 +1,82 @@
+package nio.jfr;
+
+import nio.util.ConnectionIds;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Flight Recorder events for a connection outside its requests: the nio.Accept event for accepting it, and the
+ * nio.WorkerQueue event for each wait it has in a pooled server's queue. As with RequestTrace, the begin methods
+ * return null when no recording has the event enabled, and an event is only committed if it is over its
+ * threshold.
+ */
+public final class ConnectionTrace
+{
+    private final AcceptEvent acceptEvent;
+    private final WorkerQueueEvent queueEvent;
+
+    private ConnectionTrace (AcceptEvent acceptEvent, WorkerQueueEvent queueEvent)
+    {
+        this.acceptEvent = acceptEvent;
+        this.queueEvent = queueEvent;
+    }
+
+    /**
+     * A trace begun just before a connection is accepted, or null if no recording wants it
+     */
+    public static ConnectionTrace beginAccept ()
+    {
+        AcceptEvent acceptEvent = new AcceptEvent ();
+        if (!acceptEvent.isEnabled ())
+            return null;
+        acceptEvent.begin ();
+        return new ConnectionTrace (acceptEvent, null);
+    }
+
+    /**
+     * A trace begun as a readable connection is queued for a worker, or null if no recording wants it
+     */
+    public static ConnectionTrace beginQueued ()
+    {
+        WorkerQueueEvent queueEvent = new WorkerQueueEvent ();
+        if (!queueEvent.isEnabled ())
+            return null;
+        queueEvent.begin ();
+        return new ConnectionTrace (null, queueEvent);
+    }
+
+    /**
+     * The connection has been accepted and registered
+     */
+    public void accepted (SocketChannel socketChannel)
+    {
+        acceptEvent.end ();
+        if (!acceptEvent.shouldCommit ())
+            return;
+        acceptEvent.connectionId = ConnectionIds.getConnectionId (socketChannel);
+        try
+        {
+            // Unix domain channels have no Socket to ask
+            acceptEvent.remoteAddress = String.valueOf (socketChannel.getRemoteAddress ());
+        }
+        catch (IOException e)
+        {
+            acceptEvent.remoteAddress = null;
+        }
+        acceptEvent.commit ();
+    }
+
+    /**
+     * A worker has taken the connection from the queue
+     */
+    public void dequeued (SelectableChannel clientChannel)
+    {
+        queueEvent.end ();
+        if (!queueEvent.shouldCommit ())
+            return;
+        queueEvent.connectionId = ConnectionIds.getConnectionId (clientChannel);
+        queueEvent.commit ();
+    }
+}
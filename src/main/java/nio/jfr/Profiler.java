@@ -0,0 +1,42 @@
+package nio.jfr;
+
+import java.io.IOException;
+
+/**
+ * Profiles the running JVM for a while and reports what it saw, for the server's profiling endpoint. The
+ * implementation, StreamingProfiler, streams Flight Recorder events with a RecordingStream. It needs Java 16
+ * and is only built when the build runs on JDK 16 or later, so it is found by name.
+ */
+public interface Profiler
+{
+    /**
+     * Collapsed CPU stacks, then the top allocation sites and the most contended locks
+     */
+    int FULL_REPORT = 0;
+    /**
+     * Only the collapsed CPU stacks, as flamegraph.pl reads them
+     */
+    int COLLAPSED_STACKS = 1;
+
+    /**
+     * Record for durationMillis, blocking the caller, and return the report. Throws IllegalStateException if
+     * another profile is being recorded.
+     */
+    String profile (long durationMillis, int reportType) throws IOException;
+
+    /**
+     * A profiler for this JVM, or null if it cannot have one
+     */
+    static Profiler newProfiler ()
+    {
+        try
+        {
+            return Class.forName ("nio.jfr.StreamingProfiler").asSubclass (Profiler.class).getDeclaredConstructor ().newInstance ();
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            // Not built, or built for a newer JVM than this one
+            return null;
+        }
+    }
+}
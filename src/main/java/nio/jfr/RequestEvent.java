@@ -0,0 +1,63 @@
+package nio.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * One HTTP/1.1 request or HTTP/2 stream, from the read of its bytes to the end of its response, with the time
+ * split into the phases it went through
+ */
+@Name ("nio.Request")
+@Label ("HTTP Request")
+@Category ("NIO Webserver")
+@Description ("A request serviced by the server, with the time spent in each phase")
+@StackTrace (false)
+@Threshold ("20 ms")
+public class RequestEvent extends Event
+{
+    @Label ("Connection ID")
+    @Description ("Identity of the connection, the same as in its accept and worker queue events")
+    int connectionId;
+
+    @Label ("Method")
+    String httpMethod;
+
+    @Label ("Location")
+    String reqLocation;
+
+    @Label ("App")
+    String appName;
+
+    @Label ("Status")
+    @Description ("Response status, or 0 for a response written from the response cache")
+    int statusCode;
+
+    @Label ("Bytes Sent")
+    @DataAmount
+    long bytesSent;
+
+    @Label ("Parse Time")
+    @Timespan
+    long parseTime;
+
+    @Label ("Dispatch Time")
+    @Description ("Cache, readiness and proxy checks and finding the app")
+    @Timespan
+    long dispatchTime;
+
+    @Label ("App Time")
+    @Description ("The app's service method, less the time it spent writing")
+    @Timespan
+    long appTime;
+
+    @Label ("Write Time")
+    @Timespan
+    long writeTime;
+}
@@ -0,0 +1,102 @@
+package nio.jfr;
+
+import nio.api.HttpRequest;
+import nio.api.HttpResponse;
+
+/**
+ * The phases of one request, timed for a Flight Recorder nio.Request event. The server starts a trace when the
+ * request's bytes are complete and marks each phase as it ends. The event is committed at the end only if its
+ * duration is over the threshold set in the recording (20 ms by default), so a continuous recording keeps just
+ * the slow requests. When no recording has the event enabled, begin () returns null and nothing is timed.
+ *
+ * Only the server uses this, and only where the JVM has Flight Recorder (Platform.FLIGHT_RECORDER), so the
+ * jdk.jfr classes are never loaded where they are missing.
+ */
+public final class RequestTrace
+{
+    private final RequestEvent requestEvent;
+    private final long beginNanos;
+    private long parsedNanos;
+    private long dispatchedNanos;
+    private long servicedNanos;
+
+    private RequestTrace (RequestEvent requestEvent, int connectionId)
+    {
+        this.requestEvent = requestEvent;
+        requestEvent.connectionId = connectionId;
+        requestEvent.begin ();
+        beginNanos = System.nanoTime ();
+    }
+
+    /**
+     * A trace for a request on the given connection, or null if no recording wants it
+     */
+    public static RequestTrace begin (int connectionId)
+    {
+        RequestEvent requestEvent = new RequestEvent ();
+        return requestEvent.isEnabled () ? new RequestTrace (requestEvent, connectionId) : null;
+    }
+
+    /**
+     * The request has been parsed
+     */
+    public void parsed ()
+    {
+        parsedNanos = System.nanoTime ();
+    }
+
+    /**
+     * The app has been found and is about to be called
+     */
+    public void dispatched ()
+    {
+        dispatchedNanos = System.nanoTime ();
+    }
+
+    /**
+     * The app has returned
+     */
+    public void serviced ()
+    {
+        servicedNanos = System.nanoTime ();
+    }
+
+    /**
+     * The response has been written, or for a null response, written from the response cache. Commits the event if
+     * the request took long enough.
+     */
+    public void end (HttpRequest httpRequest, HttpResponse httpResponse)
+    {
+        requestEvent.end ();
+        if (!requestEvent.shouldCommit ())
+            return;
+        long endNanos = System.nanoTime ();
+        long parsedNanos = this.parsedNanos != 0 ? this.parsedNanos : endNanos;
+        long writeNanos = httpResponse != null ? httpResponse.getWriteNanos () : 0;
+        requestEvent.parseTime = parsedNanos - beginNanos;
+        if (dispatchedNanos != 0)
+        {
+            long servicedNanos = this.servicedNanos != 0 ? this.servicedNanos : endNanos;
+            requestEvent.dispatchTime = dispatchedNanos - parsedNanos;
+            requestEvent.appTime = Math.max (0, servicedNanos - dispatchedNanos - writeNanos);
+        }
+        else
+        {
+            // Answered by the server itself: the cache, a readiness check, the proxy or a 404
+            requestEvent.dispatchTime = Math.max (0, endNanos - parsedNanos - writeNanos);
+        }
+        requestEvent.writeTime = writeNanos;
+        if (httpRequest != null)
+        {
+            requestEvent.httpMethod = httpRequest.getHttpMethod ();
+            requestEvent.reqLocation = httpRequest.getReqLocation ();
+            requestEvent.appName = httpRequest.getAppName ();
+        }
+        if (httpResponse != null)
+        {
+            requestEvent.statusCode = httpResponse.getResponseCode ();
+            requestEvent.bytesSent = httpResponse.getCommittedLength ();
+        }
+        requestEvent.commit ();
+    }
+}
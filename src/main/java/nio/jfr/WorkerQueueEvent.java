@@ -0,0 +1,24 @@
+package nio.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A readable connection waiting in a pooled server's queue for a worker to service it
+ */
+@Name ("nio.WorkerQueue")
+@Label ("Worker Queue Wait")
+@Category ("NIO Webserver")
+@Description ("A readable connection waiting for a worker")
+@StackTrace (false)
+@Threshold ("5 ms")
+public class WorkerQueueEvent extends Event
+{
+    @Label ("Connection ID")
+    int connectionId;
+}
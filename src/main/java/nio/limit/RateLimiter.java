@@ -0,0 +1,329 @@
+package nio.limit;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token-bucket rate limits per client and per route, checked against the raw bytes of a request before it is
+ * serviced. A client is its IP address or, if a key header is set and present, the value of that header (an API
+ * key, say). A route is a path prefix with one bucket shared by every client. A request must get a permit from
+ * both buckets that apply to it.
+ *
+ * Each bucket is one long, the time it will be full again (the generic cell rate algorithm), updated by
+ * compare-and-set, so checking a request takes no lock and allocates nothing. Client buckets live in a fixed table
+ * of maxClients slots split into stripes of eight, one cache line of key hashes each. A client always maps to the
+ * same stripe. A bucket that has filled up again is the same as a new one, so its slot is free for another
+ * client without losing anything; when a stripe has none free, the bucket due to be full soonest is evicted.
+ * Memory stays bounded however many clients there are. Under contention the limits are approximate.
+ *
+ * Pass it to NioWebServer.setRateLimiter () before the server starts. One instance may be shared by every loop.
+ */
+public class RateLimiter
+{
+    private static final int STRIPE_SLOTS = 8;
+    private static final long EMPTY_KEY = 0;
+    private static final long ADDRESS_SEED = 0x9E3779B97F4A7C15L;
+    private static final long HEADER_SEED = 0xC2B2AE3D27D4EB4FL;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final int stripeMask;
+    private final AtomicLongArray keyHashes;
+    private final AtomicLongArray clientFullAt;
+    // Bucket times count from here, so 0 is always in the past
+    private final long originNanos = System.nanoTime () - 1;
+    private long clientIntervalNanos;
+    private long clientBurstNanos;
+    private byte[] keyHeader;
+    private RouteLimit[] routeLimits = new RouteLimit[0];
+    private final AtomicLong evictionCount = new AtomicLong ();
+
+    private static final class RouteLimit
+    {
+        final byte[] prefixBytes;
+        final long intervalNanos;
+        final long burstNanos;
+        final AtomicLongArray fullAt = new AtomicLongArray (1);
+
+        RouteLimit (String pathPrefix, long intervalNanos, long burstNanos)
+        {
+            this.prefixBytes = pathPrefix.getBytes (StandardCharsets.ISO_8859_1);
+            this.intervalNanos = intervalNanos;
+            this.burstNanos = burstNanos;
+        }
+    }
+
+    /**
+     * Keep buckets for up to maxClients clients at a time, rounded up to a power of two
+     */
+    public RateLimiter (int maxClients)
+    {
+        int tableSize = Math.max (STRIPE_SLOTS, Integer.highestOneBit (Math.max (1, maxClients - 1)) << 1);
+        stripeMask = tableSize / STRIPE_SLOTS - 1;
+        keyHashes = new AtomicLongArray (tableSize);
+        clientFullAt = new AtomicLongArray (tableSize);
+    }
+
+    /**
+     * Let each client make permitsPerSecond requests a second on average, and up to burst at once
+     */
+    public void setClientLimit (double permitsPerSecond, int burst)
+    {
+        clientIntervalNanos = getIntervalNanos (permitsPerSecond, burst);
+        clientBurstNanos = clientIntervalNanos * burst;
+    }
+
+    /**
+     * Let all clients together make permitsPerSecond requests a second to a path prefix, and up to burst at
+     * once. A prefix matches its own path and anything below it; the longest matching prefix applies.
+     */
+    public void addRouteLimit (String pathPrefix, double permitsPerSecond, int burst)
+    {
+        if (!pathPrefix.startsWith ("/"))
+            throw new IllegalArgumentException ("pathPrefix must start with /");
+        long intervalNanos = getIntervalNanos (permitsPerSecond, burst);
+        RouteLimit[] newLimits = Arrays.copyOf (routeLimits, routeLimits.length + 1);
+        newLimits[routeLimits.length] = new RouteLimit (pathPrefix, intervalNanos, intervalNanos * burst);
+        // Longest prefix first, so the most specific route wins
+        Arrays.sort (newLimits, (firstLimit, secondLimit) -> secondLimit.prefixBytes.length - firstLimit.prefixBytes.length);
+        routeLimits = newLimits;
+    }
+
+    private static long getIntervalNanos (double permitsPerSecond, int burst)
+    {
+        if (permitsPerSecond <= 0 || burst < 1)
+            throw new IllegalArgumentException ("permitsPerSecond must be positive and burst at least 1");
+        return Math.max (1, (long) (1000000000L / permitsPerSecond));
+    }
+
+    /**
+     * Key clients by the value of this request header instead of their address, when it is present
+     */
+    public void setClientKeyHeader (String headerName)
+    {
+        keyHeader = headerName == null ? null : headerName.toLowerCase ().getBytes (StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Active client buckets evicted because their stripe was full. A steady rise means maxClients is too small.
+     */
+    public long getEvictions ()
+    {
+        return evictionCount.get ();
+    }
+
+    /**
+     * Take a permit for one complete request, given as it was read. Returns 0 if it may be serviced, or how many
+     * nanoseconds until it would be allowed.
+     */
+    public long acquire (byte[] reqBytes, int reqStart, int reqLength, InetAddress remoteAddress)
+    {
+        long nowNanos = System.nanoTime () - originNanos;
+        int clientSlot = -1;
+        if (clientIntervalNanos > 0)
+        {
+            long keyHash = getKeyHash (reqBytes, reqStart, reqLength, remoteAddress);
+            if (keyHash != EMPTY_KEY)
+            {
+                clientSlot = findSlot (keyHash, nowNanos);
+                long waitNanos = take (clientFullAt, clientSlot, nowNanos, clientIntervalNanos, clientBurstNanos);
+                if (waitNanos > 0)
+                    return waitNanos;
+            }
+        }
+        RouteLimit routeLimit = getRouteLimit (reqBytes, reqStart, reqLength);
+        if (routeLimit != null)
+        {
+            long waitNanos = take (routeLimit.fullAt, 0, nowNanos, routeLimit.intervalNanos, routeLimit.burstNanos);
+            if (waitNanos > 0)
+            {
+                // The request is not serviced, so the client gets its permit back
+                if (clientSlot >= 0)
+                    clientFullAt.addAndGet (clientSlot, -clientIntervalNanos);
+                return waitNanos;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * How many nanoseconds until this address may make a request, without taking a permit. Always 0 when
+     * clients are keyed by a header, which cannot be known before the request is read.
+     */
+    public long getClientDelayNanos (InetAddress remoteAddress)
+    {
+        if (clientIntervalNanos <= 0 || keyHeader != null || remoteAddress == null)
+            return 0;
+        long keyHash = hashAddress (remoteAddress);
+        int stripeStart = getStripeStart (keyHash);
+        for (int i = stripeStart; i < stripeStart + STRIPE_SLOTS; i++)
+        {
+            if (keyHashes.get (i) == keyHash)
+            {
+                long nowNanos = System.nanoTime () - originNanos;
+                return Math.max (0, Math.max (clientFullAt.get (i), nowNanos) + clientIntervalNanos - clientBurstNanos - nowNanos);
+            }
+        }
+        return 0;
+    }
+
+    // Take a permit from a bucket: allowed if the bucket, less one permit, would still be within its burst
+    private static long take (AtomicLongArray fullAt, int index, long nowNanos, long intervalNanos, long burstNanos)
+    {
+        while (true)
+        {
+            long bucketFullAt = fullAt.get (index);
+            long newFullAt = Math.max (bucketFullAt, nowNanos) + intervalNanos;
+            long waitNanos = newFullAt - burstNanos - nowNanos;
+            if (waitNanos > 0)
+                return waitNanos;
+            if (fullAt.compareAndSet (index, bucketFullAt, newFullAt))
+                return 0;
+        }
+    }
+
+    // The client's slot in its stripe, claiming a free one or evicting the bucket due to be full soonest if needed
+    private int findSlot (long keyHash, long nowNanos)
+    {
+        int stripeStart = getStripeStart (keyHash);
+        while (true)
+        {
+            int claimSlot = stripeStart;
+            long claimFullAt = Long.MAX_VALUE;
+            for (int i = stripeStart; i < stripeStart + STRIPE_SLOTS; i++)
+            {
+                long slotKey = keyHashes.get (i);
+                if (slotKey == keyHash)
+                    return i;
+                long slotFullAt = slotKey == EMPTY_KEY ? Long.MIN_VALUE : clientFullAt.get (i);
+                if (slotFullAt < claimFullAt)
+                {
+                    claimSlot = i;
+                    claimFullAt = slotFullAt;
+                }
+            }
+            long claimKey = keyHashes.get (claimSlot);
+            if (!keyHashes.compareAndSet (claimSlot, claimKey, keyHash))
+                continue;
+            // A bucket that is full again needs no reset, as it is the same as a new one
+            if (claimFullAt > nowNanos)
+            {
+                evictionCount.incrementAndGet ();
+                clientFullAt.set (claimSlot, 0);
+            }
+            return claimSlot;
+        }
+    }
+
+    private int getStripeStart (long keyHash)
+    {
+        return (int) ((keyHash ^ (keyHash >>> 32)) & stripeMask) * STRIPE_SLOTS;
+    }
+
+    // The header value if clients are keyed by a header the request has, otherwise the address
+    private long getKeyHash (byte[] reqBytes, int reqStart, int reqLength, InetAddress remoteAddress)
+    {
+        if (keyHeader != null)
+        {
+            long headerHash = hashHeader (reqBytes, reqStart, reqStart + reqLength);
+            if (headerHash != EMPTY_KEY)
+                return headerHash;
+        }
+        return remoteAddress == null ? EMPTY_KEY : hashAddress (remoteAddress);
+    }
+
+    private long hashHeader (byte[] reqBytes, int reqStart, int reqEnd)
+    {
+        for (int i = reqStart; i + keyHeader.length + 2 < reqEnd; i++)
+        {
+            if (reqBytes[i] != '\n')
+                continue;
+            if (reqBytes[i + 1] == '\r')
+                return EMPTY_KEY;    // end of the headers
+            if (!matchesHeader (reqBytes, i + 1))
+                continue;
+            int valueStart = i + 1 + keyHeader.length + 1;
+            while (valueStart < reqEnd && reqBytes[valueStart] == ' ')
+                valueStart++;
+            int valueEnd = valueStart;
+            while (valueEnd < reqEnd && reqBytes[valueEnd] != '\r')
+                valueEnd++;
+            long headerHash = HEADER_SEED;
+            for (int j = valueStart; j < valueEnd; j++)
+                headerHash = (headerHash ^ (reqBytes[j] & 0xFF)) * FNV_PRIME;
+            return mix (headerHash);
+        }
+        return EMPTY_KEY;
+    }
+
+    private boolean matchesHeader (byte[] reqBytes, int nameStart)
+    {
+        for (int i = 0; i < keyHeader.length; i++)
+        {
+            int reqByte = reqBytes[nameStart + i];
+            if (reqByte >= 'A' && reqByte <= 'Z')
+                reqByte += 'a' - 'A';
+            if (reqByte != keyHeader[i])
+                return false;
+        }
+        return reqBytes[nameStart + keyHeader.length] == ':';
+    }
+
+    private static long hashAddress (InetAddress remoteAddress)
+    {
+        // An IPv4 address is its own hash code
+        if (remoteAddress instanceof Inet4Address)
+            return mix (ADDRESS_SEED ^ remoteAddress.hashCode ());
+        long addressHash = ADDRESS_SEED;
+        for (byte addressByte : remoteAddress.getAddress ())
+            addressHash = (addressHash ^ (addressByte & 0xFF)) * FNV_PRIME;
+        return mix (addressHash);
+    }
+
+    // Spread the bits (the MurmurHash3 finalizer), keeping 0 for empty slots
+    private static long mix (long keyHash)
+    {
+        keyHash ^= keyHash >>> 33;
+        keyHash *= 0xFF51AFD7ED558CCDL;
+        keyHash ^= keyHash >>> 33;
+        keyHash *= 0xC4CEB9FE1A85EC53L;
+        keyHash ^= keyHash >>> 33;
+        return keyHash == EMPTY_KEY ? 1 : keyHash;
+    }
+
+    // The route for the target of the request line, compared in place
+    private RouteLimit getRouteLimit (byte[] reqBytes, int reqStart, int reqLength)
+    {
+        RouteLimit[] routeLimits = this.routeLimits;
+        if (routeLimits.length == 0)
+            return null;
+        int reqEnd = reqStart + reqLength;
+        int locationStart = reqStart;
+        while (locationStart < reqEnd && reqBytes[locationStart] != ' ')
+            locationStart++;
+        locationStart++;
+        int locationEnd = locationStart;
+        while (locationEnd < reqEnd && reqBytes[locationEnd] != ' ' && reqBytes[locationEnd] != '\r')
+            locationEnd++;
+        for (RouteLimit routeLimit : routeLimits)
+        {
+            byte[] prefixBytes = routeLimit.prefixBytes;
+            if (locationEnd - locationStart < prefixBytes.length)
+                continue;
+            int i = 0;
+            while (i < prefixBytes.length && reqBytes[locationStart + i] == prefixBytes[i])
+                i++;
+            if (i < prefixBytes.length)
+                continue;
+            if (locationEnd - locationStart == prefixBytes.length || prefixBytes[prefixBytes.length - 1] == '/')
+                return routeLimit;
+            byte nextByte = reqBytes[locationStart + prefixBytes.length];
+            if (nextByte == '/' || nextByte == '?')
+                return routeLimit;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,461 @@
+package nio.log;
+
+import nio.util.RecordRing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An access log that costs the request path a few array stores. Request threads copy each record's fields into a
+ * preallocated slot of a bounded ring, claimed with one compare-and-set, and never block, allocate a String or
+ * touch the file. A single background thread formats the records, in Common Log Format or as one JSON object per
+ * line, into a direct buffer and writes it to the file through a FileChannel in batches.
+ *
+ * When the ring is full the record is dropped and counted rather than making the request wait (see getDropped).
+ * The file is rotated once it would grow past maxFileBytes, keeping maxFiles older files as name.1, name.2 and
+ * so on, or whenever rotate () is called. One instance may be shared by every event loop and worker.
+ */
+public class AccessLog implements Closeable
+{
+    public static final int COMMON = 0;
+    public static final int JSON = 1;
+
+    private static final int TEXT_BYTES = 256;
+    private static final int ADDRESS_BYTES = 16;
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final int MAX_LINE_BYTES = 2 * TEXT_BYTES + 256;
+    private static final long IDLE_PARK_NANOS = 1000000;
+    private static final DateTimeFormatter COMMON_DATE = DateTimeFormatter.ofPattern ("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone (ZoneId.systemDefault ());
+    private static final DateTimeFormatter JSON_DATE = DateTimeFormatter.ofPattern ("yyyy-MM-dd'T'HH:mm:ss").withZone (ZoneOffset.UTC);
+
+    // The ring, and each slot's record
+    private final RecordRing recordRing;
+    private final long[] timestamps;
+    private final long[] durations;
+    private final long[] byteCounts;
+    private final int[] statusCodes;
+    private final byte[] addresses;
+    private final byte[] addressLengths;
+    private final byte[] texts;
+    private final short[] textLengths;
+
+    private final AtomicLong droppedCount = new AtomicLong ();
+    private final AtomicLong writtenCount = new AtomicLong ();
+    private final Path logPath;
+    private final int logFormat;
+    private volatile long maxFileBytes;
+    private volatile int maxFiles = 5;
+    private volatile boolean rotateRequested;
+    private volatile boolean closed;
+
+    // Writer thread only
+    private final Thread writerThread;
+    private final ByteBuffer batchBuffer = ByteBuffer.allocateDirect (BATCH_BYTES);
+    private int batchRecords;
+    private FileChannel fileChannel;
+    private long fileBytes;
+    private long cachedSecond = -1;
+    private byte[] cachedDate;
+    private final byte[] digitBytes = new byte[20];
+
+    /**
+     * Open (appending to) the log file and start the writer thread. The ring holds capacity records, rounded up to
+     * a power of two.
+     */
+    public AccessLog (Path logPath, int logFormat, int capacity) throws IOException
+    {
+        if (logFormat != COMMON && logFormat != JSON)
+            throw new IllegalArgumentException ("Unknown log format " + logFormat);
+        this.logPath = logPath;
+        this.logFormat = logFormat;
+        recordRing = new RecordRing (capacity);
+        int ringSize = recordRing.getSize ();
+        timestamps = new long[ringSize];
+        durations = new long[ringSize];
+        byteCounts = new long[ringSize];
+        statusCodes = new int[ringSize];
+        addresses = new byte[ringSize * ADDRESS_BYTES];
+        addressLengths = new byte[ringSize];
+        texts = new byte[ringSize * TEXT_BYTES];
+        textLengths = new short[ringSize];
+
+        openFile ();
+        writerThread = new Thread (this::writeRecords, "AccessLogWriter");
+        writerThread.setDaemon (true);
+        writerThread.start ();
+    }
+
+    /**
+     * Record one request. Never blocks: returns false, and counts the record as dropped, if the ring is full.
+     * The method, location and version are copied as ASCII and truncated to fit the slot.
+     */
+    public boolean log (InetAddress remoteAddress, String httpMethod, String reqLocation, String httpVersion, int statusCode, long bytesSent,
+                        long durationNanos)
+    {
+        if (closed)
+            return false;
+        long claimedSequence = recordRing.claim ();
+        if (claimedSequence < 0)
+        {
+            droppedCount.incrementAndGet ();
+            return false;
+        }
+
+        int slot = recordRing.getSlot (claimedSequence);
+        timestamps[slot] = System.currentTimeMillis ();
+        durations[slot] = durationNanos;
+        byteCounts[slot] = bytesSent;
+        statusCodes[slot] = statusCode;
+        byte[] addressBytes = remoteAddress == null ? null : remoteAddress.getAddress ();
+        if (addressBytes != null)
+            System.arraycopy (addressBytes, 0, addresses, slot * ADDRESS_BYTES, addressBytes.length);
+        addressLengths[slot] = (byte) (addressBytes == null ? 0 : addressBytes.length);
+        int textStart = slot * TEXT_BYTES;
+        int textLength = copyText (textStart, 0, httpMethod);
+        textLength = copyText (textStart, textLength, " ");
+        textLength = copyText (textStart, textLength, reqLocation);
+        textLength = copyText (textStart, textLength, " ");
+        textLength = copyText (textStart, textLength, httpVersion);
+        textLengths[slot] = (short) textLength;
+        recordRing.publish (claimedSequence);
+        return true;
+    }
+
+    private int copyText (int textStart, int textLength, String text)
+    {
+        if (text == null)
+            text = "-";
+        for (int i = 0; i < text.length () && textLength < TEXT_BYTES; i++)
+        {
+            char textChar = text.charAt (i);
+            texts[textStart + textLength++] = (byte) (textChar >= ' ' && textChar < 0x7F ? textChar : '?');
+        }
+        return textLength;
+    }
+
+    /**
+     * Records dropped because the ring was full or the file could not be written
+     */
+    public long getDropped ()
+    {
+        return droppedCount.get ();
+    }
+
+    /**
+     * Records written to the file so far
+     */
+    public long getWritten ()
+    {
+        return writtenCount.get ();
+    }
+
+    public Path getLogPath ()
+    {
+        return logPath;
+    }
+
+    public long getMaxFileBytes ()
+    {
+        return maxFileBytes;
+    }
+
+    /**
+     * Rotate the file before a batch would take it past this size. 0, the default, never rotates by size.
+     */
+    public void setMaxFileBytes (long maxFileBytes)
+    {
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    public int getMaxFiles ()
+    {
+        return maxFiles;
+    }
+
+    /**
+     * How many rotated files to keep. Defaults to 5; 0 truncates the file instead.
+     */
+    public void setMaxFiles (int maxFiles)
+    {
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Rotate the file before the next batch is written, for example on a signal from an external log rotator
+     */
+    public void rotate ()
+    {
+        rotateRequested = true;
+        LockSupport.unpark (writerThread);
+    }
+
+    /**
+     * Write every record logged so far, then close the file. Records logged afterwards are ignored.
+     */
+    public void close () throws IOException
+    {
+        closed = true;
+        LockSupport.unpark (writerThread);
+        try
+        {
+            writerThread.join ();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread ().interrupt ();
+        }
+    }
+
+    // The writer thread: drain the ring into the batch buffer, write it out whenever it fills or the ring runs dry
+    private void writeRecords ()
+    {
+        while (true)
+        {
+            // Read before draining, so everything logged before close () is written
+            boolean wasClosed = closed;
+            if (drainRing () == 0)
+            {
+                flushBatch ();
+                if (wasClosed)
+                    break;
+                LockSupport.parkNanos (IDLE_PARK_NANOS);
+            }
+        }
+        try
+        {
+            fileChannel.close ();
+        }
+        catch (IOException e)
+        {
+            Log.warn ("Cannot close access log " + logPath + ": " + e);
+        }
+    }
+
+    private int drainRing ()
+    {
+        int recordsDrained = 0;
+        int slot;
+        while ((slot = recordRing.peek ()) >= 0)
+        {
+            if (batchBuffer.remaining () < MAX_LINE_BYTES)
+                flushBatch ();
+            if (logFormat == JSON)
+                formatJson (slot);
+            else
+                formatCommon (slot);
+            batchRecords++;
+            recordRing.release ();
+            recordsDrained++;
+        }
+        return recordsDrained;
+    }
+
+    private void flushBatch ()
+    {
+        if (batchBuffer.position () == 0 && !rotateRequested)
+            return;
+        batchBuffer.flip ();
+        try
+        {
+            long rotateBytes = maxFileBytes;
+            if (rotateRequested || rotateBytes > 0 && fileBytes > 0 && fileBytes + batchBuffer.remaining () > rotateBytes)
+                rotateFile ();
+            while (batchBuffer.hasRemaining ())
+                fileBytes += fileChannel.write (batchBuffer);
+            writtenCount.addAndGet (batchRecords);
+        }
+        catch (IOException e)
+        {
+            droppedCount.addAndGet (batchRecords);
+            Log.warn ("Cannot write access log " + logPath + ": " + e);
+        }
+        batchRecords = 0;
+        batchBuffer.clear ();
+    }
+
+    // Shift name.1 to name.2 and so on, dropping the oldest, move the current file to name.1 and start a new one
+    private void rotateFile () throws IOException
+    {
+        rotateRequested = false;
+        fileChannel.close ();
+        int keepFiles = maxFiles;
+        if (keepFiles > 0)
+        {
+            Files.deleteIfExists (getRotatedPath (keepFiles));
+            for (int i = keepFiles - 1; i >= 1; i--)
+            {
+                if (Files.exists (getRotatedPath (i)))
+                    Files.move (getRotatedPath (i), getRotatedPath (i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move (logPath, getRotatedPath (1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        else
+            Files.deleteIfExists (logPath);
+        openFile ();
+    }
+
+    private Path getRotatedPath (int fileNumber)
+    {
+        return logPath.resolveSibling (logPath.getFileName () + "." + fileNumber);
+    }
+
+    private void openFile () throws IOException
+    {
+        fileChannel = FileChannel.open (logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = fileChannel.size ();
+    }
+
+    // 127.0.0.1 - - [10/Oct/2000:13:55:36 -0700] "GET /index.html HTTP/1.1" 200 2326
+    private void formatCommon (int slot)
+    {
+        putAddress (slot);
+        putAscii (" - - [");
+        batchBuffer.put (getDate (timestamps[slot] / 1000));
+        putAscii ("] \"");
+        batchBuffer.put (texts, slot * TEXT_BYTES, textLengths[slot]);
+        putAscii ("\" ");
+        putLong (statusCodes[slot]);
+        batchBuffer.put ((byte) ' ');
+        if (byteCounts[slot] > 0)
+            putLong (byteCounts[slot]);
+        else
+            batchBuffer.put ((byte) '-');
+        batchBuffer.put ((byte) '\n');
+    }
+
+    // {"time":"2000-10-10T20:55:36.123Z","remote":"127.0.0.1","method":"GET","path":"/index.html",...}
+    private void formatJson (int slot)
+    {
+        long timestamp = timestamps[slot];
+        putAscii ("{\"time\":\"");
+        batchBuffer.put (getDate (timestamp / 1000));
+        batchBuffer.put ((byte) '.');
+        long timeMillis = timestamp % 1000;
+        batchBuffer.put ((byte) ('0' + timeMillis / 100)).put ((byte) ('0' + timeMillis / 10 % 10)).put ((byte) ('0' + timeMillis % 10));
+        putAscii ("Z\",\"remote\":\"");
+        putAddress (slot);
+
+        // The text is "method location version", the location possibly truncated
+        int textStart = slot * TEXT_BYTES;
+        int textEnd = textStart + textLengths[slot];
+        int firstSpace = indexOf (textStart, textEnd, false);
+        int lastSpace = indexOf (firstSpace + 1, textEnd, true);
+        putAscii ("\",\"method\":\"");
+        putJsonText (textStart, firstSpace);
+        putAscii ("\",\"path\":\"");
+        putJsonText (firstSpace + 1, lastSpace > firstSpace ? lastSpace : textEnd);
+        putAscii ("\",\"protocol\":\"");
+        if (lastSpace > firstSpace)
+            putJsonText (lastSpace + 1, textEnd);
+        putAscii ("\",\"status\":");
+        putLong (statusCodes[slot]);
+        putAscii (",\"bytes\":");
+        putLong (byteCounts[slot]);
+        putAscii (",\"durationMicros\":");
+        putLong (durations[slot] / 1000);
+        putAscii ("}\n");
+    }
+
+    // The first (or last) space in texts[textStart, textEnd), or textEnd if there is none
+    private int indexOf (int textStart, int textEnd, boolean lastOne)
+    {
+        int spacePos = lastOne ? -1 : textEnd;
+        for (int i = textStart; i < textEnd; i++)
+        {
+            if (texts[i] != ' ')
+                continue;
+            if (!lastOne)
+                return i;
+            spacePos = i;
+        }
+        return spacePos;
+    }
+
+    // The date text changes once a second, so it is formatted only then
+    private byte[] getDate (long epochSecond)
+    {
+        if (epochSecond != cachedSecond)
+        {
+            Instant recordInstant = Instant.ofEpochSecond (epochSecond);
+            String dateText = logFormat == JSON ? JSON_DATE.format (recordInstant) : COMMON_DATE.format (recordInstant);
+            cachedDate = dateText.getBytes (StandardCharsets.ISO_8859_1);
+            cachedSecond = epochSecond;
+        }
+        return cachedDate;
+    }
+
+    private void putAddress (int slot)
+    {
+        int addressLength = addressLengths[slot];
+        int addressStart = slot * ADDRESS_BYTES;
+        if (addressLength == 4)
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                if (i > 0)
+                    batchBuffer.put ((byte) '.');
+                putLong (addresses[addressStart + i] & 0xFF);
+            }
+        }
+        else if (addressLength == 16)
+        {
+            try
+            {
+                putAscii (InetAddress.getByAddress (Arrays.copyOfRange (addresses, addressStart, addressStart + 16)).getHostAddress ());
+            }
+            catch (UnknownHostException e)
+            {
+                batchBuffer.put ((byte) '-');
+            }
+        }
+        else
+            batchBuffer.put ((byte) '-');
+    }
+
+    private void putAscii (String asciiText)
+    {
+        for (int i = 0; i < asciiText.length (); i++)
+            batchBuffer.put ((byte) asciiText.charAt (i));
+    }
+
+    private void putJsonText (int textStart, int textEnd)
+    {
+        for (int i = textStart; i < textEnd; i++)
+        {
+            byte textByte = texts[i];
+            if (textByte == '"' || textByte == '\\')
+                batchBuffer.put ((byte) '\\');
+            batchBuffer.put (textByte);
+        }
+    }
+
+    private void putLong (long longValue)
+    {
+        int digitCount = 0;
+        do
+        {
+            digitBytes[digitCount++] = (byte) ('0' + longValue % 10);
+            longValue /= 10;
+        }
+        while (longValue > 0);
+        while (digitCount > 0)
+            batchBuffer.put (digitBytes[--digitCount]);
+    }
+}
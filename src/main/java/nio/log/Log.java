@@ -0,0 +1,71 @@
+package nio.log;
+
+/**
+ * The server's diagnostic output, filtered by level. Messages at or above the level go to standard output,
+ * which is synchronized, so nothing below WARN should be printed on the request path unless asked for. Callers
+ * that build a message for DEBUG should check isDebugEnabled () first, so a disabled message costs one volatile
+ * read. The level starts from the nio.logLevel system property (DEBUG, INFO, WARN or OFF) and defaults to INFO.
+ */
+public final class Log
+{
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int OFF = 3;
+
+    private static volatile int logLevel = parseLevel (System.getProperty ("nio.logLevel", "INFO"));
+
+    private Log ()
+    {
+    }
+
+    public static int getLevel ()
+    {
+        return logLevel;
+    }
+
+    public static void setLevel (int logLevel)
+    {
+        if (logLevel < DEBUG || logLevel > OFF)
+            throw new IllegalArgumentException ("Unknown log level " + logLevel);
+        Log.logLevel = logLevel;
+    }
+
+    public static boolean isDebugEnabled ()
+    {
+        return logLevel <= DEBUG;
+    }
+
+    public static void debug (String logMessage)
+    {
+        if (logLevel <= DEBUG)
+            System.out.println (logMessage);
+    }
+
+    public static void info (String logMessage)
+    {
+        if (logLevel <= INFO)
+            System.out.println (logMessage);
+    }
+
+    public static void warn (String logMessage)
+    {
+        if (logLevel <= WARN)
+            System.out.println (logMessage);
+    }
+
+    static int parseLevel (String levelName)
+    {
+        switch (levelName.trim ().toUpperCase ())
+        {
+            case "DEBUG":
+                return DEBUG;
+            case "WARN":
+                return WARN;
+            case "OFF":
+                return OFF;
+            default:
+                return INFO;
+        }
+    }
+}
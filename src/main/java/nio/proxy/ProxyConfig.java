@@ -0,0 +1,170 @@
+package nio.proxy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes and settings for the built-in reverse proxy. Each route is a path prefix and a weighted set of upstream
+ * servers; a request goes to the route with the longest prefix that matches its path, which is forwarded
+ * unchanged. Pass it to NioWebServer.setProxyConfig () before the server starts.
+ *
+ * An upstream that fails unhealthyThreshold times in a row, whether serving a request or answering a health
+ * check, is ejected. With a health check path set, every upstream is probed once per healthCheckInterval and
+ * an ejected one returns after healthyThreshold successful probes. Without one, an ejected upstream is tried
+ * again once ejectMillis have passed.
+ */
+public class ProxyConfig
+{
+    private final Map <String, List <UpstreamAddress>> routes = new LinkedHashMap <> ();
+    private long connectTimeoutMillis = 5000;
+    private long responseTimeoutMillis = 30000;
+    private int maxIdlePerUpstream = 16;
+    private long upstreamKeepAliveMillis = 30000;
+    private String healthCheckPath;
+    private long healthCheckIntervalMillis = 5000;
+    private int unhealthyThreshold = 3;
+    private int healthyThreshold = 2;
+    private long ejectMillis = 10000;
+
+    /**
+     * Add an upstream to the route for a path prefix, creating the route if needed. A prefix matches its own path
+     * and anything below it, so "/api" matches "/api", "/api/users" and "/api?q=1" but not "/apis".
+     */
+    public void addUpstream (String pathPrefix, String host, int port, int weight)
+    {
+        if (!pathPrefix.startsWith ("/"))
+            throw new IllegalArgumentException ("pathPrefix must start with /");
+        if (weight < 1)
+            throw new IllegalArgumentException ("weight must be at least 1");
+        routes.computeIfAbsent (pathPrefix, key -> new ArrayList <> ()).add (new UpstreamAddress (host, port, weight));
+    }
+
+    Map <String, List <UpstreamAddress>> getRoutes ()
+    {
+        return routes;
+    }
+
+    public long getConnectTimeoutMillis ()
+    {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis (long connectTimeoutMillis)
+    {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public long getResponseTimeoutMillis ()
+    {
+        return responseTimeoutMillis;
+    }
+
+    /**
+     * How long a request may take, from choosing an upstream to the last byte of its response, before it is
+     * answered 504 (or, if part of the response was already relayed, its connection is closed). 0 waits forever.
+     */
+    public void setResponseTimeoutMillis (long responseTimeoutMillis)
+    {
+        this.responseTimeoutMillis = responseTimeoutMillis;
+    }
+
+    public int getMaxIdlePerUpstream ()
+    {
+        return maxIdlePerUpstream;
+    }
+
+    /**
+     * Keep-alive connections kept open to each upstream (per event loop) for reuse
+     */
+    public void setMaxIdlePerUpstream (int maxIdlePerUpstream)
+    {
+        this.maxIdlePerUpstream = maxIdlePerUpstream;
+    }
+
+    public long getUpstreamKeepAliveMillis ()
+    {
+        return upstreamKeepAliveMillis;
+    }
+
+    /**
+     * An idle upstream connection older than this is closed rather than reused, as the upstream may be about
+     * to close it
+     */
+    public void setUpstreamKeepAliveMillis (long upstreamKeepAliveMillis)
+    {
+        this.upstreamKeepAliveMillis = upstreamKeepAliveMillis;
+    }
+
+    public String getHealthCheckPath ()
+    {
+        return healthCheckPath;
+    }
+
+    /**
+     * Probe every upstream with a GET of this path; any status below 400 is healthy. Null, the default, turns
+     * active health checks off.
+     */
+    public void setHealthCheckPath (String healthCheckPath)
+    {
+        this.healthCheckPath = healthCheckPath;
+    }
+
+    public long getHealthCheckIntervalMillis ()
+    {
+        return healthCheckIntervalMillis;
+    }
+
+    public void setHealthCheckIntervalMillis (long healthCheckIntervalMillis)
+    {
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+    }
+
+    public int getUnhealthyThreshold ()
+    {
+        return unhealthyThreshold;
+    }
+
+    public void setUnhealthyThreshold (int unhealthyThreshold)
+    {
+        this.unhealthyThreshold = unhealthyThreshold;
+    }
+
+    public int getHealthyThreshold ()
+    {
+        return healthyThreshold;
+    }
+
+    public void setHealthyThreshold (int healthyThreshold)
+    {
+        this.healthyThreshold = healthyThreshold;
+    }
+
+    public long getEjectMillis ()
+    {
+        return ejectMillis;
+    }
+
+    /**
+     * How long an ejected upstream is left alone when there are no active health checks
+     */
+    public void setEjectMillis (long ejectMillis)
+    {
+        this.ejectMillis = ejectMillis;
+    }
+
+    static final class UpstreamAddress
+    {
+        final String host;
+        final int port;
+        final int weight;
+
+        UpstreamAddress (String host, int port, int weight)
+        {
+            this.host = host;
+            this.port = port;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package nio.proxy;
+
+import nio.api.HttpResponse;
+import nio.log.AccessLog;
+import nio.util.TimerQueue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * One proxied request and its response. The request bytes handed over by the server are sent as they are, with
+ * an X-Forwarded-For header spliced in by a gathering write, and response bytes are written to the downstream
+ * connection straight from the buffer they were read into. Those writes never block; while the client has yet to
+ * take what it has been sent, the upstream is not read, so a slow client slows the upstream instead of piling
+ * its response up in memory.
+ */
+final class ProxyExchange
+{
+    final ReverseProxy.Route route;
+    private final WritableByteChannel downstreamChannel;
+    private final Predicate <Runnable> downstreamWaiter;
+    private final Consumer <Boolean> onComplete;
+    private final InetAddress clientAddress;
+    private final AccessLog accessLog;
+    private final String[] requestLine;
+    private final long startNanos;
+    private final ByteBuffer[] requestParts;
+    private final boolean headRequest;
+    final boolean idempotent;
+    final boolean keepAliveRequested;
+    final List <Upstream> triedUpstreams = new ArrayList <> (2);
+    UpstreamConnection upstreamConnection;
+    TimerQueue.Timer timeoutTimer;
+    boolean retried;
+    private ResponseFramer responseFramer;
+    private long bytesRelayed;
+    private boolean responseComplete;
+    private int errorCode;
+    private int errorLength;
+    private boolean done;
+
+    ProxyExchange (ReverseProxy.Route route, ByteBuffer requestBuffer, WritableByteChannel downstreamChannel, Predicate <Runnable> downstreamWaiter,
+                   InetAddress clientAddress, AccessLog accessLog, Consumer <Boolean> onComplete)
+    {
+        this.route = route;
+        this.downstreamChannel = downstreamChannel;
+        this.downstreamWaiter = downstreamWaiter;
+        this.clientAddress = clientAddress;
+        this.accessLog = accessLog;
+        this.onComplete = onComplete;
+        startNanos = accessLog != null ? System.nanoTime () : 0;
+
+        // Only the head is looked at: the method, the version and whether the client wants to keep alive
+        int headEnd = ReverseProxy.findHeadEnd (requestBuffer);
+        String[] headLines = new String (requestBuffer.array (), requestBuffer.arrayOffset () + requestBuffer.position (),
+                                         headEnd - requestBuffer.position (), StandardCharsets.ISO_8859_1).split ("\r\n");
+        requestLine = headLines[0].split (" ");
+        String httpMethod = requestLine[0].toUpperCase ();
+        String connectionHeader = null;
+        for (int i = 1; i < headLines.length; i++)
+        {
+            if (headLines[i].regionMatches (true, 0, "Connection:", 0, 11))
+                connectionHeader = headLines[i].substring (11).trim ();
+        }
+        headRequest = httpMethod.equals ("HEAD");
+        idempotent = httpMethod.equals ("GET") || headRequest || httpMethod.equals ("PUT") || httpMethod.equals ("DELETE")
+            || httpMethod.equals ("OPTIONS");
+        if (connectionHeader != null)
+            keepAliveRequested = !connectionHeader.equalsIgnoreCase ("close");
+        else
+            keepAliveRequested = requestLine.length > 2 && requestLine[2].equals ("HTTP/1.1");
+
+        if (clientAddress == null)
+        {
+            requestParts = new ByteBuffer[] { requestBuffer };
+            return;
+        }
+        // Headers up to the blank line, the new header, then the blank line and body
+        ByteBuffer headPart = requestBuffer.duplicate ();
+        headPart.limit (headEnd + 2);
+        ByteBuffer forwardedPart = ByteBuffer.wrap (("X-Forwarded-For: " + clientAddress.getHostAddress () + "\r\n").getBytes (StandardCharsets.ISO_8859_1));
+        ByteBuffer bodyPart = requestBuffer.duplicate ();
+        bodyPart.position (headEnd + 2);
+        requestParts = new ByteBuffer[] { headPart, forwardedPart, bodyPart };
+    }
+
+    /**
+     * A fresh view of the request for one attempt to send it
+     */
+    ByteBuffer[] newRequestBuffers ()
+    {
+        ByteBuffer[] requestBuffers = new ByteBuffer[requestParts.length];
+        for (int i = 0; i < requestParts.length; i++)
+            requestBuffers[i] = requestParts[i].duplicate ();
+        responseFramer = new ResponseFramer (headRequest);
+        return requestBuffers;
+    }
+
+    /**
+     * Relay the part of the buffer that belongs to this response. Returns true once the whole response has been
+     * relayed, leaving any extra bytes in the buffer, or if the downstream connection failed, which ends the
+     * exchange. If the client has yet to take all of it, the upstream connection stops reading until it has.
+     */
+    boolean relay (ByteBuffer readBuffer) throws IOException
+    {
+        int relayStart = readBuffer.position ();
+        boolean responseDone = responseFramer.consume (readBuffer);
+        ByteBuffer relayBuffer = readBuffer.duplicate ();
+        relayBuffer.limit (readBuffer.position ());
+        relayBuffer.position (relayStart);
+        bytesRelayed += relayBuffer.remaining ();
+        try
+        {
+            HttpResponse.writeFully (downstreamChannel, relayBuffer);
+        }
+        catch (IOException e)
+        {
+            finish (false);
+            return true;
+        }
+        responseComplete = responseDone;
+        if (!responseDone && downstreamWaiter.test (this::onDownstreamWritten))
+            upstreamConnection.pauseReading ();
+        return responseDone;
+    }
+
+    // The client has taken everything relayed so far, or has gone, which the next relay will find out
+    private void onDownstreamWritten ()
+    {
+        if (!done && upstreamConnection != null)
+            upstreamConnection.resumeReading ();
+    }
+
+    boolean isUntilClose ()
+    {
+        return responseFramer != null && responseFramer.isUntilClose ();
+    }
+
+    /**
+     * True if the upstream connection may be reused once this response is done
+     */
+    boolean isUpstreamReusable ()
+    {
+        return responseFramer != null && responseFramer.isKeepAlive ();
+    }
+
+    boolean isResponseComplete ()
+    {
+        return responseComplete;
+    }
+
+    long getBytesRelayed ()
+    {
+        return bytesRelayed;
+    }
+
+    boolean isDone ()
+    {
+        return done;
+    }
+
+    /**
+     * Answer the request here, when no upstream could. The downstream connection stays open if it may.
+     */
+    void respondError (int responseCode, String responseReason, String errorMessage)
+    {
+        if (done)
+            return;
+        HttpResponse httpResponse = new HttpResponse (downstreamChannel);
+        httpResponse.setKeepAlive (keepAliveRequested);
+        httpResponse.setResponseCode (responseCode);
+        httpResponse.setResponseReason (responseReason);
+        httpResponse.addHeader ("Content-Type", "text/plain");
+        httpResponse.append (errorMessage);
+        errorCode = responseCode;
+        try
+        {
+            httpResponse.commitWriter (true);
+            errorLength = httpResponse.getCommittedLength ();
+            finish (httpResponse.isKeepAlive ());
+        }
+        catch (IOException e)
+        {
+            finish (false);
+        }
+    }
+
+    /**
+     * The response has been relayed, in full or up to the end of the upstream's stream
+     */
+    void finishResponse ()
+    {
+        finish (responseComplete && keepAliveRequested && responseFramer.isKeepAlive ());
+    }
+
+    /**
+     * Hand the downstream connection back to the server, to read the next request or to close
+     */
+    void finish (boolean keepOpen)
+    {
+        if (done)
+            return;
+        done = true;
+        if (timeoutTimer != null)
+            timeoutTimer.cancel ();
+        if (accessLog != null)
+            logAccess ();
+        onComplete.accept (keepOpen);
+    }
+
+    private void logAccess ()
+    {
+        int statusCode = errorCode != 0 ? errorCode : responseFramer != null ? responseFramer.getStatusCode () : 0;
+        accessLog.log (clientAddress, requestLine[0], requestLine.length > 1 ? requestLine[1] : null, requestLine.length > 2 ? requestLine[2] : null,
+                       statusCode, errorCode != 0 ? errorLength : bytesRelayed, System.nanoTime () - startNanos);
+    }
+}
@@ -0,0 +1,225 @@
+package nio.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds where an HTTP/1.x response ends as its bytes stream past, without copying the body. The status line and
+ * headers are collected until the blank line and read for the status, Content-Length, Transfer-Encoding and
+ * Connection. After that the body is only counted, or for a chunked response its size lines are followed.
+ */
+final class ResponseFramer
+{
+    private static final int MAX_HEAD_BYTES = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private static final int HEAD = 0;
+    private static final int BODY = 1;
+    private static final int CHUNK_SIZE = 2;
+    private static final int CHUNK_DATA = 3;
+    private static final int CHUNK_END = 4;
+    private static final int TRAILER = 5;
+    private static final int UNTIL_CLOSE = 6;
+    private static final int DONE = 7;
+
+    private final boolean headRequest;
+    private int state = HEAD;
+    private byte[] headBytes = new byte[256];
+    private int headLength;
+    private final StringBuilder chunkLine = new StringBuilder ();
+    private long remaining;
+    private int statusCode;
+    private boolean keepAlive;
+
+    ResponseFramer (boolean headRequest)
+    {
+        this.headRequest = headRequest;
+    }
+
+    /**
+     * Move the buffer's position past the bytes belonging to this response. Returns true once the response is
+     * complete, which may leave bytes in the buffer.
+     */
+    boolean consume (ByteBuffer readBuffer) throws IOException
+    {
+        while (readBuffer.hasRemaining () && state != DONE)
+        {
+            switch (state)
+            {
+                case HEAD:
+                    readHead (readBuffer);
+                    break;
+                case BODY:
+                case CHUNK_DATA:
+                    int skipLength = (int) Math.min (remaining, readBuffer.remaining ());
+                    readBuffer.position (readBuffer.position () + skipLength);
+                    remaining -= skipLength;
+                    if (remaining == 0)
+                        state = state == BODY ? DONE : CHUNK_END;
+                    break;
+                case CHUNK_SIZE:
+                case CHUNK_END:
+                case TRAILER:
+                    if (readLine (readBuffer))
+                        onLine ();
+                    break;
+                default:
+                    // Everything up to the end of the stream
+                    readBuffer.position (readBuffer.limit ());
+            }
+        }
+        return state == DONE;
+    }
+
+    /**
+     * True if the response ends when the upstream closes the connection
+     */
+    boolean isUntilClose ()
+    {
+        return state == UNTIL_CLOSE;
+    }
+
+    /**
+     * True if the connection may carry another request after this response
+     */
+    boolean isKeepAlive ()
+    {
+        return keepAlive && state != UNTIL_CLOSE;
+    }
+
+    int getStatusCode ()
+    {
+        return statusCode;
+    }
+
+    private void readHead (ByteBuffer readBuffer) throws IOException
+    {
+        while (readBuffer.hasRemaining ())
+        {
+            if (headLength == headBytes.length)
+            {
+                if (headLength >= MAX_HEAD_BYTES)
+                    throw new IOException ("Response headers too large");
+                byte[] newHeadBytes = new byte[headLength * 2];
+                System.arraycopy (headBytes, 0, newHeadBytes, 0, headLength);
+                headBytes = newHeadBytes;
+            }
+            headBytes[headLength++] = readBuffer.get ();
+            if (headLength >= 4 && headBytes[headLength - 1] == '\n' && headBytes[headLength - 2] == '\r'
+                && headBytes[headLength - 3] == '\n' && headBytes[headLength - 4] == '\r')
+            {
+                parseHead ();
+                return;
+            }
+        }
+    }
+
+    private void parseHead () throws IOException
+    {
+        String[] headLines = new String (headBytes, 0, headLength - 4, StandardCharsets.ISO_8859_1).split ("\r\n");
+        headLength = 0;
+        String[] statusLine = headLines[0].split (" ", 3);
+        if (statusLine.length < 2 || !statusLine[0].startsWith ("HTTP/1."))
+            throw new IOException ("Bad status line: " + headLines[0]);
+        String contentLength = null;
+        String transferEncoding = null;
+        String connectionHeader = null;
+        try
+        {
+            statusCode = Integer.parseInt (statusLine[1]);
+            for (int i = 1; i < headLines.length; i++)
+            {
+                int colonPos = headLines[i].indexOf (':');
+                if (colonPos <= 0)
+                    continue;
+                String headerName = headLines[i].substring (0, colonPos).trim ();
+                String headerValue = headLines[i].substring (colonPos + 1).trim ();
+                if (headerName.equalsIgnoreCase ("Content-Length"))
+                    contentLength = headerValue;
+                else if (headerName.equalsIgnoreCase ("Transfer-Encoding"))
+                    transferEncoding = headerValue.toLowerCase ();
+                else if (headerName.equalsIgnoreCase ("Connection"))
+                    connectionHeader = headerValue.toLowerCase ();
+            }
+            if (connectionHeader != null && connectionHeader.contains ("close"))
+                keepAlive = false;
+            else if (connectionHeader != null && connectionHeader.contains ("keep-alive"))
+                keepAlive = true;
+            else
+                keepAlive = statusLine[0].equals ("HTTP/1.1");
+
+            // Interim responses are relayed and followed by the real one. A protocol switch is not proxied
+            // further, and ends with the connection.
+            if (statusCode == 101)
+                state = UNTIL_CLOSE;
+            else if (statusCode >= 100 && statusCode < 200)
+                state = HEAD;
+            else if (headRequest || statusCode == 204 || statusCode == 304)
+                state = DONE;
+            else if (transferEncoding != null && transferEncoding.endsWith ("chunked"))
+                state = CHUNK_SIZE;
+            else if (contentLength != null)
+            {
+                remaining = Long.parseLong (contentLength);
+                if (remaining < 0)
+                    throw new IOException ("Bad Content-Length: " + contentLength);
+                state = remaining == 0 ? DONE : BODY;
+            }
+            else
+                state = UNTIL_CLOSE;
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException ("Bad response head: " + e.getMessage ());
+        }
+    }
+
+    // Collect a chunk size, chunk end or trailer line. Returns true once the whole line is in chunkLine.
+    private boolean readLine (ByteBuffer readBuffer) throws IOException
+    {
+        while (readBuffer.hasRemaining ())
+        {
+            char nextChar = (char) (readBuffer.get () & 0xFF);
+            if (nextChar == '\n')
+                return true;
+            if (nextChar != '\r')
+                chunkLine.append (nextChar);
+            if (chunkLine.length () > MAX_LINE_LENGTH)
+                throw new IOException ("Chunk line too long");
+        }
+        return false;
+    }
+
+    private void onLine () throws IOException
+    {
+        String lineText = chunkLine.toString ().trim ();
+        chunkLine.setLength (0);
+        if (state == CHUNK_END)
+        {
+            if (!lineText.isEmpty ())
+                throw new IOException ("Missing CRLF after chunk");
+            state = CHUNK_SIZE;
+        }
+        else if (state == TRAILER)
+        {
+            if (lineText.isEmpty ())
+                state = DONE;
+        }
+        else
+        {
+            int extensionPos = lineText.indexOf (';');
+            try
+            {
+                remaining = Long.parseLong (extensionPos < 0 ? lineText : lineText.substring (0, extensionPos).trim (), 16);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException ("Bad chunk size: " + lineText);
+            }
+            if (remaining < 0)
+                throw new IOException ("Bad chunk size: " + lineText);
+            state = remaining == 0 ? TRAILER : CHUNK_DATA;
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package nio.proxy;
+
+import nio.api.HttpRequest;
+import nio.api.HttpResponse;
+import nio.api.NioWebApp;
+import nio.client.NioHttpClient;
+import nio.log.AccessLog;
+import nio.log.Log;
+import nio.util.BufferPool;
+import nio.util.EventLoop;
+import nio.util.Metrics;
+import nio.util.TimerQueue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The built-in reverse proxy. A server with a ProxyConfig creates one per event loop and hands it every
+ * HTTP/1.x request whose path matches a route, as the raw bytes it read, before any app sees it. The request is
+ * written to a keep-alive connection from the upstream's pool and the response is relayed back in the pooled
+ * buffers it was read into, so neither is ever parsed into an HttpRequest or HttpResponse; only the response
+ * headers are read, to find where the response ends. The downstream connection is not read while its request
+ * is in flight, so pipelined requests are answered in order.
+ *
+ * Upstreams are chosen by smooth weighted round robin among the healthy ones. A failed connect is retried on
+ * another upstream, and an idempotent request whose reused connection turns out to have been closed is retried
+ * once on a new connection. Everything runs on the loop, so each loop of NioCoreWebServer has its own
+ * connections and its own view of upstream health.
+ *
+ * As a NioWebApp it answers proxied paths that arrive some other way, such as HTTP/2 streams, with 502.
+ */
+public class ReverseProxy implements NioWebApp
+{
+    private final ProxyConfig proxyConfig;
+    private final EventLoop eventLoop;
+    private final BufferPool bufferPool;
+    private AccessLog accessLog;
+    private final List <Route> routes = new ArrayList <> ();
+    private final Map <String, Upstream> upstreams = new LinkedHashMap <> ();
+    private NioHttpClient healthClient;
+    private TimerQueue.Timer healthTimer;
+    private final Metrics.Counter requestCount;
+    private final Metrics.Counter connectCount;
+    private final Metrics.Counter reuseCount;
+    private final Metrics.Counter retryCount;
+    private final Metrics.Counter badGatewayCount;
+    private final Metrics.Counter timeoutCount;
+    private final Metrics.Counter ejectionCount;
+    private final Metrics.Counter relayedBytesCount;
+
+    public ReverseProxy (ProxyConfig proxyConfig, EventLoop eventLoop, BufferPool bufferPool, Metrics metrics)
+    {
+        this.proxyConfig = proxyConfig;
+        this.eventLoop = eventLoop;
+        this.bufferPool = bufferPool;
+        for (Map.Entry <String, List <ProxyConfig.UpstreamAddress>> routeEntry : proxyConfig.getRoutes ().entrySet ())
+        {
+            List <ProxyConfig.UpstreamAddress> upstreamAddresses = routeEntry.getValue ();
+            Route route = new Route (routeEntry.getKey (), upstreamAddresses.size ());
+            for (int i = 0; i < upstreamAddresses.size (); i++)
+            {
+                ProxyConfig.UpstreamAddress upstreamAddress = upstreamAddresses.get (i);
+                route.upstreams[i] = upstreams.computeIfAbsent (upstreamAddress.host + ":" + upstreamAddress.port,
+                                                                key -> new Upstream (upstreamAddress.host, upstreamAddress.port));
+                route.weights[i] = upstreamAddress.weight;
+            }
+            routes.add (route);
+        }
+        // Longest prefix first, so the most specific route wins
+        routes.sort ((firstRoute, secondRoute) -> secondRoute.pathPrefix.length () - firstRoute.pathPrefix.length ());
+
+        requestCount = metrics.counter ("proxy.requests");
+        connectCount = metrics.counter ("proxy.upstreamConnects");
+        reuseCount = metrics.counter ("proxy.upstreamReuses");
+        retryCount = metrics.counter ("proxy.retries");
+        badGatewayCount = metrics.counter ("proxy.badGateway");
+        timeoutCount = metrics.counter ("proxy.gatewayTimeouts");
+        ejectionCount = metrics.counter ("proxy.ejections");
+        relayedBytesCount = metrics.counter ("proxy.bytesRelayed");
+    }
+
+    /**
+     * True if the request starting at reqStart is for a proxied path. Only the request line is looked at.
+     */
+    public boolean isProxied (byte[] reqBytes, int reqStart, int reqLength)
+    {
+        return getRoute (getReqLocation (reqBytes, reqStart, reqLength)) != null;
+    }
+
+    public boolean isProxied (String reqLocation)
+    {
+        return getRoute (reqLocation) != null;
+    }
+
+    /**
+     * Forward one complete request, as read from the downstream connection, and relay its response. Must be
+     * called on the loop. onComplete is called on the loop once the response has been written, with true if
+     * the downstream connection may read its next request, or false if it should be closed.
+     *
+     * @param downstreamChannel a channel that takes every byte written to it without blocking, keeping what the
+     *                          socket will not take yet
+     * @param downstreamWaiter  called after each relayed write. It returns true if the client has yet to take
+     *                          some of it, and then runs the Runnable it was given, on the loop, once the client
+     *                          has or the connection has closed. Until then the upstream is not read.
+     */
+    public void forward (ByteBuffer requestBuffer, WritableByteChannel downstreamChannel, Predicate <Runnable> downstreamWaiter, InetAddress clientAddress,
+                         Consumer <Boolean> onComplete)
+    {
+        requestCount.increment ();
+        Route route = getRoute (getReqLocation (requestBuffer.array (), requestBuffer.arrayOffset () + requestBuffer.position (), requestBuffer.remaining ()));
+        if (route == null || findHeadEnd (requestBuffer) < 0)
+        {
+            onComplete.accept (false);
+            return;
+        }
+        ProxyExchange proxyExchange = new ProxyExchange (route, requestBuffer, downstreamChannel, downstreamWaiter, clientAddress, accessLog, onComplete);
+        if (proxyConfig.getResponseTimeoutMillis () > 0)
+            proxyExchange.timeoutTimer = eventLoop.schedule (() -> onTimeout (proxyExchange), proxyConfig.getResponseTimeoutMillis ());
+        dispatch (proxyExchange, false);
+    }
+
+    /**
+     * Proxied paths that could not be handed over raw, such as HTTP/2 streams, are not forwarded
+     */
+    public void service (HttpRequest httpRequest, HttpResponse httpResponse) throws IOException
+    {
+        badGatewayCount.increment ();
+        httpResponse.setResponseCode (502);
+        httpResponse.setResponseReason ("Bad Gateway");
+        httpResponse.addHeader ("Content-Type", "text/plain");
+        httpResponse.append ("Only HTTP/1.1 requests are proxied");
+        httpResponse.commitWriter (true);
+    }
+
+    /**
+     * Start the health checks, if there are any. They run on the loop, once it is running.
+     */
+    public void start () throws IOException
+    {
+        if (proxyConfig.getHealthCheckPath () == null)
+            return;
+        healthClient = new NioHttpClient (eventLoop);
+        healthClient.setConnectTimeoutMillis (proxyConfig.getConnectTimeoutMillis ());
+        healthClient.setRequestTimeoutMillis (proxyConfig.getHealthCheckIntervalMillis ());
+        eventLoop.execute (this::scheduleHealthChecks);
+    }
+
+    /**
+     * Stop the health checks and close the idle upstream connections
+     */
+    public void stop () throws IOException
+    {
+        eventLoop.execute (() -> {
+            if (healthTimer != null)
+                healthTimer.cancel ();
+            if (healthClient != null)
+                healthClient.close ();
+            for (Upstream upstream : upstreams.values ())
+            {
+                while (!upstream.idleConnections.isEmpty ())
+                    upstream.idleConnections.peekFirst ().close ();
+            }
+        });
+    }
+
+    /**
+     * Every upstream this loop proxies to. Their health may only be read reliably on the loop.
+     */
+    public Collection <Upstream> getUpstreams ()
+    {
+        return upstreams.values ();
+    }
+
+    EventLoop getEventLoop ()
+    {
+        return eventLoop;
+    }
+
+    BufferPool getBufferPool ()
+    {
+        return bufferPool;
+    }
+
+    public AccessLog getAccessLog ()
+    {
+        return accessLog;
+    }
+
+    /**
+     * Log each forwarded request, with the status and bytes relayed, once its response has been written
+     */
+    public void setAccessLog (AccessLog accessLog)
+    {
+        this.accessLog = accessLog;
+    }
+
+    ProxyConfig getProxyConfig ()
+    {
+        return proxyConfig;
+    }
+
+    void countRelayed (int relayedBytes)
+    {
+        relayedBytesCount.add (relayedBytes);
+    }
+
+    // Send the request on a pooled connection to the next upstream, or a new one
+    private void dispatch (ProxyExchange proxyExchange, boolean newConnection)
+    {
+        while (!proxyExchange.isDone ())
+        {
+            Upstream upstream = chooseUpstream (proxyExchange.route, proxyExchange.triedUpstreams);
+            if (upstream == null)
+            {
+                badGatewayCount.increment ();
+                proxyExchange.respondError (502, "Bad Gateway", "No upstream available for " + proxyExchange.route.pathPrefix);
+                return;
+            }
+            UpstreamConnection upstreamConnection = newConnection ? null : takeIdleConnection (upstream);
+            try
+            {
+                if (upstreamConnection == null)
+                {
+                    upstreamConnection = new UpstreamConnection (this, upstream);
+                    connectCount.increment ();
+                    upstreamConnection.connect ();
+                }
+                else
+                    reuseCount.increment ();
+                upstreamConnection.send (proxyExchange);
+                return;
+            }
+            catch (IOException e)
+            {
+                // A pooled connection the upstream has closed is simply replaced. Otherwise nothing has been sent,
+                // so another upstream may take the request.
+                upstreamConnection.close ();
+                if (upstreamConnection.isReused ())
+                    continue;
+                recordFailure (upstream);
+                proxyExchange.triedUpstreams.add (upstream);
+            }
+        }
+    }
+
+    // The most recently used idle connection that is still fresh. Older ones are closed on the way.
+    private UpstreamConnection takeIdleConnection (Upstream upstream)
+    {
+        long nowMillis = System.currentTimeMillis ();
+        UpstreamConnection upstreamConnection;
+        while ((upstreamConnection = upstream.idleConnections.pollFirst ()) != null)
+        {
+            if (nowMillis - upstreamConnection.idleSinceMillis < proxyConfig.getUpstreamKeepAliveMillis ())
+                return upstreamConnection;
+            upstreamConnection.close ();
+        }
+        return null;
+    }
+
+    // Smooth weighted round robin: each available upstream gains its weight, the one with the most is chosen and
+    // pays back the total. Upstreams already tried for this request are skipped.
+    private Upstream chooseUpstream (Route route, List <Upstream> triedUpstreams)
+    {
+        long nowMillis = System.currentTimeMillis ();
+        int totalWeight = 0;
+        int chosenIndex = -1;
+        for (int i = 0; i < route.upstreams.length; i++)
+        {
+            Upstream upstream = route.upstreams[i];
+            if (!isAvailable (upstream, nowMillis) || triedUpstreams.contains (upstream))
+                continue;
+            route.currentWeights[i] += route.weights[i];
+            totalWeight += route.weights[i];
+            if (chosenIndex < 0 || route.currentWeights[i] > route.currentWeights[chosenIndex])
+                chosenIndex = i;
+        }
+        if (chosenIndex < 0)
+            return null;
+        route.currentWeights[chosenIndex] -= totalWeight;
+        return route.upstreams[chosenIndex];
+    }
+
+    // Ejected upstreams wait for their health checks, or without any, for ejectMillis
+    private boolean isAvailable (Upstream upstream, long nowMillis)
+    {
+        return upstream.healthy || healthClient == null && nowMillis >= upstream.ejectedUntilMillis;
+    }
+
+    /**
+     * The response has been relayed. The connection goes back to the pool, if it may be reused, before the
+     * downstream connection moves on, so a request pipelined behind this one can have it.
+     */
+    void onExchangeDone (UpstreamConnection upstreamConnection, ProxyExchange proxyExchange, boolean reusable)
+    {
+        Upstream upstream = upstreamConnection.upstream;
+        recordSuccess (upstream);
+        if (reusable && upstream.healthy && upstream.idleConnections.size () < proxyConfig.getMaxIdlePerUpstream ())
+        {
+            upstreamConnection.idleSinceMillis = System.currentTimeMillis ();
+            upstream.idleConnections.addFirst (upstreamConnection);
+        }
+        else
+            upstreamConnection.close ();
+        proxyExchange.finishResponse ();
+    }
+
+    /**
+     * The upstream connection failed. Retry the request where that is safe, otherwise answer 502, or if part of
+     * the response has gone already, close the downstream connection.
+     */
+    void onUpstreamFailure (UpstreamConnection upstreamConnection, IOException e)
+    {
+        ProxyExchange proxyExchange = upstreamConnection.getExchange ();
+        boolean wasConnected = upstreamConnection.isConnected ();
+        boolean staleConnection = upstreamConnection.isReused () && proxyExchange != null && proxyExchange.getBytesRelayed () == 0;
+        upstreamConnection.close ();
+        // An upstream closing a connection it had kept idle is normal, not a failure
+        if (!staleConnection)
+            recordFailure (upstreamConnection.upstream);
+        if (proxyExchange == null || proxyExchange.isDone ())
+            return;
+        proxyExchange.upstreamConnection = null;
+
+        if (!wasConnected || e instanceof ConnectException)
+        {
+            retryCount.increment ();
+            proxyExchange.triedUpstreams.add (upstreamConnection.upstream);
+            dispatch (proxyExchange, false);
+        }
+        else if (staleConnection && proxyExchange.idempotent && !proxyExchange.retried)
+        {
+            retryCount.increment ();
+            proxyExchange.retried = true;
+            dispatch (proxyExchange, true);
+        }
+        else if (proxyExchange.getBytesRelayed () == 0)
+        {
+            badGatewayCount.increment ();
+            proxyExchange.respondError (502, "Bad Gateway", "Upstream " + upstreamConnection.upstream.getHostKey () + " failed: " + e.getMessage ());
+        }
+        else
+            proxyExchange.finish (false);
+    }
+
+    private void onTimeout (ProxyExchange proxyExchange)
+    {
+        if (proxyExchange.isDone ())
+            return;
+        timeoutCount.increment ();
+        UpstreamConnection upstreamConnection = proxyExchange.upstreamConnection;
+        if (upstreamConnection != null)
+        {
+            upstreamConnection.close ();
+            // A relay held up by a slow client is no fault of the upstream's
+            if (!upstreamConnection.isReadPaused ())
+                recordFailure (upstreamConnection.upstream);
+        }
+        if (proxyExchange.getBytesRelayed () == 0)
+            proxyExchange.respondError (504, "Gateway Timeout", "Upstream did not answer in time");
+        else
+            proxyExchange.finish (false);
+    }
+
+    private void recordSuccess (Upstream upstream)
+    {
+        upstream.failures = 0;
+        if (upstream.healthy || ++upstream.successes < proxyConfig.getHealthyThreshold ())
+            return;
+        upstream.healthy = true;
+        upstream.successes = 0;
+        Log.info ("Upstream " + upstream.getHostKey () + " is healthy again");
+    }
+
+    private void recordFailure (Upstream upstream)
+    {
+        upstream.successes = 0;
+        if (!upstream.healthy)
+        {
+            // A failed trial without health checks waits out another ejection
+            upstream.ejectedUntilMillis = System.currentTimeMillis () + proxyConfig.getEjectMillis ();
+            return;
+        }
+        if (++upstream.failures < proxyConfig.getUnhealthyThreshold ())
+            return;
+        upstream.healthy = false;
+        upstream.failures = 0;
+        upstream.ejectedUntilMillis = System.currentTimeMillis () + proxyConfig.getEjectMillis ();
+        ejectionCount.increment ();
+        Log.warn ("Upstream " + upstream.getHostKey () + " ejected");
+        while (!upstream.idleConnections.isEmpty ())
+            upstream.idleConnections.peekFirst ().close ();
+    }
+
+    // Probe every upstream, then go again after the interval
+    private void scheduleHealthChecks ()
+    {
+        healthTimer = eventLoop.schedule (() -> {
+            for (Upstream upstream : upstreams.values ())
+            {
+                healthClient.get ("http://" + upstream.getHostKey () + proxyConfig.getHealthCheckPath ()).whenComplete ((clientResponse, failure) -> {
+                    if (failure == null && clientResponse.getStatusCode () < 400)
+                        recordSuccess (upstream);
+                    else
+                        recordFailure (upstream);
+                });
+            }
+            scheduleHealthChecks ();
+        }, proxyConfig.getHealthCheckIntervalMillis ());
+    }
+
+    private Route getRoute (String reqLocation)
+    {
+        if (reqLocation == null)
+            return null;
+        for (Route route : routes)
+        {
+            if (!reqLocation.startsWith (route.pathPrefix))
+                continue;
+            if (reqLocation.length () == route.pathPrefix.length () || route.pathPrefix.endsWith ("/"))
+                return route;
+            char nextChar = reqLocation.charAt (route.pathPrefix.length ());
+            if (nextChar == '/' || nextChar == '?')
+                return route;
+        }
+        return null;
+    }
+
+    // The target of the request line, without building a String of the whole request
+    private static String getReqLocation (byte[] reqBytes, int reqStart, int reqLength)
+    {
+        int reqEnd = reqStart + reqLength;
+        int locationStart = -1;
+        for (int i = reqStart; i < reqEnd; i++)
+        {
+            byte reqByte = reqBytes[i];
+            if (reqByte == '\r' || reqByte == '\n')
+                return null;
+            if (reqByte != ' ')
+                continue;
+            if (locationStart >= 0)
+                return new String (reqBytes, locationStart, i - locationStart, StandardCharsets.ISO_8859_1);
+            locationStart = i + 1;
+        }
+        return null;
+    }
+
+    // Index of the blank line ending the head of the request in the buffer, or -1 if there is none
+    static int findHeadEnd (ByteBuffer requestBuffer)
+    {
+        for (int i = requestBuffer.position (); i + 3 < requestBuffer.limit (); i++)
+        {
+            if (requestBuffer.get (i) == '\r' && requestBuffer.get (i + 1) == '\n' && requestBuffer.get (i + 2) == '\r' && requestBuffer.get (i + 3) == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    static final class Route
+    {
+        final String pathPrefix;
+        final Upstream[] upstreams;
+        final int[] weights;
+        final int[] currentWeights;
+
+        Route (String pathPrefix, int upstreamCount)
+        {
+            this.pathPrefix = pathPrefix;
+            upstreams = new Upstream[upstreamCount];
+            weights = new int[upstreamCount];
+            currentWeights = new int[upstreamCount];
+        }
+    }
+}
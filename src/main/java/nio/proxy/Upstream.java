@@ -0,0 +1,64 @@
+package nio.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+
+/**
+ * One upstream server as seen by one event loop's ReverseProxy: its health and its idle keep-alive connections.
+ * Routes that share a host and port share the Upstream. Only ever touched on the loop.
+ */
+public class Upstream
+{
+    private final String host;
+    private final int port;
+    private InetSocketAddress address;
+    final ArrayDeque <UpstreamConnection> idleConnections = new ArrayDeque <> ();
+    boolean healthy = true;
+    int failures;
+    int successes;
+    long ejectedUntilMillis;
+
+    Upstream (String host, int port)
+    {
+        this.host = host;
+        this.port = port;
+    }
+
+    public String getHost ()
+    {
+        return host;
+    }
+
+    public int getPort ()
+    {
+        return port;
+    }
+
+    public boolean isHealthy ()
+    {
+        return healthy;
+    }
+
+    public int getIdleConnections ()
+    {
+        return idleConnections.size ();
+    }
+
+    // Resolved on first use, so a proxy can be configured before DNS is reachable
+    InetSocketAddress getAddress ()
+    {
+        if (address == null || address.isUnresolved ())
+            address = new InetSocketAddress (host, port);
+        return address;
+    }
+
+    String getHostKey ()
+    {
+        return host + ":" + port;
+    }
+
+    public String toString ()
+    {
+        return getHostKey () + (healthy ? "" : " (ejected)");
+    }
+}
@@ -0,0 +1,242 @@
+package nio.proxy;
+
+import nio.util.SelectionHandler;
+import nio.util.TimerQueue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One keep-alive connection to an upstream, carrying one exchange at a time. Between exchanges it waits in its
+ * upstream's idle pool, still watched for reads so an upstream that closes it is noticed at once.
+ */
+final class UpstreamConnection implements SelectionHandler
+{
+    final Upstream upstream;
+    private final ReverseProxy reverseProxy;
+    private SocketChannel socketChannel;
+    private SelectionKey selectionKey;
+    private boolean connected;
+    private boolean closed;
+    private ByteBuffer[] requestBuffers;
+    private ProxyExchange proxyExchange;
+    // Reading stops while the client has yet to take what was relayed to it
+    private boolean readPaused;
+    private int exchangesDone;
+    private TimerQueue.Timer connectTimer;
+    long idleSinceMillis;
+
+    UpstreamConnection (ReverseProxy reverseProxy, Upstream upstream)
+    {
+        this.reverseProxy = reverseProxy;
+        this.upstream = upstream;
+    }
+
+    void connect () throws IOException
+    {
+        InetSocketAddress upstreamAddress = upstream.getAddress ();
+        if (upstreamAddress.isUnresolved ())
+            throw new UnknownHostException (upstream.getHostKey ());
+        socketChannel = SocketChannel.open ();
+        boolean connectDone;
+        try
+        {
+            socketChannel.configureBlocking (false);
+            socketChannel.socket ().setTcpNoDelay (true);
+            connectDone = socketChannel.connect (upstreamAddress);
+        }
+        catch (IOException e)
+        {
+            socketChannel.close ();
+            throw e;
+        }
+        selectionKey = reverseProxy.getEventLoop ().register (socketChannel, connectDone ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        connected = connectDone;
+        long connectTimeoutMillis = reverseProxy.getProxyConfig ().getConnectTimeoutMillis ();
+        if (!connectDone && connectTimeoutMillis > 0)
+            connectTimer = reverseProxy.getEventLoop ().schedule (this::onConnectTimeout, connectTimeoutMillis);
+    }
+
+    private void onConnectTimeout ()
+    {
+        if (!connected && !closed)
+            reverseProxy.onUpstreamFailure (this, new ConnectException ("Timed out connecting to " + upstream.getHostKey ()));
+    }
+
+    boolean isConnected ()
+    {
+        return connected;
+    }
+
+    /**
+     * True if an earlier exchange has been served on this connection, so the upstream may have closed it
+     */
+    boolean isReused ()
+    {
+        return exchangesDone > 0;
+    }
+
+    boolean isClosed ()
+    {
+        return closed;
+    }
+
+    ProxyExchange getExchange ()
+    {
+        return proxyExchange;
+    }
+
+    void send (ProxyExchange proxyExchange) throws IOException
+    {
+        this.proxyExchange = proxyExchange;
+        proxyExchange.upstreamConnection = this;
+        requestBuffers = proxyExchange.newRequestBuffers ();
+        if (connected)
+            flushWrites ();
+    }
+
+    public void onSelected (SelectionKey selectionKey)
+    {
+        try
+        {
+            if (selectionKey.isConnectable ())
+            {
+                socketChannel.finishConnect ();
+                connected = true;
+                if (connectTimer != null)
+                    connectTimer.cancel ();
+                flushWrites ();
+            }
+            if (selectionKey.isValid () && selectionKey.isWritable ())
+                flushWrites ();
+            if (selectionKey.isValid () && selectionKey.isReadable ())
+                readResponse ();
+        }
+        catch (IOException | IllegalStateException e)    // a cancelled key is an IllegalStateException
+        {
+            reverseProxy.onUpstreamFailure (this, e instanceof IOException ? (IOException) e : new IOException (e));
+        }
+    }
+
+    // Send as much of the request as the socket takes, in one gathering write, and ask to hear when it will take
+    // the rest. Reads stay on, as the upstream may answer before it has read the whole request.
+    private void flushWrites () throws IOException
+    {
+        if (requestBuffers != null)
+        {
+            socketChannel.write (requestBuffers);
+            if (!requestBuffers[requestBuffers.length - 1].hasRemaining ())
+                requestBuffers = null;
+        }
+        int readOps = readPaused ? 0 : SelectionKey.OP_READ;
+        selectionKey.interestOps (requestBuffers == null ? readOps : readOps | SelectionKey.OP_WRITE);
+    }
+
+    void pauseReading ()
+    {
+        readPaused = true;
+        selectionKey.interestOps (selectionKey.interestOps () & ~SelectionKey.OP_READ);
+    }
+
+    boolean isReadPaused ()
+    {
+        return readPaused;
+    }
+
+    void resumeReading ()
+    {
+        if (closed || !readPaused)
+            return;
+        readPaused = false;
+        selectionKey.interestOps (selectionKey.interestOps () | SelectionKey.OP_READ);
+    }
+
+    // Relay whatever has arrived, read into a pooled buffer and written downstream from the same buffer
+    private void readResponse () throws IOException
+    {
+        ByteBuffer readBuffer = reverseProxy.getBufferPool ().acquire ();
+        try
+        {
+            while (!closed && !readPaused)
+            {
+                int bytesRead = socketChannel.read (readBuffer);
+                if (bytesRead == 0)
+                    return;
+                if (bytesRead < 0)
+                {
+                    onEndOfStream ();
+                    return;
+                }
+                readBuffer.flip ();
+                if (proxyExchange == null)
+                {
+                    // Nothing is owed on an idle connection, so this can only be the upstream going away
+                    close ();
+                    return;
+                }
+                reverseProxy.countRelayed (readBuffer.remaining ());
+                if (proxyExchange.relay (readBuffer))
+                {
+                    // Reused only if the response ended cleanly, after the whole request had gone
+                    boolean reusable = proxyExchange.isResponseComplete () && proxyExchange.isUpstreamReusable ()
+                        && requestBuffers == null && !readBuffer.hasRemaining ();
+                    ProxyExchange doneExchange = proxyExchange;
+                    proxyExchange = null;
+                    exchangesDone++;
+                    reverseProxy.onExchangeDone (this, doneExchange, reusable);
+                    return;
+                }
+                readBuffer.clear ();
+            }
+        }
+        finally
+        {
+            reverseProxy.getBufferPool ().release (readBuffer);
+        }
+    }
+
+    private void onEndOfStream () throws IOException
+    {
+        ProxyExchange closedExchange = proxyExchange;
+        if (closedExchange != null && closedExchange.isUntilClose ())
+        {
+            // The response was framed by the end of the stream
+            proxyExchange = null;
+            reverseProxy.onExchangeDone (this, closedExchange, false);
+            return;
+        }
+        if (closedExchange == null)
+        {
+            close ();
+            return;
+        }
+        throw new IOException ("Connection closed by " + upstream.getHostKey ());
+    }
+
+    /**
+     * Close the connection and take it out of its pool. Any exchange is detached, not finished.
+     */
+    void close ()
+    {
+        if (closed)
+            return;
+        closed = true;
+        proxyExchange = null;
+        if (connectTimer != null)
+            connectTimer.cancel ();
+        upstream.idleConnections.remove (this);
+        try
+        {
+            socketChannel.close ();
+        }
+        catch (IOException ignore)
+        {
+            /* ignore */
+        }
+    }
+}
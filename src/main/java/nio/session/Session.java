@@ -0,0 +1,138 @@
+package nio.session;
+
+import nio.api.HttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One request's view of a session: its attributes, read from the store when the request asked for it and
+ * written back by save(). Attributes are strings, serialized as a count followed by name and value pairs. A
+ * session lives on the heap only for as long as the request that is using it.
+ */
+public class Session
+{
+    private final SessionStore sessionStore;
+    private final String sessionId;
+    private final HttpResponse httpResponse;
+    private final Map <String, String> sessionAttributes = new HashMap <> ();
+    private boolean newSession;
+    private boolean changed;
+
+    Session (SessionStore sessionStore, String sessionId, byte[] sessionBytes, HttpResponse httpResponse)
+    {
+        this.sessionStore = sessionStore;
+        this.sessionId = sessionId;
+        this.httpResponse = httpResponse;
+        this.newSession = sessionBytes == null;
+        if (sessionBytes != null)
+            decode (sessionBytes);
+    }
+
+    public String getId ()
+    {
+        return sessionId;
+    }
+
+    /**
+     * True if the client had no live session, so this one has not been stored yet
+     */
+    public boolean isNew ()
+    {
+        return newSession;
+    }
+
+    public String getAttribute (String attributeName)
+    {
+        return sessionAttributes.get (attributeName);
+    }
+
+    /**
+     * Set an attribute, or remove it if the value is null
+     */
+    public void setAttribute (String attributeName, String attributeValue)
+    {
+        if (attributeValue == null)
+            changed |= sessionAttributes.remove (attributeName) != null;
+        else
+            changed |= !attributeValue.equals (sessionAttributes.put (attributeName, attributeValue));
+    }
+
+    public Set <String> getAttributeNames ()
+    {
+        return Collections.unmodifiableSet (sessionAttributes.keySet ());
+    }
+
+    /**
+     * Write the attributes back to the store if they have changed, and for a new session, set its cookie on the
+     * response, so this must be called before the response is committed. Returns false if the store had no room
+     * for the session.
+     */
+    public boolean save ()
+    {
+        if (!changed && !newSession)
+            return true;
+        if (!sessionStore.put (sessionId, encode ()))
+            return false;
+        if (newSession && httpResponse != null)
+            httpResponse.addHeader ("Set-Cookie", sessionStore.getSetCookie (sessionId));
+        newSession = false;
+        changed = false;
+        return true;
+    }
+
+    /**
+     * Remove the session from the store, and tell the client to forget its cookie
+     */
+    public void invalidate ()
+    {
+        sessionStore.remove (sessionId);
+        sessionAttributes.clear ();
+        if (!newSession && httpResponse != null)
+            httpResponse.addHeader ("Set-Cookie", sessionStore.getCookieName () + "=; Max-Age=0; Path=/");
+        newSession = true;
+        changed = false;
+    }
+
+    private byte[] encode ()
+    {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream (64);
+        try (DataOutputStream dataStream = new DataOutputStream (byteStream))
+        {
+            dataStream.writeInt (sessionAttributes.size ());
+            for (Map.Entry <String, String> sessionAttribute : sessionAttributes.entrySet ())
+            {
+                dataStream.writeUTF (sessionAttribute.getKey ());
+                dataStream.writeUTF (sessionAttribute.getValue ());
+            }
+        }
+        catch (IOException e)
+        {
+            // Only a value longer than 64KB can fail, and no session that size fits in the store
+            throw new UncheckedIOException (e);
+        }
+        return byteStream.toByteArray ();
+    }
+
+    private void decode (byte[] sessionBytes)
+    {
+        try (DataInputStream dataStream = new DataInputStream (new ByteArrayInputStream (sessionBytes)))
+        {
+            int attributeCount = dataStream.readInt ();
+            for (int i = 0; i < attributeCount; i++)
+                sessionAttributes.put (dataStream.readUTF (), dataStream.readUTF ());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException (e);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package nio.session;
+
+import nio.api.HttpRequest;
+import nio.api.HttpResponse;
+
+import java.security.SecureRandom;
+
+/**
+ * Sessions kept off the heap. Each session's attributes are serialized into a slot of direct memory, so millions
+ * of small sessions add nothing for the garbage collector to trace: the heap holds only the store's primitive
+ * index arrays and its pages.
+ *
+ * A session is named by a random 128 bit ID, sent to the client in a cookie. The store is split into segments by
+ * ID, each with its own lock, its own share of the memory cap and its own open-addressing index (linear probing,
+ * with entries shifted back on removal, so there are no tombstones). Sessions expire ttlMillis after they were
+ * last used. Every lookup and save also sweeps a few index slots of its segment for expired sessions, so expiry
+ * is spread over normal traffic, and sweep() does the same for every segment when the store is quiet.
+ *
+ * Memory is capped: once every page of a segment is in use, a save that needs a new slot is refused. Pages are
+ * allocated as they are needed and released only when the store itself is no longer reachable.
+ *
+ * One store may be shared by every loop and worker of a server.
+ */
+public class SessionStore
+{
+    public static final String DEFAULT_COOKIE_NAME = "NIOSESSIONID";
+    // Also the largest session that can be stored
+    public static final int PAGE_SIZE = 64 * 1024;
+    private static final int SEGMENT_COUNT = 16;
+    private static final int SWEEP_SLOTS = 8;
+    private static final int INITIAL_INDEX_SIZE = 64;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final SecureRandom idRandom = new SecureRandom ();
+    private String cookieName = DEFAULT_COOKIE_NAME;
+    private String cookieAttributes = "; Path=/; HttpOnly; SameSite=Lax";
+
+    /**
+     * A store using at most maxBytes of direct memory, rounded down to whole pages per segment (one at least),
+     * whose sessions expire ttlMillis after last use
+     */
+    public SessionStore (long maxBytes, long ttlMillis)
+    {
+        if (ttlMillis <= 0)
+            throw new IllegalArgumentException ("ttlMillis must be positive");
+        int segmentPages = (int) Math.min (Integer.MAX_VALUE / PAGE_SIZE, Math.max (1, maxBytes / SEGMENT_COUNT / PAGE_SIZE));
+        for (int i = 0; i < SEGMENT_COUNT; i++)
+            segments[i] = new Segment (segmentPages, ttlMillis);
+        this.maxBytes = (long) segmentPages * PAGE_SIZE * SEGMENT_COUNT;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public String getCookieName ()
+    {
+        return cookieName;
+    }
+
+    /**
+     * Name the cookie that carries the session ID. Defaults to NIOSESSIONID.
+     */
+    public void setCookieName (String cookieName)
+    {
+        this.cookieName = cookieName;
+    }
+
+    /**
+     * Attributes added after the session ID in the Set-Cookie header. Defaults to "; Path=/; HttpOnly; SameSite=Lax",
+     * and a server behind TLS will want "; Secure" as well.
+     */
+    public void setCookieAttributes (String cookieAttributes)
+    {
+        this.cookieAttributes = cookieAttributes;
+    }
+
+    public long getTtlMillis ()
+    {
+        return ttlMillis;
+    }
+
+    /**
+     * The session named by the request's cookie if it is still live, or else a new, empty one that will be stored,
+     * and its cookie set on the response, when it is first saved
+     */
+    public Session getSession (HttpRequest httpRequest, HttpResponse httpResponse)
+    {
+        String sessionId = httpRequest.getCookie (cookieName);
+        byte[] sessionBytes = sessionId == null ? null : get (sessionId);
+        if (sessionBytes != null)
+            return new Session (this, sessionId, sessionBytes, httpResponse);
+        return new Session (this, newSessionId (), null, httpResponse);
+    }
+
+    String getSetCookie (String sessionId)
+    {
+        return cookieName + "=" + sessionId + cookieAttributes;
+    }
+
+    // 32 hex digits, never all zero, which marks an empty index slot
+    private String newSessionId ()
+    {
+        long idHigh;
+        long idLow;
+        do
+        {
+            idHigh = idRandom.nextLong ();
+            idLow = idRandom.nextLong ();
+        }
+        while (idHigh == 0 && idLow == 0);
+        return toHex (idHigh) + toHex (idLow);
+    }
+
+    private static String toHex (long idPart)
+    {
+        String hexText = Long.toHexString (idPart);
+        return "0000000000000000".substring (hexText.length ()) + hexText;
+    }
+
+    /**
+     * The serialized attributes of a live session, which is kept alive for another ttlMillis, or null if there is
+     * no such session or it has expired
+     */
+    public byte[] get (String sessionId)
+    {
+        if (!isValidId (sessionId))
+            return null;
+        long idHigh = Long.parseUnsignedLong (sessionId.substring (0, 16), 16);
+        long idLow = Long.parseUnsignedLong (sessionId.substring (16), 16);
+        Segment segment = getSegment (idHigh);
+        synchronized (segment)
+        {
+            long nowMillis = System.currentTimeMillis ();
+            segment.sweep (nowMillis, SWEEP_SLOTS);
+            return segment.get (idHigh, idLow, nowMillis);
+        }
+    }
+
+    /**
+     * Store a session's serialized attributes, live for ttlMillis from now. Returns false, leaving no session by
+     * that ID, if the session is larger than a page or its segment has no room left for it.
+     */
+    public boolean put (String sessionId, byte[] sessionBytes)
+    {
+        if (!isValidId (sessionId))
+            throw new IllegalArgumentException ("Not a session ID: " + sessionId);
+        long idHigh = Long.parseUnsignedLong (sessionId.substring (0, 16), 16);
+        long idLow = Long.parseUnsignedLong (sessionId.substring (16), 16);
+        Segment segment = getSegment (idHigh);
+        synchronized (segment)
+        {
+            long nowMillis = System.currentTimeMillis ();
+            segment.sweep (nowMillis, SWEEP_SLOTS);
+            return segment.put (idHigh, idLow, sessionBytes, nowMillis);
+        }
+    }
+
+    /**
+     * Forget a session. Returns true if it was there.
+     */
+    public boolean remove (String sessionId)
+    {
+        if (!isValidId (sessionId))
+            return false;
+        long idHigh = Long.parseUnsignedLong (sessionId.substring (0, 16), 16);
+        long idLow = Long.parseUnsignedLong (sessionId.substring (16), 16);
+        Segment segment = getSegment (idHigh);
+        synchronized (segment)
+        {
+            int indexSlot = segment.find (idHigh, idLow);
+            if (indexSlot < 0)
+                return false;
+            segment.removeAt (indexSlot);
+            return true;
+        }
+    }
+
+    /**
+     * Sweep a few more index slots of every segment for expired sessions. Returns how many were removed.
+     */
+    public int sweep ()
+    {
+        int expiredCount = 0;
+        long nowMillis = System.currentTimeMillis ();
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                expiredCount += segment.sweep (nowMillis, SWEEP_SLOTS * 16);
+            }
+        }
+        return expiredCount;
+    }
+
+    /**
+     * Sessions stored, some of which may have expired but not yet been swept
+     */
+    public int size ()
+    {
+        int sessionCount = 0;
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                sessionCount += segment.entryCount;
+            }
+        }
+        return sessionCount;
+    }
+
+    /**
+     * Direct memory allocated so far, which never exceeds getMaxBytes()
+     */
+    public long getAllocatedBytes ()
+    {
+        long allocatedBytes = 0;
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                allocatedBytes += segment.slabArena.getAllocatedBytes ();
+            }
+        }
+        return allocatedBytes;
+    }
+
+    public long getMaxBytes ()
+    {
+        return maxBytes;
+    }
+
+    private static boolean isValidId (String sessionId)
+    {
+        if (sessionId == null || sessionId.length () != 32)
+            return false;
+        for (int i = 0; i < 32; i++)
+        {
+            char idChar = sessionId.charAt (i);
+            if ((idChar < '0' || idChar > '9') && (idChar < 'a' || idChar > 'f'))
+                return false;
+        }
+        return true;
+    }
+
+    private Segment getSegment (long idHigh)
+    {
+        return segments[(int) (idHigh >>> 60)];
+    }
+
+    /**
+     * One lock's worth of the store: an index of sessions and the arena holding them. Each index slot is four
+     * longs in parallel arrays: the two halves of the ID (both zero when the slot is empty), where the session is
+     * (slot address and length), and when it expires.
+     */
+    private static final class Segment
+    {
+        final SlabArena slabArena;
+        final long ttlMillis;
+        long[] idHighs = new long[INITIAL_INDEX_SIZE];
+        long[] idLows = new long[INITIAL_INDEX_SIZE];
+        long[] slotWords = new long[INITIAL_INDEX_SIZE];
+        long[] expiresAt = new long[INITIAL_INDEX_SIZE];
+        int indexMask = INITIAL_INDEX_SIZE - 1;
+        int entryCount;
+        int sweepCursor;
+
+        Segment (int maxPages, long ttlMillis)
+        {
+            this.slabArena = new SlabArena (PAGE_SIZE, maxPages);
+            this.ttlMillis = ttlMillis;
+        }
+
+        private static int getHome (long idLow, int indexMask)
+        {
+            // IDs are random already
+            return (int) (idLow ^ idLow >>> 32) & indexMask;
+        }
+
+        int find (long idHigh, long idLow)
+        {
+            for (int indexSlot = getHome (idLow, indexMask); ; indexSlot = (indexSlot + 1) & indexMask)
+            {
+                if (idHighs[indexSlot] == idHigh && idLows[indexSlot] == idLow)
+                    return indexSlot;
+                if (idHighs[indexSlot] == 0 && idLows[indexSlot] == 0)
+                    return -1;
+            }
+        }
+
+        byte[] get (long idHigh, long idLow, long nowMillis)
+        {
+            int indexSlot = find (idHigh, idLow);
+            if (indexSlot < 0)
+                return null;
+            if (expiresAt[indexSlot] <= nowMillis)
+            {
+                removeAt (indexSlot);
+                return null;
+            }
+            expiresAt[indexSlot] = nowMillis + ttlMillis;
+            long slotWord = slotWords[indexSlot];
+            return slabArena.read ((int) (slotWord >>> 32), (int) slotWord);
+        }
+
+        boolean put (long idHigh, long idLow, byte[] sessionBytes, long nowMillis)
+        {
+            int sizeClass = slabArena.getSizeClass (sessionBytes.length);
+            int indexSlot = find (idHigh, idLow);
+            if (indexSlot >= 0 && sizeClass >= 0 && slabArena.getSizeClass ((int) slotWords[indexSlot]) == sizeClass)
+            {
+                // Same size class, so it is written over where it is
+                int slotAddress = (int) (slotWords[indexSlot] >>> 32);
+                slabArena.write (slotAddress, sessionBytes, sessionBytes.length);
+                slotWords[indexSlot] = (long) slotAddress << 32 | sessionBytes.length;
+                expiresAt[indexSlot] = nowMillis + ttlMillis;
+                return true;
+            }
+            if (indexSlot >= 0)
+                removeAt (indexSlot);
+            if (sizeClass < 0)
+                return false;
+
+            int slotAddress = slabArena.allocate (sizeClass);
+            if (slotAddress < 0)
+            {
+                // Full: sweep the whole index once before giving up
+                sweep (nowMillis, indexMask + 1);
+                slotAddress = slabArena.allocate (sizeClass);
+                if (slotAddress < 0)
+                    return false;
+            }
+            slabArena.write (slotAddress, sessionBytes, sessionBytes.length);
+            if ((entryCount + 1) * 2 > indexMask + 1)
+                growIndex ();
+            indexSlot = getHome (idLow, indexMask);
+            while (idHighs[indexSlot] != 0 || idLows[indexSlot] != 0)
+                indexSlot = (indexSlot + 1) & indexMask;
+            idHighs[indexSlot] = idHigh;
+            idLows[indexSlot] = idLow;
+            slotWords[indexSlot] = (long) slotAddress << 32 | sessionBytes.length;
+            expiresAt[indexSlot] = nowMillis + ttlMillis;
+            entryCount++;
+            return true;
+        }
+
+        // Empty the slot, then shift back any entry after it in the same run that may now sit closer to home
+        void removeAt (int indexSlot)
+        {
+            long slotWord = slotWords[indexSlot];
+            slabArena.free ((int) (slotWord >>> 32), slabArena.getSizeClass ((int) slotWord));
+            int holeSlot = indexSlot;
+            for (int nextSlot = (indexSlot + 1) & indexMask; idHighs[nextSlot] != 0 || idLows[nextSlot] != 0; nextSlot = (nextSlot + 1) & indexMask)
+            {
+                int homeSlot = getHome (idLows[nextSlot], indexMask);
+                // The entry may move to the hole unless its home lies after the hole, up to where it is now
+                boolean staysPut = holeSlot <= nextSlot ? holeSlot < homeSlot && homeSlot <= nextSlot : holeSlot < homeSlot || homeSlot <= nextSlot;
+                if (staysPut)
+                    continue;
+                idHighs[holeSlot] = idHighs[nextSlot];
+                idLows[holeSlot] = idLows[nextSlot];
+                slotWords[holeSlot] = slotWords[nextSlot];
+                expiresAt[holeSlot] = expiresAt[nextSlot];
+                holeSlot = nextSlot;
+            }
+            idHighs[holeSlot] = 0;
+            idLows[holeSlot] = 0;
+            entryCount--;
+        }
+
+        // Look at the next slotCount index slots, removing expired sessions. Returns how many were removed.
+        int sweep (long nowMillis, int slotCount)
+        {
+            int expiredCount = 0;
+            for (int i = 0; i < slotCount && entryCount > 0; i++)
+            {
+                int indexSlot = sweepCursor;
+                if ((idHighs[indexSlot] != 0 || idLows[indexSlot] != 0) && expiresAt[indexSlot] <= nowMillis)
+                {
+                    // Look at this slot again, as a later entry may have been shifted into it
+                    removeAt (indexSlot);
+                    expiredCount++;
+                    continue;
+                }
+                sweepCursor = (sweepCursor + 1) & indexMask;
+            }
+            return expiredCount;
+        }
+
+        private void growIndex ()
+        {
+            long[] oldHighs = idHighs;
+            long[] oldLows = idLows;
+            long[] oldWords = slotWords;
+            long[] oldExpires = expiresAt;
+            int indexSize = oldHighs.length * 2;
+            idHighs = new long[indexSize];
+            idLows = new long[indexSize];
+            slotWords = new long[indexSize];
+            expiresAt = new long[indexSize];
+            indexMask = indexSize - 1;
+            sweepCursor = 0;
+            for (int i = 0; i < oldHighs.length; i++)
+            {
+                if (oldHighs[i] == 0 && oldLows[i] == 0)
+                    continue;
+                int indexSlot = getHome (oldLows[i], indexMask);
+                while (idHighs[indexSlot] != 0 || idLows[indexSlot] != 0)
+                    indexSlot = (indexSlot + 1) & indexMask;
+                idHighs[indexSlot] = oldHighs[i];
+                idLows[indexSlot] = oldLows[i];
+                slotWords[indexSlot] = oldWords[i];
+                expiresAt[indexSlot] = oldExpires[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package nio.session;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap memory carved into slots. Pages of direct memory are allocated as they are needed, up to a fixed
+ * number, and each page is given to one size class, a power of two from MIN_SLOT up to the page size, and cut
+ * into slots of that size. A freed slot goes on its class's free list, which is kept in the free slots
+ * themselves, so the arena holds nothing on the heap per slot. Pages are never returned or given to another
+ * class.
+ *
+ * A slot is addressed by an int, its offset from the start of the first page as if the pages were one block.
+ * Not thread safe: the session store calls it under its segment's lock.
+ */
+class SlabArena
+{
+    static final int MIN_SLOT = 64;
+    private static final int MIN_SHIFT = 6;
+    private static final int NO_SLOT = -1;
+
+    private final int pageShift;
+    private final int pageSize;
+    private final ByteBuffer[] slabPages;
+    private int pageCount;
+    // For each class, the first free slot, and the next never used one with the end of its page
+    private final int[] freeHeads;
+    private final int[] freshSlots;
+    private final int[] freshEnds;
+
+    /**
+     * An arena of up to maxPages pages of pageSize bytes, which must be a power of two
+     */
+    SlabArena (int pageSize, int maxPages)
+    {
+        if (Integer.bitCount (pageSize) != 1 || pageSize < MIN_SLOT)
+            throw new IllegalArgumentException ("pageSize must be a power of two of at least " + MIN_SLOT);
+        if ((long) pageSize * maxPages > Integer.MAX_VALUE)
+            throw new IllegalArgumentException ("An arena is limited to 2GB");
+        this.pageSize = pageSize;
+        this.pageShift = Integer.numberOfTrailingZeros (pageSize);
+        this.slabPages = new ByteBuffer[maxPages];
+        int classCount = pageShift - MIN_SHIFT + 1;
+        freeHeads = new int[classCount];
+        freshSlots = new int[classCount];
+        freshEnds = new int[classCount];
+        for (int i = 0; i < classCount; i++)
+            freeHeads[i] = NO_SLOT;
+    }
+
+    /**
+     * The size class of a slot holding byteCount bytes, or -1 if it is larger than a page
+     */
+    int getSizeClass (int byteCount)
+    {
+        if (byteCount > pageSize)
+            return -1;
+        if (byteCount <= MIN_SLOT)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros (byteCount - 1) - MIN_SHIFT;
+    }
+
+    int getSlotSize (int sizeClass)
+    {
+        return MIN_SLOT << sizeClass;
+    }
+
+    /**
+     * A free slot of the given class, or -1 if there is none and no page is left to cut one from
+     */
+    int allocate (int sizeClass)
+    {
+        int slotAddress = freeHeads[sizeClass];
+        if (slotAddress != NO_SLOT)
+        {
+            freeHeads[sizeClass] = getPage (slotAddress).getInt (slotAddress & (pageSize - 1));
+            return slotAddress;
+        }
+        if (freshSlots[sizeClass] == freshEnds[sizeClass])
+        {
+            if (pageCount == slabPages.length)
+                return NO_SLOT;
+            slabPages[pageCount] = ByteBuffer.allocateDirect (pageSize);
+            freshSlots[sizeClass] = pageCount << pageShift;
+            freshEnds[sizeClass] = freshSlots[sizeClass] + pageSize;
+            pageCount++;
+        }
+        slotAddress = freshSlots[sizeClass];
+        freshSlots[sizeClass] += getSlotSize (sizeClass);
+        return slotAddress;
+    }
+
+    void free (int slotAddress, int sizeClass)
+    {
+        getPage (slotAddress).putInt (slotAddress & (pageSize - 1), freeHeads[sizeClass]);
+        freeHeads[sizeClass] = slotAddress;
+    }
+
+    void write (int slotAddress, byte[] slotBytes, int byteCount)
+    {
+        ByteBuffer slabPage = getPage (slotAddress);
+        slabPage.clear ();
+        slabPage.position (slotAddress & (pageSize - 1));
+        slabPage.put (slotBytes, 0, byteCount);
+    }
+
+    byte[] read (int slotAddress, int byteCount)
+    {
+        byte[] slotBytes = new byte[byteCount];
+        ByteBuffer slabPage = getPage (slotAddress);
+        slabPage.clear ();
+        slabPage.position (slotAddress & (pageSize - 1));
+        slabPage.get (slotBytes);
+        return slotBytes;
+    }
+
+    private ByteBuffer getPage (int slotAddress)
+    {
+        return slabPages[slotAddress >>> pageShift];
+    }
+
+    /**
+     * Direct memory allocated so far
+     */
+    long getAllocatedBytes ()
+    {
+        return (long) pageCount * pageSize;
+    }
+}
@@ -0,0 +1,317 @@
+package nio.template;
+
+import nio.api.HttpResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTML template compiled once into a plan of segments. The static markup between tags is encoded to UTF-8
+ * when the template is compiled and kept in read-only direct buffers shared by every render, so rendering only
+ * encodes the values filled in. The response is written with the shared segments and the values side by side
+ * in one gathering write.
+ *
+ * Tags are {{name}} for a value, HTML escaped, {{{name}}} for a value written as it is, and {{#name}} ... {{/name}}
+ * for a section. A section is rendered once for each element of a collection or array, with the element's own
+ * values (if it is a Map) looked up first, once for any other value that is present and not false, and not at
+ * all otherwise. {{.}} is the current element itself.
+ *
+ * A compiled template is immutable and may be rendered by any number of threads at once.
+ */
+public class Template
+{
+    private static final int TEXT = 0;
+    private static final int ESCAPED = 1;
+    private static final int RAW = 2;
+    private static final int SECTION = 3;
+    private static final String CONTENT_TYPE = "text/html; charset=UTF-8";
+
+    private final String templateName;
+    private final Segment[] segments;
+
+    private static final class Segment
+    {
+        final int segmentType;
+        final String valueName;
+        final ByteBuffer encodedText;
+        final Segment[] sectionSegments;
+
+        Segment (int segmentType, String valueName, ByteBuffer encodedText, Segment[] sectionSegments)
+        {
+            this.segmentType = segmentType;
+            this.valueName = valueName;
+            this.encodedText = encodedText;
+            this.sectionSegments = sectionSegments;
+        }
+    }
+
+    private Template (String templateName, Segment[] segments)
+    {
+        this.templateName = templateName;
+        this.segments = segments;
+    }
+
+    /**
+     * Parse a template. Throws IllegalArgumentException, giving the offset, if a tag is not closed or a section
+     * is not ended.
+     */
+    public static Template compile (String templateName, String templateText)
+    {
+        List <Segment> rootSegments = new ArrayList <> ();
+        int endPos = parse (templateName, templateText, 0, null, rootSegments);
+        if (endPos != templateText.length ())
+            throw new IllegalArgumentException (templateName + ": unexpected section end at " + endPos);
+        return new Template (templateName, rootSegments.toArray (new Segment[0]));
+    }
+
+    // Parse segments into the list until the end of the given section, or of the text. Returns where it stopped.
+    private static int parse (String templateName, String templateText, int parsePos, String sectionName, List <Segment> segmentList)
+    {
+        while (parsePos < templateText.length ())
+        {
+            int tagStart = templateText.indexOf ("{{", parsePos);
+            if (tagStart < 0)
+                tagStart = templateText.length ();
+            if (tagStart > parsePos)
+                segmentList.add (new Segment (TEXT, null, encodeText (templateText.substring (parsePos, tagStart)), null));
+            parsePos = tagStart;
+            if (tagStart == templateText.length ())
+                break;
+
+            boolean rawTag = templateText.startsWith ("{{{", tagStart);
+            String tagEnd = rawTag ? "}}}" : "}}";
+            int tagClose = templateText.indexOf (tagEnd, tagStart);
+            if (tagClose < 0)
+                throw new IllegalArgumentException (templateName + ": unclosed tag at " + tagStart);
+            String tagText = templateText.substring (tagStart + (rawTag ? 3 : 2), tagClose).trim ();
+            parsePos = tagClose + tagEnd.length ();
+            if (rawTag)
+                segmentList.add (new Segment (RAW, tagText, null, null));
+            else if (tagText.startsWith ("#"))
+            {
+                String childName = tagText.substring (1).trim ();
+                List <Segment> childSegments = new ArrayList <> ();
+                parsePos = parse (templateName, templateText, parsePos, childName, childSegments);
+                segmentList.add (new Segment (SECTION, childName, null, childSegments.toArray (new Segment[0])));
+            }
+            else if (tagText.startsWith ("/"))
+            {
+                if (!tagText.substring (1).trim ().equals (sectionName))
+                    throw new IllegalArgumentException (templateName + ": " + tagText + " does not end a section at " + tagStart);
+                return parsePos;
+            }
+            else
+                segmentList.add (new Segment (ESCAPED, tagText, null, null));
+        }
+        if (sectionName != null)
+            throw new IllegalArgumentException (templateName + ": section " + sectionName + " is not ended");
+        return parsePos;
+    }
+
+    private static ByteBuffer encodeText (String staticText)
+    {
+        byte[] textBytes = staticText.getBytes (StandardCharsets.UTF_8);
+        ByteBuffer textBuffer = ByteBuffer.allocateDirect (textBytes.length);
+        textBuffer.put (textBytes).flip ();
+        return textBuffer.asReadOnlyBuffer ();
+    }
+
+    public String getName ()
+    {
+        return templateName;
+    }
+
+    /**
+     * Render the template with the given values and commit it as the response body, as HTML unless the app has
+     * set a Content-Type
+     */
+    public void render (Map <String, ?> templateValues, HttpResponse httpResponse) throws IOException
+    {
+        if (httpResponse.getHeader ("Content-Type") == null)
+            httpResponse.addHeader ("Content-Type", CONTENT_TYPE);
+        httpResponse.commitBuffers (render (templateValues), true);
+    }
+
+    /**
+     * Render the template with the given values into the buffers that make up the body: the shared static
+     * segments, and the values encoded in between
+     */
+    public ByteBuffer[] render (Map <String, ?> templateValues)
+    {
+        RenderOutput renderOutput = new RenderOutput ();
+        renderSegments (segments, new Scope (null, templateValues), renderOutput);
+        return renderOutput.toBuffers ();
+    }
+
+    private static void renderSegments (Segment[] segmentList, Scope valueScope, RenderOutput renderOutput)
+    {
+        for (Segment segment : segmentList)
+        {
+            switch (segment.segmentType)
+            {
+                case TEXT:
+                    renderOutput.addStatic (segment.encodedText);
+                    break;
+                case ESCAPED:
+                case RAW:
+                    Object tagValue = valueScope.lookup (segment.valueName);
+                    if (tagValue != null)
+                        renderOutput.addValue (tagValue.toString (), segment.segmentType == ESCAPED);
+                    break;
+                default:
+                    renderSection (segment, valueScope, renderOutput);
+            }
+        }
+    }
+
+    private static void renderSection (Segment segment, Scope valueScope, RenderOutput renderOutput)
+    {
+        Object sectionValue = valueScope.lookup (segment.valueName);
+        if (sectionValue == null || Boolean.FALSE.equals (sectionValue))
+            return;
+        if (sectionValue instanceof Object[])
+            sectionValue = Arrays.asList ((Object[]) sectionValue);
+        if (sectionValue instanceof Iterable)
+        {
+            for (Object elementValue : (Iterable <?>) sectionValue)
+                renderSegments (segment.sectionSegments, new Scope (valueScope, elementValue), renderOutput);
+        }
+        else
+            renderSegments (segment.sectionSegments, new Scope (valueScope, sectionValue), renderOutput);
+    }
+
+    // The values visible to a tag: the current element, then the enclosing sections', then the template's
+    private static final class Scope
+    {
+        final Scope parentScope;
+        final Object scopeValue;
+
+        Scope (Scope parentScope, Object scopeValue)
+        {
+            this.parentScope = parentScope;
+            this.scopeValue = scopeValue;
+        }
+
+        Object lookup (String valueName)
+        {
+            if (valueName.equals ("."))
+                return scopeValue;
+            for (Scope currScope = this; currScope != null; currScope = currScope.parentScope)
+            {
+                if (currScope.scopeValue instanceof Map)
+                {
+                    Object foundValue = ((Map <?, ?>) currScope.scopeValue).get (valueName);
+                    if (foundValue != null)
+                        return foundValue;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The body as it is rendered: views of the shared static segments, and the values, which are all encoded
+     * into one growing array and only wrapped once rendering is done
+     */
+    private static final class RenderOutput
+    {
+        private final List <ByteBuffer> staticParts = new ArrayList <> ();
+        // For each part, where its value bytes start and end, or -1 for a static part
+        private int[] valueBounds = new int[32];
+        private byte[] valueBytes = new byte[256];
+        private int valueLength;
+
+        void addStatic (ByteBuffer encodedText)
+        {
+            addPart (encodedText, -1, -1);
+        }
+
+        void addValue (String tagValue, boolean escapeHtml)
+        {
+            int valueStart = valueLength;
+            for (int i = 0; i < tagValue.length (); i++)
+            {
+                char valueChar = tagValue.charAt (i);
+                ensure (6);
+                if (valueChar < 0x80)
+                {
+                    if (escapeHtml && (valueChar == '&' || valueChar == '<' || valueChar == '>' || valueChar == '"' || valueChar == '\''))
+                        appendEscape (valueChar);
+                    else
+                        valueBytes[valueLength++] = (byte) valueChar;
+                }
+                else if (valueChar < 0x800)
+                {
+                    valueBytes[valueLength++] = (byte) (0xC0 | valueChar >> 6);
+                    valueBytes[valueLength++] = (byte) (0x80 | valueChar & 0x3F);
+                }
+                else if (Character.isHighSurrogate (valueChar) && i + 1 < tagValue.length () && Character.isLowSurrogate (tagValue.charAt (i + 1)))
+                {
+                    int codePoint = Character.toCodePoint (valueChar, tagValue.charAt (++i));
+                    valueBytes[valueLength++] = (byte) (0xF0 | codePoint >> 18);
+                    valueBytes[valueLength++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    valueBytes[valueLength++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    valueBytes[valueLength++] = (byte) (0x80 | codePoint & 0x3F);
+                }
+                else if (Character.isSurrogate (valueChar))
+                    valueBytes[valueLength++] = '?';
+                else
+                {
+                    valueBytes[valueLength++] = (byte) (0xE0 | valueChar >> 12);
+                    valueBytes[valueLength++] = (byte) (0x80 | valueChar >> 6 & 0x3F);
+                    valueBytes[valueLength++] = (byte) (0x80 | valueChar & 0x3F);
+                }
+            }
+            if (valueLength == valueStart)
+                return;
+            // Values next to each other share one part
+            int partCount = staticParts.size ();
+            if (partCount > 0 && valueBounds[partCount * 2 - 1] == valueStart)
+                valueBounds[partCount * 2 - 1] = valueLength;
+            else
+                addPart (null, valueStart, valueLength);
+        }
+
+        private void appendEscape (char escapeChar)
+        {
+            String entityText = escapeChar == '&' ? "&amp;" : escapeChar == '<' ? "&lt;" : escapeChar == '>' ? "&gt;" : escapeChar == '"' ? "&quot;" : "&#39;";
+            for (int i = 0; i < entityText.length (); i++)
+                valueBytes[valueLength++] = (byte) entityText.charAt (i);
+        }
+
+        private void addPart (ByteBuffer staticPart, int valueStart, int valueEnd)
+        {
+            int partCount = staticParts.size ();
+            if (partCount * 2 + 2 > valueBounds.length)
+                valueBounds = Arrays.copyOf (valueBounds, valueBounds.length * 2);
+            valueBounds[partCount * 2] = valueStart;
+            valueBounds[partCount * 2 + 1] = valueEnd;
+            staticParts.add (staticPart);
+        }
+
+        private void ensure (int byteCount)
+        {
+            if (valueLength + byteCount > valueBytes.length)
+                valueBytes = Arrays.copyOf (valueBytes, Math.max (valueBytes.length * 2, valueLength + byteCount));
+        }
+
+        ByteBuffer[] toBuffers ()
+        {
+            ByteBuffer[] bodyBuffers = new ByteBuffer[staticParts.size ()];
+            for (int i = 0; i < bodyBuffers.length; i++)
+            {
+                ByteBuffer staticPart = staticParts.get (i);
+                if (staticPart != null)
+                    bodyBuffers[i] = staticPart.duplicate ();
+                else
+                    bodyBuffers[i] = ByteBuffer.wrap (valueBytes, valueBounds[i * 2], valueBounds[i * 2 + 1] - valueBounds[i * 2]);
+            }
+            return bodyBuffers;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package nio.template;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads and compiles templates from a directory, keeping each compiled template for reuse. In production a
+ * template is read and compiled once and then cached for the life of the server. With reloading on, for
+ * development, each lookup checks the file's modification time and recompiles it when it has changed.
+ */
+public class Templates
+{
+    private final Path templateDir;
+    private final boolean reload;
+    private final ConcurrentHashMap <String, LoadedTemplate> loadedTemplates = new ConcurrentHashMap <> ();
+
+    private static final class LoadedTemplate
+    {
+        final Template template;
+        final FileTime modifiedTime;
+
+        LoadedTemplate (Template template, FileTime modifiedTime)
+        {
+            this.template = template;
+            this.modifiedTime = modifiedTime;
+        }
+    }
+
+    public Templates (Path templateDir, boolean reload)
+    {
+        this.templateDir = templateDir.toAbsolutePath ().normalize ();
+        this.reload = reload;
+    }
+
+    /**
+     * The compiled template at the given path under the template directory
+     */
+    public Template get (String templateName) throws IOException
+    {
+        LoadedTemplate loadedTemplate = loadedTemplates.get (templateName);
+        if (loadedTemplate != null && !reload)
+            return loadedTemplate.template;
+
+        Path templatePath = templateDir.resolve (templateName).normalize ();
+        if (!templatePath.startsWith (templateDir))
+            throw new IllegalArgumentException ("Template " + templateName + " is outside " + templateDir);
+        FileTime modifiedTime = Files.getLastModifiedTime (templatePath);
+        if (loadedTemplate != null && loadedTemplate.modifiedTime.equals (modifiedTime))
+            return loadedTemplate.template;
+
+        // Two threads may both compile a changed template; either result will do
+        String templateText = new String (Files.readAllBytes (templatePath), StandardCharsets.UTF_8);
+        loadedTemplate = new LoadedTemplate (Template.compile (templateName, templateText), modifiedTime);
+        loadedTemplates.put (templateName, loadedTemplate);
+        return loadedTemplate.template;
+    }
+
+    public boolean isReload ()
+    {
+        return reload;
+    }
+
+    /**
+     * Forget every compiled template, so each is read again when next used
+     */
+    public void clear ()
+    {
+        loadedTemplates.clear ();
+    }
+}
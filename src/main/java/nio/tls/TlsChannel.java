@@ -0,0 +1,324 @@
+package nio.tls;
+
+import nio.util.BufferPool;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * A non-blocking TLS connection layered over a SocketChannel with an SSLEngine. The handshake, including any
+ * delegated tasks, runs inline on whichever thread reads the channel (normally the event loop), so no extra
+ * threads are involved. read () returns 0 while the handshake is still in progress.
+ *
+ * Network and application buffers are borrowed from pools only for the duration of a read or write. Between
+ * reads the channel keeps just the bytes it could not hand over yet: the tail of a partially received TLS
+ * record and any decrypted data the caller had no room for, each in an exactly sized array. Callers must keep
+ * reading while hasBufferedInput () is true, since the selector will not report data that has already left
+ * the socket.
+ *
+ * Writes never block either. An encrypted record the socket will not take in full is kept, and write () takes
+ * no more plaintext until flush () has sent it. The handshake waits the same way, and hasBufferedInput () is
+ * true until it has been read again to carry on.
+ */
+public class TlsChannel implements ByteChannel
+{
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate (0);
+
+    private final SocketChannel socketChannel;
+    private final SSLEngine sslEngine;
+    private final BufferPool packetBufferPool;
+    private final BufferPool appBufferPool;
+    private final long handshakeStartMillis = System.currentTimeMillis ();
+    private byte[] pendingNetBytes;
+    private byte[] pendingAppBytes;
+    private ByteBuffer pendingOutBuffer;
+    private boolean unwrapStalled;
+    private boolean wrapStalled;
+    private boolean inboundDone;
+    private boolean handshakeFinished;
+    private boolean handshakeReported;
+
+    public TlsChannel (SocketChannel socketChannel, SSLEngine sslEngine, BufferPool packetBufferPool, BufferPool appBufferPool) throws SSLException
+    {
+        this.socketChannel = socketChannel;
+        this.sslEngine = sslEngine;
+        this.packetBufferPool = packetBufferPool;
+        this.appBufferPool = appBufferPool;
+        sslEngine.beginHandshake ();
+    }
+
+    public int read (ByteBuffer dstBuffer) throws IOException
+    {
+        if (pendingAppBytes != null)
+            return readPendingAppBytes (dstBuffer);
+        if (inboundDone && !unwrapStalled)
+            return -1;
+
+        ByteBuffer netBuffer = packetBufferPool.acquire ();
+        ByteBuffer appBuffer = appBufferPool.acquire ();
+        try
+        {
+            if (pendingNetBytes != null)
+            {
+                netBuffer.put (pendingNetBytes);
+                pendingNetBytes = null;
+            }
+            if (!inboundDone && socketChannel.read (netBuffer) < 0)
+                inboundDone = true;
+
+            netBuffer.flip ();
+            unwrap (netBuffer, appBuffer);
+            if (netBuffer.hasRemaining ())
+                pendingNetBytes = toArray (netBuffer);
+
+            appBuffer.flip ();
+            if (!appBuffer.hasRemaining ())
+                return inboundDone && !unwrapStalled ? -1 : 0;
+            int byteCount = Math.min (appBuffer.remaining (), dstBuffer.remaining ());
+            ByteBuffer appSlice = appBuffer.duplicate ();
+            appSlice.limit (appSlice.position () + byteCount);
+            dstBuffer.put (appSlice);
+            appBuffer.position (appBuffer.position () + byteCount);
+            if (appBuffer.hasRemaining ())
+                pendingAppBytes = toArray (appBuffer);
+            return byteCount;
+        }
+        finally
+        {
+            packetBufferPool.release (netBuffer);
+            appBufferPool.release (appBuffer);
+        }
+    }
+
+    // Drive the handshake and decrypt as much of netBuffer as will fit in appBuffer
+    private void unwrap (ByteBuffer netBuffer, ByteBuffer appBuffer) throws IOException
+    {
+        unwrapStalled = false;
+        wrapStalled = false;
+        while (true)
+        {
+            switch (sslEngine.getHandshakeStatus ())
+            {
+                case NEED_TASK:
+                    runDelegatedTasks ();
+                    continue;
+                case NEED_WRAP:
+                    // The handshake carries on once the socket has taken the last record
+                    if (!flush ())
+                    {
+                        wrapStalled = true;
+                        return;
+                    }
+                    if (wrapAndSend (EMPTY_BUFFER).getStatus () == SSLEngineResult.Status.CLOSED)
+                        return;
+                    continue;
+                default:
+                    break;
+            }
+
+            if (!netBuffer.hasRemaining ())
+                return;
+            SSLEngineResult sslResult = sslEngine.unwrap (netBuffer, appBuffer);
+            checkHandshakeFinished (sslResult);
+            switch (sslResult.getStatus ())
+            {
+                case OK:
+                    if (sslResult.bytesConsumed () == 0 && sslResult.bytesProduced () == 0
+                        && sslResult.getHandshakeStatus () != SSLEngineResult.HandshakeStatus.NEED_TASK
+                        && sslResult.getHandshakeStatus () != SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                        return;
+                    break;
+                case BUFFER_UNDERFLOW:
+                    // Only part of a record has arrived, wait for the rest
+                    return;
+                case BUFFER_OVERFLOW:
+                    // No room left for plaintext, the caller will be back for the rest
+                    unwrapStalled = true;
+                    return;
+                case CLOSED:
+                    // close_notify from the peer; answer it if the engine wants to
+                    inboundDone = true;
+                    if (sslEngine.getHandshakeStatus () == SSLEngineResult.HandshakeStatus.NEED_WRAP && flush ())
+                        wrapAndSend (EMPTY_BUFFER);
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Encrypt and send as much of srcBuffer as the socket will take, which may be none of it
+     */
+    public int write (ByteBuffer srcBuffer) throws IOException
+    {
+        int startRemaining = srcBuffer.remaining ();
+        while (srcBuffer.hasRemaining () && flush ())
+        {
+            SSLEngineResult sslResult = wrapAndSend (srcBuffer);
+            if (sslResult.getStatus () == SSLEngineResult.Status.CLOSED)
+                throw new SSLException ("TLS connection is closed");
+            if (sslResult.getHandshakeStatus () == SSLEngineResult.HandshakeStatus.NEED_TASK)
+                runDelegatedTasks ();
+            else if (sslResult.bytesConsumed () == 0 && sslResult.getHandshakeStatus () == SSLEngineResult.HandshakeStatus.NEED_UNWRAP)
+                throw new SSLException ("TLS renegotiation is not supported");
+        }
+        return startRemaining - srcBuffer.remaining ();
+    }
+
+    // Encrypt (at most one record of) srcBuffer and push it to the socket, keeping whatever it will not take
+    private SSLEngineResult wrapAndSend (ByteBuffer srcBuffer) throws IOException
+    {
+        ByteBuffer netBuffer = packetBufferPool.acquire ();
+        try
+        {
+            SSLEngineResult sslResult = sslEngine.wrap (srcBuffer, netBuffer);
+            checkHandshakeFinished (sslResult);
+            netBuffer.flip ();
+            socketChannel.write (netBuffer);
+            if (netBuffer.hasRemaining ())
+                pendingOutBuffer = ByteBuffer.wrap (toArray (netBuffer));
+            return sslResult;
+        }
+        finally
+        {
+            packetBufferPool.release (netBuffer);
+        }
+    }
+
+    /**
+     * Send as much of an encrypted record kept from an earlier write as the socket will take. Returns true once
+     * none is left.
+     */
+    public boolean flush () throws IOException
+    {
+        if (pendingOutBuffer == null)
+            return true;
+        socketChannel.write (pendingOutBuffer);
+        if (pendingOutBuffer.hasRemaining ())
+            return false;
+        pendingOutBuffer = null;
+        return true;
+    }
+
+    /**
+     * True if an encrypted record is waiting for the socket to take it
+     */
+    public boolean hasPendingOutput ()
+    {
+        return pendingOutBuffer != null;
+    }
+
+    // Handshake work such as certificate checks is run right here, on the event loop
+    private void runDelegatedTasks ()
+    {
+        Runnable delegatedTask;
+        while ((delegatedTask = sslEngine.getDelegatedTask ()) != null)
+            delegatedTask.run ();
+    }
+
+    private void checkHandshakeFinished (SSLEngineResult sslResult)
+    {
+        if (sslResult.getHandshakeStatus () == SSLEngineResult.HandshakeStatus.FINISHED)
+            handshakeFinished = true;
+    }
+
+    private int readPendingAppBytes (ByteBuffer dstBuffer)
+    {
+        int byteCount = Math.min (pendingAppBytes.length, dstBuffer.remaining ());
+        dstBuffer.put (pendingAppBytes, 0, byteCount);
+        if (byteCount == pendingAppBytes.length)
+            pendingAppBytes = null;
+        else
+            pendingAppBytes = Arrays.copyOfRange (pendingAppBytes, byteCount, pendingAppBytes.length);
+        return byteCount;
+    }
+
+    private static byte[] toArray (ByteBuffer byteBuffer)
+    {
+        byte[] byteArray = new byte[byteBuffer.remaining ()];
+        byteBuffer.get (byteArray);
+        return byteArray;
+    }
+
+    /**
+     * True when decrypted data, or records that could not be decrypted for lack of room, are waiting to be read,
+     * or the handshake is waiting to be read again once its last record has been flushed
+     */
+    public boolean hasBufferedInput ()
+    {
+        return pendingAppBytes != null || unwrapStalled || wrapStalled;
+    }
+
+    /**
+     * True exactly once, on the first call after the handshake has completed
+     */
+    public boolean takeHandshakeFinished ()
+    {
+        if (!handshakeFinished || handshakeReported)
+            return false;
+        handshakeReported = true;
+        return true;
+    }
+
+    /**
+     * True if the handshake resumed an earlier session (by session ID or ticket) rather than creating a new one
+     */
+    public boolean isSessionResumed ()
+    {
+        SSLSession sslSession = sslEngine.getSession ();
+        return handshakeFinished && sslSession.getCreationTime () < handshakeStartMillis;
+    }
+
+    /**
+     * The protocol agreed through ALPN, "" if none was negotiated, or null before the handshake completes
+     */
+    public String getApplicationProtocol ()
+    {
+        return sslEngine.getApplicationProtocol ();
+    }
+
+    public SSLEngine getSslEngine ()
+    {
+        return sslEngine;
+    }
+
+    public boolean isOpen ()
+    {
+        return socketChannel.isOpen ();
+    }
+
+    /**
+     * Send close_notify if the socket will take it right away, then close the socket
+     */
+    public void close () throws IOException
+    {
+        if (!socketChannel.isOpen ())
+            return;
+        ByteBuffer netBuffer = packetBufferPool.acquire ();
+        try
+        {
+            // Not behind part of a record, which the peer could not make sense of
+            if (!flush ())
+                return;
+            sslEngine.closeOutbound ();
+            sslEngine.wrap (EMPTY_BUFFER, netBuffer);
+            netBuffer.flip ();
+            socketChannel.write (netBuffer);
+        }
+        catch (IOException ignore)
+        {
+            /* ignore */
+        }
+        finally
+        {
+            packetBufferPool.release (netBuffer);
+            socketChannel.close ();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package nio.tls;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * TLS settings for a server: the SSLContext holding the server's key and certificate, the session cache used
+ * for resumption and the ALPN protocols offered to clients. Pass it to NioWebServer.setTlsConfig () to serve
+ * HTTPS directly from the event loop.
+ *
+ * Resumption works two ways. Session IDs are looked up in the server session cache (see setSessionCacheSize
+ * and setSessionTimeoutSeconds). Stateless session tickets, which need no server side cache, are used by
+ * default from Java 13; they are controlled by the JDK system property jdk.tls.server.enableSessionTicketExtension,
+ * which must be set before the first TLS handshake in the JVM.
+ */
+public class TlsConfig
+{
+    private final SSLContext sslContext;
+    private String[] applicationProtocols = {"http/1.1"};
+    private String[] enabledProtocols;
+
+    public TlsConfig (SSLContext sslContext)
+    {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Build a config from a key store file (PKCS12 or JKS) holding the server's private key and certificate
+     */
+    public static TlsConfig fromKeyStore (String keyStoreFile, char[] keyStorePassword, String keyStoreType) throws IOException
+    {
+        try (InputStream keyStoreStream = new FileInputStream (keyStoreFile))
+        {
+            KeyStore keyStore = KeyStore.getInstance (keyStoreType);
+            keyStore.load (keyStoreStream, keyStorePassword);
+
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance (KeyManagerFactory.getDefaultAlgorithm ());
+            keyManagerFactory.init (keyStore, keyStorePassword);
+
+            SSLContext sslContext = SSLContext.getInstance ("TLS");
+            sslContext.init (keyManagerFactory.getKeyManagers (), null, null);
+            return new TlsConfig (sslContext);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException ("Cannot load key store " + keyStoreFile, e);
+        }
+    }
+
+    public SSLContext getSslContext ()
+    {
+        return sslContext;
+    }
+
+    /**
+     * Maximum number of sessions kept for resumption by session ID (0 means no limit)
+     */
+    public void setSessionCacheSize (int sessionCacheSize)
+    {
+        getSessionContext ().setSessionCacheSize (sessionCacheSize);
+    }
+
+    /**
+     * How long a cached session may be resumed for
+     */
+    public void setSessionTimeoutSeconds (int sessionTimeoutSeconds)
+    {
+        getSessionContext ().setSessionTimeout (sessionTimeoutSeconds);
+    }
+
+    public SSLSessionContext getSessionContext ()
+    {
+        return sslContext.getServerSessionContext ();
+    }
+
+    public String[] getApplicationProtocols ()
+    {
+        return applicationProtocols;
+    }
+
+    /**
+     * ALPN protocols the server accepts, most preferred first. Defaults to http/1.1.
+     */
+    public void setApplicationProtocols (String... applicationProtocols)
+    {
+        this.applicationProtocols = applicationProtocols;
+    }
+
+    /**
+     * Restrict the TLS versions offered, e.g. "TLSv1.3", "TLSv1.2". Null (the default) keeps the JDK's defaults.
+     */
+    public void setEnabledProtocols (String... enabledProtocols)
+    {
+        this.enabledProtocols = enabledProtocols;
+    }
+
+    /**
+     * A server side engine for a newly accepted connection
+     */
+    public SSLEngine createEngine (String peerHost, int peerPort)
+    {
+        SSLEngine sslEngine = sslContext.createSSLEngine (peerHost, peerPort);
+        sslEngine.setUseClientMode (false);
+        SSLParameters sslParameters = sslEngine.getSSLParameters ();
+        if (applicationProtocols != null && applicationProtocols.length > 0)
+            sslParameters.setApplicationProtocols (applicationProtocols);
+        if (enabledProtocols != null)
+            sslParameters.setProtocols (enabledProtocols);
+        sslEngine.setSSLParameters (sslParameters);
+        return sslEngine;
+    }
+}
@@ -0,0 +1,60 @@
+package nio.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of fixed size heap buffers. Buffers are handed out cleared and should be released as soon as
+ * the caller is done with them. When the pool is empty a new buffer is allocated, and buffers released into a
+ * full pool are simply dropped for the garbage collector. A server keeps one pool per event loop, so the lock
+ * is normally uncontended.
+ */
+public class BufferPool
+{
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque <ByteBuffer> freeBuffers = new ArrayDeque <> ();
+    private int outstanding;
+
+    public BufferPool (int bufferSize, int maxPooled)
+    {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public synchronized ByteBuffer acquire ()
+    {
+        ByteBuffer byteBuffer = freeBuffers.pollFirst ();
+        if (byteBuffer == null)
+            byteBuffer = ByteBuffer.allocate (bufferSize);
+        outstanding++;
+        byteBuffer.clear ();
+        return byteBuffer;
+    }
+
+    public synchronized void release (ByteBuffer byteBuffer)
+    {
+        outstanding--;
+        // Most recently used first, so the warmest buffer is handed out next
+        if (freeBuffers.size () < maxPooled)
+            freeBuffers.addFirst (byteBuffer);
+    }
+
+    public int getBufferSize ()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * The number of buffers currently borrowed and not yet released
+     */
+    public synchronized int getOutstanding ()
+    {
+        return outstanding;
+    }
+
+    public synchronized int getPooled ()
+    {
+        return freeBuffers.size ();
+    }
+}
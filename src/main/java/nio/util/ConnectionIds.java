@@ -0,0 +1,18 @@
+package nio.util;
+
+import java.nio.channels.SelectableChannel;
+
+/**
+ * The ID a connection is known by outside the server: in its Flight Recorder events and in a traffic journal's
+ * records. It needs no JFR, so captures made on a JVM without Flight Recorder carry the same IDs.
+ */
+public class ConnectionIds
+{
+    /**
+     * The ID of the connection on clientChannel, the same for the whole life of the connection
+     */
+    public static int getConnectionId (SelectableChannel clientChannel)
+    {
+        return System.identityHashCode (clientChannel);
+    }
+}
@@ -0,0 +1,30 @@
+package nio.util;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.Executor;
+
+/**
+ * A single threaded event loop that other threads can hand work to. Tasks passed to execute () run on the loop
+ * thread, in order, between batches of I/O, so code that touches a connection owned by the loop never needs a
+ * lock as long as it only runs there. schedule () and register () must be called on the loop thread.
+ */
+public interface EventLoop extends Executor
+{
+    /**
+     * True if the calling thread is this loop's thread
+     */
+    boolean inEventLoop ();
+
+    /**
+     * Run a task on the loop once delayMillis have passed, unless the returned timer is cancelled first
+     */
+    TimerQueue.Timer schedule (Runnable loopTask, long delayMillis);
+
+    /**
+     * Register a non-blocking channel with the loop's selector. The handler is called on the loop whenever the
+     * channel is ready for one of the key's interest ops.
+     */
+    SelectionKey register (SelectableChannel selectableChannel, int interestOps, SelectionHandler selectionHandler) throws ClosedChannelException;
+}
@@ -0,0 +1,370 @@
+package nio.util;
+
+import nio.api.HttpResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Responses that never change, such as health checks and robots.txt, registered for a method and path. Each is
+ * encoded once in full (status line, headers and body) and a matching request is answered by writing those bytes
+ * as they are, from the thread that read it, without parsing the request or allocating a response.
+ *
+ * Only the Date header changes. At most once a second the encoded bytes are copied with the new date, and the copy
+ * replaces them; bytes once published are never changed, as other threads may be writing them. Every response is
+ * kept in two forms, one saying keep-alive and one saying close, so nothing else needs changing.
+ * Lookups are lock free: registering copies the table and publishes the copy.
+ */
+public class FixedResponses
+{
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern ("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+                                                                         .withZone (ZoneOffset.UTC);
+    // Always this long, so the date can be rewritten at the same offset
+    private static final int DATE_LENGTH = 29;
+    private static final byte[] DATE_HEADER = "\r\nDate: ".getBytes (StandardCharsets.ISO_8859_1);
+    private static final byte[] HTTP_11 = "HTTP/1.1".getBytes (StandardCharsets.ISO_8859_1);
+    private volatile Entry[] entryTable = new Entry[16];
+    private volatile int entryCount;
+    private volatile DateText dateText = new DateText (0);
+
+    public static final class Entry
+    {
+        private final String httpMethod;
+        private final String reqLocation;
+        private final byte[] requestPrefix;
+        private final int statusCode;
+        private final EncodedResponse keepAliveResponse;
+        private final EncodedResponse closeResponse;
+
+        Entry (String httpMethod, String reqLocation, int statusCode, EncodedResponse keepAliveResponse, EncodedResponse closeResponse)
+        {
+            this.httpMethod = httpMethod;
+            this.reqLocation = reqLocation;
+            this.requestPrefix = (httpMethod + " " + reqLocation + " ").getBytes (StandardCharsets.ISO_8859_1);
+            this.statusCode = statusCode;
+            this.keepAliveResponse = keepAliveResponse;
+            this.closeResponse = closeResponse;
+        }
+
+        public String getHttpMethod ()
+        {
+            return httpMethod;
+        }
+
+        public String getReqLocation ()
+        {
+            return reqLocation;
+        }
+
+        public int getStatusCode ()
+        {
+            return statusCode;
+        }
+
+        /**
+         * Length of the response written when the connection stays open
+         */
+        public int getLength ()
+        {
+            return keepAliveResponse.datedBytes.readOnlyBuffer.capacity ();
+        }
+    }
+
+    // One encoded form of a response, and where its date is
+    private static final class EncodedResponse
+    {
+        final int dateOffset;
+        volatile DatedBytes datedBytes;
+
+        EncodedResponse (ByteBuffer responseBuffer, long encodedSecond)
+        {
+            byte[] responseBytes = new byte[responseBuffer.remaining ()];
+            responseBuffer.get (responseBytes);
+            dateOffset = indexOf (responseBytes, DATE_HEADER) + DATE_HEADER.length;
+            datedBytes = new DatedBytes (encodedSecond, responseBytes);
+        }
+    }
+
+    // The encoded bytes dated for one second, never changed once made
+    private static final class DatedBytes
+    {
+        final long epochSecond;
+        final byte[] responseBytes;
+        final ByteBuffer readOnlyBuffer;
+
+        DatedBytes (long epochSecond, byte[] responseBytes)
+        {
+            this.epochSecond = epochSecond;
+            this.responseBytes = responseBytes;
+            readOnlyBuffer = ByteBuffer.wrap (responseBytes).asReadOnlyBuffer ();
+        }
+    }
+
+    // The formatted date for one second
+    private static final class DateText
+    {
+        final long epochSecond;
+        final byte[] dateBytes;
+
+        DateText (long epochSecond)
+        {
+            this.epochSecond = epochSecond;
+            dateBytes = DATE_FORMAT.format (Instant.ofEpochSecond (epochSecond)).getBytes (StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Encode a response once and answer every request for the method and path (which must match exactly, query
+     * and all) with it. The response is built like any other, with a status, headers and a body, but it is never
+     * committed. Its Date, Connection and Content-Length headers are set here.
+     */
+    public synchronized void put (String httpMethod, String reqLocation, HttpResponse httpResponse) throws CharacterCodingException
+    {
+        Entry newEntry = encode (httpMethod, reqLocation, httpResponse);
+        Entry[] newTable = new Entry[(entryCount + 1) * 2 > entryTable.length ? entryTable.length * 2 : entryTable.length];
+        // Re-insert everything, replacing any entry for the same request
+        int newCount = 1;
+        for (Entry oldEntry : entryTable)
+        {
+            if (oldEntry != null && !Arrays.equals (oldEntry.requestPrefix, newEntry.requestPrefix))
+            {
+                insert (newTable, oldEntry);
+                newCount++;
+            }
+        }
+        insert (newTable, newEntry);
+        entryCount = newCount;
+        entryTable = newTable;
+    }
+
+    /**
+     * Encode a response the way put() does, without registering it, for a server that picks one of several itself
+     */
+    public Entry encode (String httpMethod, String reqLocation, HttpResponse httpResponse) throws CharacterCodingException
+    {
+        long epochSecond = System.currentTimeMillis () / 1000;
+        String dateString = new String (getDateText (epochSecond).dateBytes, StandardCharsets.ISO_8859_1);
+        httpResponse.setKeepAlive (true);
+        EncodedResponse keepAliveResponse = new EncodedResponse (httpResponse.getFixedResponse (dateString), epochSecond);
+        httpResponse.setKeepAlive (false);
+        EncodedResponse closeResponse = new EncodedResponse (httpResponse.getFixedResponse (dateString), epochSecond);
+        return new Entry (httpMethod, reqLocation, httpResponse.getResponseCode (), keepAliveResponse, closeResponse);
+    }
+
+    private static void insert (Entry[] table, Entry newEntry)
+    {
+        int slot = hash (newEntry.requestPrefix, 0, newEntry.requestPrefix.length) & (table.length - 1);
+        while (table[slot] != null)
+            slot = (slot + 1) & (table.length - 1);
+        table[slot] = newEntry;
+    }
+
+    public int size ()
+    {
+        return entryCount;
+    }
+
+    /**
+     * The response registered for a complete request, matched on its raw bytes, or null if there is none. Requests
+     * with a body are never matched.
+     */
+    public Entry match (byte[] reqBytes, int reqStart, int reqLength)
+    {
+        if (entryCount == 0)
+            return null;
+        // The method, a space, the location and the space before the version
+        int reqEnd = reqStart + reqLength;
+        int prefixEnd = indexOf (reqBytes, reqStart, reqEnd, (byte) ' ');
+        if (prefixEnd < 0 || (prefixEnd = indexOf (reqBytes, prefixEnd + 1, reqEnd, (byte) ' ')) < 0)
+            return null;
+        prefixEnd++;
+
+        Entry[] table = entryTable;
+        int slot = hash (reqBytes, reqStart, prefixEnd - reqStart) & (table.length - 1);
+        Entry tableEntry;
+        while ((tableEntry = table[slot]) != null)
+        {
+            if (regionEquals (reqBytes, reqStart, prefixEnd, tableEntry.requestPrefix))
+                return hasBody (reqBytes, reqStart, reqEnd) ? null : tableEntry;
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return null;
+    }
+
+    /**
+     * Write one of the responses, with today's date, and return how many bytes were written. A write racing the
+     * turn of a second may go out with either date, but always with the whole of one.
+     */
+    public int write (Entry fixedEntry, WritableByteChannel clientChannel, boolean keepAlive) throws IOException
+    {
+        EncodedResponse encodedResponse = keepAlive ? fixedEntry.keepAliveResponse : fixedEntry.closeResponse;
+        long epochSecond = System.currentTimeMillis () / 1000;
+        DatedBytes datedBytes = encodedResponse.datedBytes;
+        if (datedBytes.epochSecond != epochSecond)
+        {
+            byte[] responseBytes = datedBytes.responseBytes.clone ();
+            System.arraycopy (getDateText (epochSecond).dateBytes, 0, responseBytes, encodedResponse.dateOffset, DATE_LENGTH);
+            encodedResponse.datedBytes = datedBytes = new DatedBytes (epochSecond, responseBytes);
+        }
+        ByteBuffer responseBuffer = datedBytes.readOnlyBuffer.duplicate ();
+        HttpResponse.writeFully (clientChannel, responseBuffer);
+        return responseBuffer.capacity ();
+    }
+
+    private DateText getDateText (long epochSecond)
+    {
+        DateText currentText = dateText;
+        if (currentText.epochSecond != epochSecond)
+            dateText = currentText = new DateText (epochSecond);
+        return currentText;
+    }
+
+    /**
+     * True if the request's location is exactly the given path, whatever its method
+     */
+    public static boolean isRequestFor (byte[] reqBytes, int reqStart, int reqLength, String reqLocation)
+    {
+        int reqEnd = reqStart + reqLength;
+        int locationStart = indexOf (reqBytes, reqStart, reqEnd, (byte) ' ') + 1;
+        int locationEnd = locationStart + reqLocation.length ();
+        if (locationStart == 0 || locationEnd >= reqEnd || reqBytes[locationEnd] != ' ')
+            return false;
+        for (int i = 0; i < reqLocation.length (); i++)
+        {
+            if (reqBytes[locationStart + i] != reqLocation.charAt (i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the client wants the connection kept open, read from the raw request the same way the server reads
+     * a parsed one: an HTTP/1.1 connection persists unless it says close, an HTTP/1.0 one only if it asks.
+     */
+    public static boolean isKeepAliveRequested (byte[] reqBytes, int reqStart, int reqLength)
+    {
+        int reqEnd = reqStart + reqLength;
+        int lineEnd = indexOf (reqBytes, reqStart, reqEnd, (byte) '\r');
+        if (lineEnd < 0)
+            return false;
+        int headerStart = lineEnd + 2;
+        while (headerStart < reqEnd && reqBytes[headerStart] != '\r')
+        {
+            int headerEnd = indexOf (reqBytes, headerStart, reqEnd, (byte) '\r');
+            if (headerEnd < 0)
+                headerEnd = reqEnd;
+            if (startsWithIgnoreCase (reqBytes, headerStart, headerEnd, "connection:"))
+            {
+                int valueStart = headerStart + 11;
+                while (valueStart < headerEnd && reqBytes[valueStart] == ' ')
+                    valueStart++;
+                int valueEnd = headerEnd;
+                while (valueEnd > valueStart && reqBytes[valueEnd - 1] == ' ')
+                    valueEnd--;
+                return !(valueEnd - valueStart == 5 && startsWithIgnoreCase (reqBytes, valueStart, valueEnd, "close"));
+            }
+            headerStart = headerEnd + 2;
+        }
+        return lineEnd - reqStart >= 8 && regionEquals (reqBytes, lineEnd - 8, lineEnd, HTTP_11);
+    }
+
+    /**
+     * The version at the end of the request line, for logging
+     */
+    public static String getHttpVersion (byte[] reqBytes, int reqStart, int reqLength)
+    {
+        int lineEnd = indexOf (reqBytes, reqStart, reqStart + reqLength, (byte) '\r');
+        int versionStart = lineEnd;
+        while (versionStart > reqStart && reqBytes[versionStart - 1] != ' ')
+            versionStart--;
+        return lineEnd > versionStart ? new String (reqBytes, versionStart, lineEnd - versionStart, StandardCharsets.ISO_8859_1) : null;
+    }
+
+    // A body is announced by a Content-Length other than zero, or a Transfer-Encoding
+    private static boolean hasBody (byte[] reqBytes, int reqStart, int reqEnd)
+    {
+        int headerStart = indexOf (reqBytes, reqStart, reqEnd, (byte) '\n') + 1;
+        while (headerStart > 0 && headerStart < reqEnd && reqBytes[headerStart] != '\r')
+        {
+            int headerEnd = indexOf (reqBytes, headerStart, reqEnd, (byte) '\r');
+            if (headerEnd < 0)
+                headerEnd = reqEnd;
+            if (startsWithIgnoreCase (reqBytes, headerStart, headerEnd, "transfer-encoding:"))
+                return true;
+            if (startsWithIgnoreCase (reqBytes, headerStart, headerEnd, "content-length:"))
+            {
+                for (int i = headerStart + 15; i < headerEnd; i++)
+                {
+                    if (reqBytes[i] != ' ' && reqBytes[i] != '0')
+                        return true;
+                }
+            }
+            headerStart = headerEnd + 2;
+        }
+        return false;
+    }
+
+    private static int hash (byte[] hashBytes, int hashStart, int hashLength)
+    {
+        int hashCode = 0x811c9dc5;
+        for (int i = hashStart; i < hashStart + hashLength; i++)
+            hashCode = (hashCode ^ hashBytes[i]) * 0x01000193;
+        return hashCode ^ (hashCode >>> 16);
+    }
+
+    private static boolean regionEquals (byte[] regionBytes, int regionStart, int regionEnd, byte[] matchBytes)
+    {
+        if (regionEnd - regionStart != matchBytes.length)
+            return false;
+        for (int i = 0; i < matchBytes.length; i++)
+        {
+            if (regionBytes[regionStart + i] != matchBytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    // The prefix must be lower case
+    private static boolean startsWithIgnoreCase (byte[] regionBytes, int regionStart, int regionEnd, String lowerPrefix)
+    {
+        if (regionEnd - regionStart < lowerPrefix.length ())
+            return false;
+        for (int i = 0; i < lowerPrefix.length (); i++)
+        {
+            int regionByte = regionBytes[regionStart + i];
+            if (regionByte >= 'A' && regionByte <= 'Z')
+                regionByte += 'a' - 'A';
+            if (regionByte != lowerPrefix.charAt (i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int indexOf (byte[] searchBytes, int searchStart, int searchEnd, byte searchByte)
+    {
+        for (int i = searchStart; i < searchEnd; i++)
+        {
+            if (searchBytes[i] == searchByte)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf (byte[] searchBytes, byte[] matchBytes)
+    {
+        for (int i = 0; i + matchBytes.length <= searchBytes.length; i++)
+        {
+            if (regionEquals (searchBytes, i, i + matchBytes.length, matchBytes))
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,83 @@
+package nio.util;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of named counters. Servers keep one instance per event loop (a shard) so the request path only ever
+ * touches counters owned by its own core. Readers combine the shards with aggregate().
+ */
+public class Metrics
+{
+    private final Map <String, Counter> counters = new ConcurrentHashMap <> ();
+
+    /**
+     * Find or create the named counter. Callers on the hot path should look the counter up once and keep it.
+     */
+    public Counter counter (String name)
+    {
+        return counters.computeIfAbsent (name, key -> new Counter ());
+    }
+
+    public long get (String name)
+    {
+        Counter counter = counters.get (name);
+        return counter == null ? 0 : counter.get ();
+    }
+
+    /**
+     * A sorted, point in time copy of every counter
+     */
+    public Map <String, Long> snapshot ()
+    {
+        Map <String, Long> snapshot = new TreeMap <> ();
+        for (Map.Entry <String, Counter> entry : counters.entrySet ())
+            snapshot.put (entry.getKey (), entry.getValue ().get ());
+        return snapshot;
+    }
+
+    /**
+     * Sum a collection of shards into a new, detached Metrics instance
+     */
+    public static Metrics aggregate (Collection <Metrics> shards)
+    {
+        Metrics total = new Metrics ();
+        for (Metrics shard : shards)
+            for (Map.Entry <String, Counter> entry : shard.counters.entrySet ())
+                total.counter (entry.getKey ()).add (entry.getValue ().get ());
+        return total;
+    }
+
+    public String toString ()
+    {
+        return snapshot ().toString ();
+    }
+
+    public static class Counter
+    {
+        private final AtomicLong value = new AtomicLong ();
+
+        public void increment ()
+        {
+            value.incrementAndGet ();
+        }
+
+        public void add (long delta)
+        {
+            value.addAndGet (delta);
+        }
+
+        public void set (long newValue)
+        {
+            value.set (newValue);
+        }
+
+        public long get ()
+        {
+            return value.get ();
+        }
+    }
+}
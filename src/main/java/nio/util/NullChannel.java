@@ -0,0 +1,37 @@
+package nio.util;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A channel that accepts and discards everything written to it, counting the bytes. Used to run requests
+ * through apps where nobody is listening for the response, such as warm-up.
+ */
+public class NullChannel implements WritableByteChannel
+{
+    private long bytesWritten;
+    private boolean open = true;
+
+    public int write (ByteBuffer srcBuffer)
+    {
+        int byteCount = srcBuffer.remaining ();
+        srcBuffer.position (srcBuffer.limit ());
+        bytesWritten += byteCount;
+        return byteCount;
+    }
+
+    public long getBytesWritten ()
+    {
+        return bytesWritten;
+    }
+
+    public boolean isOpen ()
+    {
+        return open;
+    }
+
+    public void close ()
+    {
+        open = false;
+    }
+}
@@ -0,0 +1,98 @@
+package nio.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+/**
+ * Access to JDK features newer than the Java 8 baseline this project builds against. Each feature is looked
+ * up once, reflectively, and callers get a null or a no-op when the running JVM does not have it.
+ */
+public class Platform
+{
+    /**
+     * StandardSocketOptions.SO_REUSEPORT (Java 9+), or null
+     */
+    public static final SocketOption <Boolean> SO_REUSEPORT = findStandardOption ("SO_REUSEPORT");
+
+    /**
+     * True if the JVM has Flight Recorder (jdk.jfr, in Java 11+ and some Java 8 builds), so the server's JFR
+     * events in nio.jfr may be used
+     */
+    public static final boolean FLIGHT_RECORDER = hasClass ("jdk.jfr.FlightRecorder");
+
+    // Thread.onSpinWait () (Java 9+), or null
+    private static final MethodHandle ON_SPIN_WAIT = findOnSpinWait ();
+
+    /**
+     * Hint to the CPU that the caller is in a spin loop (the x86 PAUSE instruction). Does nothing on Java 8.
+     */
+    public static void onSpinWait ()
+    {
+        if (ON_SPIN_WAIT != null)
+        {
+            try
+            {
+                ON_SPIN_WAIT.invokeExact ();
+            }
+            catch (Throwable ignore)
+            {
+                /* ignore */
+            }
+        }
+    }
+
+    private static MethodHandle findOnSpinWait ()
+    {
+        try
+        {
+            return MethodHandles.publicLookup ().findStatic (Thread.class, "onSpinWait", MethodType.methodType (void.class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException e)
+        {
+            return null;
+        }
+    }
+
+    private static boolean hasClass (String className)
+    {
+        try
+        {
+            Class.forName (className, false, Platform.class.getClassLoader ());
+            return true;
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            return false;
+        }
+    }
+
+    @SuppressWarnings ("unchecked")
+    private static <T> SocketOption <T> findStandardOption (String optionName)
+    {
+        try
+        {
+            return (SocketOption <T>) StandardSocketOptions.class.getField (optionName).get (null);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Find a socket option the channel supports by name, including JDK and OS specific extended options
+     */
+    public static SocketOption <?> findSupportedOption (NetworkChannel networkChannel, String optionName)
+    {
+        for (SocketOption <?> socketOption : networkChannel.supportedOptions ())
+        {
+            if (socketOption.name ().equals (optionName))
+                return socketOption;
+        }
+        return null;
+    }
+}
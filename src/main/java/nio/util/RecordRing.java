@@ -0,0 +1,92 @@
+package nio.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The turn taking of a bounded ring with many producers and one consumer, for logs whose records are kept in
+ * preallocated arrays indexed by slot. A producer claims a slot with one compare-and-set, fills in its record and
+ * publishes it; the consumer takes published records out in order and releases each slot for the producer one lap
+ * on. Nobody ever blocks: a producer finding the ring full is told so and the record is its to drop.
+ */
+public final class RecordRing
+{
+    // A slot's sequence says whose turn it is: equal to a producer's claim when free for it, one more once that
+    // producer has filled it, and a lap further on once the consumer has taken the record out
+    private final int ringMask;
+    private final AtomicLongArray slotSequences;
+    private final AtomicLong ringTail = new AtomicLong ();
+    private long ringHead;
+
+    /**
+     * A ring of capacity slots, rounded up to a power of two
+     */
+    public RecordRing (int capacity)
+    {
+        int ringSize = Integer.highestOneBit (Math.max (2, capacity - 1)) << 1;
+        ringMask = ringSize - 1;
+        slotSequences = new AtomicLongArray (ringSize);
+        for (int i = 0; i < ringSize; i++)
+            slotSequences.set (i, i);
+    }
+
+    public int getSize ()
+    {
+        return ringMask + 1;
+    }
+
+    /**
+     * Claim the next slot for a record, returning its sequence, or -1 if the ring is full
+     */
+    public long claim ()
+    {
+        while (true)
+        {
+            long claimedSequence = ringTail.get ();
+            long slotSequence = slotSequences.get ((int) (claimedSequence & ringMask));
+            if (slotSequence == claimedSequence)
+            {
+                if (ringTail.compareAndSet (claimedSequence, claimedSequence + 1))
+                    return claimedSequence;
+            }
+            else if (slotSequence < claimedSequence)
+            {
+                // The consumer has not taken out the record a lap ago
+                return -1;
+            }
+            // Otherwise another thread claimed it first, so try the next one
+        }
+    }
+
+    public int getSlot (long claimedSequence)
+    {
+        return (int) (claimedSequence & ringMask);
+    }
+
+    /**
+     * Hand the record filled in under a claimed sequence to the consumer
+     */
+    public void publish (long claimedSequence)
+    {
+        slotSequences.lazySet (getSlot (claimedSequence), claimedSequence + 1);
+    }
+
+    /**
+     * Consumer only: the slot of the next published record, or -1 if there is none yet. The slot stays the
+     * consumer's until release () is called.
+     */
+    public int peek ()
+    {
+        int slot = (int) (ringHead & ringMask);
+        return slotSequences.get (slot) == ringHead + 1 ? slot : -1;
+    }
+
+    /**
+     * Consumer only: free the slot returned by peek () for the producer one lap on
+     */
+    public void release ()
+    {
+        slotSequences.lazySet ((int) (ringHead & ringMask), ringHead + ringMask + 1);
+        ringHead++;
+    }
+}
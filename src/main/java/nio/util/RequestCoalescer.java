@@ -0,0 +1,278 @@
+package nio.util;
+
+import nio.api.HttpResponse;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Collapses identical GETs that arrive while the first of them is still being answered. The first request for a
+ * key leads its flight: the server runs the app for it as usual. Requests for the same key that arrive meanwhile
+ * join the flight as waiters, which are callbacks rather than threads. When the leader's response is committed every
+ * waiter is handed the same encoded response and writes a private view of it, so a burst of requests for a
+ * cold, expensive resource runs the app once.
+ *
+ * The key is the method and location, plus the values of the vary headers given, so requests that would get
+ * different representations are never collapsed. Requests with a body, and requests carrying credentials
+ * (Authorization or Cookie) that are not among the vary headers, are never collapsed either, and neither are
+ * responses that are private to their client: those setting a cookie, or marked private or no-store.
+ *
+ * A waiter that has not been answered within the timeout leaves the flight and runs the app itself. So does
+ * every waiter when the leader's response cannot be shared.
+ */
+public class RequestCoalescer
+{
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final long timeoutMillis;
+    private final String[] varyHeaders;
+    private final ConcurrentHashMap <String, Flight> inFlight = new ConcurrentHashMap <> ();
+
+    /**
+     * A response shared with the waiters of a flight
+     */
+    public static final class Response
+    {
+        private final int responseCode;
+        private final ByteBuffer encodedResponse;
+        private final ByteBuffer notModifiedResponse;
+        private final String entityTag;
+        private final String lastModified;
+        private final boolean keepAlive;
+
+        Response (int responseCode, ByteBuffer encodedResponse, ByteBuffer notModifiedResponse, String entityTag, String lastModified, boolean keepAlive)
+        {
+            this.responseCode = responseCode;
+            this.encodedResponse = encodedResponse;
+            this.notModifiedResponse = notModifiedResponse;
+            this.entityTag = entityTag;
+            this.lastModified = lastModified;
+            this.keepAlive = keepAlive;
+        }
+
+        public int getResponseCode ()
+        {
+            return responseCode;
+        }
+
+        /**
+         * A private view of the shared response
+         */
+        public ByteBuffer getResponse ()
+        {
+            return encodedResponse.duplicate ();
+        }
+
+        /**
+         * A private view of the 304 standing for the shared response
+         */
+        public ByteBuffer getNotModifiedResponse ()
+        {
+            return notModifiedResponse.duplicate ();
+        }
+
+        public String getEntityTag ()
+        {
+            return entityTag;
+        }
+
+        public String getLastModified ()
+        {
+            return lastModified;
+        }
+
+        /**
+         * True if the response allowed its connection to stay open
+         */
+        public boolean isKeepAlive ()
+        {
+            return keepAlive;
+        }
+    }
+
+    // The waiters on one leader. Once it is done no more may join.
+    private static final class Flight
+    {
+        final List <Consumer <Response>> flightWaiters = new ArrayList <> ();
+        boolean flightDone;
+    }
+
+    public RequestCoalescer ()
+    {
+        this (DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Collapse requests that agree on method, location and the named headers, with waiters giving up after
+     * timeoutMillis
+     */
+    public RequestCoalescer (long timeoutMillis, String... varyHeaders)
+    {
+        if (timeoutMillis <= 0)
+            throw new IllegalArgumentException ("timeoutMillis must be positive");
+        this.timeoutMillis = timeoutMillis;
+        this.varyHeaders = new String[varyHeaders.length];
+        for (int i = 0; i < varyHeaders.length; i++)
+            this.varyHeaders[i] = varyHeaders[i].toLowerCase (Locale.ROOT);
+    }
+
+    public long getTimeoutMillis ()
+    {
+        return timeoutMillis;
+    }
+
+    /**
+     * The key of a complete request, taken from its raw text, or null if it may not be collapsed
+     */
+    public String getKey (String reqData)
+    {
+        if (!reqData.startsWith ("GET "))
+            return null;
+        int lineEnd = reqData.indexOf ("\r\n");
+        if (lineEnd < 0)
+            lineEnd = reqData.length ();
+        int locationEnd = reqData.indexOf (' ', 4);
+        if (locationEnd < 0 || locationEnd > lineEnd)
+            locationEnd = lineEnd;
+        String[] varyValues = new String[varyHeaders.length];
+
+        int headerEnd = reqData.indexOf ("\r\n\r\n");
+        if (headerEnd < 0)
+            headerEnd = reqData.length ();
+        int lineStart = lineEnd + 2;
+        while (lineStart < headerEnd)
+        {
+            lineEnd = reqData.indexOf ("\r\n", lineStart);
+            if (lineEnd < 0 || lineEnd > headerEnd)
+                lineEnd = headerEnd;
+            int colonPos = reqData.indexOf (':', lineStart);
+            if (colonPos > lineStart && colonPos < lineEnd)
+            {
+                String headerName = reqData.substring (lineStart, colonPos).trim ().toLowerCase (Locale.ROOT);
+                String headerValue = reqData.substring (colonPos + 1, lineEnd).trim ();
+                int varyIndex = indexOfVary (headerName);
+                if (varyIndex >= 0)
+                    varyValues[varyIndex] = varyValues[varyIndex] == null ? headerValue : varyValues[varyIndex] + ", " + headerValue;
+                else if (headerName.equals ("authorization") || headerName.equals ("cookie"))
+                    return null;
+                else if (headerName.equals ("transfer-encoding") || headerName.equals ("content-length") && !headerValue.equals ("0"))
+                    return null;
+            }
+            lineStart = lineEnd + 2;
+        }
+
+        StringBuilder coalesceKey = new StringBuilder (reqData.substring (0, locationEnd));
+        for (int i = 0; i < varyHeaders.length; i++)
+        {
+            if (varyValues[i] != null)
+                coalesceKey.append ('\n').append (varyHeaders[i]).append (": ").append (varyValues[i]);
+        }
+        return coalesceKey.toString ();
+    }
+
+    private int indexOfVary (String headerName)
+    {
+        for (int i = 0; i < varyHeaders.length; i++)
+        {
+            if (varyHeaders[i].equals (headerName))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Lead the flight for this key if there is none. Returns true if the caller now leads and must call complete()
+     * once its response has been committed, or has failed.
+     */
+    public boolean lead (String coalesceKey)
+    {
+        return inFlight.putIfAbsent (coalesceKey, new Flight ()) == null;
+    }
+
+    /**
+     * Wait on the flight for this key. Returns true if the waiter was added, in which case it will be called exactly
+     * once, on the leader's thread, unless it leaves first. Returns false if there is no flight to wait on, as its
+     * leader has finished.
+     */
+    public boolean join (String coalesceKey, Consumer <Response> flightWaiter)
+    {
+        Flight flight = inFlight.get (coalesceKey);
+        if (flight == null)
+            return false;
+        synchronized (flight)
+        {
+            if (flight.flightDone)
+                return false;
+            flight.flightWaiters.add (flightWaiter);
+            return true;
+        }
+    }
+
+    /**
+     * Leave the flight for this key without waiting any longer. Returns true if the waiter left, and false if it
+     * had been answered already, in which case the call to it is on its way.
+     */
+    public boolean leave (String coalesceKey, Consumer <Response> flightWaiter)
+    {
+        Flight flight = inFlight.get (coalesceKey);
+        if (flight == null)
+            return false;
+        synchronized (flight)
+        {
+            return !flight.flightDone && flight.flightWaiters.remove (flightWaiter);
+        }
+    }
+
+    /**
+     * End the flight for this key, handing its waiters the leader's response if it may be shared, or null, so they
+     * run the app themselves, if it may not (or there is none, as when the app failed).
+     */
+    public void complete (String coalesceKey, HttpResponse httpResponse)
+    {
+        Flight flight = inFlight.remove (coalesceKey);
+        if (flight == null)
+            return;
+        List <Consumer <Response>> flightWaiters;
+        synchronized (flight)
+        {
+            flight.flightDone = true;
+            flightWaiters = flight.flightWaiters;
+        }
+        if (flightWaiters.isEmpty ())
+            return;
+        Response sharedResponse = getShared (httpResponse);
+        for (Consumer <Response> flightWaiter : flightWaiters)
+            flightWaiter.accept (sharedResponse);
+    }
+
+    // The leader's response as its waiters may have it, or null if it is not theirs to have
+    private static Response getShared (HttpResponse httpResponse)
+    {
+        if (httpResponse == null || httpResponse.getResponseCode () == 304 || httpResponse.isStreaming () || httpResponse.getHeader ("Set-Cookie") != null)
+            return null;
+        String cacheControl = httpResponse.getHeader ("Cache-Control");
+        if (cacheControl != null)
+        {
+            cacheControl = cacheControl.toLowerCase (Locale.ROOT);
+            if (cacheControl.contains ("private") || cacheControl.contains ("no-store"))
+                return null;
+        }
+        ByteBuffer committedResponse = httpResponse.getCommittedResponse ();
+        if (committedResponse == null)
+            return null;
+        return new Response (httpResponse.getResponseCode (), committedResponse.asReadOnlyBuffer (), httpResponse.getNotModifiedResponse (), httpResponse.getHeader ("ETag"),
+                             httpResponse.getHeader ("Last-Modified"), httpResponse.isKeepAlive ());
+    }
+
+    /**
+     * Keys that have a leader at the moment
+     */
+    public int size ()
+    {
+        return inFlight.size ();
+    }
+}
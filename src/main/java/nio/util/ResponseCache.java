@@ -0,0 +1,130 @@
+package nio.util;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small LRU cache of fully encoded responses, keyed by method and location. Entries expire after the max-age
+ * the app advertised in its Cache-Control header. Every hit returns a duplicate() of the stored buffer so
+ * callers can write it without disturbing other readers. A server keeps one cache per event loop.
+ *
+ * An entry also keeps the response's ETag and Last-Modified, and its encoded 304, so a conditional request for a
+ * cached resource is answered without hashing or encoding anything.
+ */
+public class ResponseCache
+{
+    private final Map <String, Entry> cacheEntries;
+
+    public static final class Entry
+    {
+        private final ByteBuffer encodedResponse;
+        private final ByteBuffer notModifiedResponse;
+        private final String entityTag;
+        private final String lastModified;
+        private final long expiresMillis;
+
+        Entry (ByteBuffer encodedResponse, ByteBuffer notModifiedResponse, String entityTag, String lastModified, long expiresMillis)
+        {
+            this.encodedResponse = encodedResponse;
+            this.notModifiedResponse = notModifiedResponse;
+            this.entityTag = entityTag;
+            this.lastModified = lastModified;
+            this.expiresMillis = expiresMillis;
+        }
+
+        /**
+         * A private view of the cached response
+         */
+        public ByteBuffer getResponse ()
+        {
+            return encodedResponse.duplicate ();
+        }
+
+        /**
+         * A private view of the 304 standing for the cached response
+         */
+        public ByteBuffer getNotModifiedResponse ()
+        {
+            return notModifiedResponse.duplicate ();
+        }
+
+        public String getEntityTag ()
+        {
+            return entityTag;
+        }
+
+        public String getLastModified ()
+        {
+            return lastModified;
+        }
+    }
+
+    public ResponseCache (final int maxEntries)
+    {
+        cacheEntries = new LinkedHashMap <String, Entry> (16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry (Map.Entry <String, ResponseCache.Entry> eldest)
+            {
+                return size () > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get the cached response, or null if there is none or it has expired
+     */
+    public synchronized Entry get (String cacheKey)
+    {
+        Entry cacheEntry = cacheEntries.get (cacheKey);
+        if (cacheEntry == null)
+            return null;
+        if (cacheEntry.expiresMillis < System.currentTimeMillis ())
+        {
+            cacheEntries.remove (cacheKey);
+            return null;
+        }
+        return cacheEntry;
+    }
+
+    public synchronized void put (String cacheKey, ByteBuffer encodedResponse, ByteBuffer notModifiedResponse, String entityTag, String lastModified,
+                                  long maxAgeMillis)
+    {
+        cacheEntries.put (cacheKey, new Entry (encodedResponse.asReadOnlyBuffer (), notModifiedResponse.asReadOnlyBuffer (), entityTag, lastModified,
+                                               System.currentTimeMillis () + maxAgeMillis));
+    }
+
+    public synchronized int size ()
+    {
+        return cacheEntries.size ();
+    }
+
+    /**
+     * Work out how long a response may be cached from its Cache-Control header. Returns 0 when the response
+     * must not be shared.
+     */
+    public static long getMaxAgeMillis (String cacheControl)
+    {
+        if (cacheControl == null)
+            return 0;
+        long maxAge = 0;
+        for (String directive : cacheControl.split (","))
+        {
+            directive = directive.trim ().toLowerCase ();
+            if (directive.equals ("private") || directive.equals ("no-store") || directive.equals ("no-cache"))
+                return 0;
+            if (directive.startsWith ("max-age="))
+            {
+                try
+                {
+                    maxAge = Long.parseLong (directive.substring ("max-age=".length ()));
+                }
+                catch (NumberFormatException e)
+                {
+                    return 0;
+                }
+            }
+        }
+        return Math.max (0, maxAge) * 1000;
+    }
+}
@@ -0,0 +1,153 @@
+package nio.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An array backed replacement for the HashSet a JDK Selector collects its ready keys in. Adding a key is an
+ * array store instead of a hash insert, and the event loop walks the array by index instead of allocating an
+ * iterator and removing every key through it. The loop must call reset() once it has handled the keys.
+ *
+ * The selector only ever adds to the set while selecting. contains() and remove() always answer false, so a key
+ * cancelled before it is handled is still in the array and the loop must check isValid().
+ */
+public final class SelectedKeySet extends AbstractSet <SelectionKey>
+{
+    private SelectionKey[] selectedKeys = new SelectionKey[1024];
+    private int keyCount;
+
+    /**
+     * Swap this set into the selector's internals. Uses plain reflection where the JDK allows it and falls back
+     * to sun.misc.Unsafe on Java 9+ where java.base is closed. Returns null, leaving the selector untouched,
+     * when neither is permitted.
+     */
+    public static SelectedKeySet install (Selector selector)
+    {
+        try
+        {
+            Class <?> selectorImplClass = Class.forName ("sun.nio.ch.SelectorImpl", false, ClassLoader.getSystemClassLoader ());
+            if (!selectorImplClass.isAssignableFrom (selector.getClass ()))
+                return null;
+            Field selectedKeysField = selectorImplClass.getDeclaredField ("selectedKeys");
+            Field publicSelectedKeysField = selectorImplClass.getDeclaredField ("publicSelectedKeys");
+
+            SelectedKeySet selectedKeySet = new SelectedKeySet ();
+            if (setWithReflection (selector, selectedKeysField, publicSelectedKeysField, selectedKeySet)
+                || setWithUnsafe (selector, selectedKeysField, publicSelectedKeysField, selectedKeySet))
+                return selectedKeySet;
+            return null;
+        }
+        catch (ClassNotFoundException | NoSuchFieldException | SecurityException e)
+        {
+            return null;
+        }
+    }
+
+    private static boolean setWithReflection (Selector selector, Field selectedKeysField, Field publicSelectedKeysField, SelectedKeySet selectedKeySet)
+    {
+        try
+        {
+            selectedKeysField.setAccessible (true);
+            publicSelectedKeysField.setAccessible (true);
+            selectedKeysField.set (selector, selectedKeySet);
+            publicSelectedKeysField.set (selector, selectedKeySet);
+            return true;
+        }
+        catch (RuntimeException | IllegalAccessException e)
+        {
+            // InaccessibleObjectException (Java 9+) is a RuntimeException
+            return false;
+        }
+    }
+
+    private static boolean setWithUnsafe (Selector selector, Field selectedKeysField, Field publicSelectedKeysField, SelectedKeySet selectedKeySet)
+    {
+        try
+        {
+            Class <?> unsafeClass = Class.forName ("sun.misc.Unsafe");
+            Field theUnsafeField = unsafeClass.getDeclaredField ("theUnsafe");
+            theUnsafeField.setAccessible (true);
+            Object theUnsafe = theUnsafeField.get (null);
+            Method objectFieldOffset = unsafeClass.getMethod ("objectFieldOffset", Field.class);
+            Method putObject = unsafeClass.getMethod ("putObject", Object.class, long.class, Object.class);
+
+            long selectedKeysOffset = (Long) objectFieldOffset.invoke (theUnsafe, selectedKeysField);
+            long publicSelectedKeysOffset = (Long) objectFieldOffset.invoke (theUnsafe, publicSelectedKeysField);
+            putObject.invoke (theUnsafe, selector, selectedKeysOffset, selectedKeySet);
+            putObject.invoke (theUnsafe, selector, publicSelectedKeysOffset, selectedKeySet);
+            return true;
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+    }
+
+    public boolean add (SelectionKey selectionKey)
+    {
+        if (selectionKey == null)
+            return false;
+        if (keyCount == selectedKeys.length)
+            selectedKeys = Arrays.copyOf (selectedKeys, keyCount << 1);
+        selectedKeys[keyCount++] = selectionKey;
+        return true;
+    }
+
+    public boolean remove (Object o)
+    {
+        return false;
+    }
+
+    public boolean contains (Object o)
+    {
+        return false;
+    }
+
+    public int size ()
+    {
+        return keyCount;
+    }
+
+    /**
+     * The key at the given index, valid from 0 to size() - 1 until the next reset()
+     */
+    public SelectionKey get (int keyIndex)
+    {
+        return selectedKeys[keyIndex];
+    }
+
+    /**
+     * Forget every key so the next select starts with an empty set, and drop the references for the GC
+     */
+    public void reset ()
+    {
+        Arrays.fill (selectedKeys, 0, keyCount, null);
+        keyCount = 0;
+    }
+
+    public Iterator <SelectionKey> iterator ()
+    {
+        return new Iterator <SelectionKey> ()
+        {
+            private int keyIndex;
+
+            public boolean hasNext ()
+            {
+                return keyIndex < keyCount;
+            }
+
+            public SelectionKey next ()
+            {
+                if (!hasNext ())
+                    throw new NoSuchElementException ();
+                return selectedKeys[keyIndex++];
+            }
+        };
+    }
+}
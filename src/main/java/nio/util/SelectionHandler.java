@@ -0,0 +1,12 @@
+package nio.util;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * Attachment for a channel registered with an EventLoop by something other than the server itself, such as a
+ * client connection. The handler deals with its own errors, so one failing channel cannot affect the loop.
+ */
+public interface SelectionHandler
+{
+    void onSelected (SelectionKey selectionKey);
+}
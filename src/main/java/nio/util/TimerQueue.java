@@ -0,0 +1,107 @@
+package nio.util;
+
+import nio.log.Log;
+
+import java.util.PriorityQueue;
+
+/**
+ * The timers of one event loop, in deadline order. It is only ever touched by the loop thread, so it has no
+ * locks. Cancelled timers stay queued until their deadline and are then dropped without running.
+ */
+public class TimerQueue
+{
+    private final PriorityQueue <Timer> timers = new PriorityQueue <> ();
+    private long timerSequence;
+
+    public Timer add (Runnable timerTask, long delayMillis)
+    {
+        Timer newTimer = new Timer (System.currentTimeMillis () + Math.max (0, delayMillis), timerSequence++, timerTask);
+        timers.add (newTimer);
+        return newTimer;
+    }
+
+    /**
+     * Milliseconds until the next timer is due (at least 1, so it can be passed to select ()), or 0 if there
+     * are no timers
+     */
+    public long getNextDelayMillis (long nowMillis)
+    {
+        Timer nextTimer;
+        while ((nextTimer = timers.peek ()) != null && nextTimer.cancelled)
+            timers.poll ();
+        return nextTimer == null ? 0 : Math.max (1, nextTimer.deadlineMillis - nowMillis);
+    }
+
+    /**
+     * True if a timer is due to run
+     */
+    public boolean isDue (long nowMillis)
+    {
+        Timer nextTimer;
+        while ((nextTimer = timers.peek ()) != null && nextTimer.cancelled)
+            timers.poll ();
+        return nextTimer != null && nextTimer.deadlineMillis <= nowMillis;
+    }
+
+    /**
+     * Run every timer that is due. Returns true if any ran.
+     */
+    public boolean runExpired (long nowMillis)
+    {
+        boolean timersRun = false;
+        Timer nextTimer;
+        while ((nextTimer = timers.peek ()) != null && nextTimer.deadlineMillis <= nowMillis)
+        {
+            timers.poll ();
+            if (nextTimer.cancelled)
+                continue;
+            timersRun = true;
+            try
+            {
+                nextTimer.timerTask.run ();
+            }
+            catch (RuntimeException e)
+            {
+                Log.warn (e.toString ());
+            }
+        }
+        return timersRun;
+    }
+
+    public int size ()
+    {
+        return timers.size ();
+    }
+
+    /**
+     * A pending timer. Timers with the same deadline run in the order they were added.
+     */
+    public static final class Timer implements Comparable <Timer>
+    {
+        private final long deadlineMillis;
+        private final long timerSequence;
+        private final Runnable timerTask;
+        private boolean cancelled;
+
+        Timer (long deadlineMillis, long timerSequence, Runnable timerTask)
+        {
+            this.deadlineMillis = deadlineMillis;
+            this.timerSequence = timerSequence;
+            this.timerTask = timerTask;
+        }
+
+        /**
+         * Stop the timer from running. Must be called on the loop thread.
+         */
+        public void cancel ()
+        {
+            cancelled = true;
+        }
+
+        public int compareTo (Timer otherTimer)
+        {
+            int deadlineOrder = Long.compare (deadlineMillis, otherTimer.deadlineMillis);
+            return deadlineOrder != 0 ? deadlineOrder : Long.compare (timerSequence, otherTimer.timerSequence);
+        }
+    }
+}
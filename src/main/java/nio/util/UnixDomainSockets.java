@@ -0,0 +1,41 @@
+package nio.util;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Opens AF_UNIX sockets, for listeners a co-located proxy or sidecar reaches without going through the TCP
+ * stack. The channels are ordinary ServerSocketChannels and SocketChannels, so the server's selector loop serves
+ * them like any other. The implementation, ChannelUnixDomainSockets, needs Java 16 and is only built when the
+ * build runs on JDK 16 or later, so it is found by name.
+ */
+public interface UnixDomainSockets
+{
+    /**
+     * Bind a non-blocking listener at socketPath, first deleting whatever a listener before it left there
+     */
+    ServerSocketChannel openListener (Path socketPath, int backlog) throws IOException;
+
+    /**
+     * Connect a blocking client channel to the listener at socketPath
+     */
+    SocketChannel connect (Path socketPath) throws IOException;
+
+    /**
+     * Unix domain sockets for this JVM, or null if it cannot have them
+     */
+    static UnixDomainSockets newUnixDomainSockets ()
+    {
+        try
+        {
+            return Class.forName ("nio.util.ChannelUnixDomainSockets").asSubclass (UnixDomainSockets.class).getDeclaredConstructor ().newInstance ();
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            // Not built, or built for a newer JVM than this one
+            return null;
+        }
+    }
+}
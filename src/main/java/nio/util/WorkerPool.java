@@ -0,0 +1,290 @@
+package nio.util;
+
+import nio.log.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The workers a pooled server hands channels to, sized at runtime between a minimum and a maximum. Every task
+ * records how long it sat in the queue and how long it ran. Once per control interval, on whichever thread
+ * gets there first, the pool looks at the interval just gone and adjusts its target size, additive increase and
+ * multiplicative decrease: one worker more if the average queue wait was over the target wait (or tasks are
+ * queued and none started), and a quarter fewer if the wait was on target and the workers were less than half
+ * busy. New workers start at once; surplus workers leave as soon as they are between tasks.
+ *
+ * A CPU bound app may prefer the work stealing backend, a ForkJoinPool with maxWorkers parallelism, which keeps
+ * a thread per core busy and adds its own when one blocks in a ManagedBlocker. Its size is not adjusted, but its
+ * queue wait and utilization are measured and reported the same way.
+ *
+ * The pool's counters, updated every interval: workers.size, workers.target, workers.grown and workers.shrunk
+ * (resize decisions), workers.tasks, workers.queueWaitMicros (the interval's average) and workers.utilization
+ * (percent).
+ */
+public class WorkerPool implements Executor
+{
+    public static final int ADAPTIVE = 0;
+    public static final int WORK_STEALING = 1;
+    public static final long DEFAULT_TARGET_WAIT_MICROS = 2000;
+    public static final long CONTROL_INTERVAL_MILLIS = 100;
+    private static final long CONTROL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos (CONTROL_INTERVAL_MILLIS);
+    private static final double LOW_UTILIZATION = 0.5;
+
+    private final String poolName;
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final long targetWaitNanos;
+    private final ForkJoinPool forkJoinPool;
+    private final LinkedBlockingQueue <Runnable> taskQueue = new LinkedBlockingQueue <> ();
+    private final AtomicInteger workerCount = new AtomicInteger ();
+    private final AtomicInteger targetCount = new AtomicInteger ();
+    private final AtomicInteger busyCount = new AtomicInteger ();
+    private final AtomicInteger workerNumber = new AtomicInteger ();
+    // Totals for the current control interval
+    private final LongAdder startedTasks = new LongAdder ();
+    private final LongAdder queueWaitNanos = new LongAdder ();
+    private final LongAdder busyNanos = new LongAdder ();
+    private final AtomicLong nextControlNanos = new AtomicLong ();
+    private volatile long lastControlNanos = System.nanoTime ();
+
+    private final Metrics.Counter sizeCount;
+    private final Metrics.Counter targetSizeCount;
+    private final Metrics.Counter grownCount;
+    private final Metrics.Counter shrunkCount;
+    private final Metrics.Counter taskCount;
+    private final Metrics.Counter queueWaitCount;
+    private final Metrics.Counter utilizationCount;
+
+    /**
+     * Start a pool of the given backend with minWorkers workers, adjusted to keep the average queue wait near
+     * targetWaitMicros. Threads are named poolName followed by a number.
+     */
+    public WorkerPool (String poolName, int poolBackend, int minWorkers, int maxWorkers, long targetWaitMicros, Metrics metrics)
+    {
+        if (minWorkers < 1 || maxWorkers < minWorkers)
+            throw new IllegalArgumentException ("Need 1 <= minWorkers <= maxWorkers, not " + minWorkers + " and " + maxWorkers);
+        this.poolName = poolName;
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.targetWaitNanos = TimeUnit.MICROSECONDS.toNanos (targetWaitMicros);
+        sizeCount = metrics.counter ("workers.size");
+        targetSizeCount = metrics.counter ("workers.target");
+        grownCount = metrics.counter ("workers.grown");
+        shrunkCount = metrics.counter ("workers.shrunk");
+        taskCount = metrics.counter ("workers.tasks");
+        queueWaitCount = metrics.counter ("workers.queueWaitMicros");
+        utilizationCount = metrics.counter ("workers.utilization");
+        nextControlNanos.set (lastControlNanos + CONTROL_INTERVAL_NANOS);
+
+        if (poolBackend == WORK_STEALING)
+        {
+            forkJoinPool = new ForkJoinPool (maxWorkers, this::newForkJoinThread, null, true);
+            targetCount.set (maxWorkers);
+            workerCount.set (maxWorkers);
+        }
+        else
+        {
+            forkJoinPool = null;
+            targetCount.set (minWorkers);
+            startWorkers ();
+        }
+        sizeCount.set (workerCount.get ());
+        targetSizeCount.set (targetCount.get ());
+    }
+
+    private ForkJoinWorkerThread newForkJoinThread (ForkJoinPool ownerPool)
+    {
+        ForkJoinWorkerThread workerThread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread (ownerPool);
+        workerThread.setName (poolName + workerNumber.incrementAndGet ());
+        return workerThread;
+    }
+
+    public void execute (Runnable workerTask)
+    {
+        long queuedNanos = System.nanoTime ();
+        Runnable timedTask = () -> runTimed (workerTask, queuedNanos);
+        if (forkJoinPool != null)
+            forkJoinPool.execute (timedTask);
+        else
+            taskQueue.offer (timedTask);
+        control (queuedNanos);
+    }
+
+    private void runTimed (Runnable workerTask, long queuedNanos)
+    {
+        long startNanos = System.nanoTime ();
+        startedTasks.increment ();
+        queueWaitNanos.add (startNanos - queuedNanos);
+        busyCount.incrementAndGet ();
+        try
+        {
+            workerTask.run ();
+        }
+        catch (RuntimeException e)
+        {
+            Log.warn (Thread.currentThread ().getName () + " caught '" + e + "'");
+        }
+        finally
+        {
+            busyCount.decrementAndGet ();
+            busyNanos.add (System.nanoTime () - startNanos);
+        }
+    }
+
+    // Start workers until there are as many as the target
+    private void startWorkers ()
+    {
+        while (true)
+        {
+            int currCount = workerCount.get ();
+            if (currCount >= targetCount.get ())
+                return;
+            if (!workerCount.compareAndSet (currCount, currCount + 1))
+                continue;
+            Thread workerThread = new Thread (this::runWorker, poolName + workerNumber.incrementAndGet ());
+            workerThread.start ();
+        }
+    }
+
+    private void runWorker ()
+    {
+        Log.info (Thread.currentThread ().getName () + " is ready");
+        while (true)
+        {
+            Runnable timedTask;
+            try
+            {
+                timedTask = taskQueue.poll (CONTROL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                // Clear interrupt status
+                Thread.interrupted ();
+                continue;
+            }
+            if (timedTask != null)
+                timedTask.run ();
+            // Busy workers drive the controller while tasks queue up, and idle ones let a quiet pool shrink
+            control (System.nanoTime ());
+            if (leaveIfSurplus ())
+                return;
+        }
+    }
+
+    // True if this worker is above the target size and has left the pool
+    private boolean leaveIfSurplus ()
+    {
+        while (true)
+        {
+            int currCount = workerCount.get ();
+            if (currCount <= targetCount.get ())
+                return false;
+            if (workerCount.compareAndSet (currCount, currCount - 1))
+            {
+                sizeCount.set (currCount - 1);
+                if (Log.isDebugEnabled ())
+                    Log.debug (Thread.currentThread ().getName () + " has left the pool");
+                return true;
+            }
+        }
+    }
+
+    // Once per interval, resize from the interval's queue wait and utilization
+    private void control (long nowNanos)
+    {
+        long controlNanos = nextControlNanos.get ();
+        if (nowNanos - controlNanos < 0 || !nextControlNanos.compareAndSet (controlNanos, nowNanos + CONTROL_INTERVAL_NANOS))
+            return;
+        long elapsedNanos = Math.max (1, nowNanos - lastControlNanos);
+        lastControlNanos = nowNanos;
+        long intervalTasks = startedTasks.sumThenReset ();
+        long intervalWaitNanos = queueWaitNanos.sumThenReset ();
+        long intervalBusyNanos = busyNanos.sumThenReset ();
+        int currWorkers = Math.max (1, workerCount.get ());
+
+        long averageWaitNanos = intervalTasks == 0 ? 0 : intervalWaitNanos / intervalTasks;
+        // Tasks still running count as busy for the whole interval
+        double utilization = Math.min (1.0, Math.max (intervalBusyNanos / (double) (elapsedNanos * currWorkers), busyCount.get () / (double) currWorkers));
+        boolean congested = averageWaitNanos > targetWaitNanos || intervalTasks == 0 && getQueuedTasks () > 0;
+        taskCount.add (intervalTasks);
+        queueWaitCount.set (TimeUnit.NANOSECONDS.toMicros (averageWaitNanos));
+        utilizationCount.set (Math.round (utilization * 100));
+        if (forkJoinPool != null)
+        {
+            sizeCount.set (forkJoinPool.getPoolSize ());
+            return;
+        }
+
+        int currTarget = targetCount.get ();
+        int newTarget = currTarget;
+        if (congested && currTarget < maxWorkers)
+            newTarget = currTarget + 1;
+        else if (!congested && utilization < LOW_UTILIZATION && currTarget > minWorkers)
+            newTarget = Math.max (minWorkers, currTarget - Math.max (1, currTarget / 4));
+        if (newTarget == currTarget)
+            return;
+        targetCount.set (newTarget);
+        targetSizeCount.set (newTarget);
+        if (newTarget > currTarget)
+        {
+            grownCount.increment ();
+            startWorkers ();
+            sizeCount.set (workerCount.get ());
+        }
+        else
+            shrunkCount.increment ();
+        if (Log.isDebugEnabled ())
+            Log.debug (poolName + " pool target " + currTarget + " -> " + newTarget + ", wait " + averageWaitNanos / 1000 + "us, utilization "
+                       + Math.round (utilization * 100) + "%");
+    }
+
+    /**
+     * Run the controller if an interval has gone by. The pool runs it itself as tasks are queued and finished,
+     * but when every worker is blocked and nothing new arrives only a caller such as the server's event loop,
+     * calling this every interval, notices the queue is stuck.
+     */
+    public void adjust ()
+    {
+        control (System.nanoTime ());
+    }
+
+    /**
+     * Tasks waiting for a worker
+     */
+    public int getQueuedTasks ()
+    {
+        return forkJoinPool != null ? forkJoinPool.getQueuedSubmissionCount () : taskQueue.size ();
+    }
+
+    /**
+     * Workers in the pool now
+     */
+    public int getSize ()
+    {
+        return forkJoinPool != null ? forkJoinPool.getPoolSize () : workerCount.get ();
+    }
+
+    /**
+     * The size the controller is steering towards
+     */
+    public int getTargetSize ()
+    {
+        return targetCount.get ();
+    }
+
+    public int getMinWorkers ()
+    {
+        return minWorkers;
+    }
+
+    public int getMaxWorkers ()
+    {
+        return maxWorkers;
+    }
+}
@@ -0,0 +1,582 @@
+package nio.websocket;
+
+import nio.api.HttpRequest;
+import nio.api.HttpResponse;
+import nio.api.WebSocket;
+import nio.api.WebSocketHandler;
+import nio.log.Log;
+import nio.util.EventLoop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The server side of one RFC 6455 WebSocket connection. The server feeds it whatever it reads with onBytes (),
+ * which parses each complete frame where it lies, unmasks the payload in place and hands text and binary
+ * messages to the WebSocketHandler. Incomplete frames are left in the buffer for the caller to park. Fragmented
+ * messages are gathered into one array, which exists only while such a message is arriving.
+ *
+ * Outgoing frames are unmasked, as the server's always are, so one encoded frame can be written to any number
+ * of connections (see broadcast ()). Writes happen on the connection's event loop; sends from other threads are
+ * handed to it with EventLoop.execute (). They never block: the channel keeps whatever the socket will not take
+ * yet, in order, and the server writes it when the socket drains, so a slow client holds up no one else. A client
+ * that leaves more unread than the server allows is dropped, and the handler told so with CLOSE_POLICY_VIOLATION.
+ */
+public class WebSocketConnection implements WebSocket
+{
+    public static final int OPCODE_CONTINUATION = 0x0;
+    public static final int OPCODE_TEXT = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE = 0x8;
+    public static final int OPCODE_PING = 0x9;
+    public static final int OPCODE_PONG = 0xA;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_NO_STATUS = 1005;
+    public static final int CLOSE_ABNORMAL = 1006;
+    public static final int CLOSE_INVALID_DATA = 1007;
+    public static final int CLOSE_POLICY_VIOLATION = 1008;
+    public static final int CLOSE_TOO_BIG = 1009;
+    public static final int CLOSE_INTERNAL_ERROR = 1011;
+
+    /**
+     * Largest frame or reassembled message accepted from a client
+     */
+    public static final int MAX_MESSAGE_BYTES = 1024 * 1024;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate (0);
+
+    private final WritableByteChannel clientChannel;
+    private final WebSocketHandler webSocketHandler;
+    private final EventLoop eventLoop;
+    private final Runnable transportCloser;
+    private final BooleanSupplier outputWaiter;
+    private volatile boolean open = true;
+    private volatile boolean closeSent;
+    private boolean closeNotified;
+    private Object attachment;
+
+    // The fragmented message being reassembled, if any
+    private int messageOpcode = -1;
+    private byte[] messageBytes;
+    private int messageLength;
+
+    /**
+     * @param clientChannel   a channel that takes every byte written to it without blocking, keeping what the
+     *                        socket will not take yet
+     * @param transportCloser closes the underlying connection, called if a write fails
+     * @param outputWaiter    called on the event loop after each frame is written, to have the server watch for the
+     *                        socket to drain if some of it is still waiting. Returns false if the client has fallen
+     *                        too far behind, and the connection is then dropped.
+     */
+    public WebSocketConnection (WritableByteChannel clientChannel, WebSocketHandler webSocketHandler, EventLoop eventLoop, Runnable transportCloser,
+                                BooleanSupplier outputWaiter)
+    {
+        this.clientChannel = clientChannel;
+        this.webSocketHandler = webSocketHandler;
+        this.eventLoop = eventLoop;
+        this.transportCloser = transportCloser;
+        this.outputWaiter = outputWaiter;
+    }
+
+    /**
+     * True if a raw HTTP/1.1 request asks to upgrade to WebSocket
+     */
+    public static boolean isUpgradeRequest (String rawRequest)
+    {
+        if (!rawRequest.startsWith ("GET "))
+            return false;
+        int lineStart = rawRequest.indexOf ("\r\n") + 2;
+        while (lineStart > 1 && lineStart < rawRequest.length ())
+        {
+            int lineEnd = rawRequest.indexOf ("\r\n", lineStart);
+            if (lineEnd < 0)
+                lineEnd = rawRequest.length ();
+            if (lineEnd == lineStart)
+                break;    // end of the headers
+            if (rawRequest.regionMatches (true, lineStart, "Upgrade:", 0, 8))
+                return containsToken (rawRequest.substring (lineStart + 8, lineEnd), "websocket");
+            lineStart = lineEnd + 2;
+        }
+        return false;
+    }
+
+    /**
+     * Answer an upgrade request: 101 Switching Protocols if the handshake is valid, otherwise 426 (unsupported
+     * version) or 400, after which the connection should be closed. Returns true if the upgrade was accepted.
+     */
+    public static boolean writeHandshake (HttpRequest httpRequest, WritableByteChannel clientChannel) throws IOException
+    {
+        HttpResponse httpResponse = new HttpResponse (clientChannel);
+        String webSocketKey = httpRequest.getHeader ("Sec-WebSocket-Key");
+        String webSocketVersion = httpRequest.getHeader ("Sec-WebSocket-Version");
+        String connectionHeader = httpRequest.getHeader ("Connection");
+        if (webSocketVersion == null || !webSocketVersion.trim ().equals ("13"))
+        {
+            httpResponse.setResponseCode (426);
+            httpResponse.setResponseReason ("Upgrade Required");
+            httpResponse.addHeader ("Sec-WebSocket-Version", "13");
+            httpResponse.commitWriter (true);
+            return false;
+        }
+        if (webSocketKey == null || !isValidKey (webSocketKey.trim ()) || connectionHeader == null || !containsToken (connectionHeader, "upgrade"))
+        {
+            httpResponse.setResponseCode (400);
+            httpResponse.setResponseReason ("Bad Request");
+            httpResponse.commitWriter (true);
+            return false;
+        }
+        httpResponse.setResponseCode (101);
+        httpResponse.setResponseReason ("Switching Protocols");
+        httpResponse.addHeader ("Upgrade", "websocket");
+        httpResponse.addHeader ("Connection", "Upgrade");
+        httpResponse.addHeader ("Sec-WebSocket-Accept", getAcceptKey (webSocketKey.trim ()));
+        httpResponse.commitWriter (false);
+        return true;
+    }
+
+    /**
+     * The Sec-WebSocket-Accept value for a client's Sec-WebSocket-Key
+     */
+    public static String getAcceptKey (String webSocketKey)
+    {
+        try
+        {
+            MessageDigest sha1Digest = MessageDigest.getInstance ("SHA-1");
+            byte[] keyHash = sha1Digest.digest ((webSocketKey + ACCEPT_GUID).getBytes (StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder ().encodeToString (keyHash);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException ("SHA-1 is not available", e);
+        }
+    }
+
+    // The key must be 16 random bytes, base64 encoded
+    private static boolean isValidKey (String webSocketKey)
+    {
+        try
+        {
+            return Base64.getDecoder ().decode (webSocketKey).length == 16;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return false;
+        }
+    }
+
+    private static boolean containsToken (String headerValue, String wantedToken)
+    {
+        for (String headerToken : headerValue.split (","))
+        {
+            if (headerToken.trim ().equalsIgnoreCase (wantedToken))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tell the handler the connection is open. Returns false if it threw, in which case the connection has been
+     * sent a close frame and should be closed.
+     */
+    public boolean open (HttpRequest httpRequest)
+    {
+        try
+        {
+            webSocketHandler.onOpen (this, httpRequest);
+            return true;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            return fail (CLOSE_INTERNAL_ERROR, e);
+        }
+    }
+
+    /**
+     * Total length of the frame starting at frameBytes[0], or -1 if not enough of its header has arrived
+     */
+    public static long getFrameLength (byte[] frameBytes)
+    {
+        if (frameBytes.length < 2)
+            return -1;
+        int headerLength = (frameBytes[1] & 0x80) != 0 ? 6 : 2;
+        long payloadLength = frameBytes[1] & 0x7F;
+        if (payloadLength == 126)
+        {
+            if (frameBytes.length < 4)
+                return -1;
+            payloadLength = ((frameBytes[2] & 0xFF) << 8) | (frameBytes[3] & 0xFF);
+            headerLength += 2;
+        }
+        else if (payloadLength == 127)
+        {
+            if (frameBytes.length < 10)
+                return -1;
+            payloadLength = ByteBuffer.wrap (frameBytes, 2, 8).getLong ();
+            headerLength += 8;
+        }
+        return headerLength + payloadLength;
+    }
+
+    /**
+     * Handle every complete frame between the buffer's position and limit, leaving the position at the start of
+     * the first incomplete one. Payloads are unmasked in place. Returns false once the connection should be
+     * closed: the closing handshake is done, or a protocol error has been answered with a close frame.
+     */
+    public boolean onBytes (ByteBuffer frameBuffer)
+    {
+        while (open)
+        {
+            int frameStart = frameBuffer.position ();
+            int availableBytes = frameBuffer.remaining ();
+            if (availableBytes < 2)
+                return true;
+            int firstByte = frameBuffer.get (frameStart) & 0xFF;
+            int secondByte = frameBuffer.get (frameStart + 1) & 0xFF;
+            boolean finalFrame = (firstByte & 0x80) != 0;
+            int frameOpcode = firstByte & 0x0F;
+            long payloadLength = secondByte & 0x7F;
+            int headerLength = 2;
+            if (payloadLength == 126)
+            {
+                if (availableBytes < 4)
+                    return true;
+                payloadLength = frameBuffer.getShort (frameStart + 2) & 0xFFFF;
+                headerLength = 4;
+            }
+            else if (payloadLength == 127)
+            {
+                if (availableBytes < 10)
+                    return true;
+                payloadLength = frameBuffer.getLong (frameStart + 2);
+                headerLength = 10;
+            }
+
+            // Checked before waiting for the payload, so an oversized frame is never buffered
+            if ((firstByte & 0x70) != 0)
+                return fail (CLOSE_PROTOCOL_ERROR, "Reserved bits set");
+            if ((secondByte & 0x80) == 0)
+                return fail (CLOSE_PROTOCOL_ERROR, "Client frames must be masked");
+            if (payloadLength < 0 || payloadLength > MAX_MESSAGE_BYTES)
+                return fail (CLOSE_TOO_BIG, "Frame too big");
+            if (frameOpcode >= OPCODE_CLOSE && (!finalFrame || payloadLength > MAX_CONTROL_PAYLOAD))
+                return fail (CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+
+            int maskStart = frameStart + headerLength;
+            int payloadStart = maskStart + 4;
+            if (availableBytes < payloadStart - frameStart + payloadLength)
+                return true;
+            int payloadEnd = payloadStart + (int) payloadLength;
+            unmask (frameBuffer, maskStart, payloadStart, payloadEnd);
+
+            ByteBuffer payloadBuffer = frameBuffer.duplicate ();
+            payloadBuffer.limit (payloadEnd).position (payloadStart);
+            frameBuffer.position (payloadEnd);
+            if (!onFrame (finalFrame, frameOpcode, payloadBuffer.slice ()))
+                return false;
+        }
+        return false;
+    }
+
+    // XOR the payload with the 4 byte mask, 8 bytes at a time
+    static void unmask (ByteBuffer frameBuffer, int maskStart, int payloadStart, int payloadEnd)
+    {
+        int maskInt = frameBuffer.getInt (maskStart);
+        long maskLong = ((long) maskInt << 32) | (maskInt & 0xFFFFFFFFL);
+        int bytePos = payloadStart;
+        for (; bytePos + 8 <= payloadEnd; bytePos += 8)
+            frameBuffer.putLong (bytePos, frameBuffer.getLong (bytePos) ^ maskLong);
+        for (; bytePos < payloadEnd; bytePos++)
+            frameBuffer.put (bytePos, (byte) (frameBuffer.get (bytePos) ^ frameBuffer.get (maskStart + ((bytePos - payloadStart) & 3))));
+    }
+
+    private boolean onFrame (boolean finalFrame, int frameOpcode, ByteBuffer payloadBuffer)
+    {
+        switch (frameOpcode)
+        {
+            case OPCODE_TEXT:
+            case OPCODE_BINARY:
+                if (messageOpcode >= 0)
+                    return fail (CLOSE_PROTOCOL_ERROR, "Expected a continuation frame");
+                if (finalFrame)
+                    return deliverMessage (frameOpcode, payloadBuffer);
+                messageOpcode = frameOpcode;
+                messageLength = 0;
+                return appendFragment (payloadBuffer);
+            case OPCODE_CONTINUATION:
+                if (messageOpcode < 0)
+                    return fail (CLOSE_PROTOCOL_ERROR, "Unexpected continuation frame");
+                if (!appendFragment (payloadBuffer))
+                    return false;
+                if (!finalFrame)
+                    return true;
+                int wholeOpcode = messageOpcode;
+                ByteBuffer wholeMessage = ByteBuffer.wrap (messageBytes, 0, messageLength);
+                messageOpcode = -1;
+                messageBytes = null;
+                return deliverMessage (wholeOpcode, wholeMessage);
+            case OPCODE_PING:
+                sendFrame (encodeFrame (OPCODE_PONG, payloadBuffer));
+                return true;
+            case OPCODE_PONG:
+                // Reading it has already marked the connection active
+                return true;
+            case OPCODE_CLOSE:
+                return onCloseFrame (payloadBuffer);
+            default:
+                return fail (CLOSE_PROTOCOL_ERROR, "Unknown opcode " + frameOpcode);
+        }
+    }
+
+    private boolean appendFragment (ByteBuffer payloadBuffer)
+    {
+        int fragmentLength = payloadBuffer.remaining ();
+        if (messageLength + fragmentLength > MAX_MESSAGE_BYTES)
+            return fail (CLOSE_TOO_BIG, "Message too big");
+        if (messageBytes == null)
+            messageBytes = new byte[Math.max (fragmentLength, 256)];
+        else if (messageLength + fragmentLength > messageBytes.length)
+            messageBytes = Arrays.copyOf (messageBytes, Math.max (messageLength + fragmentLength, 2 * messageBytes.length));
+        payloadBuffer.get (messageBytes, messageLength, fragmentLength);
+        messageLength += fragmentLength;
+        return true;
+    }
+
+    private boolean deliverMessage (int messageOpcode, ByteBuffer messageBuffer)
+    {
+        try
+        {
+            if (messageOpcode == OPCODE_TEXT)
+                webSocketHandler.onText (this, StandardCharsets.UTF_8.newDecoder ().decode (messageBuffer).toString ());
+            else
+                webSocketHandler.onBinary (this, messageBuffer.asReadOnlyBuffer ());
+            return true;
+        }
+        catch (CharacterCodingException e)
+        {
+            return fail (CLOSE_INVALID_DATA, "Text is not valid UTF-8");
+        }
+        catch (IOException | RuntimeException e)
+        {
+            return fail (CLOSE_INTERNAL_ERROR, e);
+        }
+    }
+
+    // The peer has started or answered the closing handshake. Either way the connection is done.
+    private boolean onCloseFrame (ByteBuffer payloadBuffer)
+    {
+        int statusCode = CLOSE_NO_STATUS;
+        String closeReason = "";
+        if (payloadBuffer.remaining () == 1)
+            return fail (CLOSE_PROTOCOL_ERROR, "Invalid close frame");
+        if (payloadBuffer.remaining () >= 2)
+        {
+            statusCode = payloadBuffer.getShort (0) & 0xFFFF;
+            if (!isValidCloseCode (statusCode))
+                return fail (CLOSE_PROTOCOL_ERROR, "Invalid close code " + statusCode);
+            payloadBuffer.position (2);
+            try
+            {
+                closeReason = StandardCharsets.UTF_8.newDecoder ().decode (payloadBuffer).toString ();
+            }
+            catch (CharacterCodingException e)
+            {
+                return fail (CLOSE_INVALID_DATA, "Close reason is not valid UTF-8");
+            }
+        }
+        if (!closeSent)
+        {
+            closeSent = true;
+            sendFrame (statusCode == CLOSE_NO_STATUS ? encodeFrame (OPCODE_CLOSE, EMPTY_BUFFER) : encodeClose (statusCode, ""));
+        }
+        notifyClosed (statusCode, closeReason);
+        return false;
+    }
+
+    private static boolean isValidCloseCode (int statusCode)
+    {
+        if (statusCode >= 3000 && statusCode <= 4999)
+            return true;
+        return statusCode >= 1000 && statusCode <= 1011 && statusCode != 1004 && statusCode != 1005 && statusCode != 1006;
+    }
+
+    private boolean fail (int statusCode, Exception e)
+    {
+        Log.warn (e.toString ());
+        return fail (statusCode, "Internal error");
+    }
+
+    // Close with an error: say why, tell the handler, and have the caller drop the connection
+    private boolean fail (int statusCode, String closeReason)
+    {
+        if (!closeSent)
+        {
+            closeSent = true;
+            sendFrame (encodeClose (statusCode, closeReason));
+        }
+        notifyClosed (statusCode, closeReason);
+        return false;
+    }
+
+    private synchronized void notifyClosed (int statusCode, String closeReason)
+    {
+        if (closeNotified)
+            return;
+        closeNotified = true;
+        webSocketHandler.onClose (this, statusCode, closeReason);
+    }
+
+    /**
+     * The transport has closed, with or without a closing handshake
+     */
+    public void onTransportClosed ()
+    {
+        open = false;
+        notifyClosed (CLOSE_ABNORMAL, "");
+    }
+
+    public void sendText (String textMessage)
+    {
+        if (!closeSent)
+            sendFrame (encodeText (textMessage));
+    }
+
+    public void sendBinary (ByteBuffer binaryMessage)
+    {
+        if (!closeSent)
+            sendFrame (encodeFrame (OPCODE_BINARY, binaryMessage));
+    }
+
+    /**
+     * Send a ping, which the peer must answer with a pong
+     */
+    public void sendPing ()
+    {
+        if (!closeSent)
+            sendFrame (encodeFrame (OPCODE_PING, EMPTY_BUFFER));
+    }
+
+    public void close (int statusCode, String closeReason)
+    {
+        if (closeSent)
+            return;
+        closeSent = true;
+        sendFrame (encodeClose (statusCode, closeReason));
+    }
+
+    public boolean isOpen ()
+    {
+        return open && !closeSent;
+    }
+
+    public Object getAttachment ()
+    {
+        return attachment;
+    }
+
+    public void setAttachment (Object attachment)
+    {
+        this.attachment = attachment;
+    }
+
+    /**
+     * Write an encoded frame, right away on the event loop, otherwise from it. The buffer is not copied, so the
+     * caller must not change it afterwards; a shared frame should be passed as a duplicate ().
+     */
+    public void sendFrame (ByteBuffer encodedFrame)
+    {
+        if (!open)
+            return;
+        if (eventLoop.inEventLoop ())
+            writeFrame (encodedFrame);
+        else
+            eventLoop.execute (() -> writeFrame (encodedFrame));
+    }
+
+    // Only ever run on the event loop, so frames are never interleaved
+    private void writeFrame (ByteBuffer encodedFrame)
+    {
+        if (!open)
+            return;
+        try
+        {
+            HttpResponse.writeFully (clientChannel, encodedFrame);
+            if (!outputWaiter.getAsBoolean ())
+            {
+                // A close frame would only wait behind everything the client has not read
+                notifyClosed (CLOSE_POLICY_VIOLATION, "Client too slow");
+                open = false;
+                transportCloser.run ();
+            }
+        }
+        catch (IOException e)
+        {
+            open = false;
+            transportCloser.run ();
+        }
+    }
+
+    /**
+     * Write one encoded frame to every open connection. Each gets a duplicate of the same read only buffer.
+     */
+    public static int broadcast (Collection <? extends WebSocket> webSockets, ByteBuffer encodedFrame)
+    {
+        ByteBuffer sharedFrame = encodedFrame.asReadOnlyBuffer ();
+        int sentCount = 0;
+        for (WebSocket webSocket : webSockets)
+        {
+            if (!(webSocket instanceof WebSocketConnection) || !webSocket.isOpen ())
+                continue;
+            ((WebSocketConnection) webSocket).sendFrame (sharedFrame.duplicate ());
+            sentCount++;
+        }
+        return sentCount;
+    }
+
+    public static ByteBuffer encodeText (String textMessage)
+    {
+        return encodeFrame (OPCODE_TEXT, ByteBuffer.wrap (textMessage.getBytes (StandardCharsets.UTF_8)));
+    }
+
+    static ByteBuffer encodeClose (int statusCode, String closeReason)
+    {
+        byte[] reasonBytes = closeReason.getBytes (StandardCharsets.UTF_8);
+        ByteBuffer closePayload = ByteBuffer.allocate (2 + Math.min (reasonBytes.length, MAX_CONTROL_PAYLOAD - 2));
+        closePayload.putShort ((short) statusCode);
+        closePayload.put (reasonBytes, 0, closePayload.remaining ());
+        closePayload.flip ();
+        return encodeFrame (OPCODE_CLOSE, closePayload);
+    }
+
+    /**
+     * Encode a single, final, unmasked frame. The payload's position is left unchanged.
+     */
+    public static ByteBuffer encodeFrame (int frameOpcode, ByteBuffer payloadBuffer)
+    {
+        int payloadLength = payloadBuffer.remaining ();
+        int headerLength = payloadLength < 126 ? 2 : payloadLength <= 0xFFFF ? 4 : 10;
+        ByteBuffer frameBuffer = ByteBuffer.allocate (headerLength + payloadLength);
+        frameBuffer.put ((byte) (0x80 | frameOpcode));
+        if (payloadLength < 126)
+            frameBuffer.put ((byte) payloadLength);
+        else if (payloadLength <= 0xFFFF)
+            frameBuffer.put ((byte) 126).putShort ((short) payloadLength);
+        else
+            frameBuffer.put ((byte) 127).putLong (payloadLength);
+        frameBuffer.put (payloadBuffer.duplicate ());
+        frameBuffer.flip ();
+        return frameBuffer;
+    }
+}
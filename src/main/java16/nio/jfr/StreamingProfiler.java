@@ -0,0 +1,217 @@
+package nio.jfr;
+
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A profiler that streams Flight Recorder events for the length of one profile and aggregates them as they
+ * arrive, so nothing is written to disk. CPU time comes from execution samples, folded into collapsed stacks
+ * (root first, frames separated by semicolons, then the sample count). Allocation comes from the allocation
+ * samples, summed by class and site. Lock contention comes from monitor enters and lock parks over a
+ * millisecond, summed by lock class and site. A site is the first frame outside the JDK, so it names the
+ * server or app code responsible rather than the collection it called.
+ *
+ * Only one profile is recorded at a time in a JVM.
+ */
+public class StreamingProfiler implements Profiler
+{
+    private static final AtomicBoolean recording = new AtomicBoolean ();
+    private static final Duration SAMPLE_PERIOD = Duration.ofMillis (10);
+    private static final Duration CONTENTION_THRESHOLD = Duration.ofMillis (1);
+    private static final int TOP_SITES = 20;
+
+    public String profile (long durationMillis, int reportType) throws IOException
+    {
+        if (!recording.compareAndSet (false, true))
+            throw new IllegalStateException ("A profile is already being recorded");
+        Map <String, Long> cpuStacks = new ConcurrentHashMap <> ();
+        Map <String, Long> allocationSites = new ConcurrentHashMap <> ();
+        Map <String, long[]> contentionSites = new ConcurrentHashMap <> ();
+        RecordingStream recordingStream = new RecordingStream ();
+        try
+        {
+            recordingStream.enable ("jdk.ExecutionSample").withPeriod (SAMPLE_PERIOD).withStackTrace ();
+            recordingStream.onEvent ("jdk.ExecutionSample", sampleEvent -> addStack (cpuStacks, sampleEvent.getStackTrace ()));
+            if (reportType == FULL_REPORT)
+            {
+                recordingStream.enable ("jdk.ObjectAllocationSample").withStackTrace ();
+                recordingStream.enable ("jdk.JavaMonitorEnter").withThreshold (CONTENTION_THRESHOLD).withStackTrace ();
+                recordingStream.enable ("jdk.ThreadPark").withThreshold (CONTENTION_THRESHOLD).withStackTrace ();
+                recordingStream.onEvent ("jdk.ObjectAllocationSample", allocationEvent -> addAllocation (allocationSites, allocationEvent));
+                recordingStream.onEvent ("jdk.JavaMonitorEnter", enterEvent -> addContention (contentionSites, enterEvent, enterEvent.getClass ("monitorClass")));
+                recordingStream.onEvent ("jdk.ThreadPark", parkEvent -> addPark (contentionSites, parkEvent));
+            }
+            recordingStream.startAsync ();
+            Thread.sleep (durationMillis);
+            // Every event handler has run once the closed stream terminates
+            recordingStream.close ();
+            recordingStream.awaitTermination ();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread ().interrupt ();
+            throw new InterruptedIOException ("Profile interrupted");
+        }
+        finally
+        {
+            // Closing an already closed stream does nothing
+            recordingStream.close ();
+            recording.set (false);
+        }
+
+        StringBuilder profileReport = new StringBuilder ();
+        if (reportType == FULL_REPORT)
+            profileReport.append ("# CPU samples every ").append (SAMPLE_PERIOD.toMillis ()).append (" ms for ").append (durationMillis)
+                         .append (" ms, as collapsed stacks\n");
+        for (Map.Entry <String, Long> cpuStack : sortedByValue (cpuStacks))
+            profileReport.append (cpuStack.getKey ()).append (' ').append (cpuStack.getValue ()).append ('\n');
+        if (reportType != FULL_REPORT)
+            return profileReport.toString ();
+
+        profileReport.append ("\n# Top allocation sites, by sampled bytes\n");
+        List <Map.Entry <String, Long>> sortedAllocations = sortedByValue (allocationSites);
+        for (Map.Entry <String, Long> allocationSite : sortedAllocations.subList (0, Math.min (TOP_SITES, sortedAllocations.size ())))
+            profileReport.append (String.format ("%,15d  %s%n", allocationSite.getValue (), allocationSite.getKey ()));
+
+        profileReport.append ("\n# Top lock contention, by time blocked (over ").append (CONTENTION_THRESHOLD.toMillis ()).append (" ms at a time)\n");
+        List <Map.Entry <String, long[]>> sortedContention = new ArrayList <> (contentionSites.entrySet ());
+        sortedContention.sort ((firstSite, secondSite) -> Long.compare (secondSite.getValue ()[1], firstSite.getValue ()[1]));
+        for (Map.Entry <String, long[]> contentionSite : sortedContention.subList (0, Math.min (TOP_SITES, sortedContention.size ())))
+            profileReport.append (String.format ("%,10d ms %,8dx  %s%n", TimeUnit.NANOSECONDS.toMillis (contentionSite.getValue ()[1]), contentionSite.getValue ()[0],
+                                                 contentionSite.getKey ()));
+        return profileReport.toString ();
+    }
+
+    private static void addStack (Map <String, Long> cpuStacks, RecordedStackTrace stackTrace)
+    {
+        if (stackTrace == null)
+            return;
+        List <RecordedFrame> stackFrames = stackTrace.getFrames ();
+        StringBuilder collapsedStack = new StringBuilder ();
+        for (int i = stackFrames.size () - 1; i >= 0; i--)
+        {
+            if (collapsedStack.length () > 0)
+                collapsedStack.append (';');
+            appendFrame (collapsedStack, stackFrames.get (i));
+        }
+        cpuStacks.merge (collapsedStack.toString (), 1L, Long::sum);
+    }
+
+    private static void addAllocation (Map <String, Long> allocationSites, RecordedEvent allocationEvent)
+    {
+        RecordedClass objectClass = allocationEvent.getClass ("objectClass");
+        String siteKey = (objectClass == null ? "?" : getTypeName (objectClass.getName ())) + " at " + getSite (allocationEvent.getStackTrace ());
+        allocationSites.merge (siteKey, allocationEvent.getLong ("weight"), Long::sum);
+    }
+
+    // Only parks on a lock count as contention. Waiting on a condition or in an idle pool is not.
+    private static void addPark (Map <String, long[]> contentionSites, RecordedEvent parkEvent)
+    {
+        RecordedClass parkedClass = parkEvent.getClass ("parkedClass");
+        if (parkedClass == null)
+            return;
+        String className = parkedClass.getName ();
+        if (className.endsWith ("ConditionObject") || !className.contains ("Lock") && !className.endsWith ("Sync"))
+            return;
+        addContention (contentionSites, parkEvent, parkedClass);
+    }
+
+    private static void addContention (Map <String, long[]> contentionSites, RecordedEvent blockedEvent, RecordedClass lockClass)
+    {
+        String siteKey = (lockClass == null ? "?" : lockClass.getName ()) + " at " + getSite (blockedEvent.getStackTrace ());
+        long blockedNanos = blockedEvent.getDuration ().toNanos ();
+        contentionSites.merge (siteKey, new long[] { 1, blockedNanos }, (siteTotals, eventTotals) -> {
+            siteTotals[0] += eventTotals[0];
+            siteTotals[1] += eventTotals[1];
+            return siteTotals;
+        });
+    }
+
+    // The first frame outside the JDK, or the top frame if they are all in it
+    private static String getSite (RecordedStackTrace stackTrace)
+    {
+        if (stackTrace == null || stackTrace.getFrames ().isEmpty ())
+            return "?";
+        for (RecordedFrame stackFrame : stackTrace.getFrames ())
+        {
+            String typeName = stackFrame.getMethod ().getType ().getName ();
+            if (!isJdkClass (typeName))
+                return appendFrame (new StringBuilder (), stackFrame).append (':').append (stackFrame.getLineNumber ()).toString ();
+        }
+        return appendFrame (new StringBuilder (), stackTrace.getFrames ().get (0)).toString ();
+    }
+
+    // Array classes come as descriptors, such as [B for byte[]
+    private static String getTypeName (String className)
+    {
+        int arrayDepth = 0;
+        while (arrayDepth < className.length () && className.charAt (arrayDepth) == '[')
+            arrayDepth++;
+        if (arrayDepth == 0)
+            return className;
+        String elementName = getElementName (className.charAt (arrayDepth));
+        if (elementName == null)
+            elementName = className.substring (arrayDepth + 1, className.length () - 1);
+        StringBuilder typeName = new StringBuilder (elementName);
+        for (int i = 0; i < arrayDepth; i++)
+            typeName.append ("[]");
+        return typeName.toString ();
+    }
+
+    // The primitive type a descriptor letter stands for, or null for L, a class
+    private static String getElementName (char typeLetter)
+    {
+        switch (typeLetter)
+        {
+            case 'B':
+                return "byte";
+            case 'C':
+                return "char";
+            case 'D':
+                return "double";
+            case 'F':
+                return "float";
+            case 'I':
+                return "int";
+            case 'J':
+                return "long";
+            case 'S':
+                return "short";
+            case 'Z':
+                return "boolean";
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isJdkClass (String typeName)
+    {
+        return typeName.startsWith ("java.") || typeName.startsWith ("javax.") || typeName.startsWith ("jdk.") || typeName.startsWith ("sun.")
+               || typeName.startsWith ("com.sun.");
+    }
+
+    private static StringBuilder appendFrame (StringBuilder frameText, RecordedFrame stackFrame)
+    {
+        return frameText.append (stackFrame.getMethod ().getType ().getName ()).append ('.').append (stackFrame.getMethod ().getName ());
+    }
+
+    private static List <Map.Entry <String, Long>> sortedByValue (Map <String, Long> countMap)
+    {
+        List <Map.Entry <String, Long>> sortedEntries = new ArrayList <> (countMap.entrySet ());
+        sortedEntries.sort ((firstEntry, secondEntry) -> Long.compare (secondEntry.getValue (), firstEntry.getValue ()));
+        return sortedEntries;
+    }
+}
@@ -0,0 +1,38 @@
+package nio.util;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Unix domain sockets from the channels Java 16 opens for StandardProtocolFamily.UNIX
+ */
+public class ChannelUnixDomainSockets implements UnixDomainSockets
+{
+    public ServerSocketChannel openListener (Path socketPath, int backlog) throws IOException
+    {
+        // Binding fails while the socket file of an earlier run is still there
+        Files.deleteIfExists (socketPath);
+        ServerSocketChannel serverChannel = ServerSocketChannel.open (StandardProtocolFamily.UNIX);
+        try
+        {
+            serverChannel.bind (UnixDomainSocketAddress.of (socketPath), backlog);
+            serverChannel.configureBlocking (false);
+        }
+        catch (IOException e)
+        {
+            serverChannel.close ();
+            throw e;
+        }
+        return serverChannel;
+    }
+
+    public SocketChannel connect (Path socketPath) throws IOException
+    {
+        return SocketChannel.open (UnixDomainSocketAddress.of (socketPath));
+    }
+}
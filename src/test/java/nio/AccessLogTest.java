@@ -0,0 +1,153 @@
+package nio;
+
+import nio.log.AccessLog;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AccessLogTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8101;
+    private static Path logDir;
+    private static AccessLog serverLog;
+    private static NioWebServer theServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        logDir = Files.createTempDirectory ("accesslog");
+        serverLog = new AccessLog (logDir.resolve ("server.log"), AccessLog.COMMON, 1024);
+        theServer = new NioWebServer ();
+        theServer.setAccessLog (serverLog);
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        Thread.sleep (200);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+        serverLog.close ();
+    }
+
+    @Test
+    public void testRecordsFromManyThreads() throws Exception
+    {
+        Path logPath = logDir.resolve ("threads.json");
+        AccessLog accessLog = new AccessLog (logPath, AccessLog.JSON, 8192);
+        InetAddress remoteAddress = InetAddress.getByName ("10.1.2.3");
+        List <Thread> logThreads = new ArrayList <> ();
+        for (int t = 0; t < 4; t++)
+        {
+            final int threadNum = t;
+            Thread logThread = new Thread (() ->
+            {
+                for (int i = 0; i < 500; i++)
+                    accessLog.log (remoteAddress, "GET", "/t" + threadNum + "/" + i, "HTTP/1.1", 200, i, 1500000);
+            });
+            logThreads.add (logThread);
+            logThread.start ();
+        }
+        for (Thread logThread : logThreads)
+            logThread.join ();
+        accessLog.log (null, "POST", "/say\"hi\"", "HTTP/1.0", 404, 0, 2000);
+        accessLog.close ();
+
+        List <String> logLines = Files.readAllLines (logPath, StandardCharsets.ISO_8859_1);
+        Assert.assertEquals (0, accessLog.getDropped ());
+        Assert.assertEquals (2001, accessLog.getWritten ());
+        Assert.assertEquals (2001, logLines.size ());
+        Assert.assertTrue (logLines.get (0), logLines.get (0).matches ("\\{\"time\":\"\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}Z\",\"remote\":\"10\\.1\\.2\\.3\","
+            + "\"method\":\"GET\",\"path\":\"/t\\d/\\d+\",\"protocol\":\"HTTP/1\\.1\",\"status\":200,\"bytes\":\\d+,\"durationMicros\":1500}"));
+        // Each thread's records keep their own fields
+        for (int t = 0; t < 4; t++)
+        {
+            String lastPath = "\"path\":\"/t" + t + "/499\",\"protocol\":\"HTTP/1.1\",\"status\":200,\"bytes\":499,";
+            Assert.assertEquals (1, logLines.stream ().filter (logLine -> logLine.contains (lastPath)).count ());
+        }
+        Assert.assertTrue (logLines.get (2000), logLines.get (2000).endsWith ("\"remote\":\"-\",\"method\":\"POST\",\"path\":\"/say\\\"hi\\\"\",\"protocol\":\"HTTP/1.0\","
+            + "\"status\":404,\"bytes\":0,\"durationMicros\":2}"));
+    }
+
+    @Test
+    public void testFullRingDropsRecords() throws Exception
+    {
+        AccessLog accessLog = new AccessLog (logDir.resolve ("tiny.log"), AccessLog.COMMON, 2);
+        int loggedCount = 0;
+        for (int i = 0; i < 100000; i++)
+        {
+            if (accessLog.log (null, "GET", "/" + i, "HTTP/1.1", 200, 10, 0))
+                loggedCount++;
+        }
+        accessLog.close ();
+        // Nothing blocks and nothing is lost without being counted
+        Assert.assertTrue (accessLog.getDropped () > 0);
+        Assert.assertEquals (100000, loggedCount + accessLog.getDropped ());
+        Assert.assertEquals (loggedCount, accessLog.getWritten ());
+        Assert.assertEquals (loggedCount, Files.readAllLines (logDir.resolve ("tiny.log")).size ());
+    }
+
+    @Test
+    public void testRotation() throws Exception
+    {
+        Path logPath = logDir.resolve ("rotated.log");
+        AccessLog accessLog = new AccessLog (logPath, AccessLog.COMMON, 64);
+        accessLog.setMaxFileBytes (500);
+        accessLog.setMaxFiles (2);
+        for (int i = 0; i < 40; i++)
+        {
+            while (!accessLog.log (null, "GET", "/rotate/" + i, "HTTP/1.1", 200, 100, 0))
+                Thread.sleep (1);
+            Thread.sleep (2);
+        }
+        accessLog.close ();
+        Assert.assertTrue (Files.exists (logPath));
+        Assert.assertTrue (Files.exists (logDir.resolve ("rotated.log.1")));
+        Assert.assertTrue (Files.exists (logDir.resolve ("rotated.log.2")));
+        Assert.assertFalse (Files.exists (logDir.resolve ("rotated.log.3")));
+        List <String> lastLines = Files.readAllLines (logPath);
+        Assert.assertTrue (lastLines.get (lastLines.size () - 1).contains ("\"GET /rotate/39 HTTP/1.1\" 200 100"));
+    }
+
+    @Test
+    public void testServerRequestsAreLogged() throws Exception
+    {
+        for (int i = 0; i < 2; i++)
+        {
+            Assert.assertEquals (200, TestUtils.getUrl ("http://localhost:8101/SimpleApp1?logged", null).responseCode);
+            Assert.assertEquals (200, TestUtils.getUrl ("http://localhost:8101/SimpleApp2?logged", null).responseCode);
+        }
+        long waitUntil = System.currentTimeMillis () + 3000;
+        while (serverLog.getWritten () < 4 && System.currentTimeMillis () < waitUntil)
+            Thread.sleep (20);
+
+        List <String> logLines = Files.readAllLines (serverLog.getLogPath (), StandardCharsets.ISO_8859_1);
+        Assert.assertEquals (4, logLines.size ());
+        Assert.assertTrue (logLines.get (0), logLines.get (0).matches ("127\\.0\\.0\\.1 - - \\[\\d\\d/\\w{3}/\\d{4}:\\d\\d:\\d\\d:\\d\\d [+-]\\d{4}\\] "
+            + "\"GET /SimpleApp1\\?logged HTTP/1\\.1\" 200 \\d+"));
+        Assert.assertTrue (logLines.get (3), logLines.get (3).contains ("\"GET /SimpleApp2?logged HTTP/1.1\" 200 "));
+    }
+}
@@ -0,0 +1,33 @@
+package nio;
+
+import nio.api.HttpRequest;
+import nio.api.HttpResponse;
+import nio.api.NioWebApp;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachedApp implements NioWebApp
+{
+    private static final String APP_NAME = "CachedApp 1.0";
+    static final AtomicInteger serviceCount = new AtomicInteger ();
+
+    public void service (HttpRequest httpRequest, HttpResponse httpResponse) throws IOException
+    {
+        serviceCount.incrementAndGet ();
+        httpResponse.addHeader ("Content-Type", "text/plain");
+        httpResponse.addHeader ("Cache-Control", "public, max-age=60");
+        httpResponse.append (APP_NAME).append (" served ").append (httpRequest.getReqLocation ());
+        httpResponse.commitWriter (true);
+    }
+
+    public void start () throws IOException
+    {
+        System.out.println ("Starting " + APP_NAME);
+    }
+
+    public void stop () throws IOException
+    {
+        System.out.println ("Stopping " + APP_NAME);
+    }
+}
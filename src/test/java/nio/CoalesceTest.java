@@ -0,0 +1,124 @@
+package nio;
+
+import nio.util.RequestCoalescer;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CoalesceTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8110;
+    private static NioPooledWebServer theServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioPooledWebServer ();
+        theServer.setCoalescer (new RequestCoalescer (500, "Accept-Encoding"));
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        Thread.sleep (200);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+    }
+
+    @Test
+    public void testIdenticalRequestsShareOneResponse() throws Exception
+    {
+        long coalescedCount = theServer.getMetrics ().get ("requests.coalesced");
+        int serviceCount = SlowApp.serviceCount.get ();
+        SocketChannel[] clientChannels = new SocketChannel[4];
+        for (int i = 0; i < clientChannels.length; i++)
+        {
+            clientChannels[i] = SocketChannel.open (new InetSocketAddress (listenHost, listenPort));
+            TestUtils.writeRequest (clientChannels[i], "GET /SlowApp?300 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        }
+        String firstResponse = readFully (clientChannels[0]);
+        Assert.assertTrue (firstResponse, firstResponse.endsWith ("SlowApp call " + (serviceCount + 1)));
+        for (int i = 1; i < clientChannels.length; i++)
+            Assert.assertEquals (firstResponse, readFully (clientChannels[i]));
+        Assert.assertEquals (serviceCount + 1, SlowApp.serviceCount.get ());
+        Assert.assertEquals (coalescedCount + 3, theServer.getMetrics ().get ("requests.coalesced"));
+    }
+
+    @Test
+    public void testWaitersRunTheAppAfterTimeout() throws Exception
+    {
+        long timeoutCount = theServer.getMetrics ().get ("coalesce.timeouts");
+        int serviceCount = SlowApp.serviceCount.get ();
+        CountDownLatch releaseLeader = SlowApp.holdNextCall ();
+        try (SocketChannel firstChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort));
+             SocketChannel secondChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort)))
+        {
+            // The leader stays in the app until it is let go, so the waiter can only be answered by giving up on it
+            TestUtils.writeRequest (firstChannel, "GET /SlowApp?hold HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Assert.assertTrue (SlowApp.heldCalls.tryAcquire (5, TimeUnit.SECONDS));
+            TestUtils.writeRequest (secondChannel, "GET /SlowApp?hold HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Assert.assertTrue (readFully (secondChannel).endsWith ("SlowApp call " + (serviceCount + 1)));
+            Assert.assertEquals (timeoutCount + 1, theServer.getMetrics ().get ("coalesce.timeouts"));
+
+            releaseLeader.countDown ();
+            Assert.assertTrue (readFully (firstChannel).endsWith ("SlowApp call " + (serviceCount + 2)));
+        }
+        finally
+        {
+            releaseLeader.countDown ();
+        }
+        Assert.assertEquals (serviceCount + 2, SlowApp.serviceCount.get ());
+    }
+
+    @Test
+    public void testKeyVariesOnHeadersAndSkipsCredentials()
+    {
+        RequestCoalescer requestCoalescer = new RequestCoalescer (1000, "Accept-Encoding");
+        String plainKey = requestCoalescer.getKey ("GET /a?b HTTP/1.1\r\nHost: localhost\r\nAccept: */*");
+        Assert.assertEquals ("GET /a?b", plainKey);
+        Assert.assertEquals ("GET /a?b\naccept-encoding: gzip", requestCoalescer.getKey ("GET /a?b HTTP/1.1\r\naccept-encoding: gzip"));
+        Assert.assertNull (requestCoalescer.getKey ("GET /a HTTP/1.1\r\nCookie: session=1"));
+        Assert.assertNull (requestCoalescer.getKey ("GET /a HTTP/1.1\r\nAuthorization: Basic eDp5"));
+        Assert.assertNull (requestCoalescer.getKey ("POST /a HTTP/1.1\r\nContent-Length: 0"));
+
+        // Only the first request for a key leads, until it completes
+        Assert.assertTrue (requestCoalescer.lead (plainKey));
+        Assert.assertFalse (requestCoalescer.lead (plainKey));
+        String[] sharedResponse = new String[1];
+        Assert.assertTrue (requestCoalescer.join (plainKey, response -> sharedResponse[0] = response == null ? "none" : "shared"));
+        requestCoalescer.complete (plainKey, null);
+        Assert.assertEquals ("none", sharedResponse[0]);
+        Assert.assertFalse (requestCoalescer.join (plainKey, response -> { }));
+        Assert.assertEquals (0, requestCoalescer.size ());
+    }
+
+    // The server is not keep-alive, so a response ends when the connection does
+    private static String readFully (SocketChannel clientChannel) throws IOException
+    {
+        String respString = TestUtils.readUntilClosed (clientChannel);
+        clientChannel.close ();
+        // The Date header may tick over between the leader's response and a waiter's
+        return respString.replaceAll ("\r\nDate: [^\r]*", "");
+    }
+}
@@ -0,0 +1,70 @@
+package nio;
+
+import nio.api.HttpRequest;
+import nio.api.HttpResponse;
+import nio.api.NioWebApp;
+import nio.api.WebSocket;
+import nio.api.WebSocketHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EchoSocketApp implements NioWebApp, WebSocketHandler
+{
+    private static final String APP_NAME = "EchoSocket 1.0";
+    private static final String BROADCAST_PREFIX = "broadcast:";
+    // Open sockets by the location they connected to
+    static final Map <String, Set <WebSocket>> rooms = new ConcurrentHashMap <> ();
+    static final Set <String> callbackThreads = ConcurrentHashMap.newKeySet ();
+    static final AtomicInteger lastCloseCode = new AtomicInteger ();
+
+    public void service (HttpRequest httpRequest, HttpResponse httpResponse) throws IOException
+    {
+        httpResponse.addHeader ("Content-Type", "text/plain");
+        httpResponse.append (APP_NAME).append (" served ").append (httpRequest.getReqLocation ());
+        httpResponse.commitWriter (true);
+    }
+
+    public void onOpen (WebSocket webSocket, HttpRequest httpRequest)
+    {
+        callbackThreads.add (Thread.currentThread ().getName ());
+        webSocket.setAttachment (httpRequest.getReqLocation ());
+        rooms.computeIfAbsent (httpRequest.getReqLocation (), k -> ConcurrentHashMap.newKeySet ()).add (webSocket);
+    }
+
+    public void onText (WebSocket webSocket, String textMessage)
+    {
+        callbackThreads.add (Thread.currentThread ().getName ());
+        if (textMessage.startsWith (BROADCAST_PREFIX))
+            WebSocket.broadcast (rooms.get (webSocket.getAttachment ()), textMessage.substring (BROADCAST_PREFIX.length ()));
+        else
+            webSocket.sendText (textMessage);
+    }
+
+    public void onBinary (WebSocket webSocket, ByteBuffer binaryMessage)
+    {
+        webSocket.sendBinary (binaryMessage);
+    }
+
+    public void onClose (WebSocket webSocket, int statusCode, String closeReason)
+    {
+        lastCloseCode.set (statusCode);
+        Set <WebSocket> roomSockets = rooms.get (webSocket.getAttachment ());
+        if (roomSockets != null)
+            roomSockets.remove (webSocket);
+    }
+
+    public void start () throws IOException
+    {
+        System.out.println ("Starting " + APP_NAME);
+    }
+
+    public void stop () throws IOException
+    {
+        System.out.println ("Stopping " + APP_NAME);
+    }
+}
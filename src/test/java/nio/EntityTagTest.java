@@ -0,0 +1,145 @@
+package nio;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+public class EntityTagTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8105;
+    private static NioWebServer theServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        theServer.setKeepAlive (true);
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        Thread.sleep (200);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+    }
+
+    @Test
+    public void testGeneratedEntityTag() throws Exception
+    {
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort)))
+        {
+            String firstResponse = TestUtils.sendGet (clientChannel, "/ValidatedApp/plain", "");
+            String entityTag = getHeader (firstResponse, "ETag");
+            Assert.assertTrue (firstResponse, entityTag.matches ("\"[0-9a-f]{16}\""));
+            // The same body always gets the same tag, a different one another
+            Assert.assertEquals (entityTag, getHeader (TestUtils.sendGet (clientChannel, "/ValidatedApp/plain", ""), "ETag"));
+            Assert.assertNotEquals (entityTag, getHeader (TestUtils.sendGet (clientChannel, "/ValidatedApp/other", ""), "ETag"));
+
+            long notModified = theServer.getMetrics ().get ("responses.notModified");
+            String notModifiedResponse = TestUtils.sendGet (clientChannel, "/ValidatedApp/plain", "If-None-Match: \"0000000000000000\", W/" + entityTag + "\r\n");
+            Assert.assertTrue (notModifiedResponse, notModifiedResponse.startsWith ("HTTP/1.1 304 Not Modified\r\n"));
+            Assert.assertTrue (notModifiedResponse, notModifiedResponse.endsWith ("\r\n\r\n"));
+            Assert.assertEquals (entityTag, getHeader (notModifiedResponse, "ETag"));
+            Assert.assertNull (getHeader (notModifiedResponse, "Content-Type"));
+
+            // The connection is still usable after a bodiless response
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/ValidatedApp/plain", "If-None-Match: \"0000000000000000\"\r\n").startsWith ("HTTP/1.1 200"));
+            Assert.assertEquals (notModified + 1, theServer.getMetrics ().get ("responses.notModified"));
+            // If-None-Match decides over If-Modified-Since
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/ValidatedApp/plain", "If-None-Match: \"0000000000000000\"\r\nIf-Modified-Since: "
+                + ValidatedApp.LAST_MODIFIED + "\r\n").startsWith ("HTTP/1.1 200"));
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/ValidatedApp/plain", "If-Modified-Since: " + ValidatedApp.LAST_MODIFIED + "\r\n")
+                .startsWith ("HTTP/1.1 304"));
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/ValidatedApp/plain", "If-Modified-Since: Tue, 15 Nov 1994 12:45:25 GMT\r\n")
+                .startsWith ("HTTP/1.1 200"));
+
+            // An app's own tag is kept
+            String taggedResponse = TestUtils.sendGet (clientChannel, "/ValidatedApp/tagged", "If-None-Match: \"v1\"\r\n");
+            Assert.assertTrue (taggedResponse, taggedResponse.startsWith ("HTTP/1.1 304"));
+            Assert.assertEquals ("W/\"v1\"", getHeader (taggedResponse, "ETag"));
+        }
+    }
+
+    @Test
+    public void testCachedResponseAnswersConditionalRequests() throws Exception
+    {
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort)))
+        {
+            String firstResponse = TestUtils.sendGet (clientChannel, "/ValidatedApp/cached", "");
+            String entityTag = getHeader (firstResponse, "ETag");
+            int serviceCount = ValidatedApp.serviceCount.get ();
+            long cacheHits = theServer.getMetrics ().get ("responseCache.hits");
+
+            String notModifiedResponse = TestUtils.sendGet (clientChannel, "/ValidatedApp/cached", "If-None-Match: " + entityTag + "\r\n");
+            Assert.assertTrue (notModifiedResponse, notModifiedResponse.startsWith ("HTTP/1.1 304 Not Modified\r\n"));
+            Assert.assertEquals ("public, max-age=60", getHeader (notModifiedResponse, "Cache-Control"));
+            Assert.assertEquals (ValidatedApp.LAST_MODIFIED, getHeader (notModifiedResponse, "Last-Modified"));
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/ValidatedApp/cached", "If-None-Match: \"stale\"\r\n").contains ("ValidatedApp 1.0 served /ValidatedApp/cached"));
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/ValidatedApp/cached", "If-Modified-Since: " + ValidatedApp.LAST_MODIFIED + "\r\n")
+                .startsWith ("HTTP/1.1 304"));
+
+            // All answered from the cache, without calling the app
+            Assert.assertEquals (serviceCount, ValidatedApp.serviceCount.get ());
+            Assert.assertEquals (cacheHits + 3, theServer.getMetrics ().get ("responseCache.hits"));
+        }
+    }
+
+    @Test
+    public void testPersonalResponsesAreNotCached() throws Exception
+    {
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort)))
+        {
+            // Responses that set a cookie or vary by request header are not kept
+            String[] uncachedLocations = { "/ValidatedApp/cached-cookie", "/ValidatedApp/cached-vary" };
+            for (String uncachedLocation : uncachedLocations)
+            {
+                TestUtils.sendGet (clientChannel, uncachedLocation, "");
+                int serviceCount = ValidatedApp.serviceCount.get ();
+                TestUtils.sendGet (clientChannel, uncachedLocation, "");
+                Assert.assertEquals (serviceCount + 1, ValidatedApp.serviceCount.get ());
+            }
+
+            // Nor is one to a request with credentials
+            TestUtils.sendGet (clientChannel, "/ValidatedApp/cached-credentials", "Cookie: session=1\r\n");
+            int serviceCount = ValidatedApp.serviceCount.get ();
+            TestUtils.sendGet (clientChannel, "/ValidatedApp/cached-credentials", "");
+            Assert.assertEquals (serviceCount + 1, ValidatedApp.serviceCount.get ());
+
+            // And a request with credentials is not answered from the cache
+            TestUtils.sendGet (clientChannel, "/ValidatedApp/cached-credentials", "Authorization: Bearer token\r\n");
+            Assert.assertEquals (serviceCount + 2, ValidatedApp.serviceCount.get ());
+            TestUtils.sendGet (clientChannel, "/ValidatedApp/cached-credentials", "");
+            Assert.assertEquals (serviceCount + 2, ValidatedApp.serviceCount.get ());
+        }
+    }
+
+    private static String getHeader (String respString, String headerName)
+    {
+        for (String headerLine : respString.substring (0, respString.indexOf ("\r\n\r\n")).split ("\r\n"))
+        {
+            if (headerLine.startsWith (headerName + ": "))
+                return headerLine.substring (headerName.length () + 2);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,52 @@
+package nio;
+
+import nio.api.HttpRequest;
+import nio.api.HttpResponse;
+import nio.api.NioWebApp;
+import nio.client.ClientResponse;
+import nio.client.NioHttpClient;
+import nio.util.EventLoop;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Calls two backends at once through a client on the server's own event loop
+public class FanOutApp implements NioWebApp
+{
+    private static final String APP_NAME = "FanOutApp 1.0";
+    static volatile String backendUrl = "http://localhost:8089";
+    private final Map <EventLoop, NioHttpClient> httpClients = new ConcurrentHashMap <> ();
+
+    public void service (HttpRequest httpRequest, HttpResponse httpResponse) throws IOException
+    {
+        NioHttpClient httpClient = httpClients.computeIfAbsent (NioWebServer.currentEventLoop (), NioHttpClient::new);
+        CompletableFuture <ClientResponse> firstResponse = httpClient.get (backendUrl + "/SimpleApp1");
+        CompletableFuture <ClientResponse> secondResponse = httpClient.get (backendUrl + "/SimpleApp2");
+        try
+        {
+            // A pooled worker may wait; the loop does the I/O
+            httpResponse.append (APP_NAME).append (" got [").append (firstResponse.get (5, TimeUnit.SECONDS).getBodyAsString ())
+                .append ("] and [").append (secondResponse.get (5, TimeUnit.SECONDS).getBodyAsString ()).append ("]");
+        }
+        catch (Exception e)
+        {
+            throw new IOException (e);
+        }
+        httpResponse.commitWriter (true);
+    }
+
+    public void start () throws IOException
+    {
+        System.out.println ("Starting " + APP_NAME);
+    }
+
+    public void stop () throws IOException
+    {
+        for (NioHttpClient httpClient : httpClients.values ())
+            httpClient.close ();
+        System.out.println ("Stopping " + APP_NAME);
+    }
+}
@@ -0,0 +1,173 @@
+package nio;
+
+import nio.api.HttpResponse;
+import nio.util.FixedResponses;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FixedResponseTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8106;
+    private static int pooledListenPort = 8107;
+    private static NioWebServer theServer;
+    private static NioPooledWebServer pooledServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        theServer.setKeepAlive (true);
+        addRobots (theServer.getFixedResponses ());
+        startServer (theServer, listenPort);
+
+        pooledServer = new NioPooledWebServer ();
+        pooledServer.setKeepAlive (true);
+        addRobots (pooledServer.getFixedResponses ());
+        startServer (pooledServer, pooledListenPort);
+        Thread.sleep (200);
+    }
+
+    private static void addRobots (FixedResponses fixedResponses) throws IOException
+    {
+        HttpResponse robotsResponse = new HttpResponse (null);
+        robotsResponse.addHeader ("Content-Type", "text/plain");
+        robotsResponse.append ("User-agent: *\r\nDisallow: /private\r\n");
+        fixedResponses.put ("GET", "/robots.txt", robotsResponse);
+    }
+
+    private static void startServer (final NioWebServer nioServer, final int serverPort)
+    {
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    nioServer.startServer (listenHost, serverPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+        pooledServer.stopAllApps ();
+    }
+
+    @Test
+    public void testFixedResponse() throws Exception
+    {
+        long fixedCount = theServer.getMetrics ().get ("responses.fixed");
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort)))
+        {
+            String robotsResponse = TestUtils.sendRequest (clientChannel, "GET /robots.txt HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Assert.assertTrue (robotsResponse, robotsResponse.startsWith ("HTTP/1.1 200 OK\r\n"));
+            Assert.assertTrue (robotsResponse, robotsResponse.matches ("(?s).*\r\nDate: \\w{3}, \\d\\d \\w{3} \\d{4} \\d\\d:\\d\\d:\\d\\d GMT\r\n.*"));
+            Assert.assertTrue (robotsResponse, robotsResponse.contains ("Connection: keep-alive\r\n"));
+            Assert.assertTrue (robotsResponse, robotsResponse.endsWith ("\r\n\r\nUser-agent: *\r\nDisallow: /private\r\n"));
+
+            // The date moves on in the same encoded bytes
+            Thread.sleep (1100);
+            String laterResponse = TestUtils.sendRequest (clientChannel, "GET /robots.txt HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Assert.assertEquals (robotsResponse.length (), laterResponse.length ());
+            Assert.assertNotEquals (robotsResponse, laterResponse);
+
+            // Other methods, and requests with a body, go to the apps as usual
+            String postResponse = TestUtils.sendRequest (clientChannel, "POST /robots.txt HTTP/1.1\r\nHost: localhost\r\nContent-Length: 3\r\n\r\na=b");
+            Assert.assertTrue (postResponse, postResponse.contains ("got POST request for location /robots.txt"));
+            // So does the same path with a query
+            Assert.assertTrue (TestUtils.sendRequest (clientChannel, "GET /robots.txt?x HTTP/1.1\r\nHost: localhost\r\n\r\n").contains ("request for location /robots.txt?x"));
+        }
+        Assert.assertEquals (fixedCount + 2, theServer.getMetrics ().get ("responses.fixed"));
+    }
+
+    @Test
+    public void testReadinessAndClose() throws Exception
+    {
+        long fixedCount = theServer.getMetrics ().get ("responses.fixed");
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort)))
+        {
+            String readyResponse = TestUtils.sendRequest (clientChannel, "GET /ready HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            Assert.assertTrue (readyResponse, readyResponse.startsWith ("HTTP/1.1 200 OK\r\n"));
+            Assert.assertTrue (readyResponse, readyResponse.contains ("Connection: close\r\n"));
+            Assert.assertTrue (readyResponse, readyResponse.endsWith ("READY"));
+            Assert.assertEquals (-1, clientChannel.read (ByteBuffer.allocate (16)));
+        }
+        Assert.assertEquals (fixedCount + 1, theServer.getMetrics ().get ("responses.fixed"));
+    }
+
+    @Test
+    public void testPooledServerAnswersOnSelectorThread() throws Exception
+    {
+        long requestCount = pooledServer.getMetrics ().get ("requests");
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, pooledListenPort)))
+        {
+            Assert.assertTrue (TestUtils.sendRequest (clientChannel, "GET /robots.txt HTTP/1.1\r\nHost: localhost\r\n\r\n").endsWith ("Disallow: /private\r\n"));
+            Assert.assertEquals (requestCount + 1, pooledServer.getMetrics ().get ("requests"));
+
+            // A fixed response pipelined ahead of an app request is written first, and a worker gets the rest
+            String pipelinedRequests = "GET /robots.txt HTTP/1.1\r\nHost: localhost\r\n\r\nGET /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            TestUtils.writeRequest (clientChannel, pipelinedRequests);
+            Assert.assertTrue (TestUtils.readResponse (clientChannel).endsWith ("Disallow: /private\r\n"));
+            Assert.assertTrue (TestUtils.readResponse (clientChannel).contains ("SimpleApp 1.0 got GET request for location /SimpleApp1"));
+        }
+        Assert.assertEquals (2, pooledServer.getMetrics ().get ("responses.fixed"));
+    }
+
+    @Test
+    public void testWrittenBytesKeepTheirDate() throws Exception
+    {
+        // A channel that keeps what it is given without copying it, the way parked output may
+        final List <ByteBuffer> keptBuffers = new ArrayList <> ();
+        WritableByteChannel keepingChannel = new WritableByteChannel ()
+        {
+            public int write (ByteBuffer srcBuffer)
+            {
+                keptBuffers.add (srcBuffer.duplicate ());
+                int writeLength = srcBuffer.remaining ();
+                srcBuffer.position (srcBuffer.limit ());
+                return writeLength;
+            }
+
+            public boolean isOpen ()
+            {
+                return true;
+            }
+
+            public void close ()
+            {
+            }
+        };
+        FixedResponses fixedResponses = new FixedResponses ();
+        HttpResponse robotsResponse = new HttpResponse (null);
+        robotsResponse.append ("User-agent: *\r\n");
+        FixedResponses.Entry robotsEntry = fixedResponses.encode ("GET", "/robots.txt", robotsResponse);
+
+        fixedResponses.write (robotsEntry, keepingChannel, true);
+        String firstResponse = StandardCharsets.ISO_8859_1.decode (keptBuffers.get (0).duplicate ()).toString ();
+        // The next write is in a new second, so it has a new date
+        Thread.sleep (1000 - System.currentTimeMillis () % 1000 + 50);
+        fixedResponses.write (robotsEntry, keepingChannel, true);
+        String secondResponse = StandardCharsets.ISO_8859_1.decode (keptBuffers.get (1).duplicate ()).toString ();
+        Assert.assertNotEquals (firstResponse, secondResponse);
+        Assert.assertEquals (firstResponse, StandardCharsets.ISO_8859_1.decode (keptBuffers.get (0)).toString ());
+    }
+}
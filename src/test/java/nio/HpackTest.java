@@ -0,0 +1,147 @@
+package nio;
+
+import nio.http2.Http2Exception;
+import nio.http2.HpackDecoder;
+import nio.http2.HpackEncoder;
+import nio.util.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class HpackTest
+{
+    // RFC 7541 Appendix C.4, requests with Huffman coding, decoded in sequence by one decoder
+    @Test
+    public void testRfcRequestExamples() throws Exception
+    {
+        HpackDecoder hpackDecoder = new HpackDecoder (4096, 65536);
+        assertHeaders (hpackDecoder.decode (hex ("828684418cf1e3c2e5f23a6ba0ab90f4ff"), 0, 17),
+            ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        Assert.assertEquals (57, hpackDecoder.getTableSize ());
+
+        assertHeaders (hpackDecoder.decode (hex ("828684be5886a8eb10649cbf"), 0, 12),
+            ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+        Assert.assertEquals (110, hpackDecoder.getTableSize ());
+
+        byte[] thirdRequest = hex ("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf");
+        assertHeaders (hpackDecoder.decode (thirdRequest, 0, thirdRequest.length),
+            ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+        Assert.assertEquals (164, hpackDecoder.getTableSize ());
+    }
+
+    // RFC 7541 Appendix C.6.1, a response with Huffman coding and a 256 byte table
+    @Test
+    public void testRfcResponseExample() throws Exception
+    {
+        HpackDecoder hpackDecoder = new HpackDecoder (256, 65536);
+        byte[] firstResponse = hex ("488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3");
+        assertHeaders (hpackDecoder.decode (firstResponse, 0, firstResponse.length),
+            ":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+        Assert.assertEquals (222, hpackDecoder.getTableSize ());
+    }
+
+    @Test
+    public void testEncoderRoundTrip() throws Exception
+    {
+        HpackEncoder hpackEncoder = new HpackEncoder (4096);
+        HpackDecoder hpackDecoder = new HpackDecoder (4096, 65536);
+        List <Pair <String, String>> headerList = headers (":status", "200", "content-type", "text/html", "server", "Java NIO Webserver 1.0",
+            "content-length", "123", "set-cookie", "id=42", "x-binary", "caf\u00e9\u00ff\u0001");
+
+        byte[] firstBlock = encode (hpackEncoder, headerList);
+        assertHeaders (hpackDecoder.decode (firstBlock, 0, firstBlock.length), flatten (headerList));
+        // The second time round the indexed fields are a single byte each
+        byte[] secondBlock = encode (hpackEncoder, headerList);
+        assertHeaders (hpackDecoder.decode (secondBlock, 0, secondBlock.length), flatten (headerList));
+        Assert.assertTrue (secondBlock.length < firstBlock.length / 2);
+        Assert.assertEquals (hpackEncoder.getTableSize (), hpackDecoder.getTableSize ());
+
+        // A smaller table from the peer is announced with a size update at the start of the next block
+        hpackEncoder.setMaxTableSize (64);
+        byte[] thirdBlock = encode (hpackEncoder, headerList);
+        Assert.assertEquals (0x3f, thirdBlock[0] & 0xff);
+        assertHeaders (hpackDecoder.decode (thirdBlock, 0, thirdBlock.length), flatten (headerList));
+        Assert.assertTrue (hpackDecoder.getTableSize () <= 64);
+    }
+
+    @Test
+    public void testHuffmanAllOctets() throws Exception
+    {
+        StringBuilder allOctets = new StringBuilder ();
+        for (char octet = 0; octet < 256; octet++)
+            allOctets.append (octet);
+        // Long runs of common characters are shorter Huffman coded, so the encoder picks that coding
+        String commonText = "the quick brown fox jumps over the lazy dog 0123456789";
+        HpackEncoder hpackEncoder = new HpackEncoder (0);
+        HpackDecoder hpackDecoder = new HpackDecoder (0, 65536);
+        List <Pair <String, String>> headerList = headers ("x-all", allOctets.toString (), "x-text", commonText);
+        byte[] headerBlock = encode (hpackEncoder, headerList);
+        assertHeaders (hpackDecoder.decode (headerBlock, 0, headerBlock.length), flatten (headerList));
+    }
+
+    @Test
+    public void testMalformedBlocks() throws Exception
+    {
+        assertCompressionError (hex ("80"));            // index 0
+        assertCompressionError (hex ("be"));            // dynamic index with an empty table
+        assertCompressionError (hex ("3fe21f"));        // table size update above the settings limit
+        assertCompressionError (hex ("0085f2b24a87ff"));  // Huffman string with bad padding
+        assertCompressionError (hex ("0005616263"));    // truncated string
+    }
+
+    private static void assertCompressionError (byte[] headerBlock)
+    {
+        try
+        {
+            new HpackDecoder (4096, 65536).decode (headerBlock, 0, headerBlock.length);
+            Assert.fail ("Expected a compression error");
+        }
+        catch (Http2Exception e)
+        {
+            Assert.assertEquals (Http2Exception.COMPRESSION_ERROR, e.getErrorCode ());
+        }
+    }
+
+    private static byte[] encode (HpackEncoder hpackEncoder, List <Pair <String, String>> headerList)
+    {
+        ByteArrayOutputStream blockStream = new ByteArrayOutputStream ();
+        hpackEncoder.encode (headerList, blockStream);
+        return blockStream.toByteArray ();
+    }
+
+    private static void assertHeaders (List <Pair <String, String>> headerList, String... expectedFields)
+    {
+        Assert.assertEquals (Arrays.asList (expectedFields), Arrays.asList (flatten (headerList)));
+    }
+
+    private static List <Pair <String, String>> headers (String... fields)
+    {
+        List <Pair <String, String>> headerList = new ArrayList <> ();
+        for (int i = 0; i < fields.length; i += 2)
+            headerList.add (Pair.of (fields[i], fields[i + 1]));
+        return headerList;
+    }
+
+    private static String[] flatten (List <Pair <String, String>> headerList)
+    {
+        String[] fields = new String[headerList.size () * 2];
+        for (int i = 0; i < headerList.size (); i++)
+        {
+            fields[2 * i] = headerList.get (i).getFirstItem ();
+            fields[2 * i + 1] = headerList.get (i).getSecondItem ();
+        }
+        return fields;
+    }
+
+    static byte[] hex (String hexString)
+    {
+        byte[] hexBytes = new byte[hexString.length () / 2];
+        for (int i = 0; i < hexBytes.length; i++)
+            hexBytes[i] = (byte) Integer.parseInt (hexString.substring (2 * i, 2 * i + 2), 16);
+        return hexBytes;
+    }
+}
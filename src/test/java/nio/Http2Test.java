@@ -0,0 +1,417 @@
+package nio;
+
+import nio.http2.HpackDecoder;
+import nio.http2.HpackEncoder;
+import nio.http2.Http2Exception;
+import nio.tls.TlsConfig;
+import nio.util.Pair;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Http2Test
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8085;
+    private static int tlsListenPort = 8086;
+    private static final int MAX_REQUEST_BYTES = 64 * 1024;
+    private static final byte[] CLIENT_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes (StandardCharsets.ISO_8859_1);
+    private static NioWebServer theServer;
+    private static NioWebServer tlsServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        theServer.setHttp2 (true);
+        theServer.setMaxRequestBytes (MAX_REQUEST_BYTES);
+        startServer (theServer, listenPort);
+
+        TlsConfig tlsConfig = TlsConfig.fromKeyStore (TlsTest.createKeyStore (), TlsTest.KEY_STORE_PASSWORD.toCharArray (), "PKCS12");
+        tlsConfig.setApplicationProtocols ("h2", "http/1.1");
+        tlsServer = new NioWebServer ();
+        tlsServer.setHttp2 (true);
+        tlsServer.setTlsConfig (tlsConfig);
+        startServer (tlsServer, tlsListenPort);
+        Thread.sleep (200);
+    }
+
+    private static void startServer (final NioWebServer nioServer, final int serverPort)
+    {
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    nioServer.startServer (listenHost, serverPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+        tlsServer.stopAllApps ();
+    }
+
+    @Test
+    public void testPriorKnowledgeMultiplexing() throws Exception
+    {
+        long streamsBefore = theServer.getMetrics ().get ("http2.streams");
+        try (Http2Client http2Client = new Http2Client (new Socket (listenHost, listenPort)))
+        {
+            http2Client.sendPreface ();
+            // The server's preface is its SETTINGS frame
+            Assert.assertEquals (0x4, http2Client.readFrame ().frameType);
+
+            // Three requests in flight at once on one connection
+            http2Client.sendHeaders (1, "GET", "/SimpleApp1", true);
+            http2Client.sendHeaders (3, "GET", "/SimpleApp2", true);
+            http2Client.sendHeaders (5, "POST", "/SimpleApp2", false);
+            http2Client.sendData (5, "user=user1&pass=abcd".getBytes (StandardCharsets.ISO_8859_1), true);
+            Map <Integer, Response> responses = http2Client.readResponses (3);
+
+            Assert.assertEquals ("200", responses.get (1).headers.get (":status"));
+            Assert.assertTrue (responses.get (1).body ().contains ("SimpleApp 1.0 got GET request for location /SimpleApp1"));
+            Assert.assertTrue (responses.get (3).body ().contains ("SimpleApp 2.0 got GET request for location /SimpleApp2"));
+            Assert.assertTrue (responses.get (5).body ().contains ("got POST request for location /SimpleApp2 with POST params"));
+            Assert.assertTrue (responses.get (5).body ().contains ("user1"));
+            Assert.assertNull (responses.get (1).headers.get ("connection"));
+            Assert.assertEquals (Integer.toString (responses.get (1).bodyBytes.size ()), responses.get (1).headers.get ("content-length"));
+
+            // The same connection keeps serving, with HPACK state carried over
+            http2Client.sendHeaders (7, "GET", "/SimpleApp1?again", true);
+            Assert.assertTrue (http2Client.readResponses (1).get (7).body ().contains ("location /SimpleApp1?again"));
+        }
+        Assert.assertEquals (4, theServer.getMetrics ().get ("http2.streams") - streamsBefore);
+    }
+
+    @Test
+    public void testOversizeBodyIsRefused() throws Exception
+    {
+        try (Http2Client http2Client = new Http2Client (new Socket (listenHost, listenPort)))
+        {
+            http2Client.sendPreface ();
+            http2Client.sendHeaders (1, "POST", "/SimpleApp2", false);
+            // More than the limit, in frames each well inside the stream window the server keeps handing back
+            byte[] dataBytes = new byte[16000];
+            for (int i = 0; i * dataBytes.length <= MAX_REQUEST_BYTES; i++)
+                http2Client.sendData (1, dataBytes, false);
+            Response response = http2Client.readResponses (1).get (1);
+            Assert.assertEquals ("413", response.headers.get (":status"));
+            Frame resetFrame = http2Client.readFrameOfType (0x3);
+            Assert.assertEquals (1, resetFrame.streamId);
+
+            // The connection carries on, and a body is read as UTF-8
+            http2Client.sendHeaders (3, "POST", "/SimpleApp2", false);
+            http2Client.sendData (3, "user=caf\u00e9".getBytes (StandardCharsets.UTF_8), true);
+            Response postResponse = http2Client.readResponses (1).get (3);
+            Assert.assertTrue (postResponse.body (), postResponse.body ().contains ("user=caf\u00e9"));
+        }
+    }
+
+    @Test
+    public void testH2cUpgrade() throws Exception
+    {
+        try (Http2Client http2Client = new Http2Client (new Socket (listenHost, listenPort)))
+        {
+            // HTTP2-Settings carries SETTINGS_MAX_CONCURRENT_STREAMS = 100
+            http2Client.outputStream.write (("GET /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade, HTTP2-Settings\r\n"
+                + "Upgrade: h2c\r\nHTTP2-Settings: AAMAAABk\r\n\r\n").getBytes (StandardCharsets.ISO_8859_1));
+            String upgradeResponse = http2Client.readHttp1Head ();
+            Assert.assertTrue (upgradeResponse.startsWith ("HTTP/1.1 101"));
+            Assert.assertTrue (upgradeResponse.contains ("Upgrade: h2c"));
+
+            http2Client.sendPreface ();
+            // The upgrade request is answered as stream 1
+            Response upgradeStream = http2Client.readResponses (1).get (1);
+            Assert.assertEquals ("200", upgradeStream.headers.get (":status"));
+            Assert.assertTrue (upgradeStream.body ().contains ("SimpleApp 1.0 got GET request for location /SimpleApp1"));
+
+            http2Client.sendHeaders (3, "GET", "/SimpleApp2", true);
+            Assert.assertTrue (http2Client.readResponses (1).get (3).body ().contains ("SimpleApp 2.0"));
+        }
+    }
+
+    @Test
+    public void testFlowControl() throws Exception
+    {
+        try (Http2Client http2Client = new Http2Client (new Socket (listenHost, listenPort)))
+        {
+            // A 16 byte initial stream window
+            http2Client.sendPreface (0x4, 16);
+            http2Client.sendHeaders (1, "GET", "/SimpleApp1", true);
+
+            // The server sends the headers and one window's worth of data, then stops
+            int dataReceived = 0;
+            while (dataReceived < 16)
+            {
+                Frame dataFrame = http2Client.readFrame ();
+                if (dataFrame.frameType == 0x0)
+                {
+                    Assert.assertEquals (0, dataFrame.frameFlags & 0x1);
+                    dataReceived += dataFrame.payload.length;
+                }
+            }
+            Assert.assertEquals (16, dataReceived);
+            http2Client.socket.setSoTimeout (300);
+            try
+            {
+                Frame extraFrame = http2Client.readFrame ();
+                Assert.fail ("Frame of type " + extraFrame.frameType + " sent beyond the window");
+            }
+            catch (SocketTimeoutException e)
+            {
+                // Stalled on flow control, as it should be
+            }
+
+            // More window lets the rest of the response through
+            http2Client.socket.setSoTimeout (5000);
+            http2Client.sendFrame (0x8, 0, 1, ByteBuffer.allocate (4).putInt (100000).array ());
+            Response response = http2Client.readResponses (1).get (1);
+            Assert.assertTrue (response.body ().endsWith ("</body></html>"));
+        }
+    }
+
+    @Test
+    public void testStreamedResponseIsUnchunked() throws Exception
+    {
+        try (Http2Client http2Client = new Http2Client (new Socket (listenHost, listenPort)))
+        {
+            http2Client.sendPreface ();
+            // Room for the whole document on the stream and the connection
+            http2Client.sendFrame (0x8, 0, 0, ByteBuffer.allocate (4).putInt (1000000).array ());
+            http2Client.sendHeaders (1, "GET", "/JsonApp?3000", true);
+            http2Client.sendFrame (0x8, 0, 1, ByteBuffer.allocate (4).putInt (1000000).array ());
+            Response response = http2Client.readResponses (1).get (1);
+            Assert.assertEquals ("200", response.headers.get (":status"));
+            Assert.assertFalse (response.headers.containsKey ("transfer-encoding"));
+            Assert.assertTrue (response.body ().startsWith ("{\"items\":[{\"id\":0,"));
+            Assert.assertTrue (response.body ().endsWith ("{\"id\":2999,\"label\":\"item \u00e9 2999\"}]}"));
+        }
+    }
+
+    @Test
+    public void testPingAndStreamErrors() throws Exception
+    {
+        try (Http2Client http2Client = new Http2Client (new Socket (listenHost, listenPort)))
+        {
+            http2Client.sendPreface ();
+            byte[] pingPayload = "nio-ping".getBytes (StandardCharsets.ISO_8859_1);
+            http2Client.sendFrame (0x6, 0, 0, pingPayload);
+            Frame pingAck = http2Client.readFrameOfType (0x6);
+            Assert.assertEquals (0x1, pingAck.frameFlags);
+            Assert.assertArrayEquals (pingPayload, pingAck.payload);
+
+            // An upper case header name is malformed: the stream is reset, the connection carries on
+            List <Pair <String, String>> badHeaders = new ArrayList <> ();
+            badHeaders.add (Pair.of (":method", "GET"));
+            badHeaders.add (Pair.of (":path", "/SimpleApp1"));
+            badHeaders.add (Pair.of (":scheme", "http"));
+            badHeaders.add (Pair.of ("X-Upper", "1"));
+            http2Client.sendHeaders (1, badHeaders, true);
+            Frame resetFrame = http2Client.readFrameOfType (0x3);
+            Assert.assertEquals (1, resetFrame.streamId);
+            Assert.assertEquals (Http2Exception.PROTOCOL_ERROR, ByteBuffer.wrap (resetFrame.payload).getInt ());
+
+            http2Client.sendHeaders (3, "GET", "/SimpleApp1", true);
+            Assert.assertTrue (http2Client.readResponses (1).get (3).body ().contains ("SimpleApp 1.0"));
+
+            // A DATA frame on stream 0 is a connection error
+            http2Client.sendFrame (0x0, 0, 0, new byte[1]);
+            Frame goAway = http2Client.readFrameOfType (0x7);
+            Assert.assertEquals (3, ByteBuffer.wrap (goAway.payload).getInt ());
+            Assert.assertEquals (Http2Exception.PROTOCOL_ERROR, ByteBuffer.wrap (goAway.payload).getInt (4));
+        }
+    }
+
+    @Test
+    public void testAlpnH2() throws Exception
+    {
+        SSLContext clientContext = SSLContext.getInstance ("TLS");
+        clientContext.init (null, new TrustManager[] {new TlsTest.TrustAllManager ()}, null);
+        SSLSocket sslSocket = (SSLSocket) clientContext.getSocketFactory ().createSocket (listenHost, tlsListenPort);
+        SSLParameters sslParameters = sslSocket.getSSLParameters ();
+        sslParameters.setApplicationProtocols (new String[] {"h2", "http/1.1"});
+        sslSocket.setSSLParameters (sslParameters);
+        try (Http2Client http2Client = new Http2Client (sslSocket))
+        {
+            sslSocket.startHandshake ();
+            Assert.assertEquals ("h2", sslSocket.getApplicationProtocol ());
+            http2Client.sendPreface ();
+            http2Client.sendHeaders (1, "GET", "/SimpleApp1", true);
+            http2Client.sendHeaders (3, "GET", "/SimpleApp2", true);
+            Map <Integer, Response> responses = http2Client.readResponses (2);
+            Assert.assertTrue (responses.get (1).body ().contains ("SimpleApp 1.0"));
+            Assert.assertTrue (responses.get (3).body ().contains ("SimpleApp 2.0"));
+        }
+        Assert.assertEquals (1, tlsServer.getMetrics ().get ("http2.connections"));
+    }
+
+    private static class Frame
+    {
+        int frameType;
+        int frameFlags;
+        int streamId;
+        byte[] payload;
+    }
+
+    private static class Response
+    {
+        final Map <String, String> headers = new HashMap <> ();
+        final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream ();
+
+        String body ()
+        {
+            return new String (bodyBytes.toByteArray (), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Just enough of an HTTP/2 client to drive the server frame by frame
+     */
+    private static class Http2Client implements AutoCloseable
+    {
+        final Socket socket;
+        final OutputStream outputStream;
+        final DataInputStream inputStream;
+        final HpackEncoder hpackEncoder = new HpackEncoder (4096);
+        final HpackDecoder hpackDecoder = new HpackDecoder (4096, 65536);
+
+        Http2Client (Socket socket) throws IOException
+        {
+            this.socket = socket;
+            socket.setSoTimeout (5000);
+            this.outputStream = socket.getOutputStream ();
+            this.inputStream = new DataInputStream (socket.getInputStream ());
+        }
+
+        void sendPreface (int... settings) throws IOException
+        {
+            ByteBuffer settingsPayload = ByteBuffer.allocate (settings.length * 3);
+            for (int i = 0; i < settings.length; i += 2)
+                settingsPayload.putShort ((short) settings[i]).putInt (settings[i + 1]);
+            outputStream.write (CLIENT_PREFACE);
+            sendFrame (0x4, 0, 0, settingsPayload.array ());
+        }
+
+        void sendHeaders (int streamId, String httpMethod, String reqPath, boolean endStream) throws IOException
+        {
+            List <Pair <String, String>> headerList = new ArrayList <> ();
+            headerList.add (Pair.of (":method", httpMethod));
+            headerList.add (Pair.of (":path", reqPath));
+            headerList.add (Pair.of (":scheme", "http"));
+            headerList.add (Pair.of (":authority", "localhost"));
+            headerList.add (Pair.of ("user-agent", "Http2Test"));
+            sendHeaders (streamId, headerList, endStream);
+        }
+
+        void sendHeaders (int streamId, List <Pair <String, String>> headerList, boolean endStream) throws IOException
+        {
+            ByteArrayOutputStream headerBlock = new ByteArrayOutputStream ();
+            hpackEncoder.encode (headerList, headerBlock);
+            sendFrame (0x1, 0x4 | (endStream ? 0x1 : 0), streamId, headerBlock.toByteArray ());
+        }
+
+        void sendData (int streamId, byte[] dataBytes, boolean endStream) throws IOException
+        {
+            sendFrame (0x0, endStream ? 0x1 : 0, streamId, dataBytes);
+        }
+
+        void sendFrame (int frameType, int frameFlags, int streamId, byte[] payload) throws IOException
+        {
+            ByteBuffer frameBuffer = ByteBuffer.allocate (9 + payload.length);
+            frameBuffer.put ((byte) (payload.length >>> 16)).put ((byte) (payload.length >>> 8)).put ((byte) payload.length);
+            frameBuffer.put ((byte) frameType).put ((byte) frameFlags).putInt (streamId).put (payload);
+            outputStream.write (frameBuffer.array ());
+            outputStream.flush ();
+        }
+
+        Frame readFrame () throws IOException
+        {
+            byte[] frameHeader = new byte[9];
+            inputStream.readFully (frameHeader);
+            Frame frame = new Frame ();
+            frame.frameType = frameHeader[3] & 0xff;
+            frame.frameFlags = frameHeader[4] & 0xff;
+            frame.streamId = ByteBuffer.wrap (frameHeader, 5, 4).getInt () & 0x7fffffff;
+            frame.payload = new byte[((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff)];
+            inputStream.readFully (frame.payload);
+            // Acknowledge the server's settings as any client must
+            if (frame.frameType == 0x4 && (frame.frameFlags & 0x1) == 0)
+                sendFrame (0x4, 0x1, 0, new byte[0]);
+            return frame;
+        }
+
+        Frame readFrameOfType (int frameType) throws IOException
+        {
+            Frame frame;
+            do
+                frame = readFrame ();
+            while (frame.frameType != frameType);
+            return frame;
+        }
+
+        // Read frames until this many streams have ended
+        Map <Integer, Response> readResponses (int streamCount) throws IOException
+        {
+            Map <Integer, Response> responses = new HashMap <> ();
+            int streamsEnded = 0;
+            while (streamsEnded < streamCount)
+            {
+                Frame frame = readFrame ();
+                if (frame.frameType != 0x0 && frame.frameType != 0x1)
+                    continue;
+                Response response = responses.computeIfAbsent (frame.streamId, streamId -> new Response ());
+                if (frame.frameType == 0x1)
+                {
+                    for (Pair <String, String> headerField : hpackDecoder.decode (frame.payload, 0, frame.payload.length))
+                        response.headers.put (headerField.getFirstItem (), headerField.getSecondItem ());
+                }
+                else
+                    response.bodyBytes.write (frame.payload, 0, frame.payload.length);
+                if ((frame.frameFlags & 0x1) != 0)
+                    streamsEnded++;
+            }
+            return responses;
+        }
+
+        String readHttp1Head () throws IOException
+        {
+            StringBuilder headText = new StringBuilder ();
+            while (!headText.toString ().endsWith ("\r\n\r\n"))
+                headText.append ((char) inputStream.readUnsignedByte ());
+            return headText.toString ();
+        }
+
+        public void close () throws IOException
+        {
+            socket.close ();
+        }
+    }
+}
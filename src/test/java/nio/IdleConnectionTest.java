@@ -0,0 +1,121 @@
+package nio;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class IdleConnectionTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8083;
+    private static final int IDLE_CONNECTIONS = 400;
+    // A socket channel, its selection key and the attachment, with room to spare. A read buffer held per
+    // connection would be many times this.
+    private static final long MAX_RETAINED_BYTES = 2048;
+    private static final long IDLE_TIMEOUT = 2000;
+    private static NioWebServer theServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        theServer.setKeepAlive (true);
+        theServer.setIdleTimeoutMillis (IDLE_TIMEOUT);
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        Thread.sleep (200);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+    }
+
+    @Test
+    public void testIdleConnectionFootprint() throws Exception
+    {
+        List <SocketChannel> clientChannels = new ArrayList <> ();
+        try
+        {
+            // Use each connection once, then leave it idle
+            for (int i = 0; i < IDLE_CONNECTIONS; i++)
+            {
+                SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort));
+                clientChannels.add (clientChannel);
+                Assert.assertTrue (TestUtils.sendGet (clientChannel, "/SimpleApp1", "").contains ("SimpleApp 1.0 got GET request for location /SimpleApp1"));
+            }
+
+            // Keep-alive connections are served again on the same socket
+            Assert.assertTrue (TestUtils.sendGet (clientChannels.get (0), "/SimpleApp1?again", "").contains ("location /SimpleApp1?again"));
+
+            Assert.assertEquals (IDLE_CONNECTIONS, theServer.getMetrics ().get ("connections.open"));
+            // No read buffer is held by an idle connection, only its attachment
+            Assert.assertEquals (0, theServer.bufferPool.getOutstanding ());
+            long idleHeapBytes = getUsedHeapAfterGc ();
+
+            // Idle connections are closed by the sweep once the timeout has passed
+            long waitUntil = System.currentTimeMillis () + 3 * IDLE_TIMEOUT;
+            while (theServer.getMetrics ().get ("connections.open") > 0 && System.currentTimeMillis () < waitUntil)
+                Thread.sleep (100);
+            Assert.assertEquals (0, theServer.getMetrics ().get ("connections.open"));
+            Assert.assertEquals (-1, clientChannels.get (1).read (ByteBuffer.allocate (16)));
+
+            // The client ends are still held here, so what the heap gives back is what the server kept for each
+            long retainedPerConnection = (idleHeapBytes - getUsedHeapAfterGc ()) / IDLE_CONNECTIONS;
+            Assert.assertTrue ("Retained " + retainedPerConnection + " bytes per idle connection", retainedPerConnection <= MAX_RETAINED_BYTES);
+        }
+        finally
+        {
+            for (SocketChannel clientChannel : clientChannels)
+                clientChannel.close ();
+        }
+    }
+
+    private static long getUsedHeapAfterGc () throws InterruptedException
+    {
+        Runtime javaRuntime = Runtime.getRuntime ();
+        long usedBytes = Long.MAX_VALUE;
+        // A collection may leave some garbage behind, so take the lowest of a few
+        for (int i = 0; i < 4; i++)
+        {
+            System.gc ();
+            Thread.sleep (50);
+            usedBytes = Math.min (usedBytes, javaRuntime.totalMemory () - javaRuntime.freeMemory ());
+        }
+        return usedBytes;
+    }
+
+    @Test
+    public void testPartialRequestIsParked() throws Exception
+    {
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort)))
+        {
+            String postBody = "user=user1&pass=abcd";
+            TestUtils.writeRequest (clientChannel, "POST /SimpleApp2 HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + postBody.length () + "\r\n\r\n");
+            Thread.sleep (100);
+            TestUtils.writeRequest (clientChannel, postBody);
+            Assert.assertTrue (TestUtils.readResponse (clientChannel).contains ("with POST params: {pass=abcd, user=user1}"));
+        }
+    }
+}
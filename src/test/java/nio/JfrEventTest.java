@@ -0,0 +1,120 @@
+package nio;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+public class JfrEventTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8112;
+    private static NioPooledWebServer theServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioPooledWebServer ();
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        Thread.sleep (200);
+        // Load the app before anything is recorded
+        TestUtils.getUrl ("http://" + listenHost + ":" + listenPort + "/SlowApp?0", null);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+    }
+
+    @Test
+    public void testOnlySlowRequestsAreRecorded() throws Exception
+    {
+        List <RecordedEvent> requestEvents = new ArrayList <> ();
+        List <RecordedEvent> connectionEvents = new ArrayList <> ();
+        File recordingFile = File.createTempFile ("nio", ".jfr");
+        try (Recording recording = new Recording ())
+        {
+            // The request event keeps its own threshold
+            recording.enable ("nio.Request");
+            recording.enable ("nio.Accept").withThreshold (Duration.ZERO);
+            recording.enable ("nio.WorkerQueue").withThreshold (Duration.ZERO);
+            recording.start ();
+            Assert.assertEquals (200, TestUtils.getUrl ("http://" + listenHost + ":" + listenPort + "/SlowApp?0", null).responseCode);
+            Assert.assertEquals (200, TestUtils.getUrl ("http://" + listenHost + ":" + listenPort + "/SlowApp?100", null).responseCode);
+
+            // The event is committed after the response has been written, so it may not be in the recording yet
+            long waitUntil = System.currentTimeMillis () + 5000;
+            do
+            {
+                requestEvents.clear ();
+                connectionEvents.clear ();
+                recording.dump (recordingFile.toPath ());
+                for (RecordedEvent recordedEvent : RecordingFile.readAllEvents (recordingFile.toPath ()))
+                {
+                    String eventName = recordedEvent.getEventType ().getName ();
+                    if (eventName.equals ("nio.Request"))
+                        requestEvents.add (recordedEvent);
+                    else if (eventName.equals ("nio.Accept") || eventName.equals ("nio.WorkerQueue"))
+                        connectionEvents.add (recordedEvent);
+                }
+                if (!requestEvents.isEmpty ())
+                    break;
+                Thread.sleep (20);
+            }
+            while (System.currentTimeMillis () < waitUntil);
+        }
+        finally
+        {
+            recordingFile.delete ();
+        }
+
+        Assert.assertEquals (1, requestEvents.size ());
+        RecordedEvent requestEvent = requestEvents.get (0);
+        Assert.assertEquals ("/SlowApp?100", requestEvent.getString ("reqLocation"));
+        Assert.assertEquals ("SlowApp", requestEvent.getString ("appName"));
+        Assert.assertEquals ("GET", requestEvent.getString ("httpMethod"));
+        Assert.assertEquals (200, requestEvent.getInt ("statusCode"));
+        Assert.assertTrue (requestEvent.getLong ("bytesSent") > 0);
+        Assert.assertTrue (requestEvent.getDuration ("appTime").toMillis () >= 100);
+        Assert.assertTrue (requestEvent.getDuration ("appTime").compareTo (requestEvent.getDuration ()) <= 0);
+
+        // The connection's accept and queue wait carry the same ID as its request
+        int connectionId = requestEvent.getInt ("connectionId");
+        boolean acceptFound = false;
+        boolean queueFound = false;
+        for (RecordedEvent connectionEvent : connectionEvents)
+        {
+            if (connectionEvent.getInt ("connectionId") != connectionId)
+                continue;
+            if (connectionEvent.getEventType ().getName ().equals ("nio.Accept"))
+                acceptFound = true;
+            else
+                queueFound = true;
+        }
+        Assert.assertTrue (acceptFound);
+        Assert.assertTrue (queueFound);
+    }
+}
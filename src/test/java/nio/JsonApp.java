@@ -0,0 +1,40 @@
+package nio;
+
+import nio.api.HttpRequest;
+import nio.api.HttpResponse;
+import nio.api.JsonWriter;
+import nio.api.NioWebApp;
+import nio.api.WebApp;
+
+import java.io.IOException;
+
+// Answers /JsonApp?N with a list of N items, written with a JsonWriter
+@WebApp ("/JsonApp")
+public class JsonApp implements NioWebApp
+{
+    private static final JsonWriter.Name ID = JsonWriter.encodeName ("id");
+    private static final JsonWriter.Name LABEL = JsonWriter.encodeName ("label");
+    private static final JsonWriter.Name ITEMS = JsonWriter.encodeName ("items");
+
+    public void service (HttpRequest httpRequest, HttpResponse httpResponse) throws IOException
+    {
+        String reqLocation = httpRequest.getReqLocation ();
+        int queryPos = reqLocation.indexOf ('?');
+        int itemCount = queryPos < 0 ? 1 : Integer.parseInt (reqLocation.substring (queryPos + 1));
+        try (JsonWriter jsonWriter = new JsonWriter (httpResponse))
+        {
+            jsonWriter.beginObject ().name (ITEMS).beginArray ();
+            for (int i = 0; i < itemCount; i++)
+                jsonWriter.beginObject ().name (ID).value (i).name (LABEL).value ("item \u00e9 " + i).endObject ();
+            jsonWriter.endArray ().endObject ();
+        }
+    }
+
+    public void start () throws IOException
+    {
+    }
+
+    public void stop () throws IOException
+    {
+    }
+}
@@ -0,0 +1,153 @@
+package nio;
+
+import nio.api.HttpResponse;
+import nio.api.JsonWriter;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+public class JsonWriterTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8108;
+    private static NioWebServer theServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        Thread.sleep (200);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+    }
+
+    @Test
+    public void testTokensAndEscapes() throws Exception
+    {
+        ByteArrayOutputStream outBytes = new ByteArrayOutputStream ();
+        HttpResponse httpResponse = new HttpResponse (Channels.newChannel (outBytes));
+        try (JsonWriter jsonWriter = new JsonWriter (httpResponse))
+        {
+            jsonWriter.beginObject ()
+                .name (JsonWriter.encodeName ("say \"hi\"")).value ("tab\there\n\u0001 caf\u00e9 \u20ac \ud83d\ude00")
+                .name ("numbers").beginArray ().value (0).value (-42).value (Long.MIN_VALUE).value (Long.MAX_VALUE).value (2.5).value (3.0).endArray ()
+                .name ("flags").beginArray ().value (true).value (false).nullValue ().value ((String) null).endArray ()
+                .name ("empty").beginObject ().endObject ()
+                .endObject ();
+        }
+        String expectedBody = "{\"say \\u0022hi\\u0022\":\"tab\\there\\n\\u0001 caf\u00e9 \u20ac \ud83d\ude00\","
+            + "\"numbers\":[0,-42,-9223372036854775808,9223372036854775807,2.5,3],\"flags\":[true,false,null,null],\"empty\":{}}";
+        byte[] expectedBytes = expectedBody.getBytes (StandardCharsets.UTF_8);
+        String rawResponse = new String (outBytes.toByteArray (), StandardCharsets.UTF_8);
+        Assert.assertTrue (rawResponse, rawResponse.contains ("Content-Type: application/json\r\n"));
+        Assert.assertTrue (rawResponse, rawResponse.contains ("Content-Length: " + expectedBytes.length + "\r\n"));
+        Assert.assertTrue (rawResponse, rawResponse.endsWith ("\r\n\r\n" + expectedBody));
+    }
+
+    @Test
+    public void testLargeDocumentIsStreamed() throws Exception
+    {
+        ByteArrayOutputStream outBytes = new ByteArrayOutputStream ();
+        HttpResponse httpResponse = new HttpResponse (Channels.newChannel (outBytes));
+        httpResponse.setKeepAlive (true);
+        StringBuilder expectedBody = new StringBuilder ("[");
+        try (JsonWriter jsonWriter = new JsonWriter (httpResponse))
+        {
+            jsonWriter.setStreamThreshold (16 * 1024);
+            jsonWriter.beginArray ();
+            for (int i = 0; i < 5000; i++)
+            {
+                jsonWriter.value ("value" + i);
+                expectedBody.append (i == 0 ? "" : ",").append ("\"value").append (i).append ('"');
+            }
+            jsonWriter.endArray ();
+        }
+        expectedBody.append (']');
+
+        String rawResponse = new String (outBytes.toByteArray (), StandardCharsets.ISO_8859_1);
+        int headerEnd = rawResponse.indexOf ("\r\n\r\n") + 4;
+        Assert.assertTrue (rawResponse.substring (0, headerEnd), rawResponse.substring (0, headerEnd).contains ("Transfer-Encoding: chunked\r\n"));
+        Assert.assertFalse (rawResponse.substring (0, headerEnd).contains ("Content-Length"));
+        // Chunks frame the body, so the connection may stay open
+        Assert.assertTrue (httpResponse.isKeepAlive ());
+        Assert.assertEquals (expectedBody.toString (), joinChunks (rawResponse.substring (headerEnd)));
+        Assert.assertEquals (outBytes.size (), httpResponse.getCommittedLength ());
+    }
+
+    @Test
+    public void testServedByApp() throws Exception
+    {
+        TestUtils.HttpResponse smallResp = TestUtils.getUrl ("http://localhost:8108/JsonApp?2", null);
+        Assert.assertEquals (200, smallResp.responseCode);
+        Assert.assertEquals ("application/json", smallResp.contentType);
+        Assert.assertEquals ("{\"items\":[{\"id\":0,\"label\":\"item \u00e9 0\"},{\"id\":1,\"label\":\"item \u00e9 1\"}]}",
+                             new String (smallResp.resultBuffer, StandardCharsets.UTF_8));
+
+        // Large enough to be sent in chunks
+        TestUtils.HttpResponse largeResp = TestUtils.getUrl ("http://localhost:8108/JsonApp?5000", null);
+        Assert.assertEquals (200, largeResp.responseCode);
+        Assert.assertEquals (-1, largeResp.responseLength);
+        String largeBody = new String (largeResp.resultBuffer, StandardCharsets.UTF_8);
+        Assert.assertTrue (largeBody.startsWith ("{\"items\":[{\"id\":0,"));
+        Assert.assertTrue (largeBody.endsWith ("{\"id\":4999,\"label\":\"item \u00e9 4999\"}]}"));
+    }
+
+    @Test
+    public void testHttp10ClientGetsUnframedBody() throws Exception
+    {
+        // An HTTP/1.0 client cannot take chunks, even one asking for keep-alive, so the body ends with the connection
+        String rawResponse = TestUtils.sendRequest (listenHost, listenPort, "GET /JsonApp?5000 HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+        int headerEnd = rawResponse.indexOf ("\r\n\r\n") + 4;
+        String responseHeaders = rawResponse.substring (0, headerEnd);
+        Assert.assertTrue (responseHeaders, responseHeaders.startsWith ("HTTP/1.1 200 OK\r\n"));
+        Assert.assertFalse (responseHeaders, responseHeaders.contains ("Transfer-Encoding"));
+        Assert.assertFalse (responseHeaders, responseHeaders.contains ("Content-Length"));
+        Assert.assertTrue (responseHeaders, responseHeaders.contains ("Connection: close\r\n"));
+        String responseBody = rawResponse.substring (headerEnd);
+        Assert.assertTrue (responseBody.startsWith ("{\"items\":[{\"id\":0,"));
+        Assert.assertTrue (responseBody.endsWith ("4999\"}]}"));
+    }
+
+    private static String joinChunks (String chunkedBody)
+    {
+        StringBuilder joinedBody = new StringBuilder ();
+        int chunkStart = 0;
+        while (true)
+        {
+            int lineEnd = chunkedBody.indexOf ("\r\n", chunkStart);
+            int chunkLength = Integer.parseInt (chunkedBody.substring (chunkStart, lineEnd), 16);
+            if (chunkLength == 0)
+            {
+                Assert.assertEquals (lineEnd + 4, chunkedBody.length ());
+                return joinedBody.toString ();
+            }
+            joinedBody.append (chunkedBody, lineEnd + 2, lineEnd + 2 + chunkLength);
+            Assert.assertEquals ("\r\n", chunkedBody.substring (lineEnd + 2 + chunkLength, lineEnd + 4 + chunkLength));
+            chunkStart = lineEnd + 4 + chunkLength;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package nio;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class NioCoreWebServerTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8082;
+    private static final int CPU_COUNT = 2;
+    private static final int WARMUP_ITERATIONS = 50;
+    private static NioCoreWebServer theServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioCoreWebServer ();
+        theServer.setCpuCount (CPU_COUNT);
+        // Every loop accepts from one shared listening socket
+        ListenerOptions listenerOptions = new ListenerOptions ();
+        listenerOptions.setBacklog (1024);
+        listenerOptions.setTcpNoDelay (true);
+        theServer.setListenerOptions (listenerOptions);
+        theServer.setBusyPollNanos (50000);
+        theServer.setBusyPollLoops (1);
+        theServer.setWarmupIterations (WARMUP_ITERATIONS);
+        theServer.addWarmupRequest ("POST /SimpleApp2 HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\nuser=user1");
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        long waitUntil = System.currentTimeMillis () + 5000;
+        while (!theServer.isReady () && System.currentTimeMillis () < waitUntil)
+            Thread.sleep (10);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+    }
+
+    @Test
+    public void testGetRoot() throws Exception
+    {
+        TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8082/", null);
+        Assert.assertEquals ("<html><head><title>Java NIO Webserver 1.0</title></head><body>Java NIO Webserver 1.0 got GET request for location /</body></html>", getResp.getResponseString());
+    }
+
+    @Test
+    public void testGetSimple1() throws Exception
+    {
+        TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8082/SimpleApp1", null);
+        Assert.assertEquals ("<html><head><title>SimpleApp 1.0</title></head><body>SimpleApp 1.0 got GET request for location /SimpleApp1</body></html>", getResp.getResponseString());
+    }
+
+    @Test
+    public void testPostSimple2() throws Exception
+    {
+        HashMap <String, String> postParams = new HashMap <> ();
+        postParams.put ("user", "user1");
+        postParams.put ("client_secret", "secret");
+        TestUtils.HttpResponse getResp = TestUtils.postUrl ("http://localhost:8082/SimpleApp2", postParams, null);
+        Assert.assertEquals ("<html><head><title>SimpleApp 2.0</title></head><body>SimpleApp 2.0 got POST request for location /SimpleApp2 with POST params: {client_secret=secret, user=user1}</body></html>", getResp.getResponseString());
+    }
+
+    @Test
+    public void testResponseCacheShards() throws Exception
+    {
+        final int requestCount = 10;
+        for (int i = 0; i < requestCount; i++)
+        {
+            TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8082/CachedApp/cached", null);
+            Assert.assertEquals ("CachedApp 1.0 served /CachedApp/cached", getResp.getResponseString());
+        }
+        // Every loop has its own cache shard, so at worst each loop calls the app once
+        Assert.assertTrue (CachedApp.serviceCount.get () <= CPU_COUNT);
+        Assert.assertTrue (theServer.getMetrics ().get ("responseCache.hits") >= requestCount - CPU_COUNT);
+    }
+
+    @Test
+    public void testSharedListener() throws Exception
+    {
+        long acceptCount = theServer.getMetrics ().get ("connections.accepted");
+        final int requestCount = 10;
+        for (int i = 0; i < requestCount; i++)
+        {
+            TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8082/SimpleApp1?shared" + i, null);
+            Assert.assertEquals (200, getResp.responseCode);
+        }
+        Assert.assertTrue (theServer.getMetrics ().get ("connections.accepted") >= acceptCount + requestCount);
+    }
+
+    @Test
+    public void testReusePortListeners() throws Exception
+    {
+        final int reusePort = 8118;
+        final NioCoreWebServer reuseServer = new NioCoreWebServer ();
+        reuseServer.setCpuCount (CPU_COUNT);
+        ListenerOptions listenerOptions = new ListenerOptions ();
+        listenerOptions.setReusePort (true);
+        reuseServer.setListenerOptions (listenerOptions);
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    reuseServer.startServer (listenHost, reusePort, "nio");
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        try
+        {
+            // Each loop binds its own socket to the port, which only SO_REUSEPORT allows, so every loop
+            // being ready means they all bound it
+            long waitUntil = System.currentTimeMillis () + 5000;
+            while (!reuseServer.isReady () && System.currentTimeMillis () < waitUntil)
+                Thread.sleep (10);
+            Assert.assertTrue (reuseServer.isReady ());
+
+            final int requestCount = 10;
+            for (int i = 0; i < requestCount; i++)
+            {
+                TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:" + reusePort + "/SimpleApp1", null);
+                Assert.assertEquals ("<html><head><title>SimpleApp 1.0</title></head><body>SimpleApp 1.0 got GET request for location /SimpleApp1</body></html>", getResp.getResponseString());
+            }
+            Assert.assertEquals (requestCount, reuseServer.getMetrics ().get ("connections.accepted"));
+        }
+        finally
+        {
+            reuseServer.stopAllApps ();
+        }
+    }
+
+    @Test
+    public void testBusyPollMetrics() throws Exception
+    {
+        TestUtils.getUrl ("http://localhost:8082/SimpleApp1", null);
+        Assert.assertTrue (theServer.getMetrics ().get ("busyPoll.nanos") > 0);
+        Assert.assertTrue (theServer.getMetrics ().get ("busyPoll.parks") > 0);
+    }
+
+    @Test
+    public void testBusyPollRunsTasksAndTimers() throws Exception
+    {
+        // A spin far longer than the waits below, so anything left until the spin ends fails the test
+        final NioWebServer spinServer = new NioWebServer ();
+        spinServer.setBusyPollNanos (TimeUnit.SECONDS.toNanos (4));
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    spinServer.startServer (listenHost, 8121, "nio");
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        try
+        {
+            CountDownLatch firstTask = new CountDownLatch (1);
+            spinServer.execute (firstTask::countDown);
+            Assert.assertTrue (firstTask.await (5, TimeUnit.SECONDS));
+
+            // The loop has gone straight back to spinning, which must notice a task or timer that turns up
+            CountDownLatch spinTask = new CountDownLatch (1);
+            CountDownLatch spinTimer = new CountDownLatch (1);
+            spinServer.execute (() -> {
+                spinTask.countDown ();
+                spinServer.schedule (spinTimer::countDown, 50);
+            });
+            Assert.assertTrue (spinTask.await (2, TimeUnit.SECONDS));
+            Assert.assertTrue (spinTimer.await (2, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            spinServer.stopAllApps ();
+        }
+    }
+
+    @Test
+    public void testWarmupAndReadiness() throws Exception
+    {
+        Assert.assertTrue (theServer.isReady ());
+        TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8082/ready", null);
+        Assert.assertEquals (200, getResp.responseCode);
+        Assert.assertEquals ("READY", getResp.getResponseString());
+
+        // Each loop replays a GET per registered app plus the custom POST
+        long warmupRequests = theServer.getMetrics ().get ("warmup.requests");
+        Assert.assertTrue (warmupRequests >= (long) CPU_COUNT * WARMUP_ITERATIONS * 3);
+    }
+
+    @Test
+    public void testLoopsEncodeResponsesConcurrently() throws Exception
+    {
+        // Every loop encodes its responses at once, so none may see another's half encoded body
+        final int encodesEach = 500;
+        final AtomicInteger badEncodes = new AtomicInteger ();
+        Thread[] loopThreads = new Thread[4];
+        for (int t = 0; t < loopThreads.length; t++)
+        {
+            char[] bodyChars = new char[64 * 1024];
+            Arrays.fill (bodyChars, (char) ('a' + t));
+            final String respBody = new String (bodyChars);
+            loopThreads[t] = new Thread (() ->
+            {
+                for (int i = 0; i < encodesEach; i++)
+                {
+                    try
+                    {
+                        nio.api.HttpResponse httpResponse = new nio.api.HttpResponse (null);
+                        httpResponse.append (respBody);
+                        ByteBuffer responseBuffer = httpResponse.getResponseWriter (false);
+                        String encodedResponse = StandardCharsets.ISO_8859_1.decode (responseBuffer).toString ();
+                        if (!encodedResponse.endsWith ("\r\n\r\n" + respBody))
+                            badEncodes.incrementAndGet ();
+                    }
+                    catch (Exception | Error e)
+                    {
+                        badEncodes.incrementAndGet ();
+                    }
+                }
+            });
+            loopThreads[t].start ();
+        }
+        for (Thread loopThread : loopThreads)
+            loopThread.join ();
+        Assert.assertEquals (0, badEncodes.get ());
+    }
+
+    @Test
+    public void testFailedLoopStopsTheServer() throws Exception
+    {
+        // A warm-up request the apps cannot parse fails the loops before they ever accept
+        final NioCoreWebServer failingServer = new NioCoreWebServer ();
+        failingServer.setCpuCount (CPU_COUNT);
+        failingServer.setWarmupIterations (1);
+        failingServer.addWarmupRequest ("GARBAGE");
+        final AtomicReference <Exception> startFailure = new AtomicReference <> ();
+        Thread startThread = new Thread (() ->
+        {
+            try
+            {
+                failingServer.startServer (listenHost, 8124, "nio");
+            }
+            catch (Exception e)
+            {
+                startFailure.set (e);
+            }
+        });
+        startThread.start ();
+        startThread.join (5000);
+        Assert.assertFalse (startThread.isAlive ());
+        Assert.assertTrue (startFailure.get () instanceof IOException);
+        Assert.assertFalse (failingServer.isReady ());
+
+        // Nothing is left listening to take connections it will never answer
+        try
+        {
+            SocketChannel.open (new InetSocketAddress (listenHost, 8124)).close ();
+            Assert.fail ("Still listening after the loops failed");
+        }
+        catch (IOException expected)
+        {
+            // Refused
+        }
+    }
+}
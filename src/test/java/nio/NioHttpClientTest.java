@@ -0,0 +1,306 @@
+package nio;
+
+import nio.client.ClientRequest;
+import nio.client.ClientResponse;
+import nio.client.NioHttpClient;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class NioHttpClientTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8089;
+    private static int stubListenPort = 8090;
+    private static int pooledListenPort = 8091;
+    private static int closedPort = 8092;
+    private static final String LOOP_THREAD = "ClientLoop";
+    private static NioWebServer theServer;
+    private static NioPooledWebServer pooledServer;
+    private static ServerSocket stubSocket;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        theServer.setKeepAlive (true);
+        startServer (theServer, listenPort, LOOP_THREAD);
+        pooledServer = new NioPooledWebServer ();
+        startServer (pooledServer, pooledListenPort, "PooledClientLoop");
+        startStubServer ();
+        Thread.sleep (200);
+    }
+
+    private static void startServer (final NioWebServer nioServer, final int serverPort, String threadName)
+    {
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    nioServer.startServer (listenHost, serverPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }, threadName).start();
+    }
+
+    // A blocking stand-in backend for the framings and failures the NIO server never produces
+    private static void startStubServer () throws IOException
+    {
+        stubSocket = new ServerSocket (stubListenPort);
+        Thread stubThread = new Thread (() -> {
+            while (!stubSocket.isClosed ())
+            {
+                try
+                {
+                    Socket clientSocket = stubSocket.accept ();
+                    new Thread (() -> serveStub (clientSocket)).start ();
+                }
+                catch (IOException e)
+                {
+                    return;
+                }
+            }
+        });
+        stubThread.setDaemon (true);
+        stubThread.start ();
+    }
+
+    private static void serveStub (Socket clientSocket)
+    {
+        try (Socket stubConnection = clientSocket)
+        {
+            InputStream inStream = stubConnection.getInputStream ();
+            StringBuilder reqHeaders = new StringBuilder ();
+            int inByte;
+            while (reqHeaders.indexOf ("\r\n\r\n") < 0 && (inByte = inStream.read ()) >= 0)
+                reqHeaders.append ((char) inByte);
+            String reqLine = reqHeaders.toString ();
+            OutputStream outStream = stubConnection.getOutputStream ();
+            if (reqLine.startsWith ("GET /chunked "))
+                outStream.write ("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nHello\r\n7;ext=1\r\n, world\r\n0\r\nX-Trailer: 1\r\n\r\n".getBytes (StandardCharsets.ISO_8859_1));
+            else if (reqLine.startsWith ("GET /close "))
+                outStream.write ("HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n\r\nuntil the end".getBytes (StandardCharsets.ISO_8859_1));
+            else if (reqLine.startsWith ("GET /badlength "))
+                outStream.write ("HTTP/1.1 200 OK\r\nContent-Length: abc\r\n\r\nabc".getBytes (StandardCharsets.ISO_8859_1));
+            else if (reqLine.startsWith ("GET /negativelength "))
+                outStream.write ("HTTP/1.1 200 OK\r\nContent-Length: -3\r\n\r\nabc".getBytes (StandardCharsets.ISO_8859_1));
+            else if (reqLine.startsWith ("GET /negativechunk "))
+                outStream.write ("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n-3\r\nabc\r\n0\r\n\r\n".getBytes (StandardCharsets.ISO_8859_1));
+            else if (reqLine.startsWith ("GET /hang "))
+                Thread.sleep (2000);
+            outStream.flush ();
+        }
+        catch (IOException | InterruptedException e)
+        {
+            // The client went away
+        }
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        stubSocket.close ();
+        theServer.stopAllApps ();
+        pooledServer.stopAllApps ();
+    }
+
+    @Test
+    public void testGetAndPostOnServerLoop() throws Exception
+    {
+        NioHttpClient httpClient = new NioHttpClient (theServer);
+        try
+        {
+            // The server's own loop is both the client and the server here, and completes the response
+            CompletableFuture <ClientResponse> getFuture = new CompletableFuture <> ();
+            CompletableFuture <String> loopThread = new CompletableFuture <> ();
+            theServer.execute (() -> httpClient.get ("http://localhost:8089/SimpleApp1").thenAccept (clientResponse -> {
+                loopThread.complete (Thread.currentThread ().getName ());
+                getFuture.complete (clientResponse);
+            }));
+            ClientResponse getResponse = getFuture.get (5, TimeUnit.SECONDS);
+            Assert.assertEquals (200, getResponse.getStatusCode ());
+            Assert.assertEquals ("text/html", getResponse.getHeader ("content-type"));
+            Assert.assertTrue (getResponse.getBodyAsString ().contains ("SimpleApp 1.0 got GET request for location /SimpleApp1"));
+            Assert.assertEquals (LOOP_THREAD, loopThread.get (5, TimeUnit.SECONDS));
+
+            ClientRequest postRequest = new ClientRequest ("POST", "http://localhost:8089/SimpleApp2")
+                .addHeader ("Content-Type", "application/x-www-form-urlencoded")
+                .setBody ("user=user1&pass=abcd".getBytes (StandardCharsets.ISO_8859_1));
+            ClientResponse postResponse = httpClient.send (postRequest).get (5, TimeUnit.SECONDS);
+            Assert.assertTrue (postResponse.getBodyAsString ().contains ("with POST params: {pass=abcd, user=user1}"));
+
+            // Sequential requests share one keep-alive connection
+            for (int i = 0; i < 10; i++)
+                Assert.assertEquals (200, httpClient.get ("http://localhost:8089/SimpleApp1?" + i).get (5, TimeUnit.SECONDS).getStatusCode ());
+            Assert.assertEquals (1, httpClient.getMetrics ().get ("client.connections"));
+        }
+        finally
+        {
+            httpClient.close ();
+        }
+    }
+
+    @Test
+    public void testConcurrentPipelinedRequests() throws Exception
+    {
+        NioHttpClient httpClient = new NioHttpClient (theServer);
+        httpClient.setMaxConnectionsPerHost (2);
+        httpClient.setMaxPipelineDepth (8);
+        try
+        {
+            // One round trip first, so the connection has shown it keeps alive and may pipeline
+            httpClient.get ("http://localhost:8089/SimpleApp1").get (5, TimeUnit.SECONDS);
+            List <CompletableFuture <ClientResponse>> responseFutures = new ArrayList <> ();
+            for (int i = 0; i < 16; i++)
+                responseFutures.add (httpClient.get ("http://localhost:8089/SimpleApp1?req" + i));
+            // Each response is matched to its own request
+            for (int i = 0; i < 16; i++)
+                Assert.assertTrue (responseFutures.get (i).get (5, TimeUnit.SECONDS).getBodyAsString ().contains ("location /SimpleApp1?req" + i + "<"));
+            Assert.assertEquals (2, httpClient.getMetrics ().get ("client.connections"));
+            Assert.assertTrue (httpClient.getMetrics ().get ("client.pipelined") > 0);
+        }
+        finally
+        {
+            httpClient.close ();
+        }
+    }
+
+    @Test
+    public void testChunkedAndReadToClose() throws Exception
+    {
+        NioHttpClient httpClient = new NioHttpClient (theServer);
+        try
+        {
+            ClientResponse chunkedResponse = httpClient.get ("http://localhost:8090/chunked").get (5, TimeUnit.SECONDS);
+            Assert.assertEquals (200, chunkedResponse.getStatusCode ());
+            Assert.assertEquals ("Hello, world", chunkedResponse.getBodyAsString ());
+
+            ClientResponse closeResponse = httpClient.get ("http://localhost:8090/close").get (5, TimeUnit.SECONDS);
+            Assert.assertEquals ("HTTP/1.0", closeResponse.getHttpVersion ());
+            Assert.assertEquals ("until the end", closeResponse.getBodyAsString ());
+        }
+        finally
+        {
+            httpClient.close ();
+        }
+    }
+
+    @Test
+    public void testMalformedFramingFailsOnlyTheRequest() throws Exception
+    {
+        NioHttpClient httpClient = new NioHttpClient (theServer);
+        try
+        {
+            String[] badPaths = { "/badlength", "/negativelength", "/negativechunk" };
+            for (String badPath : badPaths)
+            {
+                try
+                {
+                    httpClient.get ("http://localhost:8090" + badPath).get (5, TimeUnit.SECONDS);
+                    Assert.fail ("Expected " + badPath + " to fail");
+                }
+                catch (ExecutionException e)
+                {
+                    Assert.assertTrue (e.getCause ().toString (), e.getCause () instanceof IOException);
+                }
+            }
+
+            // The client runs on the server's loop, which is still serving
+            Assert.assertEquals (200, httpClient.get ("http://localhost:8089/SimpleApp1").get (5, TimeUnit.SECONDS).getStatusCode ());
+            TestUtils.assertContains (TestUtils.sendRequest (listenHost, listenPort, "GET /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"),
+                "SimpleApp 1.0 got GET request for location /SimpleApp1");
+        }
+        finally
+        {
+            httpClient.close ();
+        }
+    }
+
+    @Test
+    public void testTimeoutAndConnectFailure() throws Exception
+    {
+        NioHttpClient httpClient = new NioHttpClient (theServer);
+        httpClient.setRequestTimeoutMillis (300);
+        try
+        {
+            long startMillis = System.currentTimeMillis ();
+            try
+            {
+                httpClient.get ("http://localhost:8090/hang").get (5, TimeUnit.SECONDS);
+                Assert.fail ("Expected a timeout");
+            }
+            catch (ExecutionException e)
+            {
+                Assert.assertTrue (e.getCause () instanceof TimeoutException);
+            }
+            Assert.assertTrue (System.currentTimeMillis () - startMillis < 2000);
+            Assert.assertEquals (1, httpClient.getMetrics ().get ("client.timeouts"));
+
+            try
+            {
+                httpClient.get ("http://localhost:" + closedPort + "/").get (5, TimeUnit.SECONDS);
+                Assert.fail ("Expected the connection to be refused");
+            }
+            catch (ExecutionException e)
+            {
+                Assert.assertTrue (e.getCause ().toString (), e.getCause () instanceof ConnectException);
+            }
+
+            // Both requests wait on the one lookup, made off the loop, and both fail with it
+            List <CompletableFuture <ClientResponse>> unknownFutures = new ArrayList <> ();
+            unknownFutures.add (httpClient.get ("http://nosuchhost.invalid/first"));
+            unknownFutures.add (httpClient.get ("http://nosuchhost.invalid/second"));
+            for (CompletableFuture <ClientResponse> unknownFuture : unknownFutures)
+            {
+                try
+                {
+                    unknownFuture.get (5, TimeUnit.SECONDS);
+                    Assert.fail ("Expected the host to be unknown");
+                }
+                catch (ExecutionException e)
+                {
+                    Assert.assertTrue (e.getCause ().toString (), e.getCause () instanceof UnknownHostException);
+                }
+            }
+
+            // The loop is still serving
+            Assert.assertEquals (200, httpClient.get ("http://localhost:8089/SimpleApp1").get (5, TimeUnit.SECONDS).getStatusCode ());
+        }
+        finally
+        {
+            httpClient.close ();
+        }
+    }
+
+    @Test
+    public void testFanOutFromPooledWorker() throws Exception
+    {
+        TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8091/FanOutApp", null);
+        String fanOutBody = getResp.getResponseString ();
+        Assert.assertTrue (fanOutBody, fanOutBody.startsWith ("FanOutApp 1.0 got [<html>"));
+        Assert.assertTrue (fanOutBody.contains ("SimpleApp 1.0 got GET request for location /SimpleApp1"));
+        Assert.assertTrue (fanOutBody.contains ("SimpleApp 2.0 got GET request for location /SimpleApp2"));
+    }
+}
@@ -10,7 +10,7 @@ import java.util.HashMap;
 public class NioPooledWebServerTest
 {
     private static String listenHost = "localhost";
-    private static int listenPort = 8080;
+    private static int listenPort = 8081;
     private static NioPooledWebServer theServer;
 
     @BeforeClass
@@ -31,6 +31,7 @@ public class NioPooledWebServerTest
                 }
             }
         }).start();
+        Thread.sleep (200);
     }
 
     @AfterClass
@@ -42,7 +43,7 @@ public class NioPooledWebServerTest
     @Test
     public void testGetRoot() throws Exception
     {
-        TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8080/", null);
+        TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8081/", null);
         Assert.assertEquals ("<html><head><title>Java NIO Webserver 1.0</title></head><body>Java NIO Webserver 1.0 got GET request for location /</body></html>", getResp.getResponseString());
     }
 
@@ -52,14 +53,14 @@ public class NioPooledWebServerTest
         HashMap <String, String> postParams = new HashMap <> ();
         postParams.put ("user", "user1");
         postParams.put ("client_secret", "secret");
-        TestUtils.HttpResponse getResp = TestUtils.postUrl ("http://localhost:8080/", postParams, null);
+        TestUtils.HttpResponse getResp = TestUtils.postUrl ("http://localhost:8081/", postParams, null);
         Assert.assertEquals ("<html><head><title>Java NIO Webserver 1.0</title></head><body>Java NIO Webserver 1.0 got POST request for location /</body></html>", getResp.getResponseString());
     }
 
     @Test
     public void testGetSimple1() throws Exception
     {
-        TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8080/SimpleApp1", null);
+        TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8081/SimpleApp1", null);
         Assert.assertEquals ("<html><head><title>SimpleApp 1.0</title></head><body>SimpleApp 1.0 got GET request for location /SimpleApp1</body></html>", getResp.getResponseString());
     }
 
@@ -69,14 +70,14 @@ public class NioPooledWebServerTest
         HashMap <String, String> postParams = new HashMap <> ();
         postParams.put ("user", "user1");
         postParams.put ("client_secret", "secret");
-        TestUtils.HttpResponse getResp = TestUtils.postUrl ("http://localhost:8080/SimpleApp1", postParams, null);
+        TestUtils.HttpResponse getResp = TestUtils.postUrl ("http://localhost:8081/SimpleApp1", postParams, null);
         Assert.assertEquals ("<html><head><title>SimpleApp 1.0</title></head><body>SimpleApp 1.0 got POST request for location /SimpleApp1</body></html>", getResp.getResponseString());
     }
 
     @Test
     public void testGetSimple2() throws Exception
     {
-        TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8080/SimpleApp2", null);
+        TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8081/SimpleApp2", null);
         Assert.assertEquals ("<html><head><title>SimpleApp 2.0</title></head><body>SimpleApp 2.0 got GET request for location /SimpleApp2</body></html>", getResp.getResponseString());
     }
 
@@ -86,7 +87,7 @@ public class NioPooledWebServerTest
         HashMap <String, String> postParams = new HashMap <> ();
         postParams.put ("user", "user1");
         postParams.put ("client_secret", "secret");
-        TestUtils.HttpResponse getResp = TestUtils.postUrl ("http://localhost:8080/SimpleApp2", postParams, null);
+        TestUtils.HttpResponse getResp = TestUtils.postUrl ("http://localhost:8081/SimpleApp2", postParams, null);
         Assert.assertEquals ("<html><head><title>SimpleApp 2.0</title></head><body>SimpleApp 2.0 got POST request for location /SimpleApp2 with POST params: {client_secret=secret, user=user1}</body></html>", getResp.getResponseString());
     }
 }
\ No newline at end of file
@@ -32,6 +32,7 @@ public class NioWebServerTest
                 }
             }
         }).start();
+        Thread.sleep (200);
     }
 
     @AfterClass
@@ -90,4 +91,27 @@ public class NioWebServerTest
         TestUtils.HttpResponse getResp = TestUtils.postUrl ("http://localhost:8080/SimpleApp2", postParams, null);
         Assert.assertEquals ("<html><head><title>SimpleApp 2.0</title></head><body>SimpleApp 2.0 got POST request for location /SimpleApp2 with POST params: {client_secret=secret, user=user1}</body></html>", getResp.getResponseString());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testAppRegistry() throws Exception
+    {
+        // SimpleApp1 and SimpleApp2 are registered at build time with @WebApp, CachedApp is not
+        Assert.assertEquals (SimpleApp1.class, AppRegistry.getFactory ("SimpleApp1").getAppClass ());
+        Assert.assertEquals ("/SimpleApp2", AppRegistry.getFactory ("SimpleApp2").getPath ());
+        Assert.assertNull (AppRegistry.getFactory ("CachedApp"));
+        Assert.assertTrue (AppRegistry.getFactory ("SimpleApp1").newInstance () instanceof SimpleApp1);
+    }
+
+    @Test
+    public void testEagerStartAndReadiness() throws Exception
+    {
+        // Registered apps are started before the server accepts anything
+        Assert.assertTrue (theServer.isReady ());
+        Assert.assertTrue (theServer.appCache.containsKey ("SimpleApp1"));
+        Assert.assertTrue (theServer.appCache.containsKey ("SimpleApp2"));
+
+        TestUtils.HttpResponse getResp = TestUtils.getUrl ("http://localhost:8080/ready", null);
+        Assert.assertEquals (200, getResp.responseCode);
+        Assert.assertEquals ("READY", getResp.getResponseString());
+    }
+}
@@ -0,0 +1,108 @@
+package nio;
+
+import nio.jfr.Profiler;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+
+public class ProfileTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8113;
+    private static String profileUrl = "http://" + listenHost + ":" + listenPort + "/admin/profile";
+    private static NioWebServer theServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        theServer.setProfiling ("/admin/profile", "s3cret");
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        Thread.sleep (200);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+    }
+
+    @Test
+    public void testProfileNeedsAdminToken() throws Exception
+    {
+        Assert.assertEquals (403, TestUtils.getUrl (profileUrl + "?seconds=1", null).responseCode);
+        HashMap <String, String> requestHeaders = new HashMap <> ();
+        requestHeaders.put ("Authorization", "Bearer guess");
+        Assert.assertEquals (403, TestUtils.getUrl (profileUrl + "?seconds=1", requestHeaders).responseCode);
+    }
+
+    @Test
+    public void testServerKeepsServingWhileProfiling() throws Exception
+    {
+        Assume.assumeTrue (Profiler.newProfiler () != null);
+        long profileCount = theServer.getMetrics ().get ("profiles");
+        HashMap <String, String> requestHeaders = new HashMap <> ();
+        requestHeaders.put ("Authorization", "Bearer s3cret");
+        CompletableFuture <TestUtils.HttpResponse> profileResponse = CompletableFuture.supplyAsync (() -> {
+            try
+            {
+                return TestUtils.getUrl (profileUrl + "?seconds=2", requestHeaders);
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException (e);
+            }
+        });
+        Thread.sleep (200);
+
+        // The single loop is not held up by the recording
+        long startMillis = System.currentTimeMillis ();
+        for (int i = 0; i < 20; i++)
+            Assert.assertEquals (200, TestUtils.getUrl ("http://" + listenHost + ":" + listenPort + "/SimpleApp1", null).responseCode);
+        Assert.assertTrue (System.currentTimeMillis () - startMillis < 1500);
+        Assert.assertFalse (profileResponse.isDone ());
+
+        TestUtils.HttpResponse profileResp = profileResponse.get ();
+        Assert.assertEquals (200, profileResp.responseCode);
+        String profileReport = profileResp.getResponseString ();
+        Assert.assertTrue (profileReport, profileReport.startsWith ("# CPU samples"));
+        Assert.assertTrue (profileReport, profileReport.contains ("# Top allocation sites"));
+        Assert.assertTrue (profileReport, profileReport.contains ("# Top lock contention"));
+        Assert.assertEquals (profileCount + 1, theServer.getMetrics ().get ("profiles"));
+    }
+
+    @Test
+    public void testCollapsedStacksOnly() throws Exception
+    {
+        Assume.assumeTrue (Profiler.newProfiler () != null);
+        HashMap <String, String> requestHeaders = new HashMap <> ();
+        requestHeaders.put ("Authorization", "Bearer s3cret");
+        TestUtils.HttpResponse profileResp = TestUtils.getUrl (profileUrl + "?seconds=1&format=collapsed", requestHeaders);
+        Assert.assertEquals (200, profileResp.responseCode);
+        // Every line is a stack and its sample count, as flamegraph.pl reads them
+        for (String stackLine : profileResp.getResponseString ().split ("\n"))
+        {
+            if (!stackLine.isEmpty ())
+                Assert.assertTrue (stackLine, stackLine.matches ("\\S.* \\d+"));
+        }
+    }
+}
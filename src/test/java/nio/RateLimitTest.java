@@ -0,0 +1,156 @@
+package nio;
+
+import nio.limit.RateLimiter;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+public class RateLimitTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8102;
+    private static int keyedListenPort = 8103;
+    private static int pooledListenPort = 8104;
+    private static NioWebServer theServer;
+    private static NioWebServer keyedServer;
+    private static NioPooledWebServer pooledServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        RateLimiter rateLimiter = new RateLimiter (1024);
+        rateLimiter.setClientLimit (0.5, 3);
+        theServer = new NioWebServer ();
+        theServer.setKeepAlive (true);
+        theServer.setRateLimiter (rateLimiter);
+        startServer (theServer, listenPort);
+
+        RateLimiter keyedLimiter = new RateLimiter (1024);
+        keyedLimiter.setClientKeyHeader ("X-Api-Key");
+        keyedLimiter.setClientLimit (0.5, 2);
+        keyedLimiter.addRouteLimit ("/SimpleApp2", 0.5, 4);
+        keyedServer = new NioWebServer ();
+        keyedServer.setKeepAlive (true);
+        keyedServer.setRateLimiter (keyedLimiter);
+        startServer (keyedServer, keyedListenPort);
+
+        RateLimiter pooledLimiter = new RateLimiter (1024);
+        pooledLimiter.setClientLimit (0.5, 1);
+        pooledServer = new NioPooledWebServer ();
+        pooledServer.setKeepAlive (true);
+        pooledServer.setRateLimiter (pooledLimiter);
+        startServer (pooledServer, pooledListenPort);
+        Thread.sleep (200);
+    }
+
+    private static void startServer (final NioWebServer nioServer, final int serverPort)
+    {
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    nioServer.startServer (listenHost, serverPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+        keyedServer.stopAllApps ();
+        pooledServer.stopAllApps ();
+    }
+
+    @Test
+    public void testClientLimit() throws Exception
+    {
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort)))
+        {
+            // A burst of three, then one every two seconds
+            for (int i = 0; i < 3; i++)
+                Assert.assertTrue (TestUtils.sendGet (clientChannel, "/SimpleApp1", "").startsWith ("HTTP/1.1 200"));
+            String limitedResponse = TestUtils.sendGet (clientChannel, "/SimpleApp1", "");
+            Assert.assertTrue (limitedResponse, limitedResponse.startsWith ("HTTP/1.1 429 Too Many Requests"));
+            Assert.assertTrue (limitedResponse, limitedResponse.contains ("Retry-After: 2\r\n"));
+            // The connection stays open for later requests
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/SimpleApp1", "").startsWith ("HTTP/1.1 429"));
+            Assert.assertEquals (2, theServer.getMetrics ().get ("requests.rateLimited"));
+        }
+    }
+
+    @Test
+    public void testHeaderKeysAndRouteLimit() throws Exception
+    {
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, keyedListenPort)))
+        {
+            // Each key has its own bucket
+            for (int i = 0; i < 2; i++)
+                Assert.assertTrue (TestUtils.sendGet (clientChannel, "/SimpleApp1", "X-Api-Key: alpha\r\n").startsWith ("HTTP/1.1 200"));
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/SimpleApp1", "X-Api-Key: alpha\r\n").startsWith ("HTTP/1.1 429"));
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/SimpleApp1", "X-Api-Key: beta\r\n").startsWith ("HTTP/1.1 200"));
+
+            // The route's bucket is shared by every key
+            for (int i = 0; i < 4; i++)
+                Assert.assertTrue (TestUtils.sendGet (clientChannel, "/SimpleApp2?" + i, "X-Api-Key: " + "route" + i + "\r\n").startsWith ("HTTP/1.1 200"));
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/SimpleApp2", "X-Api-Key: route4\r\n").startsWith ("HTTP/1.1 429"));
+            // A client turned away by the route keeps its own permit
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/SimpleApp1", "X-Api-Key: route4\r\n").startsWith ("HTTP/1.1 200"));
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/SimpleApp2x", "X-Api-Key: route4\r\n").startsWith ("HTTP/1.1 200"));
+        }
+    }
+
+    @Test
+    public void testPooledServerRejectsOnSelectorThread() throws Exception
+    {
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, pooledListenPort)))
+        {
+            Assert.assertTrue (TestUtils.sendGet (clientChannel, "/SimpleApp1", "").startsWith ("HTTP/1.1 200"));
+        }
+        long requestCount = pooledServer.getMetrics ().get ("requests");
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, pooledListenPort)))
+        {
+            String limitedResponse = TestUtils.sendGet (clientChannel, "/SimpleApp1", "");
+            Assert.assertTrue (limitedResponse, limitedResponse.startsWith ("HTTP/1.1 429"));
+            Assert.assertTrue (limitedResponse, limitedResponse.contains ("Connection: close"));
+            Assert.assertEquals (-1, clientChannel.read (ByteBuffer.allocate (16)));
+        }
+        // No worker read the request
+        Assert.assertEquals (requestCount, pooledServer.getMetrics ().get ("requests"));
+        Assert.assertEquals (1, pooledServer.getMetrics ().get ("requests.rateLimited"));
+    }
+
+    @Test
+    public void testFullStripeEvictsSoonestFull() throws Exception
+    {
+        // Eight slots make a single stripe
+        RateLimiter rateLimiter = new RateLimiter (8);
+        rateLimiter.setClientLimit (1, 1);
+        byte[] reqBytes = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes (StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < 8; i++)
+            Assert.assertEquals (0, rateLimiter.acquire (reqBytes, 0, reqBytes.length, InetAddress.getByAddress (new byte[] { 10, 0, 0, (byte) i })));
+        Assert.assertTrue (rateLimiter.acquire (reqBytes, 0, reqBytes.length, InetAddress.getByAddress (new byte[] { 10, 0, 0, 0 })) > 0);
+        Assert.assertTrue (rateLimiter.getClientDelayNanos (InetAddress.getByAddress (new byte[] { 10, 0, 0, 7 })) > 0);
+        Assert.assertEquals (0, rateLimiter.getEvictions ());
+
+        // A ninth client takes the slot of the first, which forgets its bucket
+        Assert.assertEquals (0, rateLimiter.acquire (reqBytes, 0, reqBytes.length, InetAddress.getByAddress (new byte[] { 10, 0, 0, 8 })));
+        Assert.assertEquals (1, rateLimiter.getEvictions ());
+        Assert.assertEquals (0, rateLimiter.getClientDelayNanos (InetAddress.getByAddress (new byte[] { 10, 0, 0, 0 })));
+    }
+}
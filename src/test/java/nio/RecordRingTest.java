@@ -0,0 +1,104 @@
+package nio;
+
+import nio.util.RecordRing;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RecordRingTest
+{
+    @Test
+    public void testFullRingRefusesUntilReleased() throws Exception
+    {
+        RecordRing recordRing = new RecordRing (3);
+        Assert.assertEquals (4, recordRing.getSize ());
+        Assert.assertEquals (-1, recordRing.peek ());
+
+        // Two laps round the ring, so every slot is reused
+        for (int lapNumber = 0; lapNumber < 2; lapNumber++)
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                long claimedSequence = recordRing.claim ();
+                Assert.assertEquals (lapNumber * 4 + i, claimedSequence);
+                Assert.assertEquals (i, recordRing.getSlot (claimedSequence));
+                recordRing.publish (claimedSequence);
+            }
+            Assert.assertEquals (-1, recordRing.claim ());
+            for (int i = 0; i < 4; i++)
+            {
+                Assert.assertEquals (i, recordRing.peek ());
+                recordRing.release ();
+            }
+            Assert.assertEquals (-1, recordRing.peek ());
+        }
+    }
+
+    @Test
+    public void testUnpublishedSlotHoldsBackLaterOnes() throws Exception
+    {
+        RecordRing recordRing = new RecordRing (4);
+        long firstSequence = recordRing.claim ();
+        recordRing.publish (recordRing.claim ());
+        // The second record is ready, but records are taken out in order
+        Assert.assertEquals (-1, recordRing.peek ());
+        recordRing.publish (firstSequence);
+        Assert.assertEquals (0, recordRing.peek ());
+        recordRing.release ();
+        Assert.assertEquals (1, recordRing.peek ());
+    }
+
+    @Test
+    public void testConcurrentProducersLoseNothing() throws Exception
+    {
+        final int producerCount = 4;
+        final int recordsEach = 20000;
+        final RecordRing recordRing = new RecordRing (64);
+        final int[] slotValues = new int[recordRing.getSize ()];
+        final AtomicInteger droppedCount = new AtomicInteger ();
+        Thread[] producerThreads = new Thread[producerCount];
+        for (int p = 0; p < producerCount; p++)
+        {
+            producerThreads[p] = new Thread (() ->
+            {
+                for (int i = 1; i <= recordsEach; i++)
+                {
+                    long claimedSequence = recordRing.claim ();
+                    if (claimedSequence < 0)
+                    {
+                        droppedCount.incrementAndGet ();
+                        continue;
+                    }
+                    slotValues[recordRing.getSlot (claimedSequence)] = i;
+                    recordRing.publish (claimedSequence);
+                }
+            });
+            producerThreads[p].start ();
+        }
+
+        // Every record claimed is taken out once, with the value its producer wrote
+        long recordsTaken = 0;
+        long valueTotal = 0;
+        while (true)
+        {
+            boolean producersDone = true;
+            for (Thread producerThread : producerThreads)
+                producersDone &= !producerThread.isAlive ();
+            int slot;
+            while ((slot = recordRing.peek ()) >= 0)
+            {
+                Assert.assertTrue (slotValues[slot] > 0);
+                valueTotal += slotValues[slot];
+                slotValues[slot] = 0;
+                recordRing.release ();
+                recordsTaken++;
+            }
+            if (producersDone)
+                break;
+            Thread.yield ();
+        }
+        Assert.assertEquals (producerCount * recordsEach, recordsTaken + droppedCount.get ());
+        Assert.assertTrue (valueTotal > 0);
+    }
+}
@@ -0,0 +1,139 @@
+package nio;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+public class RequestFramingTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8117;
+    private static final int MAX_REQUEST_BYTES = 256 * 1024;
+    private static NioWebServer theServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        theServer.setKeepAlive (true);
+        theServer.setMaxRequestBytes (MAX_REQUEST_BYTES);
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        Thread.sleep (200);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+    }
+
+    @Test
+    public void testMalformedContentLengthIsRefused() throws Exception
+    {
+        String[] badLengths = { "abc", "-5", "99999999999", "" };
+        for (String badLength : badLengths)
+        {
+            String httpResponse = TestUtils.sendRequest (listenHost, listenPort,
+                "POST /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + badLength + "\r\n\r\n");
+            TestUtils.assertStartsWith (httpResponse, "HTTP/1.1 400 Bad Request");
+        }
+        String httpResponse = TestUtils.sendRequest (listenHost, listenPort,
+            "POST /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nContent-Length: 2\r\nContent-Length: 3\r\n\r\nabc");
+        TestUtils.assertStartsWith (httpResponse, "HTTP/1.1 400 Bad Request");
+
+        // The server is still serving
+        httpResponse = TestUtils.sendRequest (listenHost, listenPort, "GET /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+        TestUtils.assertContains (httpResponse, "SimpleApp 1.0 got GET request for location /SimpleApp1");
+    }
+
+    @Test
+    public void testMalformedRequestLineIsRefused() throws Exception
+    {
+        String[] badRequests = { "GARBAGE\r\n\r\n", "GET /SimpleApp1\r\nHost: localhost\r\n\r\n", "GET  /SimpleApp1 HTTP/1.1\r\n\r\n",
+                                 "GET /SimpleApp1 FTP/1.0\r\n\r\n", "GET /SimpleApp1 HTTP/1.1\r\nNoColonHere\r\n\r\n",
+                                 "GET /SimpleApp1 HTTP/1.1\r\n: no name\r\n\r\n" };
+        for (String badRequest : badRequests)
+            TestUtils.assertStartsWith (TestUtils.sendRequest (listenHost, listenPort, badRequest), "HTTP/1.1 400 Bad Request");
+
+        // A form field with no value is not malformed
+        String httpResponse = TestUtils.sendRequest (listenHost, listenPort,
+            "POST /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\nContent-Length: 5\r\n\r\nfield");
+        TestUtils.assertContains (httpResponse, "SimpleApp 1.0 got POST request for location /SimpleApp1");
+
+        // The loop is still serving
+        httpResponse = TestUtils.sendRequest (listenHost, listenPort, "GET /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+        TestUtils.assertContains (httpResponse, "SimpleApp 1.0 got GET request for location /SimpleApp1");
+    }
+
+    @Test
+    public void testTransferEncodingIsRefused() throws Exception
+    {
+        // The chunk lines must not be taken for a pipelined request, so the connection is closed after the 501
+        String httpResponse = TestUtils.sendRequest (listenHost, listenPort,
+            "POST /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "1c\r\nGET /SimpleApp1?smuggled HTTP\r\n0\r\n\r\n");
+        TestUtils.assertStartsWith (httpResponse, "HTTP/1.1 501 Not Implemented");
+        Assert.assertFalse (httpResponse.contains ("smuggled"));
+
+        httpResponse = TestUtils.sendRequest (listenHost, listenPort,
+            "POST /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+        TestUtils.assertStartsWith (httpResponse, "HTTP/1.1 400 Bad Request");
+    }
+
+    @Test
+    public void testOversizeRequestIsRefused() throws Exception
+    {
+        long rejectedBefore = theServer.getMetrics ().get ("requests.rejected");
+        // Refused on the headers alone, before any of the body is sent
+        String httpResponse = TestUtils.sendRequest (listenHost, listenPort,
+            "POST /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + (MAX_REQUEST_BYTES + 1) + "\r\n\r\n");
+        TestUtils.assertStartsWith (httpResponse, "HTTP/1.1 413 Payload Too Large");
+        Assert.assertEquals (rejectedBefore + 1, theServer.getMetrics ().get ("requests.rejected"));
+    }
+
+    @Test
+    public void testLargeBodyArrivingInPieces() throws Exception
+    {
+        char[] bodyChars = new char[MAX_REQUEST_BYTES / 2];
+        Arrays.fill (bodyChars, 'x');
+        String reqBody = "field=" + new String (bodyChars);
+        SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort));
+        try
+        {
+            TestUtils.writeRequest (clientChannel, "POST /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + reqBody.length () + "\r\n\r\n");
+            int pieceLength = reqBody.length () / 8;
+            for (int pieceStart = 0; pieceStart < reqBody.length (); pieceStart += pieceLength)
+            {
+                Thread.sleep (20);
+                TestUtils.writeRequest (clientChannel, reqBody.substring (pieceStart, Math.min (reqBody.length (), pieceStart + pieceLength)));
+            }
+            TestUtils.assertContains (TestUtils.readResponse (clientChannel), "SimpleApp 1.0 got POST request for location /SimpleApp1");
+
+            // The next request on the connection starts where the body ended
+            TestUtils.assertContains (TestUtils.sendGet (clientChannel, "/SimpleApp1?next", ""), "got GET request for location /SimpleApp1?next");
+        }
+        finally
+        {
+            clientChannel.close ();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package nio;
+
+import nio.api.HttpResponse;
+import nio.client.ClientRequest;
+import nio.client.ClientResponse;
+import nio.client.NioHttpClient;
+import nio.proxy.ProxyConfig;
+import nio.proxy.Upstream;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ReverseProxyTest
+{
+    private static String listenHost = "localhost";
+    private static int upstreamPortA = 8093;
+    private static int upstreamPortB = 8094;
+    private static int proxyListenPort = 8095;
+    private static int checkedProxyListenPort = 8096;
+    private static int deadPort = 8097;
+    private static int silentPort = 8098;
+    private static int upstreamPortC = 8099;
+    private static int pooledProxyListenPort = 8100;
+    private static int slowProxyListenPort = 8122;
+    // More than the kernel will buffer for a socket, so the relay has to wait for the client
+    private static final int LARGE_LENGTH = 8 * 1024 * 1024;
+    private static NioWebServer upstreamA;
+    private static NioWebServer upstreamB;
+    private static NioWebServer upstreamC;
+    private static NioWebServer proxyServer;
+    private static NioWebServer checkedProxyServer;
+    private static NioPooledWebServer pooledProxyServer;
+    private static NioWebServer slowProxyServer;
+    private static ServerSocket silentSocket;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        upstreamA = startUpstream (upstreamPortA, "UpstreamA");
+        upstreamB = startUpstream (upstreamPortB, "UpstreamB");
+        upstreamC = startUpstream (upstreamPortC, "UpstreamC");
+        byte[] largeBody = new byte[LARGE_LENGTH];
+        Arrays.fill (largeBody, (byte) 'x');
+        HttpResponse largeResponse = new HttpResponse (null);
+        largeResponse.addHeader ("Content-Type", "text/plain");
+        largeResponse.setBody (largeBody);
+        upstreamC.getFixedResponses ().put ("GET", "/large", largeResponse);
+        // Accepts connections into its backlog but never answers
+        silentSocket = new ServerSocket (silentPort);
+
+        ProxyConfig proxyConfig = new ProxyConfig ();
+        proxyConfig.addUpstream ("/SimpleApp1", listenHost, upstreamPortA, 3);
+        proxyConfig.addUpstream ("/SimpleApp1", listenHost, upstreamPortB, 1);
+        proxyConfig.addUpstream ("/SimpleApp2", listenHost, upstreamPortA, 1);
+        proxyConfig.addUpstream ("/gone", listenHost, deadPort, 1);
+        proxyConfig.addUpstream ("/silent", listenHost, silentPort, 1);
+        proxyConfig.setResponseTimeoutMillis (300);
+        proxyServer = new NioWebServer ();
+        proxyServer.setKeepAlive (true);
+        proxyServer.setProxyConfig (proxyConfig);
+        startServer (proxyServer, proxyListenPort, "ProxyLoop");
+        // Pooled workers hand proxied requests to the selector thread
+        pooledProxyServer = new NioPooledWebServer ();
+        pooledProxyServer.setKeepAlive (true);
+        pooledProxyServer.setProxyConfig (proxyConfig);
+        startServer (pooledProxyServer, pooledProxyListenPort, "PooledProxyLoop");
+
+        // Health checks start at once and time out after an interval, which a cold start can take, so have the
+        // live upstream answer one first
+        NioHttpClient warmupClient = new NioHttpClient (upstreamC);
+        warmupClient.get ("http://localhost:8099/ready").get (5, TimeUnit.SECONDS);
+        warmupClient.close ();
+        ProxyConfig checkedConfig = new ProxyConfig ();
+        checkedConfig.addUpstream ("/SimpleApp1", listenHost, upstreamPortC, 1);
+        checkedConfig.addUpstream ("/SimpleApp1", listenHost, deadPort, 1);
+        checkedConfig.setHealthCheckPath ("/ready");
+        checkedConfig.setHealthCheckIntervalMillis (100);
+        checkedConfig.setUnhealthyThreshold (2);
+        checkedConfig.setHealthyThreshold (1);
+        checkedProxyServer = new NioWebServer ();
+        checkedProxyServer.setKeepAlive (true);
+        checkedProxyServer.setProxyConfig (checkedConfig);
+        startServer (checkedProxyServer, checkedProxyListenPort, "CheckedProxyLoop");
+
+        // No response timeout, as a slow client may take as long as it likes
+        ProxyConfig slowConfig = new ProxyConfig ();
+        slowConfig.addUpstream ("/large", listenHost, upstreamPortC, 1);
+        slowConfig.addUpstream ("/SimpleApp1", listenHost, upstreamPortC, 1);
+        slowProxyServer = new NioWebServer ();
+        slowProxyServer.setKeepAlive (true);
+        slowProxyServer.setProxyConfig (slowConfig);
+        startServer (slowProxyServer, slowProxyListenPort, "SlowProxyLoop");
+        Thread.sleep (200);
+    }
+
+    private static NioWebServer startUpstream (int serverPort, String threadName)
+    {
+        NioWebServer upstreamServer = new NioWebServer ();
+        upstreamServer.setKeepAlive (true);
+        startServer (upstreamServer, serverPort, threadName);
+        return upstreamServer;
+    }
+
+    private static void startServer (final NioWebServer nioServer, final int serverPort, String threadName)
+    {
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    nioServer.startServer (listenHost, serverPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }, threadName).start();
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        silentSocket.close ();
+        proxyServer.stopAllApps ();
+        checkedProxyServer.stopAllApps ();
+        pooledProxyServer.stopAllApps ();
+        slowProxyServer.stopAllApps ();
+        upstreamA.stopAllApps ();
+        upstreamB.stopAllApps ();
+        upstreamC.stopAllApps ();
+    }
+
+    @Test
+    public void testWeightedRoutingOverKeptAliveConnections() throws Exception
+    {
+        NioHttpClient httpClient = new NioHttpClient (upstreamA);
+        httpClient.setMaxConnectionsPerHost (1);
+        try
+        {
+            long requestsA = upstreamA.getMetrics ().get ("requests");
+            long requestsB = upstreamB.getMetrics ().get ("requests");
+            long upstreamReuses = proxyServer.getMetrics ().get ("proxy.upstreamReuses");
+            for (int i = 0; i < 8; i++)
+            {
+                ClientResponse clientResponse = httpClient.get ("http://localhost:8095/SimpleApp1?" + i).get (5, TimeUnit.SECONDS);
+                Assert.assertEquals (200, clientResponse.getStatusCode ());
+                Assert.assertTrue (clientResponse.getBodyAsString ().contains ("SimpleApp 1.0 got GET request for location /SimpleApp1?" + i + "<"));
+            }
+            // Three to one, over one upstream connection each
+            Assert.assertEquals (6, upstreamA.getMetrics ().get ("requests") - requestsA);
+            Assert.assertEquals (2, upstreamB.getMetrics ().get ("requests") - requestsB);
+            Assert.assertTrue (proxyServer.getMetrics ().get ("proxy.upstreamReuses") - upstreamReuses >= 6);
+            Assert.assertEquals (1, httpClient.getMetrics ().get ("client.connections"));
+
+            // Pipelined requests are answered in order
+            httpClient.setMaxPipelineDepth (4);
+            List <CompletableFuture <ClientResponse>> responseFutures = new ArrayList <> ();
+            for (int i = 0; i < 4; i++)
+                responseFutures.add (httpClient.get ("http://localhost:8095/SimpleApp2?pipelined" + i));
+            for (int i = 0; i < 4; i++)
+                Assert.assertTrue (responseFutures.get (i).get (5, TimeUnit.SECONDS).getBodyAsString ().contains ("location /SimpleApp2?pipelined" + i + "<"));
+            Assert.assertTrue (httpClient.getMetrics ().get ("client.pipelined") > 0);
+
+            // Paths without a route are still served by the proxy's own apps
+            long proxyRequests = proxyServer.getMetrics ().get ("proxy.requests");
+            ClientResponse localResponse = httpClient.get ("http://localhost:8095/SimpleApp1x").get (5, TimeUnit.SECONDS);
+            Assert.assertTrue (localResponse.getBodyAsString ().contains ("got GET request for location /SimpleApp1x"));
+            Assert.assertEquals (proxyRequests, proxyServer.getMetrics ().get ("proxy.requests"));
+        }
+        finally
+        {
+            httpClient.close ();
+        }
+    }
+
+    @Test
+    public void testPostAndGatewayErrors() throws Exception
+    {
+        NioHttpClient httpClient = new NioHttpClient (upstreamB);
+        httpClient.setMaxConnectionsPerHost (1);
+        try
+        {
+            ClientRequest postRequest = new ClientRequest ("POST", "http://localhost:8095/SimpleApp2")
+                .addHeader ("Content-Type", "application/x-www-form-urlencoded")
+                .setBody ("user=user1&pass=abcd".getBytes (StandardCharsets.ISO_8859_1));
+            ClientResponse postResponse = httpClient.send (postRequest).get (5, TimeUnit.SECONDS);
+            Assert.assertTrue (postResponse.getBodyAsString ().contains ("with POST params: {pass=abcd, user=user1}"));
+
+            ClientResponse goneResponse = httpClient.get ("http://localhost:8095/gone").get (5, TimeUnit.SECONDS);
+            Assert.assertEquals (502, goneResponse.getStatusCode ());
+
+            long startMillis = System.currentTimeMillis ();
+            ClientResponse silentResponse = httpClient.get ("http://localhost:8095/silent").get (5, TimeUnit.SECONDS);
+            Assert.assertEquals (504, silentResponse.getStatusCode ());
+            Assert.assertTrue (System.currentTimeMillis () - startMillis < 2000);
+            Assert.assertTrue (proxyServer.getMetrics ().get ("proxy.gatewayTimeouts") > 0);
+
+            // The downstream connection survives both errors
+            Assert.assertEquals (200, httpClient.get ("http://localhost:8095/SimpleApp2").get (5, TimeUnit.SECONDS).getStatusCode ());
+            Assert.assertEquals (1, httpClient.getMetrics ().get ("client.connections"));
+
+            for (int i = 0; i < 3; i++)
+                Assert.assertTrue (httpClient.get ("http://localhost:8100/SimpleApp2?pooled" + i).get (5, TimeUnit.SECONDS).getBodyAsString ().contains ("location /SimpleApp2?pooled" + i + "<"));
+            Assert.assertEquals (502, httpClient.get ("http://localhost:8100/gone").get (5, TimeUnit.SECONDS).getStatusCode ());
+            Assert.assertEquals (2, httpClient.getMetrics ().get ("client.connections"));
+        }
+        finally
+        {
+            httpClient.close ();
+        }
+    }
+
+    @Test
+    public void testSlowClientHoldsBackUpstream() throws Exception
+    {
+        long writeWaits = slowProxyServer.getMetrics ().get ("connections.writeWaits");
+        SocketChannel slowChannel = SocketChannel.open ();
+        try
+        {
+            slowChannel.setOption (StandardSocketOptions.SO_RCVBUF, 4096);
+            slowChannel.connect (new InetSocketAddress (listenHost, slowProxyListenPort));
+            TestUtils.writeRequest (slowChannel, "GET /large HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            long waitUntil = System.currentTimeMillis () + 5000;
+            while (slowProxyServer.getMetrics ().get ("connections.writeWaits") == writeWaits && System.currentTimeMillis () < waitUntil)
+                Thread.sleep (10);
+            Assert.assertEquals (writeWaits + 1, slowProxyServer.getMetrics ().get ("connections.writeWaits"));
+
+            // Meanwhile the loop relays other responses, and reads no more of this one than the client's socket
+            // has taken
+            String otherResponse = TestUtils.sendRequest (listenHost, slowProxyListenPort, "GET /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            TestUtils.assertContains (otherResponse, "SimpleApp 1.0 got GET request for location /SimpleApp1");
+            Assert.assertTrue (slowProxyServer.getMetrics ().get ("proxy.bytesRelayed") < LARGE_LENGTH);
+
+            // The whole response arrives once the client reads it, and the connection carries on afterwards
+            String largeResponse = TestUtils.readResponse (slowChannel);
+            Assert.assertTrue (largeResponse.startsWith ("HTTP/1.1 200 OK\r\n"));
+            Assert.assertEquals (LARGE_LENGTH, largeResponse.length () - largeResponse.indexOf ("\r\n\r\n") - 4);
+            TestUtils.assertContains (TestUtils.sendGet (slowChannel, "/SimpleApp1?after", ""), "got GET request for location /SimpleApp1?after");
+        }
+        finally
+        {
+            slowChannel.close ();
+        }
+    }
+
+    @Test
+    public void testHealthChecksEjectDeadUpstream() throws Exception
+    {
+        NioHttpClient httpClient = new NioHttpClient (upstreamC);
+        try
+        {
+            // Before and after the dead upstream is ejected, every request is answered by the live one
+            for (int i = 0; i < 4; i++)
+                Assert.assertEquals (200, httpClient.get ("http://localhost:8096/SimpleApp1").get (5, TimeUnit.SECONDS).getStatusCode ());
+            long waitUntil = System.currentTimeMillis () + 3000;
+            while (checkedProxyServer.getMetrics ().get ("proxy.ejections") == 0 && System.currentTimeMillis () < waitUntil)
+                Thread.sleep (50);
+            Assert.assertEquals (1, checkedProxyServer.getMetrics ().get ("proxy.ejections"));
+            for (Upstream upstream : checkedProxyServer.getReverseProxy ().getUpstreams ())
+                Assert.assertEquals (upstream.toString (), upstream.getPort () == upstreamPortC, upstream.isHealthy ());
+
+            long retries = checkedProxyServer.getMetrics ().get ("proxy.retries");
+            for (int i = 0; i < 4; i++)
+                Assert.assertEquals (200, httpClient.get ("http://localhost:8096/SimpleApp1").get (5, TimeUnit.SECONDS).getStatusCode ());
+            Assert.assertEquals (retries, checkedProxyServer.getMetrics ().get ("proxy.retries"));
+        }
+        finally
+        {
+            httpClient.close ();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package nio;
+
+import nio.util.SelectedKeySet;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+public class SelectedKeySetTest
+{
+    @Test
+    public void testSelectorFillsArraySet() throws Exception
+    {
+        Selector selector = Selector.open ();
+        SelectedKeySet selectedKeySet = SelectedKeySet.install (selector);
+        // Reflection may be blocked on some JVMs, in which case the server falls back to the JDK set
+        Assume.assumeNotNull (selectedKeySet);
+
+        Pipe pipe = Pipe.open ();
+        pipe.source ().configureBlocking (false);
+        SelectionKey sourceKey = pipe.source ().register (selector, SelectionKey.OP_READ);
+        pipe.sink ().write (ByteBuffer.wrap (new byte[] {1}));
+
+        Assert.assertEquals (1, selector.select ());
+        Assert.assertSame (selectedKeySet, selector.selectedKeys ());
+        Assert.assertEquals (1, selectedKeySet.size ());
+        Assert.assertSame (sourceKey, selectedKeySet.get (0));
+
+        selectedKeySet.reset ();
+        Assert.assertEquals (0, selectedKeySet.size ());
+        Assert.assertNull (selectedKeySet.get (0));
+
+        pipe.sink ().close ();
+        pipe.source ().close ();
+        selector.close ();
+    }
+}
@@ -0,0 +1,36 @@
+package nio;
+
+import nio.api.HttpRequest;
+import nio.api.HttpResponse;
+import nio.api.NioWebApp;
+import nio.api.WebApp;
+import nio.session.Session;
+import nio.session.SessionStore;
+
+import java.io.IOException;
+
+// Counts the visits of each session to /SessionApp
+@WebApp ("/SessionApp")
+public class SessionApp implements NioWebApp
+{
+    static final SessionStore sessionStore = new SessionStore (1024 * 1024, 60000);
+
+    public void service (HttpRequest httpRequest, HttpResponse httpResponse) throws IOException
+    {
+        Session session = sessionStore.getSession (httpRequest, httpResponse);
+        String visitCount = session.getAttribute ("visits");
+        int visits = visitCount == null ? 1 : Integer.parseInt (visitCount) + 1;
+        session.setAttribute ("visits", String.valueOf (visits));
+        session.save ();
+        httpResponse.append ("visits ").append (String.valueOf (visits));
+        httpResponse.commitWriter (true);
+    }
+
+    public void start () throws IOException
+    {
+    }
+
+    public void stop () throws IOException
+    {
+    }
+}
@@ -0,0 +1,127 @@
+package nio;
+
+import nio.session.SessionStore;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SessionTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8111;
+    private static NioWebServer theServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        Thread.sleep (200);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+    }
+
+    @Test
+    public void testSessionCookie() throws Exception
+    {
+        String firstResponse = TestUtils.sendRequest (listenHost, listenPort, "GET /SessionApp HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        Assert.assertTrue (firstResponse, firstResponse.endsWith ("visits 1"));
+        int cookiePos = firstResponse.indexOf ("Set-Cookie: NIOSESSIONID=");
+        Assert.assertTrue (firstResponse, cookiePos > 0);
+        String sessionId = firstResponse.substring (cookiePos + 25, firstResponse.indexOf (';', cookiePos));
+        Assert.assertEquals (32, sessionId.length ());
+
+        String secondResponse = TestUtils.sendRequest (listenHost, listenPort, "GET /SessionApp HTTP/1.1\r\nHost: localhost\r\nCookie: theme=dark; NIOSESSIONID=" + sessionId + "\r\n\r\n");
+        Assert.assertTrue (secondResponse, secondResponse.endsWith ("visits 2"));
+        Assert.assertFalse (secondResponse, secondResponse.contains ("Set-Cookie"));
+
+        // An unknown ID starts a new session
+        String unknownResponse = TestUtils.sendRequest (listenHost, listenPort, "GET /SessionApp HTTP/1.1\r\nHost: localhost\r\nCookie: NIOSESSIONID=0123456789abcdef0123456789abcdef\r\n\r\n");
+        Assert.assertTrue (unknownResponse, unknownResponse.endsWith ("visits 1"));
+        Assert.assertFalse (unknownResponse, unknownResponse.contains ("NIOSESSIONID=0123456789abcdef0123456789abcdef"));
+    }
+
+    @Test
+    public void testIndexSurvivesRemovals()
+    {
+        SessionStore sessionStore = new SessionStore (16 * 1024 * 1024, 60000);
+        List <String> sessionIds = new ArrayList <> ();
+        for (int i = 0; i < 5000; i++)
+        {
+            String sessionId = String.format ("%016x%016x", i * 0x9E3779B97F4A7C15L, i + 1L);
+            sessionIds.add (sessionId);
+            Assert.assertTrue (sessionStore.put (sessionId, ("session " + i).getBytes (StandardCharsets.UTF_8)));
+        }
+        Assert.assertEquals (5000, sessionStore.size ());
+        for (int i = 0; i < 5000; i += 2)
+            Assert.assertTrue (sessionStore.remove (sessionIds.get (i)));
+        for (int i = 0; i < 5000; i++)
+        {
+            byte[] sessionBytes = sessionStore.get (sessionIds.get (i));
+            if (i % 2 == 0)
+                Assert.assertNull (sessionBytes);
+            else
+                Assert.assertEquals ("session " + i, new String (sessionBytes, StandardCharsets.UTF_8));
+        }
+        // A session that outgrows its slot moves to a larger one
+        byte[] largerSession = new byte[1000];
+        Assert.assertTrue (sessionStore.put (sessionIds.get (1), largerSession));
+        Assert.assertEquals (1000, sessionStore.get (sessionIds.get (1)).length);
+        Assert.assertEquals (2500, sessionStore.size ());
+    }
+
+    @Test
+    public void testExpiryAndMemoryCap() throws Exception
+    {
+        SessionStore sessionStore = new SessionStore (1024 * 1024, 100);
+        String sessionId = "00000000000000010000000000000001";
+        Assert.assertTrue (sessionStore.put (sessionId, new byte[10]));
+        Assert.assertNotNull (sessionStore.get (sessionId));
+        Thread.sleep (150);
+        Assert.assertNull (sessionStore.get (sessionId));
+
+        // One 64KB page per segment, so two 20KB sessions (32KB slots) in each fill it
+        sessionStore = new SessionStore (1024 * 1024, 100);
+        int storedCount = 0;
+        int refusedCount = 0;
+        for (int i = 1; i <= 200; i++)
+        {
+            if (sessionStore.put (String.format ("%016x%016x", i * 0x9E3779B97F4A7C15L, (long) i), new byte[20000]))
+                storedCount++;
+            else
+                refusedCount++;
+        }
+        Assert.assertEquals (32, storedCount);
+        Assert.assertEquals (168, refusedCount);
+        Assert.assertEquals (sessionStore.getMaxBytes (), sessionStore.getAllocatedBytes ());
+        Assert.assertFalse (sessionStore.put (sessionId, new byte[SessionStore.PAGE_SIZE + 1]));
+
+        // Once they expire their slots are reused
+        Thread.sleep (150);
+        Assert.assertTrue (sessionStore.put ("ffffffffffffffff0000000000000002", new byte[20000]));
+        Assert.assertEquals (sessionStore.getMaxBytes (), sessionStore.getAllocatedBytes ());
+    }
+}
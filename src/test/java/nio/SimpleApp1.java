@@ -3,9 +3,11 @@ package nio;
 import nio.api.HttpRequest;
 import nio.api.HttpResponse;
 import nio.api.NioWebApp;
+import nio.api.WebApp;
 
 import java.io.IOException;
 
+@WebApp ("/SimpleApp1")
 public class SimpleApp1 implements NioWebApp
 {
     private static final String APP_NAME = "SimpleApp 1.0";
@@ -3,10 +3,12 @@ package nio;
 import nio.api.HttpRequest;
 import nio.api.HttpResponse;
 import nio.api.NioWebApp;
+import nio.api.WebApp;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 
+@WebApp ("/SimpleApp2")
 public class SimpleApp2 implements NioWebApp
 {
     private static final String APP_NAME = "SimpleApp 2.0";
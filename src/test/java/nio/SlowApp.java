@@ -0,0 +1,68 @@
+package nio;
+
+import nio.api.HttpRequest;
+import nio.api.HttpResponse;
+import nio.api.NioWebApp;
+import nio.api.WebApp;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Answers /SlowApp?N after N milliseconds, saying how many times it has been called. /SlowApp?hold answers at once,
+// unless the test has asked for it to be held (see holdNextCall).
+@WebApp ("/SlowApp")
+public class SlowApp implements NioWebApp
+{
+    static final AtomicInteger serviceCount = new AtomicInteger ();
+    // Released once for each call that has started to be held
+    static final Semaphore heldCalls = new Semaphore (0);
+    private static final AtomicReference <CountDownLatch> nextHold = new AtomicReference <> ();
+
+    /**
+     * Hold the next call to /SlowApp?hold until the returned latch is counted down. Later calls are not held.
+     */
+    static CountDownLatch holdNextCall ()
+    {
+        CountDownLatch releaseLatch = new CountDownLatch (1);
+        nextHold.set (releaseLatch);
+        return releaseLatch;
+    }
+
+    public void service (HttpRequest httpRequest, HttpResponse httpResponse) throws IOException
+    {
+        String reqLocation = httpRequest.getReqLocation ();
+        int queryPos = reqLocation.indexOf ('?');
+        String reqQuery = queryPos < 0 ? "0" : reqLocation.substring (queryPos + 1);
+        try
+        {
+            if (reqQuery.equals ("hold"))
+            {
+                CountDownLatch releaseLatch = nextHold.getAndSet (null);
+                if (releaseLatch != null)
+                {
+                    heldCalls.release ();
+                    releaseLatch.await ();
+                }
+            }
+            else
+                Thread.sleep (Long.parseLong (reqQuery));
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException (e);
+        }
+        httpResponse.append ("SlowApp call ").append (String.valueOf (serviceCount.incrementAndGet ()));
+        httpResponse.commitWriter (true);
+    }
+
+    public void start () throws IOException
+    {
+    }
+
+    public void stop () throws IOException
+    {
+    }
+}
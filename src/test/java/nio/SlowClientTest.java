@@ -0,0 +1,118 @@
+package nio;
+
+import nio.api.HttpResponse;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+public class SlowClientTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8119;
+    private static int pooledListenPort = 8120;
+    // More than the kernel will buffer for a socket, so the server has to park the rest
+    private static final int LARGE_LENGTH = 8 * 1024 * 1024;
+    private static NioWebServer theServer;
+    private static NioPooledWebServer pooledServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        theServer.setKeepAlive (true);
+        addLarge (theServer);
+        startServer (theServer, listenPort);
+
+        pooledServer = new NioPooledWebServer ();
+        pooledServer.setKeepAlive (true);
+        addLarge (pooledServer);
+        startServer (pooledServer, pooledListenPort);
+        Thread.sleep (200);
+    }
+
+    private static void addLarge (NioWebServer nioServer) throws IOException
+    {
+        byte[] largeBody = new byte[LARGE_LENGTH];
+        Arrays.fill (largeBody, (byte) 'x');
+        HttpResponse largeResponse = new HttpResponse (null);
+        largeResponse.addHeader ("Content-Type", "text/plain");
+        largeResponse.setBody (largeBody);
+        nioServer.getFixedResponses ().put ("GET", "/large", largeResponse);
+    }
+
+    private static void startServer (final NioWebServer nioServer, final int serverPort)
+    {
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    nioServer.startServer (listenHost, serverPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+        pooledServer.stopAllApps ();
+    }
+
+    @Test
+    public void testSlowClientDoesNotBlockLoop() throws Exception
+    {
+        checkSlowClient (theServer, listenPort);
+    }
+
+    @Test
+    public void testSlowClientDoesNotBlockPooledLoop() throws Exception
+    {
+        checkSlowClient (pooledServer, pooledListenPort);
+    }
+
+    private static void checkSlowClient (NioWebServer nioServer, int serverPort) throws Exception
+    {
+        long writeWaits = nioServer.getMetrics ().get ("connections.writeWaits");
+        SocketChannel slowChannel = SocketChannel.open ();
+        try
+        {
+            slowChannel.setOption (StandardSocketOptions.SO_RCVBUF, 4096);
+            slowChannel.connect (new InetSocketAddress (listenHost, serverPort));
+            TestUtils.writeRequest (slowChannel, "GET /large HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+            // Nothing is read until the server has parked what the socket would not take
+            long waitUntil = System.currentTimeMillis () + 5000;
+            while (nioServer.getMetrics ().get ("connections.writeWaits") == writeWaits && System.currentTimeMillis () < waitUntil)
+                Thread.sleep (10);
+            Assert.assertEquals (writeWaits + 1, nioServer.getMetrics ().get ("connections.writeWaits"));
+
+            // Meanwhile the loop serves everyone else
+            String otherResponse = TestUtils.sendRequest (listenHost, serverPort, "GET /SimpleApp1 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            TestUtils.assertContains (otherResponse, "SimpleApp 1.0 got GET request for location /SimpleApp1");
+
+            // The slow client gets all of its response, and the connection carries on afterwards
+            String largeResponse = TestUtils.readResponse (slowChannel);
+            Assert.assertTrue (largeResponse.startsWith ("HTTP/1.1 200 OK\r\n"));
+            Assert.assertEquals (LARGE_LENGTH, largeResponse.length () - largeResponse.indexOf ("\r\n\r\n") - 4);
+            TestUtils.assertContains (TestUtils.sendGet (slowChannel, "/SimpleApp1?after", ""), "got GET request for location /SimpleApp1?after");
+        }
+        finally
+        {
+            slowChannel.close ();
+        }
+    }
+}
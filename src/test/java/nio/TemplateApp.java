@@ -0,0 +1,37 @@
+package nio;
+
+import nio.api.HttpRequest;
+import nio.api.HttpResponse;
+import nio.api.NioWebApp;
+import nio.api.WebApp;
+import nio.template.Template;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Renders a page from a template compiled once, with the request location filled in
+@WebApp ("/TemplateApp")
+public class TemplateApp implements NioWebApp
+{
+    private static final Template PAGE = Template.compile ("page", "<html><head><title>{{title}}</title></head><body><ul>{{#items}}<li>{{.}}</li>{{/items}}</ul>"
+        + "<p>{{location}}</p></body></html>");
+
+    public void service (HttpRequest httpRequest, HttpResponse httpResponse) throws IOException
+    {
+        Map <String, Object> pageValues = new HashMap <> ();
+        pageValues.put ("title", "Template & App");
+        pageValues.put ("items", Arrays.asList ("one", "two"));
+        pageValues.put ("location", httpRequest.getReqLocation ());
+        PAGE.render (pageValues, httpResponse);
+    }
+
+    public void start () throws IOException
+    {
+    }
+
+    public void stop () throws IOException
+    {
+    }
+}
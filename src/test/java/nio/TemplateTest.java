@@ -0,0 +1,163 @@
+package nio;
+
+import nio.template.Template;
+import nio.template.Templates;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TemplateTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8109;
+    private static NioWebServer theServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        theServer.setKeepAlive (true);
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        Thread.sleep (200);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+    }
+
+    @Test
+    public void testRender() throws Exception
+    {
+        Template template = Template.compile ("test", "<h1>{{title}}</h1>{{{html}}}{{#rows}}<p>{{name}}={{value}} of {{title}}</p>{{/rows}}"
+            + "{{#shown}}yes{{/shown}}{{#hidden}}no{{/hidden}}{{#missing}}no{{/missing}}<i>{{missing}}</i>.");
+        Map <String, Object> templateValues = new HashMap <> ();
+        templateValues.put ("title", "<Caf\u00e9 & \"Th\u00e9\">");
+        templateValues.put ("html", "<b>bold</b>");
+        templateValues.put ("rows", Arrays.asList (row ("a", 1), row ("b", "\u20ac")));
+        templateValues.put ("shown", Boolean.TRUE);
+        templateValues.put ("hidden", Collections.emptyList ());
+
+        ByteBuffer[] bodyBuffers = template.render (templateValues);
+        Assert.assertEquals ("<h1>&lt;Caf\u00e9 &amp; &quot;Th\u00e9&quot;&gt;</h1><b>bold</b><p>a=1 of &lt;Caf\u00e9 &amp; &quot;Th\u00e9&quot;&gt;</p>"
+            + "<p>b=\u20ac of &lt;Caf\u00e9 &amp; &quot;Th\u00e9&quot;&gt;</p>yes<i></i>.", join (bodyBuffers));
+        // Static markup is shared by every render, never copied
+        Assert.assertTrue (bodyBuffers[0].isDirect ());
+        Assert.assertTrue (bodyBuffers[0].isReadOnly ());
+        Assert.assertEquals ("<h1>", join (new ByteBuffer[] { bodyBuffers[0] }));
+        Assert.assertEquals (join (bodyBuffers), join (template.render (templateValues)));
+    }
+
+    @Test
+    public void testSyntaxErrors() throws Exception
+    {
+        for (String badText : new String[] { "<p>{{name</p>", "{{#rows}}<p>", "{{#rows}}{{/cols}}", "text{{/rows}}" })
+        {
+            try
+            {
+                Template.compile ("bad", badText);
+                Assert.fail ("Compiled " + badText);
+            }
+            catch (IllegalArgumentException e)
+            {
+                Assert.assertTrue (e.getMessage (), e.getMessage ().startsWith ("bad: "));
+            }
+        }
+    }
+
+    @Test
+    public void testReloadAndCache() throws Exception
+    {
+        Path templateDir = Files.createTempDirectory ("templates");
+        Path templatePath = templateDir.resolve ("greeting.html");
+        Files.write (templatePath, "Hello {{name}}".getBytes (StandardCharsets.UTF_8));
+        Templates devTemplates = new Templates (templateDir, true);
+        Templates prodTemplates = new Templates (templateDir, false);
+        Map <String, Object> templateValues = Collections.singletonMap ("name", "World");
+        Template devTemplate = devTemplates.get ("greeting.html");
+        Template prodTemplate = prodTemplates.get ("greeting.html");
+        Assert.assertSame (devTemplate, devTemplates.get ("greeting.html"));
+        Assert.assertEquals ("Hello World", join (devTemplate.render (templateValues)));
+
+        Files.write (templatePath, "Goodbye {{name}}".getBytes (StandardCharsets.UTF_8));
+        Files.setLastModifiedTime (templatePath, FileTime.fromMillis (Files.getLastModifiedTime (templatePath).toMillis () + 2000));
+        Assert.assertEquals ("Goodbye World", join (devTemplates.get ("greeting.html").render (templateValues)));
+        Assert.assertSame (prodTemplate, prodTemplates.get ("greeting.html"));
+
+        try
+        {
+            devTemplates.get ("../outside.html");
+            Assert.fail ("Loaded a template outside the directory");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // As it should be
+        }
+    }
+
+    @Test
+    public void testServedWithEntityTag() throws Exception
+    {
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort)))
+        {
+            String pageResponse = TestUtils.sendRequest (clientChannel, "GET /TemplateApp HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            String expectedBody = "<html><head><title>Template &amp; App</title></head><body><ul><li>one</li><li>two</li></ul><p>/TemplateApp</p></body></html>";
+            Assert.assertTrue (pageResponse, pageResponse.endsWith ("\r\n\r\n" + expectedBody));
+            Assert.assertTrue (pageResponse, pageResponse.contains ("Content-Type: text/html; charset=UTF-8\r\n"));
+            Assert.assertTrue (pageResponse, pageResponse.contains ("Content-Length: " + expectedBody.length () + "\r\n"));
+            int tagStart = pageResponse.indexOf ("ETag: ") + 6;
+            String entityTag = pageResponse.substring (tagStart, pageResponse.indexOf ("\r\n", tagStart));
+
+            String notModified = TestUtils.sendRequest (clientChannel, "GET /TemplateApp HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: " + entityTag + "\r\n\r\n");
+            Assert.assertTrue (notModified, notModified.startsWith ("HTTP/1.1 304 Not Modified\r\n"));
+        }
+    }
+
+    private static Map <String, Object> row (String rowName, Object rowValue)
+    {
+        Map <String, Object> rowValues = new HashMap <> ();
+        rowValues.put ("name", rowName);
+        rowValues.put ("value", rowValue);
+        return rowValues;
+    }
+
+    private static String join (ByteBuffer[] bodyBuffers)
+    {
+        StringBuilder joinedText = new StringBuilder ();
+        for (ByteBuffer bodyBuffer : bodyBuffers)
+        {
+            byte[] partBytes = new byte[bodyBuffer.remaining ()];
+            bodyBuffer.duplicate ().get (partBytes);
+            joinedText.append (new String (partBytes, StandardCharsets.UTF_8));
+        }
+        return joinedText.toString ();
+    }
+}
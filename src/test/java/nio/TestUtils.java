@@ -17,8 +17,11 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -371,6 +374,91 @@ public class TestUtils
         return output.toByteArray ();
     }
 
+    /**
+     * Write a raw request to the channel
+     */
+    public static void writeRequest (SocketChannel clientChannel, String rawRequest) throws IOException
+    {
+        ByteBuffer outBuffer = ByteBuffer.wrap (rawRequest.getBytes (StandardCharsets.ISO_8859_1));
+        while (outBuffer.hasRemaining ())
+            clientChannel.write (outBuffer);
+    }
+
+    /**
+     * Write a raw request to the channel and read its response
+     */
+    public static String sendRequest (SocketChannel clientChannel, String rawRequest) throws IOException
+    {
+        writeRequest (clientChannel, rawRequest);
+        return readResponse (clientChannel);
+    }
+
+    /**
+     * Send a GET for reqLocation, with any extra header lines given, and read its response
+     */
+    public static String sendGet (SocketChannel clientChannel, String reqLocation, String extraHeaders) throws IOException
+    {
+        return sendRequest (clientChannel, "GET " + reqLocation + " HTTP/1.1\r\nHost: localhost\r\n" + extraHeaders + "\r\n");
+    }
+
+    /**
+     * Send a raw request on a connection of its own and read everything until the server closes it
+     */
+    public static String sendRequest (String listenHost, int listenPort, String rawRequest) throws IOException
+    {
+        try (SocketChannel clientChannel = SocketChannel.open (new InetSocketAddress (listenHost, listenPort)))
+        {
+            writeRequest (clientChannel, rawRequest);
+            return readUntilClosed (clientChannel);
+        }
+    }
+
+    /**
+     * Read one response. It is framed by its Content-Length, or has no body if it is a 304 or 204, or else ends
+     * when the connection does. The headers are read a byte at a time and the body up to its length, so a
+     * pipelined response behind it is left unread.
+     */
+    public static String readResponse (SocketChannel clientChannel) throws IOException
+    {
+        ByteBuffer headerBuffer = ByteBuffer.allocate (16 * 1024);
+        String headerString = "";
+        while (!headerString.endsWith ("\r\n\r\n"))
+        {
+            headerBuffer.limit (headerBuffer.position () + 1);
+            if (clientChannel.read (headerBuffer) < 0)
+                throw new IOException ("Connection closed before the response was complete");
+            headerString = new String (headerBuffer.array (), 0, headerBuffer.position (), StandardCharsets.ISO_8859_1);
+        }
+        if (headerString.startsWith ("HTTP/1.1 304") || headerString.startsWith ("HTTP/1.1 204"))
+            return headerString;
+        int lengthPos = headerString.indexOf ("Content-Length: ");
+        if (lengthPos < 0)
+            return headerString + readUntilClosed (clientChannel);
+        int contentLength = Integer.parseInt (headerString.substring (lengthPos + 16, headerString.indexOf ("\r\n", lengthPos)));
+        ByteBuffer bodyBuffer = ByteBuffer.allocate (contentLength);
+        while (bodyBuffer.hasRemaining ())
+        {
+            if (clientChannel.read (bodyBuffer) < 0)
+                throw new IOException ("Connection closed before the response was complete");
+        }
+        return headerString + new String (bodyBuffer.array (), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read everything until the server closes the connection
+     */
+    public static String readUntilClosed (SocketChannel clientChannel) throws IOException
+    {
+        ByteArrayOutputStream responseBytes = new ByteArrayOutputStream ();
+        ByteBuffer inBuffer = ByteBuffer.allocate (16 * 1024);
+        while (clientChannel.read (inBuffer) >= 0)
+        {
+            responseBytes.write (inBuffer.array (), 0, inBuffer.position ());
+            inBuffer.clear ();
+        }
+        return new String (responseBytes.toByteArray (), StandardCharsets.UTF_8);
+    }
+
     public static class HttpResponse
     {
         public int responseCode;
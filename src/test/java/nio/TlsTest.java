@@ -0,0 +1,177 @@
+package nio;
+
+import nio.tls.TlsConfig;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+
+public class TlsTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8084;
+    static final String KEY_STORE_PASSWORD = "changeit";
+    private static NioWebServer theServer;
+    private static SSLContext clientContext;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        theServer.setTlsConfig (TlsConfig.fromKeyStore (createKeyStore (), KEY_STORE_PASSWORD.toCharArray (), "PKCS12"));
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+
+        // The certificate is self-signed, so the test client trusts anything
+        clientContext = SSLContext.getInstance ("TLS");
+        clientContext.init (null, new TrustManager[] {new TrustAllManager ()}, null);
+        Thread.sleep (200);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+    }
+
+    // Generate a self-signed certificate for localhost with the JDK's keytool
+    static String createKeyStore () throws Exception
+    {
+        File keyStoreFile = new File ("target", "tls-test.p12");
+        if (keyStoreFile.exists ())
+            return keyStoreFile.getPath ();
+        keyStoreFile.getParentFile ().mkdirs ();
+        String keyTool = System.getProperty ("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process keyToolProcess = new ProcessBuilder (keyTool, "-genkeypair", "-alias", "nio", "-keyalg", "RSA", "-keysize", "2048",
+            "-validity", "30", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+            "-keystore", keyStoreFile.getPath (), "-storepass", KEY_STORE_PASSWORD, "-keypass", KEY_STORE_PASSWORD)
+            .inheritIO ().start ();
+        Assert.assertEquals (0, keyToolProcess.waitFor ());
+        return keyStoreFile.getPath ();
+    }
+
+    @Test
+    public void testHttpsRequest () throws Exception
+    {
+        try (SSLSocket sslSocket = openSocket ())
+        {
+            String httpResponse = sendRequest (sslSocket, "/SimpleApp1");
+            Assert.assertTrue (httpResponse.startsWith ("HTTP/1.1 200"));
+            Assert.assertTrue (httpResponse.contains ("SimpleApp 1.0 got GET request for location /SimpleApp1"));
+        }
+    }
+
+    @Test
+    public void testHttpsPost () throws Exception
+    {
+        try (SSLSocket sslSocket = openSocket ())
+        {
+            String reqBody = "user=user1&pass=abcd";
+            String rawRequest = "POST /SimpleApp2 HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + reqBody.length () + "\r\n\r\n" + reqBody;
+            String httpResponse = sendRaw (sslSocket, rawRequest);
+            Assert.assertTrue (httpResponse.contains ("SimpleApp 2.0 got POST request for location /SimpleApp2"));
+            Assert.assertTrue (httpResponse.contains ("user1"));
+        }
+    }
+
+    @Test
+    public void testAlpn () throws Exception
+    {
+        try (SSLSocket sslSocket = openSocket ())
+        {
+            sslSocket.startHandshake ();
+            Assert.assertEquals ("http/1.1", sslSocket.getApplicationProtocol ());
+        }
+    }
+
+    @Test
+    public void testSessionResumption () throws Exception
+    {
+        long resumedBefore = theServer.getMetrics ().get ("tls.sessionsResumed");
+        long handshakesBefore = theServer.getMetrics ().get ("tls.handshakes");
+        for (int i = 0; i < 3; i++)
+        {
+            try (SSLSocket sslSocket = openSocket ())
+            {
+                Assert.assertTrue (sendRequest (sslSocket, "/SimpleApp1").contains ("SimpleApp 1.0"));
+            }
+        }
+        // The client caches the session from the first connection and the later ones resume it
+        Assert.assertTrue (theServer.getMetrics ().get ("tls.handshakes") - handshakesBefore >= 3);
+        Assert.assertTrue (theServer.getMetrics ().get ("tls.sessionsResumed") - resumedBefore >= 2);
+        Assert.assertEquals (0, theServer.tlsPacketPool.getOutstanding ());
+        Assert.assertEquals (0, theServer.tlsAppPool.getOutstanding ());
+    }
+
+    private static SSLSocket openSocket () throws IOException
+    {
+        SSLSocket sslSocket = (SSLSocket) clientContext.getSocketFactory ().createSocket (listenHost, listenPort);
+        SSLParameters sslParameters = sslSocket.getSSLParameters ();
+        sslParameters.setApplicationProtocols (new String[] {"http/1.1"});
+        sslSocket.setSSLParameters (sslParameters);
+        sslSocket.setSoTimeout (5000);
+        return sslSocket;
+    }
+
+    private static String sendRequest (SSLSocket sslSocket, String reqLocation) throws IOException
+    {
+        return sendRaw (sslSocket, "GET " + reqLocation + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    }
+
+    // Keep-alive is off, so the server closes the connection after the response
+    private static String sendRaw (SSLSocket sslSocket, String rawRequest) throws IOException
+    {
+        OutputStream outputStream = sslSocket.getOutputStream ();
+        outputStream.write (rawRequest.getBytes (StandardCharsets.ISO_8859_1));
+        outputStream.flush ();
+
+        InputStream inputStream = sslSocket.getInputStream ();
+        ByteArrayOutputStream responseBytes = new ByteArrayOutputStream ();
+        byte[] readBuffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = inputStream.read (readBuffer)) > 0)
+            responseBytes.write (readBuffer, 0, bytesRead);
+        return new String (responseBytes.toByteArray (), StandardCharsets.ISO_8859_1);
+    }
+
+    static class TrustAllManager implements X509TrustManager
+    {
+        public void checkClientTrusted (X509Certificate[] certificateChain, String authType)
+        {
+        }
+
+        public void checkServerTrusted (X509Certificate[] certificateChain, String authType)
+        {
+        }
+
+        public X509Certificate[] getAcceptedIssuers ()
+        {
+            return new X509Certificate[0];
+        }
+    }
+}
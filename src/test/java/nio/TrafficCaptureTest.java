@@ -0,0 +1,130 @@
+package nio;
+
+import nio.capture.JournalReader;
+import nio.capture.ReplayReport;
+import nio.capture.TrafficJournal;
+import nio.capture.TrafficReplay;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class TrafficCaptureTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8114;
+    private static Path journalDir;
+    private static TrafficJournal trafficJournal;
+    private static NioWebServer theServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        journalDir = Files.createTempDirectory ("journal");
+        trafficJournal = new TrafficJournal (journalDir.resolve ("traffic.journal"), 1 << 20, 1024);
+        theServer = new NioWebServer ();
+        theServer.setTrafficJournal (trafficJournal);
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    theServer.startServer (listenHost, listenPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }).start();
+        Thread.sleep (200);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+        for (Path segmentPath : JournalReader.listSegments (journalDir.resolve ("traffic.journal")))
+            Files.delete (segmentPath);
+        journalDir.toFile ().deleteOnExit ();
+    }
+
+    @Test
+    public void testCaptureAndReplay() throws Exception
+    {
+        for (int i = 0; i < 5; i++)
+            Assert.assertEquals (200, TestUtils.getUrl ("http://" + listenHost + ":" + listenPort + "/SimpleApp1?n=" + i, null).responseCode);
+        trafficJournal.close ();
+        Assert.assertEquals (5, trafficJournal.getCaptured ());
+        Assert.assertEquals (0, trafficJournal.getDropped ());
+
+        // The requests come back in order, as they were read
+        try (JournalReader journalReader = new JournalReader (trafficJournal.getJournalPath ()))
+        {
+            long lastNanos = -1;
+            for (int i = 0; i < 5; i++)
+            {
+                Assert.assertTrue (journalReader.next ());
+                String reqData = new String (journalReader.getRequestBytes (), StandardCharsets.ISO_8859_1);
+                Assert.assertTrue (reqData, reqData.startsWith ("GET /SimpleApp1?n=" + i + " HTTP/1.1\r\n"));
+                Assert.assertTrue (reqData.endsWith ("\r\n\r\n"));
+                Assert.assertTrue (journalReader.getCaptureNanos () >= lastNanos);
+                lastNanos = journalReader.getCaptureNanos ();
+            }
+            Assert.assertFalse (journalReader.next ());
+        }
+
+        TrafficReplay trafficReplay = new TrafficReplay (trafficJournal.getJournalPath ());
+        trafficReplay.setSpeed (0);
+        ReplayReport replayReport = trafficReplay.replay (listenHost, listenPort);
+        Assert.assertEquals (replayReport.toString (), 5, replayReport.getResponses ());
+        Assert.assertEquals (0, replayReport.getErrors ());
+        Assert.assertEquals (5, replayReport.getStatusCount (200));
+        Assert.assertTrue (replayReport.getLatencyMicros (50) <= replayReport.getLatencyMicros (100));
+    }
+
+    @Test
+    public void testSegmentsRotate() throws Exception
+    {
+        Path journalPath = journalDir.resolve ("rotate.journal");
+        TrafficJournal rotatingJournal = new TrafficJournal (journalPath, 4096, 1024);
+        rotatingJournal.setMaxSegments (2);
+        byte[] reqBytes = new byte[200];
+        for (int i = 0; i < 100; i++)
+        {
+            Arrays.fill (reqBytes, (byte) i);
+            Assert.assertTrue (rotatingJournal.capture (i, reqBytes, 0, reqBytes.length));
+        }
+        // Too big for any segment
+        Assert.assertTrue (rotatingJournal.capture (100, new byte[8192], 0, 8192));
+        rotatingJournal.close ();
+        Assert.assertEquals (100, rotatingJournal.getCaptured ());
+        Assert.assertEquals (1, rotatingJournal.getDropped ());
+        Assert.assertEquals (2, JournalReader.listSegments (journalPath).size ());
+
+        // Only the newest records are left, ending with the last one captured
+        int recordCount = 0;
+        int lastConnectionId = -1;
+        try (JournalReader journalReader = new JournalReader (journalPath))
+        {
+            while (journalReader.next ())
+            {
+                Assert.assertTrue (journalReader.getConnectionId () > lastConnectionId);
+                lastConnectionId = journalReader.getConnectionId ();
+                Assert.assertEquals ((byte) lastConnectionId, journalReader.getRequestBytes ()[199]);
+                recordCount++;
+            }
+        }
+        Assert.assertEquals (99, lastConnectionId);
+        Assert.assertTrue (recordCount > 0 && recordCount < 100);
+        for (Path segmentPath : JournalReader.listSegments (journalPath))
+            Files.delete (segmentPath);
+    }
+}
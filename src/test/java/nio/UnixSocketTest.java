@@ -0,0 +1,119 @@
+package nio;
+
+import nio.util.UnixDomainSockets;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class UnixSocketTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8115;
+    private static int coreListenPort = 8116;
+    private static UnixDomainSockets unixDomainSockets = UnixDomainSockets.newUnixDomainSockets ();
+    private static Path socketDir;
+    private static NioWebServer theServer;
+    private static NioCoreWebServer coreServer;
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        Assume.assumeTrue (unixDomainSockets != null);
+        socketDir = Files.createTempDirectory ("nio");
+        theServer = new NioWebServer ();
+        theServer.setKeepAlive (true);
+        theServer.addUnixListener (socketDir.resolve ("server.sock"));
+        coreServer = new NioCoreWebServer ();
+        coreServer.setCpuCount (2);
+        coreServer.addUnixListener (socketDir.resolve ("core.sock"));
+        for (NioWebServer eachServer : new NioWebServer[] { theServer, coreServer })
+        {
+            int eachPort = eachServer == theServer ? listenPort : coreListenPort;
+            new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        eachServer.startServer (listenHost, eachPort, "nio");
+                    }
+                    catch (IOException e)
+                    {
+                        e.printStackTrace ();
+                    }
+                }
+            }).start();
+        }
+        Thread.sleep (200);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        if (theServer == null)
+            return;
+        theServer.stopAllApps ();
+        coreServer.stopAllApps ();
+        Files.deleteIfExists (socketDir.resolve ("server.sock"));
+        Files.deleteIfExists (socketDir.resolve ("core.sock"));
+        Files.deleteIfExists (socketDir);
+    }
+
+    @Test
+    public void testUnixAndTcpListenersTogether() throws Exception
+    {
+        Assert.assertEquals (200, TestUtils.getUrl ("http://" + listenHost + ":" + listenPort + "/SimpleApp1", null).responseCode);
+        try (SocketChannel unixChannel = unixDomainSockets.connect (socketDir.resolve ("server.sock")))
+        {
+            // Kept alive across requests, like a TCP connection
+            for (int i = 0; i < 3; i++)
+            {
+                String responseText = getOverUnix (unixChannel, "/SimpleApp1?n=" + i);
+                Assert.assertTrue (responseText, responseText.startsWith ("HTTP/1.1 200"));
+                Assert.assertTrue (responseText, responseText.contains ("request for location /SimpleApp1?n=" + i));
+            }
+        }
+        Assert.assertEquals (200, TestUtils.getUrl ("http://" + listenHost + ":" + listenPort + "/SimpleApp1", null).responseCode);
+    }
+
+    @Test
+    public void testCoreLoopsShareUnixListener() throws Exception
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            try (SocketChannel unixChannel = unixDomainSockets.connect (socketDir.resolve ("core.sock")))
+            {
+                String responseText = getOverUnix (unixChannel, "/SimpleApp2");
+                Assert.assertTrue (responseText, responseText.startsWith ("HTTP/1.1 200"));
+            }
+        }
+        Assert.assertEquals (200, TestUtils.getUrl ("http://" + listenHost + ":" + coreListenPort + "/SimpleApp2", null).responseCode);
+    }
+
+    // Send a GET and read its response, which SimpleApps end with </html>
+    private static String getOverUnix (SocketChannel unixChannel, String reqLocation) throws IOException
+    {
+        String rawRequest = "GET " + reqLocation + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        unixChannel.write (ByteBuffer.wrap (rawRequest.getBytes (StandardCharsets.ISO_8859_1)));
+        ByteBuffer readBuffer = ByteBuffer.allocate (8192);
+        StringBuilder responseText = new StringBuilder ();
+        while (responseText.indexOf ("</html>") < 0)
+        {
+            readBuffer.clear ();
+            if (unixChannel.read (readBuffer) < 0)
+                break;
+            readBuffer.flip ();
+            responseText.append (StandardCharsets.ISO_8859_1.decode (readBuffer));
+        }
+        return responseText.toString ();
+    }
+}
@@ -0,0 +1,42 @@
+package nio;
+
+import nio.api.HttpRequest;
+import nio.api.HttpResponse;
+import nio.api.NioWebApp;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ValidatedApp implements NioWebApp
+{
+    private static final String APP_NAME = "ValidatedApp 1.0";
+    static final String LAST_MODIFIED = "Tue, 15 Nov 1994 12:45:26 GMT";
+    static final AtomicInteger serviceCount = new AtomicInteger ();
+
+    public void service (HttpRequest httpRequest, HttpResponse httpResponse) throws IOException
+    {
+        serviceCount.incrementAndGet ();
+        httpResponse.addHeader ("Content-Type", "text/plain");
+        httpResponse.addHeader ("Last-Modified", LAST_MODIFIED);
+        if (httpRequest.getReqLocation ().contains ("cached"))
+            httpResponse.addHeader ("Cache-Control", "public, max-age=60");
+        if (httpRequest.getReqLocation ().contains ("cookie"))
+            httpResponse.addHeader ("Set-Cookie", "visitor=" + serviceCount.get ());
+        if (httpRequest.getReqLocation ().contains ("vary"))
+            httpResponse.addHeader ("Vary", "Accept-Language");
+        if (httpRequest.getReqLocation ().contains ("tagged"))
+            httpResponse.addHeader ("ETag", "W/\"v1\"");
+        httpResponse.append (APP_NAME).append (" served ").append (httpRequest.getReqLocation ());
+        httpResponse.commitWriter (true);
+    }
+
+    public void start () throws IOException
+    {
+        System.out.println ("Starting " + APP_NAME);
+    }
+
+    public void stop () throws IOException
+    {
+        System.out.println ("Stopping " + APP_NAME);
+    }
+}
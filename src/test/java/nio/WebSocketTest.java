@@ -0,0 +1,410 @@
+package nio;
+
+import nio.websocket.WebSocketConnection;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class WebSocketTest
+{
+    private static String listenHost = "localhost";
+    private static int listenPort = 8087;
+    private static int pooledListenPort = 8088;
+    private static int cappedListenPort = 8123;
+    private static final long MAX_PENDING_BYTES = 1024 * 1024;
+    private static final String LOOP_THREAD = "WebSocketLoop";
+    private static final long IDLE_TIMEOUT = 300;
+    private static final String SAMPLE_KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+    private static NioWebServer theServer;
+    private static NioPooledWebServer pooledServer;
+    private static NioWebServer cappedServer;
+    private final Random maskRandom = new Random ();
+
+    @BeforeClass
+    public static void setUp () throws Exception
+    {
+        theServer = new NioWebServer ();
+        startServer (theServer, listenPort, LOOP_THREAD);
+        pooledServer = new NioPooledWebServer ();
+        pooledServer.setIdleTimeoutMillis (IDLE_TIMEOUT);
+        startServer (pooledServer, pooledListenPort, "PooledWebSocketLoop");
+        cappedServer = new NioWebServer ();
+        cappedServer.setMaxWebSocketPendingBytes (MAX_PENDING_BYTES);
+        startServer (cappedServer, cappedListenPort, "CappedWebSocketLoop");
+        Thread.sleep (200);
+    }
+
+    private static void startServer (final NioWebServer nioServer, final int serverPort, String threadName)
+    {
+        new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    nioServer.startServer (listenHost, serverPort, "nio");
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace ();
+                }
+            }
+        }, threadName).start();
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception
+    {
+        theServer.stopAllApps ();
+        pooledServer.stopAllApps ();
+        cappedServer.stopAllApps ();
+    }
+
+    @Test
+    public void testHandshakeAndEcho() throws Exception
+    {
+        Assert.assertEquals ("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocketConnection.getAcceptKey (SAMPLE_KEY));
+        try (Socket clientSocket = new Socket (listenHost, listenPort))
+        {
+            String handshakeResponse = sendHandshake (clientSocket, "/EchoSocketApp", "13");
+            Assert.assertTrue (handshakeResponse, handshakeResponse.startsWith ("HTTP/1.1 101 Switching Protocols"));
+            Assert.assertTrue (handshakeResponse.contains ("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo="));
+
+            DataInputStream inStream = new DataInputStream (clientSocket.getInputStream ());
+            OutputStream outStream = clientSocket.getOutputStream ();
+            sendFrame (outStream, true, WebSocketConnection.OPCODE_TEXT, "hello \u00e9\u20ac".getBytes (StandardCharsets.UTF_8));
+            Assert.assertEquals ("hello \u00e9\u20ac", readText (inStream));
+
+            // 16 and 64 bit lengths, the larger far bigger than a pooled read buffer
+            for (int payloadLength : new int[] { 300, 70000 })
+            {
+                byte[] binaryPayload = new byte[payloadLength];
+                maskRandom.nextBytes (binaryPayload);
+                sendFrame (outStream, true, WebSocketConnection.OPCODE_BINARY, binaryPayload);
+                Frame echoFrame = readFrame (inStream);
+                Assert.assertEquals (WebSocketConnection.OPCODE_BINARY, echoFrame.frameOpcode);
+                Assert.assertArrayEquals (binaryPayload, echoFrame.framePayload);
+            }
+        }
+        // Plain requests to the same app still reach service ()
+        Assert.assertTrue (TestUtils.getUrl ("http://localhost:8087/EchoSocketApp", null).getResponseString ().contains ("EchoSocket 1.0 served /EchoSocketApp"));
+        Assert.assertEquals (0, theServer.bufferPool.getOutstanding ());
+    }
+
+    @Test
+    public void testFragmentationAndPing() throws Exception
+    {
+        try (Socket clientSocket = openWebSocket (listenPort, "/EchoSocketApp"))
+        {
+            DataInputStream inStream = new DataInputStream (clientSocket.getInputStream ());
+            OutputStream outStream = clientSocket.getOutputStream ();
+            sendFrame (outStream, false, WebSocketConnection.OPCODE_TEXT, "Hel".getBytes (StandardCharsets.UTF_8));
+            // Control frames may come between fragments
+            sendFrame (outStream, true, WebSocketConnection.OPCODE_PING, "p1".getBytes (StandardCharsets.UTF_8));
+            sendFrame (outStream, false, WebSocketConnection.OPCODE_CONTINUATION, "lo, ".getBytes (StandardCharsets.UTF_8));
+            sendFrame (outStream, true, WebSocketConnection.OPCODE_CONTINUATION, "world".getBytes (StandardCharsets.UTF_8));
+
+            Frame pongFrame = readFrame (inStream);
+            Assert.assertEquals (WebSocketConnection.OPCODE_PONG, pongFrame.frameOpcode);
+            Assert.assertEquals ("p1", new String (pongFrame.framePayload, StandardCharsets.UTF_8));
+            Assert.assertEquals ("Hello, world", readText (inStream));
+        }
+    }
+
+    @Test
+    public void testBroadcastAndForeignThreadSend() throws Exception
+    {
+        List <Socket> clientSockets = new ArrayList <> ();
+        try
+        {
+            for (int i = 0; i < 3; i++)
+                clientSockets.add (openWebSocket (listenPort, "/EchoSocketApp/room1"));
+            sendFrame (clientSockets.get (0).getOutputStream (), true, WebSocketConnection.OPCODE_TEXT, "broadcast:hi all".getBytes (StandardCharsets.UTF_8));
+            for (Socket clientSocket : clientSockets)
+                Assert.assertEquals ("hi all", readText (new DataInputStream (clientSocket.getInputStream ())));
+
+            // Sent from this thread, written by the loop
+            Set <nio.api.WebSocket> roomSockets = EchoSocketApp.rooms.get ("/EchoSocketApp/room1");
+            Assert.assertEquals (3, roomSockets.size ());
+            for (nio.api.WebSocket webSocket : roomSockets)
+                webSocket.sendText ("from the test thread");
+            for (Socket clientSocket : clientSockets)
+                Assert.assertEquals ("from the test thread", readText (new DataInputStream (clientSocket.getInputStream ())));
+
+            // Every callback of the single loop server ran on its event loop
+            Assert.assertTrue (EchoSocketApp.callbackThreads.toString (), EchoSocketApp.callbackThreads.contains (LOOP_THREAD));
+            Assert.assertFalse (EchoSocketApp.callbackThreads.contains (Thread.currentThread ().getName ()));
+            Assert.assertTrue (theServer.getMetrics ().get ("websocket.upgrades") >= 3);
+        }
+        finally
+        {
+            for (Socket clientSocket : clientSockets)
+                clientSocket.close ();
+        }
+    }
+
+    @Test
+    public void testSlowClientDoesNotHoldUpBroadcast() throws Exception
+    {
+        char[] messageChars = new char[64 * 1024];
+        Arrays.fill (messageChars, 'x');
+        String textMessage = new String (messageChars);
+        // More than the kernel will buffer for the slow client, so the loop has to queue the rest
+        int messageCount = 128;
+        long writeWaits = theServer.getMetrics ().get ("connections.writeWaits");
+        Socket slowSocket = new Socket ();
+        slowSocket.setReceiveBufferSize (4096);
+        slowSocket.connect (new InetSocketAddress (listenHost, listenPort));
+        try (Socket fastSocket = openWebSocket (listenPort, "/EchoSocketApp/slow"))
+        {
+            Assert.assertTrue (sendHandshake (slowSocket, "/EchoSocketApp/slow", "13").startsWith ("HTTP/1.1 101"));
+            DataInputStream fastStream = new DataInputStream (fastSocket.getInputStream ());
+            // The slow client reads nothing, yet every broadcast reaches the fast one as soon as it is sent
+            for (int i = 0; i < messageCount; i++)
+            {
+                sendFrame (fastSocket.getOutputStream (), true, WebSocketConnection.OPCODE_TEXT, ("broadcast:" + textMessage).getBytes (StandardCharsets.UTF_8));
+                Assert.assertEquals (textMessage, readText (fastStream));
+            }
+            Assert.assertTrue (theServer.getMetrics ().get ("connections.writeWaits") > writeWaits);
+
+            // Everything queued for the slow client arrives, in order, and it carries on as normal
+            DataInputStream slowStream = new DataInputStream (slowSocket.getInputStream ());
+            for (int i = 0; i < messageCount; i++)
+                Assert.assertEquals (textMessage, readText (slowStream));
+            sendFrame (slowSocket.getOutputStream (), true, WebSocketConnection.OPCODE_TEXT, "caught up".getBytes (StandardCharsets.UTF_8));
+            Assert.assertEquals ("caught up", readText (slowStream));
+        }
+        finally
+        {
+            slowSocket.close ();
+        }
+    }
+
+    @Test
+    public void testClientThatStopsReadingIsDropped() throws Exception
+    {
+        char[] messageChars = new char[64 * 1024];
+        Arrays.fill (messageChars, 'x');
+        String textMessage = new String (messageChars);
+        EchoSocketApp.lastCloseCode.set (0);
+        Socket slowSocket = new Socket ();
+        slowSocket.setReceiveBufferSize (4096);
+        slowSocket.connect (new InetSocketAddress (listenHost, cappedListenPort));
+        try (Socket fastSocket = openWebSocket (cappedListenPort, "/EchoSocketApp/capped"))
+        {
+            Assert.assertTrue (sendHandshake (slowSocket, "/EchoSocketApp/capped", "13").startsWith ("HTTP/1.1 101"));
+            DataInputStream fastStream = new DataInputStream (fastSocket.getInputStream ());
+            // Broadcast until the slow client has left more unread than the limit, beyond what the kernel buffers
+            int messageCount = 0;
+            while (EchoSocketApp.lastCloseCode.get () == 0 && messageCount < 1024)
+            {
+                sendFrame (fastSocket.getOutputStream (), true, WebSocketConnection.OPCODE_TEXT, ("broadcast:" + textMessage).getBytes (StandardCharsets.UTF_8));
+                Assert.assertEquals (textMessage, readText (fastStream));
+                messageCount++;
+            }
+            Assert.assertEquals (WebSocketConnection.CLOSE_POLICY_VIOLATION, EchoSocketApp.lastCloseCode.get ());
+
+            // The slow client gets what the kernel held for it, then the end of the stream
+            slowSocket.setSoTimeout (5000);
+            byte[] readBytes = new byte[64 * 1024];
+            while (slowSocket.getInputStream ().read (readBytes) >= 0)
+                continue;
+
+            // The fast client carries on
+            sendFrame (fastSocket.getOutputStream (), true, WebSocketConnection.OPCODE_TEXT, "still here".getBytes (StandardCharsets.UTF_8));
+            Assert.assertEquals ("still here", readText (fastStream));
+        }
+        finally
+        {
+            slowSocket.close ();
+        }
+    }
+
+    @Test
+    public void testCloseHandshake() throws Exception
+    {
+        try (Socket clientSocket = openWebSocket (listenPort, "/EchoSocketApp/close"))
+        {
+            DataInputStream inStream = new DataInputStream (clientSocket.getInputStream ());
+            sendFrame (clientSocket.getOutputStream (), true, WebSocketConnection.OPCODE_CLOSE, closePayload (3001, "bye"));
+            Frame closeFrame = readFrame (inStream);
+            Assert.assertEquals (WebSocketConnection.OPCODE_CLOSE, closeFrame.frameOpcode);
+            Assert.assertEquals (3001, ByteBuffer.wrap (closeFrame.framePayload).getShort () & 0xFFFF);
+            Assert.assertEquals (-1, inStream.read ());
+        }
+        Assert.assertEquals (3001, EchoSocketApp.lastCloseCode.get ());
+    }
+
+    @Test
+    public void testProtocolErrors() throws Exception
+    {
+        try (Socket clientSocket = new Socket (listenHost, listenPort))
+        {
+            Assert.assertTrue (sendHandshake (clientSocket, "/EchoSocketApp", "8").startsWith ("HTTP/1.1 426 Upgrade Required"));
+        }
+
+        // Client frames must be masked
+        try (Socket clientSocket = openWebSocket (listenPort, "/EchoSocketApp"))
+        {
+            DataInputStream inStream = new DataInputStream (clientSocket.getInputStream ());
+            clientSocket.getOutputStream ().write (new byte[] { (byte) 0x81, 2, 'h', 'i' });
+            assertClosedWith (inStream, WebSocketConnection.CLOSE_PROTOCOL_ERROR);
+        }
+
+        // Text must be valid UTF-8
+        try (Socket clientSocket = openWebSocket (listenPort, "/EchoSocketApp"))
+        {
+            DataInputStream inStream = new DataInputStream (clientSocket.getInputStream ());
+            sendFrame (clientSocket.getOutputStream (), true, WebSocketConnection.OPCODE_TEXT, new byte[] { 'a', (byte) 0xC3, 0x28 });
+            assertClosedWith (inStream, WebSocketConnection.CLOSE_INVALID_DATA);
+        }
+
+        // A continuation with no message to continue
+        try (Socket clientSocket = openWebSocket (listenPort, "/EchoSocketApp"))
+        {
+            DataInputStream inStream = new DataInputStream (clientSocket.getInputStream ());
+            sendFrame (clientSocket.getOutputStream (), true, WebSocketConnection.OPCODE_CONTINUATION, new byte[1]);
+            assertClosedWith (inStream, WebSocketConnection.CLOSE_PROTOCOL_ERROR);
+        }
+    }
+
+    @Test
+    public void testIdleKeepAlivePing() throws Exception
+    {
+        try (Socket clientSocket = openWebSocket (pooledListenPort, "/EchoSocketApp/pooled"))
+        {
+            DataInputStream inStream = new DataInputStream (clientSocket.getInputStream ());
+            OutputStream outStream = clientSocket.getOutputStream ();
+            clientSocket.setSoTimeout ((int) (10 * IDLE_TIMEOUT));
+
+            // Idle, so the server asks whether we are still there. Answering keeps the connection open.
+            for (int i = 0; i < 2; i++)
+            {
+                Frame pingFrame = readFrame (inStream);
+                Assert.assertEquals (WebSocketConnection.OPCODE_PING, pingFrame.frameOpcode);
+                sendFrame (outStream, true, WebSocketConnection.OPCODE_PONG, pingFrame.framePayload);
+            }
+            sendFrame (outStream, true, WebSocketConnection.OPCODE_TEXT, "still here".getBytes (StandardCharsets.UTF_8));
+            Assert.assertEquals ("still here", readText (inStream));
+            Assert.assertTrue (pooledServer.getMetrics ().get ("websocket.keepAlivePings") >= 2);
+
+            // An unanswered ping closes it
+            Assert.assertEquals (WebSocketConnection.OPCODE_PING, readFrame (inStream).frameOpcode);
+            Assert.assertEquals (-1, inStream.read ());
+        }
+    }
+
+    private void assertClosedWith (DataInputStream inStream, int statusCode) throws IOException
+    {
+        Frame closeFrame = readFrame (inStream);
+        Assert.assertEquals (WebSocketConnection.OPCODE_CLOSE, closeFrame.frameOpcode);
+        Assert.assertEquals (statusCode, ByteBuffer.wrap (closeFrame.framePayload).getShort () & 0xFFFF);
+        Assert.assertEquals (-1, inStream.read ());
+    }
+
+    private Socket openWebSocket (int serverPort, String reqLocation) throws IOException
+    {
+        Socket clientSocket = new Socket (listenHost, serverPort);
+        String handshakeResponse = sendHandshake (clientSocket, reqLocation, "13");
+        Assert.assertTrue (handshakeResponse, handshakeResponse.startsWith ("HTTP/1.1 101"));
+        return clientSocket;
+    }
+
+    // Send an upgrade request and read the response headers, byte by byte so no frame is read with them
+    private static String sendHandshake (Socket clientSocket, String reqLocation, String webSocketVersion) throws IOException
+    {
+        String upgradeRequest = "GET " + reqLocation + " HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: " + SAMPLE_KEY + "\r\nSec-WebSocket-Version: " + webSocketVersion + "\r\n\r\n";
+        clientSocket.getOutputStream ().write (upgradeRequest.getBytes (StandardCharsets.ISO_8859_1));
+        StringBuilder responseHeaders = new StringBuilder ();
+        int inByte;
+        while ((inByte = clientSocket.getInputStream ().read ()) >= 0)
+        {
+            responseHeaders.append ((char) inByte);
+            if (responseHeaders.length () >= 4 && responseHeaders.lastIndexOf ("\r\n\r\n") == responseHeaders.length () - 4)
+                break;
+        }
+        return responseHeaders.toString ();
+    }
+
+    private void sendFrame (OutputStream outStream, boolean finalFrame, int frameOpcode, byte[] framePayload) throws IOException
+    {
+        ByteArrayOutputStream frameBytes = new ByteArrayOutputStream ();
+        frameBytes.write ((finalFrame ? 0x80 : 0) | frameOpcode);
+        if (framePayload.length < 126)
+            frameBytes.write (0x80 | framePayload.length);
+        else if (framePayload.length <= 0xFFFF)
+        {
+            frameBytes.write (0x80 | 126);
+            frameBytes.write (framePayload.length >> 8);
+            frameBytes.write (framePayload.length);
+        }
+        else
+        {
+            frameBytes.write (0x80 | 127);
+            frameBytes.write (ByteBuffer.allocate (8).putLong (framePayload.length).array ());
+        }
+        byte[] frameMask = new byte[4];
+        maskRandom.nextBytes (frameMask);
+        frameBytes.write (frameMask);
+        for (int i = 0; i < framePayload.length; i++)
+            frameBytes.write (framePayload[i] ^ frameMask[i & 3]);
+        outStream.write (frameBytes.toByteArray ());
+        outStream.flush ();
+    }
+
+    private static Frame readFrame (DataInputStream inStream) throws IOException
+    {
+        int firstByte = inStream.readUnsignedByte ();
+        int secondByte = inStream.readUnsignedByte ();
+        Assert.assertEquals ("Server frames are not masked", 0, secondByte & 0x80);
+        long payloadLength = secondByte & 0x7F;
+        if (payloadLength == 126)
+            payloadLength = inStream.readUnsignedShort ();
+        else if (payloadLength == 127)
+            payloadLength = inStream.readLong ();
+        byte[] framePayload = new byte[(int) payloadLength];
+        inStream.readFully (framePayload);
+        return new Frame (firstByte & 0x0F, framePayload);
+    }
+
+    private static String readText (DataInputStream inStream) throws IOException
+    {
+        Frame textFrame = readFrame (inStream);
+        Assert.assertEquals (WebSocketConnection.OPCODE_TEXT, textFrame.frameOpcode);
+        return new String (textFrame.framePayload, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] closePayload (int statusCode, String closeReason)
+    {
+        byte[] reasonBytes = closeReason.getBytes (StandardCharsets.UTF_8);
+        return ByteBuffer.allocate (2 + reasonBytes.length).putShort ((short) statusCode).put (reasonBytes).array ();
+    }
+
+    private static class Frame
+    {
+        final int frameOpcode;
+        final byte[] framePayload;
+
+        Frame (int frameOpcode, byte[] framePayload)
+        {
+            this.frameOpcode = frameOpcode;
+            this.framePayload = framePayload;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package nio;
+
+import nio.util.Metrics;
+import nio.util.WorkerPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class WorkerPoolTest
+{
+    @Test
+    public void testPoolGrowsUnderQueueingAndShrinksWhenIdle() throws Exception
+    {
+        Metrics metrics = new Metrics ();
+        WorkerPool workerPool = new WorkerPool ("TestWorker", WorkerPool.ADAPTIVE, 1, 4, 1000, metrics);
+        Assert.assertEquals (1, workerPool.getSize ());
+
+        // Blocking tasks queue up behind one worker, so the pool grows to its maximum
+        CountDownLatch taskLatch = new CountDownLatch (40);
+        long startMillis = System.currentTimeMillis ();
+        for (int i = 0; i < 40; i++)
+        {
+            workerPool.execute (() ->
+            {
+                sleep (50);
+                taskLatch.countDown ();
+            });
+        }
+        Assert.assertTrue (taskLatch.await (10, TimeUnit.SECONDS));
+        // One worker alone would have taken two seconds
+        Assert.assertTrue (System.currentTimeMillis () - startMillis < 1500);
+        Assert.assertTrue (metrics.get ("workers.grown") >= 3);
+
+        // Idle, it comes back down to its minimum
+        long deadlineMillis = System.currentTimeMillis () + 5000;
+        while (workerPool.getSize () > 1 && System.currentTimeMillis () < deadlineMillis)
+            Thread.sleep (50);
+        Assert.assertEquals (1, workerPool.getSize ());
+        Assert.assertEquals (1, metrics.get ("workers.target"));
+        Assert.assertTrue (metrics.get ("workers.shrunk") >= 1);
+        Assert.assertEquals (40, metrics.get ("workers.tasks"));
+    }
+
+    @Test
+    public void testWorkStealingBackend() throws Exception
+    {
+        Metrics metrics = new Metrics ();
+        WorkerPool workerPool = new WorkerPool ("TestStealer", WorkerPool.WORK_STEALING, 1, 2, 1000, metrics);
+        CountDownLatch taskLatch = new CountDownLatch (10);
+        String[] threadName = new String[1];
+        for (int i = 0; i < 10; i++)
+        {
+            workerPool.execute (() ->
+            {
+                threadName[0] = Thread.currentThread ().getName ();
+                taskLatch.countDown ();
+            });
+        }
+        Assert.assertTrue (taskLatch.await (5, TimeUnit.SECONDS));
+        Assert.assertTrue (threadName[0], threadName[0].startsWith ("TestStealer"));
+        Assert.assertEquals (2, workerPool.getTargetSize ());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testMinimumAboveMaximum()
+    {
+        new NioPooledWebServer ().setWorkers (4, 2);
+    }
+
+    private static void sleep (long sleepMillis)
+    {
+        try
+        {
+            Thread.sleep (sleepMillis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread ().interrupt ();
+        }
+    }
+}